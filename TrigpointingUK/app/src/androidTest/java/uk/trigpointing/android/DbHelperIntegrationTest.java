@@ -1,5 +1,6 @@
 package uk.trigpointing.android;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
@@ -17,8 +18,12 @@ import org.junit.runner.RunWith;
 import uk.trigpointing.android.types.Condition;
 import uk.trigpointing.android.types.PhotoSubject;
 import uk.trigpointing.android.types.Trig;
+import uk.trigpointing.android.types.TrigDelta;
 import uk.trigpointing.android.mapping.BoundingBox;
 
+import java.io.BufferedReader;
+import java.io.StringReader;
+
 import static org.junit.Assert.*;
 
 /**
@@ -368,4 +373,91 @@ public class DbHelperIntegrationTest {
             cursor.getString(cursor.getColumnIndex(DbHelper.TRIG_LOGGED)));
         cursor.close();
     }
+
+    @Test
+    public void testSpatialIndexFollowsBulkImportAndUpdates() {
+        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(context).edit();
+        editor.putInt("filterType", 6); // All types
+        editor.putInt("filterRadio", 0); // Logged or not
+        editor.putString("mapcount", "1000");
+        editor.apply();
+
+        // Bulk load, as DownloadTrigsActivity does
+        dbHelper.mDb.beginTransaction();
+        try {
+            dbHelper.beginTrigImport();
+            dbHelper.createTrig(9001, "Lakes Trig", "L001", 54.5, -3.0,
+                Trig.Physical.PILLAR, Condition.GOOD, Condition.TRIGNOTLOGGED,
+                Trig.Current.ACTIVE, Trig.Historic.PRIMARY, null);
+            dbHelper.createTrig(9002, "Highland Trig", "H001", 57.0, -5.0,
+                Trig.Physical.PILLAR, Condition.GOOD, Condition.TRIGNOTLOGGED,
+                Trig.Current.ACTIVE, Trig.Historic.PRIMARY, null);
+            dbHelper.endTrigImport();
+            dbHelper.mDb.setTransactionSuccessful();
+        } finally {
+            dbHelper.mDb.endTransaction();
+        }
+
+        BoundingBox lakes = new BoundingBox(54.8, -2.5, 54.2, -3.5);
+        try (Cursor cursor = dbHelper.fetchTrigMapList(lakes)) {
+            assertEquals("Bulk loaded trig should be in the index", 1, cursor.getCount());
+        }
+
+        // Trigs inserted after the import must also be picked up
+        dbHelper.createTrig(9003, "Second Lakes Trig", "L002", 54.6, -3.1,
+            Trig.Physical.PILLAR, Condition.GOOD, Condition.TRIGNOTLOGGED,
+            Trig.Current.ACTIVE, Trig.Historic.PRIMARY, null);
+        try (Cursor cursor = dbHelper.fetchTrigMapList(lakes)) {
+            assertEquals("Inserted trig should be in the index", 2, cursor.getCount());
+        }
+
+        // Moving a trig out of the box must remove it from the index
+        ContentValues moved = new ContentValues();
+        moved.put(DbHelper.TRIG_LAT, 51.0);
+        dbHelper.mDb.update(DbHelper.TRIG_TABLE, moved, DbHelper.TRIG_ID + "=9003", null);
+        try (Cursor cursor = dbHelper.fetchTrigMapList(lakes)) {
+            assertEquals("Moved trig should leave the index", 1, cursor.getCount());
+        }
+
+        // Nearest list must still be ordered by distance
+        Location here = new Location("test");
+        here.setLatitude(54.5);
+        here.setLongitude(-3.0);
+        try (Cursor cursor = dbHelper.fetchTrigList(here)) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Lakes Trig", cursor.getString(cursor.getColumnIndex(DbHelper.TRIG_NAME)));
+        }
+    }
+
+    @Test
+    public void testApplyTrigDeltaKeepsLoggedCondition() throws Exception {
+        dbHelper.createTrig(9101, "Changing Trig", "C001", 54.0, -3.0,
+            Trig.Physical.PILLAR, Condition.GOOD, Condition.GOOD,
+            Trig.Current.ACTIVE, Trig.Historic.PRIMARY, null);
+        dbHelper.createTrig(9102, "Doomed Trig", "D001", 54.1, -3.1,
+            Trig.Physical.PILLAR, Condition.GOOD, Condition.TRIGNOTLOGGED,
+            Trig.Current.ACTIVE, Trig.Historic.PRIMARY, null);
+
+        String payload = "DELTA\t41\t42\n"
+            + "U\t9101\tC001\tRenamed Trig\t54.01\t-3.01\tPI\t\tD\tP\t2\n"
+            + "U\t9103\tN001\tNew Trig\t54.2\t-3.2\tFB\tB1\tG\tN\tF\n"
+            + "D\t9102\n";
+        BufferedReader br = new BufferedReader(new StringReader(payload));
+        TrigDelta delta = TrigDelta.parse(br.readLine(), br);
+        assertEquals(3, dbHelper.applyTrigDelta(delta));
+
+        try (Cursor cursor = dbHelper.mDb.rawQuery("select " + DbHelper.TRIG_NAME + ", " + DbHelper.TRIG_CONDITION + ", "
+                + DbHelper.TRIG_LOGGED + " from " + DbHelper.TRIG_TABLE + " where " + DbHelper.TRIG_ID + "=9101", null)) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Renamed Trig", cursor.getString(0));
+            assertEquals(Condition.DAMAGED.code(), cursor.getString(1));
+            assertEquals("Delta should not reset the user's log", Condition.GOOD.code(), cursor.getString(2));
+        }
+        try (Cursor cursor = dbHelper.mDb.rawQuery("select " + DbHelper.TRIG_ID + " from " + DbHelper.TRIG_TABLE
+                + " where " + DbHelper.TRIG_ID + " in (9102, 9103)", null)) {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(9103, cursor.getLong(0));
+        }
+    }
 }
@@ -6,26 +6,52 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.location.Location;
 import androidx.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import uk.trigpointing.android.filter.Filter;
+import uk.trigpointing.android.nearest.NearestTrigSearch;
 import uk.trigpointing.android.types.Condition;
+import uk.trigpointing.android.types.LogDelta;
 import uk.trigpointing.android.types.PhotoSubject;
 import uk.trigpointing.android.types.Trig;
+import uk.trigpointing.android.types.TrigBundle;
+import uk.trigpointing.android.types.TrigDelta;
+import uk.trigpointing.android.types.TrigSnapshot;
 
 public class DbHelper {
     private static final String TAG                    = "DbHelper";
 
-    private static final int     DATABASE_VERSION     = 12;
+    private static final int     DATABASE_VERSION     = 14;
     private static final String DATABASE_NAME        = "trigpointinguk";
+    // Copy of the trig bundle the trig table was last loaded from
+    private static final String TRIG_BUNDLE_FILE     = "trigs.bundle";
+    // Server's dataset version of the trigs currently in the trig table
+    private static final String TRIG_VERSION_PREF    = "trigDataVersion";
+    // Where the next download of the user's logs carries on from, and whose logs they are
+    private static final String LOG_CURSOR_PREF      = "myLogsCursor";
+    private static final String LOG_CURSOR_USER_PREF = "myLogsCursorUser";
+    // Changed logged conditions committed per transaction
+    private static final int     LOG_BATCH_SIZE       = 500;
     public  static final String TRIG_TABLE            = "trig";
     public     static final String TRIG_ID                = "_id";
     public     static final String TRIG_NAME            = "name";
@@ -63,8 +89,16 @@ public class DbHelper {
     public  static final String PHOTO_SUBJECT       = "subject";
     public  static final String PHOTO_ISPUBLIC      = "ispublic";
     public  static final String PHOTO_TUKLOGID      = "tuklogid";
+    public  static final String PHOTO_ATTEMPTS      = "attempts";
+    public  static final String PHOTO_RETRYAT       = "retryat";
     public  static final String MARK_TABLE          = "mark";
     public  static final String MARK_ID                = "_id";    
+    public  static final String RTREE_TABLE         = "trig_rtree";
+    public  static final String RTREE_ID            = "id";
+    public  static final String RTREE_MINLAT        = "minlat";
+    public  static final String RTREE_MAXLAT        = "maxlat";
+    public  static final String RTREE_MINLON        = "minlon";
+    public  static final String RTREE_MAXLON        = "maxlon";
     public  static final String JOIN_UNSYNCED       = "unsynced";
     public  static final String JOIN_MARKED         = "marked";
 
@@ -112,12 +146,47 @@ public class DbHelper {
         + PHOTO_DESCR    + " string not null, "
         + PHOTO_SUBJECT  + " char(1) not null, " 
         + PHOTO_ISPUBLIC + " integer not null, "
-        + PHOTO_TUKLOGID + " integer not null "
+        + PHOTO_TUKLOGID + " integer not null, "
+        + PHOTO_ATTEMPTS + " integer not null default 0, "
+        + PHOTO_RETRYAT  + " integer not null default 0"
         + ");";
 
     private static final String MARK_CREATE = "create table " + MARK_TABLE + "(" 
             + MARK_ID          + " integer primary key"
             + ");";
+
+    // R*Tree spatial index over trig positions.  Each trig is stored as a degenerate
+    // (point) rectangle, and kept in step with the trig table by the triggers below.
+    private static final String RTREE_CREATE = "create virtual table if not exists " + RTREE_TABLE + " using rtree("
+            + RTREE_ID      + ", "
+            + RTREE_MINLAT  + ", "
+            + RTREE_MAXLAT  + ", "
+            + RTREE_MINLON  + ", "
+            + RTREE_MAXLON
+            + ");";
+
+    private static final String RTREE_POPULATE = "insert or replace into " + RTREE_TABLE
+            + " select " + TRIG_ID + ", " + TRIG_LAT + ", " + TRIG_LAT + ", " + TRIG_LON + ", " + TRIG_LON
+            + " from " + TRIG_TABLE + ";";
+
+    private static final String[] RTREE_TRIGGERS = {
+        "create trigger if not exists trig_rtree_insert after insert on " + TRIG_TABLE + " begin "
+            + "insert or replace into " + RTREE_TABLE + " values (new." + TRIG_ID + ", new." + TRIG_LAT + ", new." + TRIG_LAT
+            + ", new." + TRIG_LON + ", new." + TRIG_LON + "); end;",
+        "create trigger if not exists trig_rtree_update after update of " + TRIG_ID + ", " + TRIG_LAT + ", " + TRIG_LON
+            + " on " + TRIG_TABLE + " begin "
+            + "delete from " + RTREE_TABLE + " where " + RTREE_ID + " = old." + TRIG_ID + "; "
+            + "insert or replace into " + RTREE_TABLE + " values (new." + TRIG_ID + ", new." + TRIG_LAT + ", new." + TRIG_LAT
+            + ", new." + TRIG_LON + ", new." + TRIG_LON + "); end;",
+        "create trigger if not exists trig_rtree_delete after delete on " + TRIG_TABLE + " begin "
+            + "delete from " + RTREE_TABLE + " where " + RTREE_ID + " = old." + TRIG_ID + "; end;"
+    };
+
+    private static final String[] RTREE_TRIGGER_NAMES = {"trig_rtree_insert", "trig_rtree_update", "trig_rtree_delete"};
+
+    private static final String[] TRIG_LIST_COLUMNS = {
+        TRIG_ID, TRIG_NAME, TRIG_LAT, TRIG_LON, TRIG_TYPE, TRIG_CONDITION, TRIG_LOGGED, JOIN_UNSYNCED, JOIN_MARKED
+    };
     
     private DatabaseHelper mDbHelper;
     public SQLiteDatabase mDb;
@@ -127,6 +196,11 @@ public class DbHelper {
     private static final Object DB_OPEN_LOCK = new Object();
     // Track the number of active open() callers sharing the same underlying DB
     private static int sOpenCount = 0;
+    // Whether the R*Tree index exists - null until first checked
+    private static volatile Boolean sSpatialIndex = null;
+    // Background rebuilds of the in-memory trig snapshot
+    private static final ExecutorService sSnapshotExecutor = Executors.newSingleThreadExecutor();
+    private static final AtomicBoolean sSnapshotPending = new AtomicBoolean(false);
         
     private final Context mCtx;
 
@@ -144,15 +218,29 @@ public class DbHelper {
             db.execSQL(LOG_CREATE);
             db.execSQL(PHOTO_CREATE);
             db.execSQL(MARK_CREATE);
+            createSpatialIndex(db);
         }
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            if (oldVersion==11 && newVersion==12) {
-                Log.w(TAG, "Upgrading from 11 to 12 - require a resync!");
-                Toast.makeText(mCtx, "Database updated - please sync logs", Toast.LENGTH_LONG).show();
-                ContentValues args = new ContentValues();
-                args.put(TRIG_LOGGED, Condition.TRIGNOTLOGGED.code());
-                db.update(TRIG_TABLE, args, null, null);
+            if (oldVersion>=11 && newVersion==14) {
+                if (oldVersion < 12) {
+                    Log.w(TAG, "Upgrading from 11 to 12 - require a resync!");
+                    Toast.makeText(mCtx, "Database updated - please sync logs", Toast.LENGTH_LONG).show();
+                    ContentValues args = new ContentValues();
+                    args.put(TRIG_LOGGED, Condition.TRIGNOTLOGGED.code());
+                    db.update(TRIG_TABLE, args, null, null);
+                }
+                if (oldVersion < 13) {
+                    Log.i(TAG, "Upgrading to 13 - building spatial index");
+                    if (createSpatialIndex(db)) {
+                        db.execSQL(RTREE_POPULATE);
+                    }
+                }
+                if (oldVersion < 14) {
+                    Log.i(TAG, "Upgrading to 14 - adding photo upload retry state");
+                    db.execSQL("alter table " + PHOTO_TABLE + " add column " + PHOTO_ATTEMPTS + " integer not null default 0");
+                    db.execSQL("alter table " + PHOTO_TABLE + " add column " + PHOTO_RETRYAT + " integer not null default 0");
+                }
                 return;
             }
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
@@ -161,9 +249,31 @@ public class DbHelper {
             db.execSQL("DROP TABLE IF EXISTS " + LOG_TABLE);
             db.execSQL("DROP TABLE IF EXISTS " + PHOTO_TABLE);
             db.execSQL("DROP TABLE IF EXISTS " + MARK_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + RTREE_TABLE);
             onCreate(db);
         }
     }
+
+    /**
+     * Create the R*Tree table and the triggers which keep it in step with the trig table.
+     * Not every SQLite build includes the rtree module, so failure is logged rather than
+     * thrown, and the queries fall back to plain lat/lon range scans.
+     *
+     * @return true if the spatial index is available
+     */
+    private static boolean createSpatialIndex(SQLiteDatabase db) {
+        try {
+            db.execSQL(RTREE_CREATE);
+            for (String trigger : RTREE_TRIGGERS) {
+                db.execSQL(trigger);
+            }
+            sSpatialIndex = true;
+        } catch (SQLException e) {
+            Log.w(TAG, "createSpatialIndex: R*Tree not supported, falling back to range scans", e);
+            sSpatialIndex = false;
+        }
+        return sSpatialIndex;
+    }
     
     /**
      * Constructor - takes the context to allow the database to be
@@ -270,6 +380,85 @@ public class DbHelper {
         return mDb.update(TRIG_TABLE, args, TRIG_ID + "=" + id, null) > 0;
     }
 
+    /**
+     * Apply the user's logged conditions from the server, writing only the trigs whose
+     * condition actually changes.  A full list is applied in one transaction, clearing
+     * trigs not in it; changes since a cursor are committed in batches.
+     * 
+     * @return number of trigs changed
+     */
+    public int applyTrigLogs(LogDelta logs) {
+        int changed = 0;
+        try (SQLiteStatement update = mDb.compileStatement("update " + TRIG_TABLE + " set " + TRIG_LOGGED + "=?1"
+                + " where " + TRIG_ID + "=?2 and " + TRIG_LOGGED + "!=?1")) {
+            if (logs.isFull()) {
+                mDb.beginTransaction();
+                try {
+                    mDb.execSQL("create temp table if not exists mylogs (id integer primary key)");
+                    mDb.execSQL("delete from temp.mylogs");
+                    try (SQLiteStatement listed = mDb.compileStatement("insert or ignore into temp.mylogs values (?)")) {
+                        for (int i = 0; i < logs.size(); i++) {
+                            changed += updateTrigLog(update, logs.getIds().get(i), logs.getLogged().get(i));
+                            listed.bindLong(1, logs.getIds().get(i));
+                            listed.executeInsert();
+                        }
+                    }
+                    // Trigs the user no longer has logs for
+                    try (SQLiteStatement clear = mDb.compileStatement("update " + TRIG_TABLE + " set " + TRIG_LOGGED
+                            + "='" + Condition.TRIGNOTLOGGED.code() + "' where " + TRIG_LOGGED + "!='"
+                            + Condition.TRIGNOTLOGGED.code() + "' and " + TRIG_ID + " not in (select id from temp.mylogs)")) {
+                        changed += clear.executeUpdateDelete();
+                    }
+                    mDb.execSQL("drop table temp.mylogs");
+                    mDb.setTransactionSuccessful();
+                } finally {
+                    mDb.endTransaction();
+                }
+            } else {
+                for (int start = 0; start < logs.size(); start += LOG_BATCH_SIZE) {
+                    mDb.beginTransaction();
+                    try {
+                        for (int i = start; i < Math.min(start + LOG_BATCH_SIZE, logs.size()); i++) {
+                            changed += updateTrigLog(update, logs.getIds().get(i), logs.getLogged().get(i));
+                        }
+                        mDb.setTransactionSuccessful();
+                    } finally {
+                        mDb.endTransaction();
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static int updateTrigLog(SQLiteStatement update, long id, Condition logged) {
+        update.bindString(1, logged.code());
+        update.bindLong(2, id);
+        return update.executeUpdateDelete();
+    }
+
+    /**
+     * @return where to carry on downloading this user's logs from, or null to download them all
+     */
+    public String getLogCursor(String username) {
+        if (!username.equals(mPrefs.getString(LOG_CURSOR_USER_PREF, null))) {
+            return null;
+        }
+        return mPrefs.getString(LOG_CURSOR_PREF, null);
+    }
+
+    /**
+     * Record where the user's logs were downloaded up to, or null to forget it so that
+     * the next sync downloads them all
+     */
+    public void setLogCursor(String username, String cursor) {
+        if (cursor == null) {
+            mPrefs.edit().remove(LOG_CURSOR_PREF).remove(LOG_CURSOR_USER_PREF).apply();
+        } else {
+            mPrefs.edit().putString(LOG_CURSOR_PREF, cursor).putString(LOG_CURSOR_USER_PREF, username).apply();
+        }
+    }
+
     public boolean deleteAllTrigLogs() {
         ContentValues args = new ContentValues();
         args.put(TRIG_LOGGED, Condition.TRIGNOTLOGGED.code());
@@ -286,6 +475,303 @@ public class DbHelper {
         return mDb.delete(TRIG_TABLE, null, null) > 0;
     }
 
+    /**
+     * Prepare for a bulk reload of the trig table.  Empties the trig table and its
+     * spatial index, and drops the sync triggers and lat/lon index so that each insert
+     * is a single table write.  Must be paired with {@link #endTrigImport()} inside the
+     * same transaction.  The stored dataset version is forgotten, as a partial table
+     * can't take a delta.
+     */
+    public void beginTrigImport() {
+        // Written now rather than in the background, so it is gone before any batch commits
+        //noinspection ApplySharedPref
+        mPrefs.edit().remove(TRIG_VERSION_PREF).commit();
+        mDb.execSQL("drop index if exists latlon");
+        if (hasSpatialIndex()) {
+            for (String trigger : RTREE_TRIGGER_NAMES) {
+                mDb.execSQL("drop trigger if exists " + trigger);
+            }
+            mDb.delete(RTREE_TABLE, null, null);
+        }
+        mDb.delete(TRIG_TABLE, null, null);
+        // The reloaded trigs aren't logged, so the next sync needs all the user's logs
+        setLogCursor(null, null);
+    }
+
+    /**
+     * Finish a bulk reload of the trig table.  Rebuilds the spatial index from the
+     * freshly loaded rows in one statement, restores the sync triggers and creates
+     * the lat/lon index used by the fallback queries.
+     */
+    public void endTrigImport() {
+        if (hasSpatialIndex()) {
+            mDb.execSQL(RTREE_POPULATE);
+            for (String trigger : RTREE_TRIGGERS) {
+                mDb.execSQL(trigger);
+            }
+        }
+        mDb.execSQL("create index if not exists latlon on " + TRIG_TABLE + " (" + TRIG_LAT + ", " + TRIG_LON + ")");
+    }
+
+    /**
+     * Start a bulk reload of the trig table.  See {@link TrigLoader}.
+     * 
+     * @param batchSize rows per committed transaction, or 0 to load everything in one transaction
+     */
+    public TrigLoader trigLoader(int batchSize) {
+        return new TrigLoader(batchSize);
+    }
+
+    /**
+     * Bulk loader for the trig table, much faster than repeated calls to
+     * {@link #createTrig}.  Rows are inserted through one precompiled statement with
+     * the indexes dropped, and are committed every batchSize rows.  Once a batch has
+     * been committed the old trigs are gone, so an import which fails part way leaves
+     * a partial table until it is retried, and the next download fetches every trig.
+     * Use a batch size of 0 when the old trigs must survive a failure.
+     * 
+     * <pre>
+     * try (DbHelper.TrigLoader loader = db.trigLoader(1000)) {
+     *     loader.add(...);
+     *     loader.finish();
+     * }
+     * </pre>
+     */
+    public final class TrigLoader implements AutoCloseable {
+        private final SQLiteStatement mInsert;
+        private final int mBatchSize;
+        // Restored if a single transaction load rolls back
+        private final String mOldVersion;
+        private int mInBatch = 0;
+        private int mCount = 0;
+        private boolean mFinished = false;
+
+        private TrigLoader(int batchSize) {
+            mBatchSize = batchSize;
+            mOldVersion = getTrigDataVersion();
+            mDb.beginTransaction();
+            try {
+                beginTrigImport();
+                mInsert = mDb.compileStatement("insert or replace into " + TRIG_TABLE + " ("
+                        + TRIG_ID + ", " + TRIG_NAME + ", " + TRIG_WAYPOINT + ", " + TRIG_LAT + ", " + TRIG_LON + ", "
+                        + TRIG_TYPE + ", " + TRIG_CONDITION + ", " + TRIG_LOGGED + ", " + TRIG_CURRENT + ", "
+                        + TRIG_HISTORIC + ", " + TRIG_FB + ") values (?,?,?,?,?,?,?,?,?,?,?)");
+            } catch (RuntimeException e) {
+                mDb.endTransaction();
+                throw e;
+            }
+        }
+
+        public void add(long id, String name, String waypoint, double lat, double lon, Trig.Physical type, Condition condition, Condition logged, Trig.Current current, Trig.Historic historic, String fb) {
+            mInsert.bindLong(1, id);
+            mInsert.bindString(2, name);
+            mInsert.bindString(3, waypoint);
+            mInsert.bindDouble(4, lat);
+            mInsert.bindDouble(5, lon);
+            mInsert.bindString(6, type.code());
+            mInsert.bindString(7, condition.code());
+            mInsert.bindString(8, logged.code());
+            mInsert.bindString(9, current.code());
+            mInsert.bindString(10, historic.code());
+            if (fb == null) {
+                mInsert.bindNull(11);
+            } else {
+                mInsert.bindString(11, fb);
+            }
+            mInsert.executeInsert();
+            mCount++;
+            if (mBatchSize > 0 && ++mInBatch >= mBatchSize) {
+                mDb.setTransactionSuccessful();
+                mDb.endTransaction();
+                mDb.beginTransaction();
+                mInBatch = 0;
+            }
+        }
+
+        /**
+         * @return number of rows added so far
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Rebuild the indexes and commit the last batch
+         */
+        public void finish() {
+            endTrigImport();
+            mDb.setTransactionSuccessful();
+            mFinished = true;
+        }
+
+        /**
+         * Release the statement.  Rolls back the current batch unless {@link #finish()} was called.
+         */
+        @Override
+        public void close() {
+            mInsert.close();
+            mDb.endTransaction();
+            if (!mFinished) {
+                Log.w(TAG, "TrigLoader: Import abandoned after " + mCount + " rows");
+                if (mBatchSize > 0) {
+                    // Earlier batches are committed, so bring the indexes back in line with them
+                    try {
+                        endTrigImport();
+                    } catch (SQLException e) {
+                        Log.e(TAG, "TrigLoader: Unable to rebuild indexes", e);
+                    }
+                } else {
+                    // Nothing was committed, so the old trigs and their version still stand
+                    setTrigDataVersion(mOldVersion);
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply a delta from the server in one transaction.  Changed trigs keep the user's
+     * logged condition; the spatial index follows through its triggers.
+     * 
+     * @return number of rows changed
+     */
+    public int applyTrigDelta(TrigDelta delta) {
+        int changed = 0;
+        mDb.beginTransaction();
+        try (SQLiteStatement update = mDb.compileStatement("update " + TRIG_TABLE + " set "
+                     + TRIG_NAME + "=?, " + TRIG_WAYPOINT + "=?, " + TRIG_LAT + "=?, " + TRIG_LON + "=?, "
+                     + TRIG_TYPE + "=?, " + TRIG_CONDITION + "=?, " + TRIG_CURRENT + "=?, "
+                     + TRIG_HISTORIC + "=?, " + TRIG_FB + "=? where " + TRIG_ID + "=?");
+             SQLiteStatement insert = mDb.compileStatement("insert into " + TRIG_TABLE + " ("
+                     + TRIG_NAME + ", " + TRIG_WAYPOINT + ", " + TRIG_LAT + ", " + TRIG_LON + ", "
+                     + TRIG_TYPE + ", " + TRIG_CONDITION + ", " + TRIG_CURRENT + ", "
+                     + TRIG_HISTORIC + ", " + TRIG_FB + ", " + TRIG_ID + ", " + TRIG_LOGGED
+                     + ") values (?,?,?,?,?,?,?,?,?,?,'" + Condition.TRIGNOTLOGGED.code() + "')");
+             SQLiteStatement delete = mDb.compileStatement("delete from " + TRIG_TABLE + " where " + TRIG_ID + "=?")) {
+            for (TrigDelta.Row row : delta.getUpserts()) {
+                // No upsert syntax in the SQLite shipped with older Android releases
+                bindDeltaRow(update, row);
+                if (update.executeUpdateDelete() == 0) {
+                    bindDeltaRow(insert, row);
+                    insert.executeInsert();
+                }
+                changed++;
+            }
+            for (long id : delta.getDeletes()) {
+                delete.bindLong(1, id);
+                changed += delete.executeUpdateDelete();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return changed;
+    }
+
+    private static void bindDeltaRow(SQLiteStatement stmt, TrigDelta.Row row) {
+        stmt.bindString(1, row.name);
+        stmt.bindString(2, row.waypoint);
+        stmt.bindDouble(3, row.lat);
+        stmt.bindDouble(4, row.lon);
+        stmt.bindString(5, row.type.code());
+        stmt.bindString(6, row.condition.code());
+        stmt.bindString(7, row.current.code());
+        stmt.bindString(8, row.historic.code());
+        stmt.bindString(9, row.fb);
+        stmt.bindLong(10, row.id);
+    }
+
+    /**
+     * @return the server's dataset version of the trig table, or null if unknown
+     */
+    public String getTrigDataVersion() {
+        return mPrefs.getString(TRIG_VERSION_PREF, null);
+    }
+
+    /**
+     * Record the dataset version of the trig table, or null if unknown
+     */
+    public void setTrigDataVersion(String version) {
+        if (version == null) {
+            mPrefs.edit().remove(TRIG_VERSION_PREF).apply();
+        } else {
+            mPrefs.edit().putString(TRIG_VERSION_PREF, version).apply();
+        }
+    }
+
+    /**
+     * @return the version to ask the server for changes since, or null if every trig is needed
+     */
+    public String getTrigDeltaBase() {
+        return hasTrigs() ? getTrigDataVersion() : null;
+    }
+
+    /**
+     * Returns whether the trig table has any rows
+     */
+    public boolean hasTrigs() {
+        try (Cursor c = mDb.rawQuery("select 1 from " + TRIG_TABLE + " limit 1", null)) {
+            return c.moveToFirst();
+        }
+    }
+
+    /**
+     * Returns whether the R*Tree spatial index is present in this database
+     */
+    public boolean hasSpatialIndex() {
+        if (sSpatialIndex == null) {
+            try (Cursor c = mDb.rawQuery("SELECT 1 FROM sqlite_master WHERE type='table' AND name=?", new String[]{RTREE_TABLE})) {
+                sSpatialIndex = c.moveToFirst();
+            } catch (Exception e) {
+                Log.w(TAG, "hasSpatialIndex: Unable to inspect schema", e);
+                return false;
+            }
+        }
+        return sSpatialIndex;
+    }
+
+    /**
+     * Returns a WHERE fragment restricting the trig table to the given box, using
+     * the R*Tree when available.
+     */
+    private String spatialWhere(double south, double west, double north, double east) {
+        if (hasSpatialIndex()) {
+            return String.format(Locale.ROOT, "%s.%s IN (SELECT %s FROM %s WHERE %s >= %f AND %s <= %f AND %s >= %f AND %s <= %f)",
+                    TRIG_TABLE, TRIG_ID, RTREE_ID, RTREE_TABLE,
+                    RTREE_MAXLAT, south, RTREE_MINLAT, north,
+                    RTREE_MAXLON, west, RTREE_MINLON, east);
+        }
+        return String.format(Locale.ROOT, "%s.%s between %f and %f  and  %s.%s between %f and %f",
+                TRIG_TABLE, TRIG_LON, west, east,
+                TRIG_TABLE, TRIG_LAT, south, north);
+    }
+
+    /**
+     * Builds the common trig list/map query, joining unsynced logs and marks
+     */
+    private static String trigListQuery(String strWhere, String strOrder) {
+        return "SELECT "+
+                TRIG_TABLE +"."+ TRIG_ID +", "+
+                TRIG_TABLE +"."+ TRIG_NAME +", "+
+                TRIG_TABLE +"."+ TRIG_LAT +", "+
+                TRIG_TABLE +"."+ TRIG_LON +", "+
+                TRIG_TABLE +"."+ TRIG_TYPE +", "+
+                TRIG_TABLE +"."+ TRIG_CONDITION +", "+
+                TRIG_TABLE +"."+ TRIG_LOGGED + ", "+
+                LOG_TABLE  +"."+ LOG_CONDITION + " AS " + JOIN_UNSYNCED + ", " +
+                MARK_TABLE  +"."+ MARK_ID + " AS " + JOIN_MARKED + " " +
+                trigListFrom() +
+                strWhere + " " +
+                "ORDER BY " + strOrder;
+    }
+
+    private static String trigListFrom() {
+        return "FROM " + TRIG_TABLE + " "+
+                "LEFT OUTER JOIN " + LOG_TABLE + " "+
+                "ON " + TRIG_TABLE + "." + TRIG_ID + "=" + LOG_TABLE + "." + LOG_ID + " " +
+                "LEFT OUTER JOIN " + MARK_TABLE + " "+
+                "ON " + TRIG_TABLE + "." + TRIG_ID + "=" + MARK_TABLE + "." + MARK_ID + " ";
+    }
+
     public void clearUserLogs() {
         Log.i(TAG, "clearUserLogs: Clearing all user logs, photos, and marks");
         try {
@@ -298,6 +784,8 @@ public class DbHelper {
             ContentValues args = new ContentValues();
             args.put(TRIG_LOGGED, Condition.TRIGNOTLOGGED.code());
             mDb.update(TRIG_TABLE, args, null, null);
+            setLogCursor(null, null);
+            refreshTrigSnapshot(mCtx);
 
             Log.i(TAG, "clearUserLogs: User data cleared successfully");
         } catch (SQLException e) {
@@ -311,26 +799,19 @@ public class DbHelper {
      * @return Cursor 
      */
     public Cursor fetchTrigList(Location loc) {
-        String strOrder;    
-   
         if (null != loc) {
-            strOrder = String.format("(%s-%s)*(%s-%s) + %s * (%s-%s)*(%s-%s) LIMIT %s", 
-                    loc.getLatitude(), 
-                    TRIG_LAT, 
-                    loc.getLatitude(), 
-                    TRIG_LAT, 
-                    Math.pow(Math.cos(Math.toRadians(loc.getLatitude())),2), 
-                    loc.getLongitude(), 
-                    TRIG_LON, 
-                    loc.getLongitude(), 
-                    TRIG_LON, 
-                    mPrefs.getString("listentries", "100"));
-        } else {
-            strOrder = TRIG_NAME + " LIMIT " +  mPrefs.getString("listentries", "100");
+            int limit = 100;
+            try {
+                limit = Integer.parseInt(mPrefs.getString("listentries", "100"));
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "fetchTrigList: Invalid listentries, using " + limit);
+            }
+            return fetchNearestTrigs(loc, limit, Double.POSITIVE_INFINITY);
         }
-        Log.i(TAG, strOrder);
-        
+
+        String strOrder = TRIG_NAME + " LIMIT " +  mPrefs.getString("listentries", "100");
         String strWhere = new Filter(mCtx).filterWhere("WHERE");
+        Log.i(TAG, strOrder);
         Log.i(TAG, "fetchTrigList: Filter where clause: " + strWhere);
         
         // Debug: Log the current filter settings
@@ -340,28 +821,81 @@ public class DbHelper {
         String filterRadioText = prefs.getString(Filter.FILTERRADIOTEXT, "");
         Log.i(TAG, "fetchTrigList: Filter settings - Type: " + filterType + ", Radio: " + filterRadio + ", RadioText: '" + filterRadioText + "'");
         
-        final String qry = "SELECT "+
-                TRIG_TABLE +"."+ TRIG_ID +", "+
-                TRIG_TABLE +"."+ TRIG_NAME +", "+
-                TRIG_TABLE +"."+ TRIG_LAT +", "+
-                TRIG_TABLE +"."+ TRIG_LON +", "+
-                TRIG_TABLE +"."+ TRIG_TYPE +", "+
-                TRIG_TABLE +"."+ TRIG_CONDITION +", "+
-                TRIG_TABLE +"."+ TRIG_LOGGED + ", "+
-                LOG_TABLE  +"."+ LOG_CONDITION + " AS " + JOIN_UNSYNCED + ", " +
-                MARK_TABLE  +"."+ MARK_ID + " AS " + JOIN_MARKED + " " +
-                "FROM " + TRIG_TABLE + " "+
-                "LEFT OUTER JOIN " + LOG_TABLE + " "+
-                "ON " + TRIG_TABLE + "." + TRIG_ID + "=" + LOG_TABLE + "." + LOG_ID + " " +
-                "LEFT OUTER JOIN " + MARK_TABLE + " "+
-                "ON " + TRIG_TABLE + "." + TRIG_ID + "=" + MARK_TABLE + "." + MARK_ID + " " +
-                strWhere + " " +
-                "ORDER BY " + strOrder;
+        final String qry = trigListQuery(strWhere, strOrder);
         Log.i(TAG, qry);
         return mDb.rawQuery(qry, null);
 
     }
     
+    /**
+     * Return a Cursor of the trigs nearest to loc which pass the current filter, in
+     * ascending order of great-circle distance.  The columns match fetchTrigList.
+     * 
+     * @param loc       point to search from
+     * @param limit     maximum number of trigs to return
+     * @param maxMetres ignore trigs further away than this
+     * @return Cursor 
+     */
+    public Cursor fetchNearestTrigs(Location loc, int limit, double maxMetres) {
+        TrigSnapshot snapshot = TrigSnapshot.current();
+        if (snapshot != null) {
+            NearestTrigSearch<Integer> search = NearestTrigSearch.over(snapshot, new Filter(mCtx).snapshotPredicate());
+            List<NearestTrigSearch.Hit<Integer>> hits = search.nearest(loc.getLatitude(), loc.getLongitude(), limit, maxMetres);
+            MatrixCursor cursor = new MatrixCursor(TRIG_LIST_COLUMNS, hits.size());
+            for (NearestTrigSearch.Hit<Integer> hit : hits) {
+                int row = hit.payload;
+                Condition unsynced = snapshot.unsynced(row);
+                cursor.addRow(new Object[] {
+                        snapshot.id(row),
+                        snapshot.name(row),
+                        snapshot.lat(row),
+                        snapshot.lon(row),
+                        snapshot.type(row).code(),
+                        snapshot.condition(row).code(),
+                        snapshot.logged(row).code(),
+                        unsynced == null ? null : unsynced.code(),
+                        snapshot.isMarked(row) ? snapshot.id(row) : null});
+            }
+            return cursor;
+        }
+
+        final String filter = new Filter(mCtx).filterWhere("AND");
+        NearestTrigSearch<Object[]> search = new NearestTrigSearch<>((box, hole, sink) -> {
+            StringBuilder where = new StringBuilder("WHERE ")
+                    .append(spatialWhere(box.south, box.west, box.north, box.east))
+                    .append(String.format(Locale.ROOT, " AND %s.%s between %f and %f AND %s.%s between %f and %f",
+                            TRIG_TABLE, TRIG_LAT, box.south, box.north,
+                            TRIG_TABLE, TRIG_LON, box.west, box.east));
+            if (hole != null) {
+                where.append(String.format(Locale.ROOT, " AND NOT (%s.%s between %f and %f AND %s.%s between %f and %f)",
+                        TRIG_TABLE, TRIG_LAT, hole.south, hole.north,
+                        TRIG_TABLE, TRIG_LON, hole.west, hole.east));
+            }
+            where.append(filter);
+            try (Cursor c = mDb.rawQuery(trigListQuery(where.toString(), TRIG_TABLE + "." + TRIG_ID), null)) {
+                while (c.moveToNext()) {
+                    Object[] row = new Object[TRIG_LIST_COLUMNS.length];
+                    row[0] = c.getLong(0);
+                    row[1] = c.getString(1);
+                    row[2] = c.getDouble(2);
+                    row[3] = c.getDouble(3);
+                    for (int i = 4; i < row.length; i++) {
+                        row[i] = c.getString(i);
+                    }
+                    sink.offer((Double) row[2], (Double) row[3], row);
+                }
+            }
+        });
+
+        List<NearestTrigSearch.Hit<Object[]>> hits = search.nearest(loc.getLatitude(), loc.getLongitude(), limit, maxMetres);
+        Log.i(TAG, "fetchNearestTrigs: " + hits.size() + " trigs from " + search.getRingCount() + " rings");
+        MatrixCursor cursor = new MatrixCursor(TRIG_LIST_COLUMNS, hits.size());
+        for (NearestTrigSearch.Hit<Object[]> hit : hits) {
+            cursor.addRow(hit.payload);
+        }
+        return cursor;
+    }
+    
     
     
     /**
@@ -376,54 +910,121 @@ public class DbHelper {
         
         // Create distance-based ordering using approximate distance formula
         // (lat-centerLat)^2 + (lon-centerLon)^2 gives relative distance squared
-        String strOrder = String.format(Locale.getDefault(), "((%s - %f) * (%s - %f) + (%s - %f) * (%s - %f)) limit %s", 
+        String strOrder = String.format(Locale.ROOT, "((%s - %f) * (%s - %f) + (%s - %f) * (%s - %f)) limit %s", 
                 TRIG_LAT, centerLat, TRIG_LAT, centerLat,
                 TRIG_LON, centerLon, TRIG_LON, centerLon,
                 mPrefs.getString("mapcount", DEFAULT_MAP_COUNT));    
    
-        String strWhere = String.format("WHERE %s between %s and %s  and  %s between %s and %s",
-                TRIG_LON, 
-                box.getLonWest(), 
-                box.getLonEast(), 
-                TRIG_LAT, 
-                box.getLatSouth(), 
-                box.getLatNorth()); 
+        String strWhere = "WHERE " + spatialWhere(box.getLatSouth(), box.getLonWest(), box.getLatNorth(), box.getLonEast());
 
         strWhere += new Filter(mCtx).filterWhere("AND");
         Log.i(TAG, strWhere);
         Log.i(TAG, "lat limit " + mPrefs.getString("mapcount", DEFAULT_MAP_COUNT));
         
-        final String qry = "SELECT "+
-                TRIG_TABLE +"."+ TRIG_ID +", "+
-                TRIG_TABLE +"."+ TRIG_NAME +", "+
-                TRIG_TABLE +"."+ TRIG_LAT +", "+
-                TRIG_TABLE +"."+ TRIG_LON +", "+
-                TRIG_TABLE +"."+ TRIG_TYPE +", "+
-                TRIG_TABLE +"."+ TRIG_CONDITION +", "+
-                TRIG_TABLE +"."+ TRIG_LOGGED + ", "+
-                LOG_TABLE  +"."+ LOG_CONDITION + " AS " + JOIN_UNSYNCED + ", " +
-                MARK_TABLE  +"."+ MARK_ID + " AS " + JOIN_MARKED + " " +
-                "FROM " + TRIG_TABLE + " "+
-                "LEFT OUTER JOIN " + LOG_TABLE + " "+
-                "ON " + TRIG_TABLE + "." + TRIG_ID + "=" + LOG_TABLE + "." + LOG_ID + " " +
-                "LEFT OUTER JOIN " + MARK_TABLE + " "+
-                "ON " + TRIG_TABLE + "." + TRIG_ID + "=" + MARK_TABLE + "." + MARK_ID + " " +
-                strWhere + " " +
-                "ORDER BY " + strOrder;
+        final String qry = trigListQuery(strWhere, strOrder);
         Log.i(TAG, qry);
         return mDb.rawQuery(qry, null);
-        
-        
-/*        return mDb.query(TRIG_TABLE, new String[] {
-                TRIG_ID, 
-                TRIG_NAME, 
-                TRIG_LAT, 
-                TRIG_LON, 
-                TRIG_TYPE, 
-                TRIG_CONDITION, 
-                TRIG_LOGGED}, 
-                strWhere, null, null, null, strOrder);
-*/    }
+    }
+    
+    /**
+     * Read the whole trig table, with unsynced logs and marks, into a new snapshot
+     * 
+     * @return TrigSnapshot
+     */
+    public TrigSnapshot loadTrigSnapshot() {
+        final String qry = trigListQuery("", TRIG_TABLE + "." + TRIG_ID);
+        try (Cursor c = mDb.rawQuery(qry, null)) {
+            TrigSnapshot.Builder builder = new TrigSnapshot.Builder(c.getCount());
+            while (c.moveToNext()) {
+                builder.add(c.getLong(0),
+                        c.getString(1),
+                        c.getDouble(2),
+                        c.getDouble(3),
+                        Trig.Physical.fromCode(c.getString(4)),
+                        Condition.fromCode(c.getString(5)),
+                        Condition.fromCode(c.getString(6)),
+                        c.isNull(7) ? null : Condition.fromCode(c.getString(7)),
+                        !c.isNull(8));
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * Build a snapshot from a trig bundle, taking logs and marks from the database.
+     * Much cheaper than {@link #loadTrigSnapshot()} since only the user's own rows are queried.
+     * 
+     * @return TrigSnapshot
+     */
+    public TrigSnapshot loadTrigSnapshot(TrigBundle.Reader bundle) {
+        Map<Long, Condition> logged = new HashMap<>();
+        try (Cursor c = mDb.query(TRIG_TABLE, new String[] {TRIG_ID, TRIG_LOGGED},
+                TRIG_LOGGED + "!='" + Condition.TRIGNOTLOGGED.code() + "'", null, null, null, null)) {
+            while (c.moveToNext()) {
+                logged.put(c.getLong(0), Condition.fromCode(c.getString(1)));
+            }
+        }
+        Map<Long, Condition> unsynced = new HashMap<>();
+        try (Cursor c = mDb.query(LOG_TABLE, new String[] {LOG_ID, LOG_CONDITION}, null, null, null, null, null)) {
+            while (c.moveToNext()) {
+                unsynced.put(c.getLong(0), Condition.fromCode(c.getString(1)));
+            }
+        }
+        Set<Long> marked = new HashSet<>();
+        try (Cursor c = mDb.query(MARK_TABLE, new String[] {MARK_ID}, null, null, null, null, null)) {
+            while (c.moveToNext()) {
+                marked.add(c.getLong(0));
+            }
+        }
+        return bundle.toSnapshot(logged, unsynced, marked);
+    }
+
+    /**
+     * The bundle file holding the current contents of the trig table.  Only present if the
+     * last trig download was a bundle and was imported successfully.
+     */
+    public static File trigBundleFile(Context ctx) {
+        return new File(ctx.getFilesDir(), TRIG_BUNDLE_FILE);
+    }
+
+    /**
+     * Rebuild the process-wide trig snapshot in the background, then swap it in.
+     * Requests made while a rebuild is queued are merged into it.
+     */
+    public static void refreshTrigSnapshot(Context ctx) {
+        if (!sSnapshotPending.compareAndSet(false, true)) {
+            return;
+        }
+        final Context appCtx = ctx.getApplicationContext();
+        sSnapshotExecutor.execute(() -> {
+            sSnapshotPending.set(false);
+            DbHelper db = new DbHelper(appCtx);
+            try {
+                db.openReadable();
+                long start = System.currentTimeMillis();
+                TrigSnapshot snapshot = null;
+                File bundleFile = trigBundleFile(appCtx);
+                if (bundleFile.exists()) {
+                    try {
+                        snapshot = db.loadTrigSnapshot(TrigBundle.Reader.open(bundleFile));
+                    } catch (IOException e) {
+                        Log.w(TAG, "refreshTrigSnapshot: Discarding unreadable trig bundle", e);
+                        //noinspection ResultOfMethodCallIgnored
+                        bundleFile.delete();
+                    }
+                }
+                if (snapshot == null) {
+                    snapshot = db.loadTrigSnapshot();
+                }
+                TrigSnapshot.set(snapshot.size() > 0 ? snapshot : null);
+                Log.i(TAG, "refreshTrigSnapshot: " + snapshot.size() + " trigs in " + (System.currentTimeMillis() - start) + "ms");
+            } catch (Exception e) {
+                Log.e(TAG, "refreshTrigSnapshot: Failed", e);
+            } finally {
+                db.close();
+            }
+        });
+    }
     
     /**
      * Return a Cursor suitable for the triglist screen
@@ -442,10 +1043,25 @@ public class DbHelper {
                 TRIG_CURRENT, 
                 TRIG_HISTORIC, 
                 TRIG_FB}, 
-                TRIG_ID + "="+id, 
+                TRIG_ID + "="+id,
                 null, null, null, null);
     }
-    
+
+    /**
+     * Return a Cursor of the positions of marked trigs which the user has yet to log,
+     * on the server or here, for prefetching map tiles before a walk
+     *
+     * @return Cursor of lat, lon
+     */
+    public Cursor fetchPlannedTrigs() {
+        return mDb.rawQuery("SELECT " + TRIG_TABLE + "." + TRIG_LAT + ", " + TRIG_TABLE + "." + TRIG_LON + " "
+                + "FROM " + TRIG_TABLE + " "
+                + "JOIN " + MARK_TABLE + " ON " + TRIG_TABLE + "." + TRIG_ID + "=" + MARK_TABLE + "." + MARK_ID + " "
+                + "LEFT OUTER JOIN " + LOG_TABLE + " ON " + TRIG_TABLE + "." + TRIG_ID + "=" + LOG_TABLE + "." + LOG_ID + " "
+                + "WHERE " + TRIG_TABLE + "." + TRIG_LOGGED + "=? AND " + LOG_TABLE + "." + LOG_ID + " IS NULL",
+                new String[]{Condition.TRIGNOTLOGGED.code()});
+    }
+
     /**
      * Returns whether the trig table contains data
      * 
@@ -586,7 +1202,11 @@ public class DbHelper {
         initialValues.put(LOG_COMMENT        , comment);
         initialValues.put(LOG_FLAGADMINS    , flagadmins);
         initialValues.put(LOG_FLAGUSERS        , flagusers);
-        return mDb.insert(LOG_TABLE, null, initialValues);
+        long rowId = mDb.insert(LOG_TABLE, null, initialValues);
+        if (rowId != -1) {
+            TrigSnapshot.update(snapshot -> snapshot.withUnsynced(id, condition));
+        }
+        return rowId;
     }
 
     
@@ -598,6 +1218,7 @@ public class DbHelper {
      * @return true if deleted, false otherwise
      */
     public boolean deleteLog(long id) {
+        TrigSnapshot.update(snapshot -> snapshot.withUnsynced(id, null));
         return mDb.delete(LOG_TABLE, LOG_ID + "=" + id, null) > 0;
     }
 
@@ -742,6 +1363,9 @@ public class DbHelper {
         newValues.put(PHOTO_SUBJECT        , subject.code());
         newValues.put(PHOTO_ISPUBLIC    , ispublic);
         newValues.put(PHOTO_TUKLOGID    , 0);
+        // Edited, so worth uploading again straight away
+        newValues.put(PHOTO_ATTEMPTS    , 0);
+        newValues.put(PHOTO_RETRYAT     , 0);
         return mDb.update(PHOTO_TABLE, newValues, PHOTO_ID + "=" + photoId, null);
     }
 
@@ -767,6 +1391,22 @@ public class DbHelper {
     
     
 
+    /**
+     * Record a failed upload, so the photo waits until retryAt before the next attempt
+     * 
+     * @param attempts failed uploads so far
+     * @param retryAt  System.currentTimeMillis() after which to try again
+     * @return true if updated, false otherwise
+     */
+    public boolean deferPhoto(long id, int attempts, long retryAt) {
+        ContentValues newValues = new ContentValues();
+        newValues.put(PHOTO_ATTEMPTS    , attempts);
+        newValues.put(PHOTO_RETRYAT     , retryAt);
+        return mDb.update(PHOTO_TABLE, newValues, PHOTO_ID + "=" + id, null) > 0;
+    }
+
+
+
     /**
      * Delete individual photo
      * 
@@ -863,6 +1503,48 @@ public class DbHelper {
     }
 
     
+    /**
+     * Return a Cursor positioned at the first photo waiting to be uploaded for the
+     * given trigpoint (or all trigpoints, if null), skipping those whose last failed
+     * upload was too recent.  Includes the upload retry state.
+     * 
+     * @param trig_id of trigpoint to retrieve
+     * @param now System.currentTimeMillis()
+     * @return Cursor positioned to first photo due, or null if none
+     */
+    public Cursor fetchPhotoQueue(Long trig_id, long now) throws SQLException {
+
+        String condition = PHOTO_RETRYAT + "<=" + now;
+        if (trig_id != null) {
+            // only a single trig
+            condition += " and " + PHOTO_TRIG + "=" + trig_id;
+        }
+        
+        Cursor mCursor =
+            mDb.query(PHOTO_TABLE, 
+                    new String[] {    PHOTO_ID, 
+                                    PHOTO_TRIG, 
+                                    PHOTO_ICON,
+                                    PHOTO_PHOTO,
+                                    PHOTO_NAME, 
+                                    PHOTO_DESCR, 
+                                    PHOTO_SUBJECT,
+                                    PHOTO_ISPUBLIC,
+                                    PHOTO_TUKLOGID,
+                                    PHOTO_ATTEMPTS}
+                    , condition, null,
+                    null, null, PHOTO_ID);
+        
+        if (mCursor != null) {
+            if (! mCursor.moveToFirst()) {
+                mCursor.close();
+                return null;
+            }
+        }
+        return mCursor;
+    }
+
+    
     public Boolean setMarkedTrig(long trig_id, Boolean mark) {
         Log.i(TAG, "setMarkedTrig - " + trig_id + " - " + mark);
         
@@ -870,9 +1552,11 @@ public class DbHelper {
             ContentValues initialValues = new ContentValues();
             initialValues.put(MARK_ID            , trig_id);
             mDb.insert(MARK_TABLE, null, initialValues);
+            TrigSnapshot.update(snapshot -> snapshot.withMarked(trig_id, true));
             return true;
         } else {
             mDb.delete(MARK_TABLE, MARK_ID + "=" + trig_id, null);
+            TrigSnapshot.update(snapshot -> snapshot.withMarked(trig_id, false));
             return false;
         }
     }
@@ -903,6 +1587,11 @@ public class DbHelper {
                 sDbHelper.close();
             }
             boolean deleted = mCtx.deleteDatabase(DATABASE_NAME);
+            sSpatialIndex = null;
+            TrigSnapshot.set(null);
+            //noinspection ResultOfMethodCallIgnored
+            trigBundleFile(mCtx).delete();
+            setTrigDataVersion(null);
             Log.i(TAG, "deleteDatabase: Database deletion result: " + deleted);
         } catch (Exception e) {
             Log.e(TAG, "deleteDatabase: Error deleting database", e);
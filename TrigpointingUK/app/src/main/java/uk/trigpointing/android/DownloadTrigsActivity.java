@@ -2,25 +2,30 @@ package uk.trigpointing.android;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
-import java.net.URLConnection;
+import java.net.URLEncoder;
 import java.util.zip.GZIPInputStream;
 
 import uk.trigpointing.android.common.BaseActivity;
+import uk.trigpointing.android.common.ResumableDownload;
 
 import android.annotation.SuppressLint;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.MenuItem;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -29,6 +34,8 @@ import uk.trigpointing.android.logging.SyncTask;
 import uk.trigpointing.android.logging.SyncListener;
 import uk.trigpointing.android.types.Condition;
 import uk.trigpointing.android.types.Trig;
+import uk.trigpointing.android.types.TrigBundle;
+import uk.trigpointing.android.types.TrigDelta;
 import android.content.Intent;
 
 public class DownloadTrigsActivity extends BaseActivity implements SyncListener {
@@ -44,7 +51,17 @@ public class DownloadTrigsActivity extends BaseActivity implements SyncListener
     private int             countdownRemainingSeconds = 0;
     private Runnable         countdownRunnable;
     
+    private long            mLastProgressTime = 0;
+    // Dataset version of the list being imported, and whether it is a delta
+    private String          mTrigVersion;
+    private boolean         mDelta;
+    private volatile TrigImportPipeline mPipeline;
+    private volatile ResumableDownload mDownload;
+    
     private static final String TAG = "DownloadTrigsActivity";
+    private static final long PROGRESS_INTERVAL_MS = 250;
+    private static final String TRIG_DOWNLOAD_FILE = "trigs.download";
+    private static final String TRIG_VERSION_HEADER = "X-Trig-Version";
     private enum DownloadStatus {OK, CANCELLED, ERROR}
 
 
@@ -91,105 +108,103 @@ public class DownloadTrigsActivity extends BaseActivity implements SyncListener
         
         return CompletableFuture.supplyAsync(() -> {
             Log.i(TAG, "PopulateTrigsTask: Starting download");
+            final TrigImportPipeline pipeline = new TrigImportPipeline();
+            mPipeline = pipeline;
 
             DbHelper db = new DbHelper(DownloadTrigsActivity.this);
-            String strLine;                
+            File bundleFile = DbHelper.trigBundleFile(DownloadTrigsActivity.this);
+            File downloaded = null;
+            boolean isBundle = false;
+            boolean imported = false;
             int i=0;
 
             try {
                 Log.i(TAG, "PopulateTrigsTask: Opening database");
                 db.open();
-                db.mDb.beginTransaction();
 
-                String downloadUrl = "https://trigpointing.uk/trigs/down-android-trigs.php?appversion="+ mAppVersion;
+                // Ask for the binary bundle; servers which don't support it send the TSV as before.
+                // If we know which version we hold, the server may send just the changes since then.
+                String since = db.getTrigDeltaBase();
+                String downloadUrl = "https://trigpointing.uk/trigs/down-android-trigs.php?appversion="+ mAppVersion + "&format=bundle";
+                if (since != null) {
+                    downloadUrl += "&since=" + URLEncoder.encode(since, "UTF-8");
+                }
                 Log.i(TAG, "PopulateTrigsTask: Downloading from URL: " + downloadUrl);
                 
-                URL url = new URL(downloadUrl);
-                Log.i(TAG, "PopulateTrigsTask: Opening connection");
-                URLConnection ucon = url.openConnection();
-                Log.i(TAG, "PopulateTrigsTask: Getting input stream");
-                InputStream is = ucon.getInputStream();
-                Log.i(TAG, "PopulateTrigsTask: Creating GZIP input stream");
-                GZIPInputStream zis = new GZIPInputStream(new BufferedInputStream(is));
-                Log.i(TAG, "PopulateTrigsTask: Creating buffered reader");
-                BufferedReader br = new BufferedReader(new InputStreamReader(zis));
+                // Download to a file first, so a dropped connection resumes where it stopped
+                ResumableDownload download = new ResumableDownload(
+                        MainApplication.getUncachedHttpClient(DownloadTrigsActivity.this), new URL(downloadUrl),
+                        new File(getFilesDir(), TRIG_DOWNLOAD_FILE), TRIG_VERSION_HEADER);
+                mDownload = download;
+                if (pipeline.isCancelled()) {
+                    throw new CancellationException("Trig download cancelled");
+                }
+                downloaded = download.fetch();
+                mTrigVersion = download.getHeader(TRIG_VERSION_HEADER);
+                mDelta = false;
+                Log.i(TAG, "PopulateTrigsTask: Downloaded " + downloaded.length() + " bytes, " + download.getTransferred() + " transferred");
 
-                Log.i(TAG, "PopulateTrigsTask: Reading first line");
-                if ((strLine = br.readLine()) != null) {
-                    mProgressMax = Integer.parseInt(strLine);
-                    Log.i(TAG, "PopulateTrigsTask: Downloading " + mProgressMax + " trigs");
-                    // Update progress on main thread
-                    mainHandler.post(() -> mProgress.setMax(mProgressMax));
+                byte[] magic = new byte[4];
+                int got;
+                try (InputStream is = new FileInputStream(downloaded)) {
+                    got = is.read(magic);
                 }
-                
-                Log.i(TAG, "PopulateTrigsTask: Deleting all existing data");
-                db.deleteAll();
 
-                while ((strLine = br.readLine()) != null && !strLine.trim().isEmpty())   {
-                    //Log.v(TAG,strLine);
-                    String[] csv=strLine.split("\t");
-                    
-                    // Validate CSV array has enough elements
-                    if (csv.length < 10) {
-                        Log.w(TAG, "Skipping invalid line (insufficient columns): " + strLine);
-                        continue;
-                    }
-                    
-                    try {
-                        int id                        = Integer.parseInt(csv[0]);
-                        String waypoint                = csv[1];
-                        String name                    = csv[2];
-                        
-                        // Validate lat/lon are not empty
-                        if (csv[3].trim().isEmpty() || csv[4].trim().isEmpty()) {
-                            Log.w(TAG, "Skipping line with empty lat/lon: " + strLine);
-                            continue;
-                        }
-                        
-                        double lat                    = Double.parseDouble(csv[3]);
-                        double lon                    = Double.parseDouble(csv[4]);
-                        Trig.Physical type            = Trig.Physical.fromCode(csv[5]);
-                        String fb                    = csv[6];
-                        Condition condition            = Condition.fromCode(csv[7]);
-                        Condition logged            = Condition.TRIGNOTLOGGED;
-                        Trig.Current current        = Trig.Current.fromCode(csv[8]);
-                        Trig.Historic historic        = Trig.Historic.fromCode(csv[9]);
-                        db.createTrig(id, name, waypoint, lat, lon, type, condition, logged, current, historic, fb);
-                        
-                        if (i++%10==9){
-                            mDownloadCount=i;
-                            // Update progress on main thread
-                            final int progress = i;
-                            mainHandler.post(() -> {
-                                mProgress.setProgress(progress);
-                                mStatus.setText("Inserted " + progress + " trigs");
-                            });
-                        }
-                    } catch (NumberFormatException e) {
-                        Log.w(TAG, "Skipping line with invalid number format: " + strLine + " - " + e.getMessage());
-                    } catch (Exception e) {
-                        Log.w(TAG, "Skipping line with parsing error: " + strLine + " - " + e.getMessage());
+                // The trig table is about to change, so any previous bundle no longer describes it
+                //noinspection ResultOfMethodCallIgnored
+                bundleFile.delete();
+
+                if (got == magic.length && TrigBundle.isBundle(magic)) {
+                    isBundle = true;
+                    i = importBundle(db, TrigBundle.Reader.open(downloaded), pipeline);
+                } else {
+                    Log.i(TAG, "PopulateTrigsTask: Creating GZIP input stream");
+                    try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                            new GZIPInputStream(new BufferedInputStream(new FileInputStream(downloaded)))))) {
+                        i = importTsv(db, br, since, pipeline);
                     }
-                } 
-                db.mDb.execSQL("create index if not exists latlon on trig (lat, lon)");
-                db.mDb.setTransactionSuccessful();
-            }catch (IOException e) {
+                }
+                db.setTrigDataVersion(mTrigVersion);
+                imported = true;
+            } catch (CancellationException e) {
+                Log.i(TAG, "PopulateTrigsTask: Cancelled");
+                return DownloadStatus.CANCELLED;
+            } catch (IOException e) {
+                if (pipeline.isCancelled()) {
+                    Log.i(TAG, "PopulateTrigsTask: Cancelled - " + e.getMessage());
+                    return DownloadStatus.CANCELLED;
+                }
                 Log.e(TAG, "Error: " + e.getMessage(), e);
                 return DownloadStatus.ERROR;
             } catch (Exception e) {
                 Log.e(TAG, "Unexpected error: " + e.getMessage(), e);
                 return DownloadStatus.ERROR;
             } finally {
-                db.mDb.endTransaction();
                 db.close();
                 mDownloadCount = i;
+                // A complete download which failed to import is no use for resuming
+                if (downloaded != null && !imported) {
+                    //noinspection ResultOfMethodCallIgnored
+                    downloaded.delete();
+                }
+            }
+            // Keep the bundle so the trig snapshot can be mapped from it instead of read from SQLite
+            if (isBundle && !downloaded.renameTo(bundleFile)) {
+                Log.w(TAG, "PopulateTrigsTask: Couldn't keep trig bundle");
+            } else if (!isBundle && !downloaded.delete()) {
+                Log.w(TAG, "PopulateTrigsTask: Couldn't delete download");
             }
             return DownloadStatus.OK;
         }, executor)
         .thenApplyAsync(result -> {
             switch (result) {
             case OK:
-                mStatus.setText("Download complete! " + mDownloadCount + " trigpoints downloaded. Starting sync...");
+                DbHelper.refreshTrigSnapshot(DownloadTrigsActivity.this);
+                if (mDelta) {
+                    mStatus.setText("Update complete! " + mDownloadCount + " trigpoints changed. Starting sync...");
+                } else {
+                    mStatus.setText("Download complete! " + mDownloadCount + " trigpoints downloaded. Starting sync...");
+                }
                 mProgress.setProgress(mProgressMax);
                 // Start sync after successful download with auto-sync flag
                 mainHandler.post(() -> new SyncTask(DownloadTrigsActivity.this, DownloadTrigsActivity.this).execute(true));
@@ -210,6 +225,108 @@ public class DownloadTrigsActivity extends BaseActivity implements SyncListener
         }, mainHandler::post);
     }
 
+    /**
+     * Read the tab separated trig list into the database
+     * 
+     * @return number of trigs read
+     */
+    private int importTsv(DbHelper db, BufferedReader br, String since, TrigImportPipeline pipeline) throws IOException {
+        String strLine;
+        int i=0;
+
+        Log.i(TAG, "PopulateTrigsTask: Reading first line");
+        strLine = br.readLine();
+        if (TrigDelta.isDelta(strLine)) {
+            return importDelta(db, TrigDelta.parse(strLine, br), since);
+        }
+        if (strLine != null) {
+            mProgressMax = Integer.parseInt(strLine);
+            Log.i(TAG, "PopulateTrigsTask: Downloading " + mProgressMax + " trigs");
+            // Update progress on main thread
+            mainHandler.post(() -> mProgress.setMax(mProgressMax));
+        }
+        
+        Log.i(TAG, "PopulateTrigsTask: Deleting all existing data");
+        // Streaming from the network, so keep the old trigs until the whole list has arrived
+        try (DbHelper.TrigLoader loader = db.trigLoader(0)) {
+            i = pipeline.run(br, record -> {
+                loader.add(record.id, record.name, record.waypoint, record.lat, record.lon, record.type,
+                        record.condition, Condition.TRIGNOTLOGGED, record.current, record.historic, record.fb);
+                postProgress(loader.getCount());
+            });
+            Log.i(TAG, "PopulateTrigsTask: Rebuilding indexes");
+            loader.finish();
+        }
+        return i;
+    }
+
+    /**
+     * Apply the changes since the version we hold
+     * 
+     * @return number of trigs changed
+     */
+    @SuppressLint("SetTextI18n")
+    private int importDelta(DbHelper db, TrigDelta delta, String since) throws IOException {
+        if (!delta.getFromVersion().equals(since)) {
+            // Forget our version so that the retry fetches the full list
+            db.setTrigDataVersion(null);
+            throw new IOException("Delta from version " + delta.getFromVersion() + " doesn't apply to " + since);
+        }
+        Log.i(TAG, "PopulateTrigsTask: Applying " + delta.size() + " changes from version " + since + " to " + delta.getToVersion());
+        mainHandler.post(() -> mStatus.setText("Applying " + delta.size() + " changes"));
+        int changed = db.applyTrigDelta(delta);
+        mDelta = true;
+        mTrigVersion = delta.getToVersion();
+        mProgressMax = Math.max(changed, 1);
+        return changed;
+    }
+
+    /**
+     * Read a trig bundle into the database
+     * 
+     * @return number of trigs read
+     */
+    private int importBundle(DbHelper db, TrigBundle.Reader bundle, TrigImportPipeline pipeline) {
+        int i=0;
+        mProgressMax = bundle.size();
+        Log.i(TAG, "PopulateTrigsTask: Downloaded bundle of " + mProgressMax + " trigs");
+        mainHandler.post(() -> mProgress.setMax(mProgressMax));
+
+        Log.i(TAG, "PopulateTrigsTask: Deleting all existing data");
+        // One transaction, so a failed or cancelled load leaves the old trigs in place
+        try (DbHelper.TrigLoader loader = db.trigLoader(0)) {
+            for (int row = 0; row < bundle.size(); row++) {
+                if (pipeline.isCancelled()) {
+                    throw new CancellationException("Trig import cancelled");
+                }
+                loader.add(bundle.id(row), bundle.name(row), bundle.waypoint(row), bundle.lat(row), bundle.lon(row),
+                        bundle.type(row), bundle.condition(row), Condition.TRIGNOTLOGGED,
+                        bundle.current(row), bundle.historic(row), bundle.fb(row));
+                postProgress(++i);
+            }
+            Log.i(TAG, "PopulateTrigsTask: Rebuilding indexes");
+            loader.finish();
+        }
+        return i;
+    }
+
+    /**
+     * Report import progress to the UI, at most once per PROGRESS_INTERVAL_MS
+     */
+    @SuppressLint("SetTextI18n")
+    private void postProgress(int count) {
+        mDownloadCount = count;
+        long now = SystemClock.uptimeMillis();
+        if (now - mLastProgressTime < PROGRESS_INTERVAL_MS) {
+            return;
+        }
+        mLastProgressTime = now;
+        mainHandler.post(() -> {
+            mProgress.setProgress(count);
+            mStatus.setText("Inserted " + count + " trigs");
+        });
+    }
+
     private void scheduleRetryWithCountdown() {
         // Initialize countdown
         countdownRemainingSeconds = retryDelaySeconds;
@@ -249,6 +366,16 @@ public class DownloadTrigsActivity extends BaseActivity implements SyncListener
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        // Leaving the screen abandons the download, keeping what has arrived for next time,
+        // or the import, which rolls back to the old trigs
+        TrigImportPipeline pipeline = mPipeline;
+        ResumableDownload download = mDownload;
+        if (isFinishing() && pipeline != null) {
+            pipeline.cancel();
+            if (download != null) {
+                download.cancel();
+            }
+        }
         // Clean up any pending countdown callbacks to avoid leaks
         if (mainHandler != null && countdownRunnable != null) {
             mainHandler.removeCallbacks(countdownRunnable);
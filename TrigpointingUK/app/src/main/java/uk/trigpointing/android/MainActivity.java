@@ -38,6 +38,7 @@ import uk.trigpointing.android.common.BaseActivity;
 import uk.trigpointing.android.common.ClearCacheTask;
 import uk.trigpointing.android.logging.SyncListener;
 import uk.trigpointing.android.logging.SyncTask;
+import uk.trigpointing.android.logging.SyncWorker;
 import uk.trigpointing.android.mapping.DownloadMapsActivity;
 import uk.trigpointing.android.nearest.NearestActivity;
 import okhttp3.OkHttpClient;
@@ -110,7 +111,7 @@ public class MainActivity extends BaseActivity implements SyncListener {
         resetLoggingStatusFilterOnAppStart();
         
         // Initialize API authentication components
-        authApiClient = new AuthApiClient();
+        authApiClient = new AuthApiClient(this);
         authPreferences = new AuthPreferences(this);
         auth0Config = new Auth0Config(this);
         
@@ -118,6 +119,8 @@ public class MainActivity extends BaseActivity implements SyncListener {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         prefs.edit().putBoolean(AUTO_SYNC_RUN, false).apply();
         Log.i(TAG, "onCreate: Reset auto sync flag for new app session");
+        // With auto sync on, also sync in the background every few hours
+        SyncWorker.schedule(this, prefs.getBoolean("auto_sync", false));
         
         Log.i(TAG, "onCreate: Setting up activity result launchers");
         setupActivityResultLaunchers();
@@ -151,7 +154,7 @@ public class MainActivity extends BaseActivity implements SyncListener {
             }
 
             Log.i(TAG, "OS API key is missing. Fetching from URL...");
-            OkHttpClient client = new OkHttpClient();
+            OkHttpClient client = MainApplication.getHttpClient(this);
             Request request = new Request.Builder()
                     .url("https://trigpointinguk-maps.s3.eu-west-1.amazonaws.com/OS_API_KEY.txt")
                     .build();
@@ -773,7 +776,7 @@ public class MainActivity extends BaseActivity implements SyncListener {
         
         executor.execute(() -> {
             try {
-                OkHttpClient client = new OkHttpClient();
+                OkHttpClient client = MainApplication.getHttpClient(MainActivity.this);
                 Request request = new Request.Builder()
                         .url("https://api.trigpointing.uk/v1/users/me")
                         .addHeader("Authorization", "Bearer " + accessToken)
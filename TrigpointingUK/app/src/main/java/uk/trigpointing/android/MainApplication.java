@@ -6,16 +6,65 @@ package uk.trigpointing.android;
 // import org.acra.data.StringFormat;
 
 import android.app.Application;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import androidx.preference.PreferenceManager;
 import android.util.Log;
 
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
 
 
 public class MainApplication extends Application {
     private static final String TAG = "MainApplication";
 
+    private static final String HTTP_CACHE_DIR  = "http";
+    private static final long   HTTP_CACHE_SIZE = 10 * 1024 * 1024;
+
+    private static OkHttpClient sHttpClient;
+    private static OkHttpClient sUncachedHttpClient;
+
+    /**
+     * The one HTTP client for the whole app.  Sharing it shares its connection pool,
+     * so repeated requests to trigpointing.uk and the tile servers reuse warm TLS and
+     * HTTP/2 connections, and its dispatcher limits and on-disk HTTP cache.  OkHttp
+     * also handles gzip transparently.  Callers needing other timeouts should derive
+     * a client with {@link OkHttpClient#newBuilder()}, which keeps all of these.
+     */
+    public static synchronized OkHttpClient getHttpClient(Context context) {
+        if (sHttpClient == null) {
+            Dispatcher dispatcher = new Dispatcher();
+            dispatcher.setMaxRequests(16);
+            dispatcher.setMaxRequestsPerHost(6);
+            sHttpClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(8, 5, TimeUnit.MINUTES))
+                    .dispatcher(dispatcher)
+                    .cache(new Cache(new File(context.getCacheDir(), HTTP_CACHE_DIR), HTTP_CACHE_SIZE))
+                    .connectTimeout(30, TimeUnit.SECONDS)
+                    .readTimeout(30, TimeUnit.SECONDS)
+                    .writeTimeout(60, TimeUnit.SECONDS)
+                    .build();
+        }
+        return sHttpClient;
+    }
+
+    /**
+     * The shared client without the HTTP cache, for large downloads and for callers
+     * which keep their own cache, so responses aren't stored twice
+     */
+    public static synchronized OkHttpClient getUncachedHttpClient(Context context) {
+        if (sUncachedHttpClient == null) {
+            sUncachedHttpClient = getHttpClient(context).newBuilder().cache(null).build();
+        }
+        return sUncachedHttpClient;
+    }
+
         @Override
     public void onCreate() {
         super.onCreate();
@@ -37,6 +86,9 @@ public class MainApplication extends Application {
         
         Log.i(TAG, "Marked app as fresh start for filter reset and map preference loading");  
         
+        // Load trigs into memory for the map, nearest and AR screens
+        DbHelper.refreshTrigSnapshot(this);
+        
         // Crashlytics removed during package migration; re-add if needed later
 
         // Configure ACRA for modern Android
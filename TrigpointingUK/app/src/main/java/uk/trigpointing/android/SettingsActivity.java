@@ -10,6 +10,8 @@ import android.util.Log;
 import android.view.MenuItem;
 import androidx.preference.PreferenceFragmentCompat;
 import uk.trigpointing.android.common.BaseActivity;
+import uk.trigpointing.android.logging.SyncWorker;
+import uk.trigpointing.android.mapping.TileCacheWorker;
 
 public class SettingsActivity extends BaseActivity {
     public static final String TAG = "PreferenceActivity";
@@ -94,6 +96,26 @@ public class SettingsActivity extends BaseActivity {
                     editText.setHint("Enter new API key to change it");
                 });
             }
+
+            // Apply a smaller quota, or a new policy, without waiting for the daily trim
+            Preference.OnPreferenceChangeListener trimTiles = (preference, newValue) -> {
+                TileCacheWorker.trimSoon(requireContext());
+                return true;
+            };
+            for (String key : new String[]{TileCacheWorker.PREF_QUOTA, TileCacheWorker.PREF_EVICTION}) {
+                Preference preference = findPreference(key);
+                if (preference != null) {
+                    preference.setOnPreferenceChangeListener(trimTiles);
+                }
+            }
+
+            Preference autoSync = findPreference("auto_sync");
+            if (autoSync != null) {
+                autoSync.setOnPreferenceChangeListener((preference, newValue) -> {
+                    SyncWorker.schedule(requireContext(), Boolean.TRUE.equals(newValue));
+                    return true;
+                });
+            }
         }
     }
     
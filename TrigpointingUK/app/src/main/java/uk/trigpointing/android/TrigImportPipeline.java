@@ -0,0 +1,294 @@
+package uk.trigpointing.android;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import uk.trigpointing.android.types.Condition;
+import uk.trigpointing.android.types.Trig;
+
+/**
+ * Imports the tab separated trig list as three overlapping stages, so that reading
+ * and inflating the downloaded file, the parsing, and the database inserts all
+ * proceed at once.  The whole list has been downloaded before the import starts:
+ *
+ * <pre>
+ *  reader thread          parser thread               calling thread
+ *  readLine() ---lines--> TrigRecord.parse() --records--> RecordSink.write()
+ * </pre>
+ *
+ * Stages hand over fixed size batches through small bounded queues, so a slow
+ * database holds back the reader rather than buffering the whole list in memory.
+ * Record batches are recycled once written.  Any stage failing, or
+ * {@link #cancel()}, stops all three.
+ */
+class TrigImportPipeline {
+    private static final String TAG = "TrigImportPipeline";
+
+    static final int BATCH_SIZE = 256;
+    private static final int QUEUE_BATCHES = 4;
+    private static final long POLL_MS = 100;
+
+    /** One trig from the list.  Instances are reused, so must not be kept by the sink. */
+    static final class TrigRecord {
+        long          id;
+        String        waypoint;
+        String        name;
+        double        lat;
+        double        lon;
+        Trig.Physical type;
+        String        fb;
+        Condition     condition;
+        Trig.Current  current;
+        Trig.Historic historic;
+
+        /**
+         * @return false if the line is not a valid trig, which should be skipped
+         */
+        boolean parse(String line) {
+            String[] csv = line.split("\t");
+
+            // Validate CSV array has enough elements
+            if (csv.length < 10) {
+                Log.w(TAG, "Skipping invalid line (insufficient columns): " + line);
+                return false;
+            }
+            // Validate lat/lon are not empty
+            if (csv[3].trim().isEmpty() || csv[4].trim().isEmpty()) {
+                Log.w(TAG, "Skipping line with empty lat/lon: " + line);
+                return false;
+            }
+            try {
+                id        = Integer.parseInt(csv[0]);
+                waypoint  = csv[1];
+                name      = csv[2];
+                lat       = Double.parseDouble(csv[3]);
+                lon       = Double.parseDouble(csv[4]);
+                type      = Trig.Physical.fromCode(csv[5]);
+                fb        = csv[6];
+                condition = Condition.fromCode(csv[7]);
+                current   = Trig.Current.fromCode(csv[8]);
+                historic  = Trig.Historic.fromCode(csv[9]);
+                return true;
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Skipping line with invalid number format: " + line + " - " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /** Final stage, run on the thread which called {@link #run} */
+    interface RecordSink {
+        void write(TrigRecord record) throws IOException;
+    }
+
+    private static final class LineBatch {
+        final String[] lines = new String[BATCH_SIZE];
+        int count;
+    }
+
+    private static final class RecordBatch {
+        final TrigRecord[] records = new TrigRecord[BATCH_SIZE];
+        int count;
+
+        RecordBatch() {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                records[i] = new TrigRecord();
+            }
+        }
+    }
+
+    // Marks the end of the list in both queues
+    private static final LineBatch   END_OF_LINES   = new LineBatch();
+    private static final RecordBatch END_OF_RECORDS = new RecordBatch();
+
+    private final BlockingQueue<LineBatch>   mLines   = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+    private final BlockingQueue<RecordBatch> mRecords = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+    private final BlockingQueue<RecordBatch> mFree    = new ArrayBlockingQueue<>(QUEUE_BATCHES + 2);
+    private final AtomicReference<Throwable> mFailure = new AtomicReference<>();
+    private volatile boolean mCancelled = false;
+    private volatile boolean mStopped = false;
+
+    TrigImportPipeline() {
+        for (int i = 0; i < QUEUE_BATCHES + 2; i++) {
+            mFree.add(new RecordBatch());
+        }
+    }
+
+    /**
+     * Stop the import.  {@link #run} then throws CancellationException.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Read the remaining lines of the list, writing each valid trig to the sink.
+     *
+     * @return number of trigs written
+     * @throws IOException           if reading or writing fails
+     * @throws CancellationException if cancelled
+     */
+    int run(BufferedReader br, RecordSink sink) throws IOException {
+        ExecutorService stages = Executors.newFixedThreadPool(2);
+        try {
+            stages.execute(() -> readLines(br));
+            stages.execute(this::parseLines);
+            return writeRecords(sink);
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            throw e;
+        } finally {
+            // Unblock and stop the other stages, whatever happened here
+            mStopped = true;
+            stages.shutdownNow();
+            try {
+                if (!stages.awaitTermination(5, TimeUnit.SECONDS)) {
+                    Log.w(TAG, "run: Stages still running");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void fail(Throwable t) {
+        if (mFailure.compareAndSet(null, t)) {
+            Log.w(TAG, "Import failed", t);
+        }
+    }
+
+    private boolean stopping() {
+        return mCancelled || mStopped || mFailure.get() != null;
+    }
+
+    // Stage 1: network read and inflate
+    private void readLines(BufferedReader br) {
+        try {
+            LineBatch batch = new LineBatch();
+            String line;
+            while ((line = br.readLine()) != null && !line.trim().isEmpty()) {
+                batch.lines[batch.count++] = line;
+                if (batch.count == BATCH_SIZE) {
+                    if (!offer(mLines, batch)) {
+                        return;
+                    }
+                    batch = new LineBatch();
+                }
+            }
+            if (batch.count > 0 && !offer(mLines, batch)) {
+                return;
+            }
+            offer(mLines, END_OF_LINES);
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    // Stage 2: split and parse into recycled records
+    private void parseLines() {
+        try {
+            while (true) {
+                LineBatch lines = poll(mLines);
+                if (lines == null) {
+                    return;
+                }
+                if (lines == END_OF_LINES) {
+                    offer(mRecords, END_OF_RECORDS);
+                    return;
+                }
+                RecordBatch records = poll(mFree);
+                if (records == null) {
+                    return;
+                }
+                records.count = 0;
+                for (int i = 0; i < lines.count; i++) {
+                    if (records.records[records.count].parse(lines.lines[i])) {
+                        records.count++;
+                    }
+                }
+                if (!offer(mRecords, records)) {
+                    return;
+                }
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    // Stage 3: write to the database on the calling thread
+    private int writeRecords(RecordSink sink) throws IOException {
+        int written = 0;
+        while (true) {
+            RecordBatch records = poll(mRecords);
+            if (records == null) {
+                break;
+            }
+            if (records == END_OF_RECORDS) {
+                return written;
+            }
+            for (int i = 0; i < records.count; i++) {
+                sink.write(records.records[i]);
+                written++;
+            }
+            mFree.offer(records);
+        }
+        Throwable failure = mFailure.get();
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure != null) {
+            throw new IOException("Trig import failed", failure);
+        }
+        throw new CancellationException("Trig import cancelled");
+    }
+
+    /**
+     * Blocking put which gives up if the pipeline is stopping
+     *
+     * @return false if the pipeline stopped first
+     */
+    private <T> boolean offer(BlockingQueue<T> queue, T item) {
+        try {
+            while (!stopping()) {
+                if (queue.offer(item, POLL_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Blocking take which gives up if the pipeline is stopping
+     *
+     * @return null if the pipeline stopped first
+     */
+    private <T> T poll(BlockingQueue<T> queue) {
+        try {
+            while (!stopping()) {
+                T item = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (item != null) {
+                    return item;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+}
@@ -1,5 +1,6 @@
 package uk.trigpointing.android.api;
 
+import android.content.Context;
 import android.util.Log;
 import com.google.gson.Gson;
 import okhttp3.FormBody;
@@ -10,6 +11,8 @@ import java.io.IOException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
+import uk.trigpointing.android.MainApplication;
+
 /**
  * API client for handling authentication with the new TrigpointingUK API
  */
@@ -21,8 +24,16 @@ public class AuthApiClient {
     private final OkHttpClient httpClient;
     private final Gson gson;
 
-    public AuthApiClient() {
-        this.httpClient = new OkHttpClient.Builder()
+    public AuthApiClient(Context context) {
+        this(MainApplication.getHttpClient(context));
+    }
+
+    /**
+     * @param sharedClient client whose connection pool and cache to share
+     */
+    public AuthApiClient(OkHttpClient sharedClient) {
+        // Shorter timeouts than usual, on the app's shared connection pool
+        this.httpClient = sharedClient.newBuilder()
                 .connectTimeout(10, TimeUnit.SECONDS)
                 .readTimeout(15, TimeUnit.SECONDS)
                 .writeTimeout(10, TimeUnit.SECONDS)
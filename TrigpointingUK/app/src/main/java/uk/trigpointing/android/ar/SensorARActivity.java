@@ -47,7 +47,9 @@ import uk.trigpointing.android.DbHelper;
 import uk.trigpointing.android.R;
 import uk.trigpointing.android.common.BaseActivity;
 import uk.trigpointing.android.filter.Filter;
+import uk.trigpointing.android.nearest.NearestTrigSearch;
 import uk.trigpointing.android.types.Trig;
+import uk.trigpointing.android.types.TrigSnapshot;
 import uk.trigpointing.android.trigdetails.TrigDetailsActivity;
 
 /**
@@ -64,6 +66,7 @@ public class SensorARActivity extends BaseActivity implements SensorEventListene
     private static final int LOCATION_PERMISSION_REQUEST = 1002;
     private static final int COMBINED_PERMISSION_REQUEST = 1003;
     private static final double MAX_DISTANCE_METERS = 5000; // 5km max distance
+    private static final int MAX_CANDIDATES = 100; // nearest trigs considered for the field of view
     
     // Camera components
     private CameraPreview cameraPreview;
@@ -433,60 +436,49 @@ public class SensorARActivity extends BaseActivity implements SensorEventListene
                 double lat = currentLocation.getLatitude();
                 double lon = currentLocation.getLongitude();
                 
-                // Query database for nearby trigpoints with user's filter preferences
-                Log.i(TAG, "loadNearbyTrigpoints: Applying user's trigpoint type filters");
-                Cursor cursor = dbHelper.fetchTrigList(currentLocation);
+                final float maxHorizontalFovDeg = overlayView != null ? overlayView.getDiagonalFieldOfViewDegrees() : 90f;
                 List<AROverlayView.TrigpointData> trigpoints = new ArrayList<>();
+                Location trigLocation = new Location("trigpoint");
                 
-                if (cursor != null && cursor.moveToFirst()) {
-                    // First pass: collect more candidates than needed to ensure we have
-                    // enough bearings spanning what landscape can display. We'll keep
-                    // at most 10 nearest after bearing filtering.
-                    List<AROverlayView.TrigpointData> candidates = new ArrayList<>();
-                    do {
-                        long id = cursor.getLong(0);
-                        String name = cursor.getString(1);
-                        double trigLat = cursor.getDouble(2);
-                        double trigLon = cursor.getDouble(3);
-                        String type = cursor.getString(4);
-                        String condition = cursor.getString(5);
-                        
-                        // Calculate distance
-                        Location trigLocation = new Location("trigpoint");
-                        trigLocation.setLatitude(trigLat);
-                        trigLocation.setLongitude(trigLon);
-                        float distance = currentLocation.distanceTo(trigLocation);
-                        
-                        // Only include trigpoints within max distance
-                        if (distance <= MAX_DISTANCE_METERS) {
-                            AROverlayView.TrigpointData trigData = new AROverlayView.TrigpointData(id, name, trigLat, trigLon, type, condition);
-                            candidates.add(trigData);
-                        }
-                        
-                    } while (cursor.moveToNext());
-                    cursor.close();
-
-                    // Second pass: pick up to 10 nearest among those whose bearings
-                    // lie within the maximum FOV that could be displayed at any screen rotation.
-                    // Use diagonal FOV for optimal coverage across all orientations.
-                    final float maxHorizontalFovDeg = overlayView != null ? overlayView.getDiagonalFieldOfViewDegrees() : 90f;
-                    // Sort by distance ascending
-                    candidates.sort((a, b) -> {
-                        Location la = new Location("a"); la.setLatitude(a.getLat()); la.setLongitude(a.getLon());
-                        Location lb = new Location("b"); lb.setLatitude(b.getLat()); lb.setLongitude(b.getLon());
-                        return Float.compare(currentLocation.distanceTo(la), currentLocation.distanceTo(lb));
-                    });
-                    for (AROverlayView.TrigpointData t : candidates) {
-                        if (trigpoints.size() >= 10) break;
-                        float bearing = currentLocation.bearingTo(new Location("tmp") {{ setLatitude(t.getLat()); setLongitude(t.getLon()); }});
-                        if (bearing < 0) bearing += 360f;
-                        float rel = bearing - currentAzimuth;
-                        while (rel > 180f) rel -= 360f;
-                        while (rel < -180f) rel += 360f;
-                        if (Math.abs(rel) <= maxHorizontalFovDeg / 2f) {
-                            trigpoints.add(t);
+                // Results arrive nearest first and already limited to MAX_DISTANCE_METERS.
+                // Pick up to 10 nearest among those whose bearings lie within the
+                // maximum FOV that could be displayed at any screen rotation.
+                // Use diagonal FOV for optimal coverage across all orientations.
+                TrigSnapshot snapshot = TrigSnapshot.current();
+                if (snapshot != null) {
+                    // In-memory path - no SQLite or cursor per location fix
+                    Log.i(TAG, "loadNearbyTrigpoints: Searching trig snapshot");
+                    List<NearestTrigSearch.Hit<Integer>> hits = NearestTrigSearch
+                            .over(snapshot, new Filter(this).snapshotPredicate())
+                            .nearest(lat, lon, MAX_CANDIDATES, MAX_DISTANCE_METERS);
+                    for (NearestTrigSearch.Hit<Integer> hit : hits) {
+                        int row = hit.payload;
+                        if (isInFieldOfView(trigLocation, hit.lat, hit.lon, maxHorizontalFovDeg)) {
+                            trigpoints.add(new AROverlayView.TrigpointData(snapshot.id(row), snapshot.name(row),
+                                    hit.lat, hit.lon, snapshot.type(row).code(), snapshot.condition(row).code()));
+                            if (trigpoints.size() >= 10) break;
                         }
                     }
+                } else {
+                    // Query database for nearby trigpoints with user's filter preferences
+                    Log.i(TAG, "loadNearbyTrigpoints: Applying user's trigpoint type filters");
+                    Cursor cursor = dbHelper.fetchNearestTrigs(currentLocation, MAX_CANDIDATES, MAX_DISTANCE_METERS);
+                    if (cursor != null && cursor.moveToFirst()) {
+                        do {
+                            long id = cursor.getLong(0);
+                            String name = cursor.getString(1);
+                            double trigLat = cursor.getDouble(2);
+                            double trigLon = cursor.getDouble(3);
+                            String type = cursor.getString(4);
+                            String condition = cursor.getString(5);
+                            if (isInFieldOfView(trigLocation, trigLat, trigLon, maxHorizontalFovDeg)) {
+                                trigpoints.add(new AROverlayView.TrigpointData(id, name, trigLat, trigLon, type, condition));
+                            }
+                        } while (trigpoints.size() < 10 && cursor.moveToNext());
+                    }
+                    if (cursor != null) {
+                        cursor.close();
+                    }
                 }
                 
                 // Update UI on main thread (if activity still exists)
@@ -509,6 +501,21 @@ public class SensorARActivity extends BaseActivity implements SensorEventListene
 
     // No dynamic limit – keep stable list of 10 nearest for a clean UI
     
+    /**
+     * Whether a trig lies within the given horizontal field of view of the current heading.
+     * The scratch location is reused to avoid allocating per trig.
+     */
+    private boolean isInFieldOfView(Location scratch, double trigLat, double trigLon, float fovDeg) {
+        scratch.setLatitude(trigLat);
+        scratch.setLongitude(trigLon);
+        float bearing = currentLocation.bearingTo(scratch);
+        if (bearing < 0) bearing += 360f;
+        float rel = bearing - currentAzimuth;
+        while (rel > 180f) rel -= 360f;
+        while (rel < -180f) rel += 360f;
+        return Math.abs(rel) <= fovDeg / 2f;
+    }
+    
     @Override
     public void onSensorChanged(SensorEvent event) {
         if (isDestroyed) {
@@ -2,23 +2,29 @@ package uk.trigpointing.android.common;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URL;
-import java.net.URLConnection;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.util.Log;
 
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import uk.trigpointing.android.MainApplication;
+
 public class BitmapLoader {
     private static final String TAG="BitmapLoader";
     private static final MemoryCache mMemoryCache=new MemoryCache();
     FileCache   mFileCache;
+    // Images have their own file cache, so skip the HTTP cache
+    private final OkHttpClient mHttpClient;
 
     public BitmapLoader(Context context) {
         mFileCache=new FileCache(context, "images");
+        mHttpClient=MainApplication.getUncachedHttpClient(context);
     }
 
     public Bitmap getBitmap(String url, boolean reload) {
@@ -38,7 +44,7 @@ public class BitmapLoader {
             // try file cache
             try {
                 //from SD cache
-                bResult = BitmapFactory.decodeFile(file.getAbsolutePath());
+                bResult = file.exists() ? BitmapPool.decodeFile(file, 0, false) : null;
                 if(bResult != null) {
                     Log.i(TAG, "Got "+url+" from SD cache");
                     return bResult;
@@ -53,14 +59,22 @@ public class BitmapLoader {
         //from web
         try {
             Log.i(TAG, "Downloading from web " + url);
-            URLConnection conn = new URL(url).openConnection();
-            conn.setConnectTimeout(30000);
-            conn.setReadTimeout(30000);
-            InputStream is=conn.getInputStream();
-            OutputStream os = new FileOutputStream(file);
-            Utils.CopyStream(is, os);
-            os.close();
-            bResult = BitmapFactory.decodeFile(file.getAbsolutePath());
+            File temp = mFileCache.createTempFile();
+            try (Response response = mHttpClient.newCall(new Request.Builder().url(url).build()).execute()) {
+                if (!response.isSuccessful()) {
+                    throw new IOException("HTTP " + response.code());
+                }
+                try (InputStream is = response.body().byteStream();
+                     OutputStream os = new FileOutputStream(temp)) {
+                    Utils.CopyStream(is, os);
+                }
+            } catch (Exception e) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+                throw e;
+            }
+            file = mFileCache.commit(url, temp);
+            bResult = BitmapPool.decodeFile(file, 0, false);
             if(bResult != null) {
                 Log.i(TAG, "Got "+url+" from web");
                 return bResult;
@@ -0,0 +1,229 @@
+package uk.trigpointing.android.common;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Pool of mutable bitmaps which are no longer displayed, handed back to
+ * BitmapFactory through {@link BitmapFactory.Options#inBitmap} so that decoding
+ * the next image reuses their pixel memory rather than allocating afresh.
+ *
+ * Only put a bitmap in the pool once nothing can draw it any more - a pooled bitmap
+ * is overwritten by the next decode that fits in it.
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    /** Images decoded to at most this size are thumbnails, which are decoded as RGB_565 if opaque */
+    public static final int THUMBNAIL_SIZE = 600;
+
+    // Enough to read the header and EXIF block of any photo we are likely to see
+    private static final int MARK_LIMIT = 256 * 1024;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // Don't use a bitmap more than this many times bigger than needed
+    private static final int MAX_WASTE = 2;
+
+    private static final BitmapPool sPool = new BitmapPool(Runtime.getRuntime().maxMemory() / 16);
+
+    /** Where to read an image from, perhaps more than once */
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+
+    // Free bitmaps by config, then by allocation size
+    private final Map<Bitmap.Config, TreeMap<Integer, ArrayDeque<Bitmap>>> mFree = new EnumMap<>(Bitmap.Config.class);
+    // Every free bitmap, oldest first
+    private final LinkedHashSet<Bitmap> mOrder = new LinkedHashSet<>();
+    private final long mMaxBytes;
+    private long mBytes = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return the pool shared by the image loaders
+     */
+    public static BitmapPool get() {
+        return sPool;
+    }
+
+    /**
+     * Offer a bitmap which will never be drawn again for reuse.  Bitmaps which
+     * can't be reused are recycled instead.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || mOrder.contains(bitmap)) {
+            return;
+        }
+        int bytes = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || bytes > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        TreeMap<Integer, ArrayDeque<Bitmap>> sizes = mFree.get(bitmap.getConfig());
+        if (sizes == null) {
+            sizes = new TreeMap<>();
+            mFree.put(bitmap.getConfig(), sizes);
+        }
+        ArrayDeque<Bitmap> free = sizes.get(bytes);
+        if (free == null) {
+            free = new ArrayDeque<>();
+            sizes.put(bytes, free);
+        }
+        free.addLast(bitmap);
+        mOrder.add(bitmap);
+        mBytes += bytes;
+        trim();
+    }
+
+    /**
+     * Take a free bitmap with room for at least the given number of bytes
+     *
+     * @return the bitmap, now owned by the caller, or null if there is none suitable
+     */
+    public synchronized Bitmap take(int bytes, Bitmap.Config config) {
+        TreeMap<Integer, ArrayDeque<Bitmap>> sizes = mFree.get(config);
+        Map.Entry<Integer, ArrayDeque<Bitmap>> entry = sizes == null ? null : sizes.ceilingEntry(bytes);
+        if (entry == null || entry.getKey() > (long) bytes * MAX_WASTE) {
+            mMisses++;
+            return null;
+        }
+        Bitmap bitmap = entry.getValue().pollLast();
+        if (entry.getValue().isEmpty()) {
+            sizes.remove(entry.getKey());
+        }
+        mOrder.remove(bitmap);
+        mBytes -= entry.getKey();
+        mHits++;
+        return bitmap;
+    }
+
+    public synchronized void clear() {
+        for (Bitmap bitmap : mOrder) {
+            bitmap.recycle();
+        }
+        mOrder.clear();
+        mFree.clear();
+        mBytes = 0;
+    }
+
+    public synchronized long getSize() {
+        return mBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    private void trim() {
+        Iterator<Bitmap> it = mOrder.iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            Bitmap bitmap = it.next();
+            it.remove();
+            int bytes = bitmap.getAllocationByteCount();
+            TreeMap<Integer, ArrayDeque<Bitmap>> sizes = mFree.get(bitmap.getConfig());
+            ArrayDeque<Bitmap> free = sizes.get(bytes);
+            free.remove(bitmap);
+            if (free.isEmpty()) {
+                sizes.remove(bytes);
+            }
+            mBytes -= bytes;
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Decode an image file, see {@link #decode(Source, int, boolean)}
+     */
+    public static Bitmap decodeFile(File file, int requiredSize, boolean thumbnail) throws IOException {
+        return decode(() -> new FileInputStream(file), requiredSize, thumbnail);
+    }
+
+    /**
+     * Decode an image, scaled down by a power of two while both sides stay at least
+     * requiredSize, into a pooled bitmap if one fits.  Bounds and pixels are read
+     * from the same buffered stream, which is only reopened if the header turns out
+     * to be too big to rewind over.
+     *
+     * @param requiredSize smallest side wanted, or 0 for full size
+     * @param thumbnail    decode JPEGs, which have no alpha, as RGB_565 to halve their size
+     * @return the bitmap, or null if the image could not be decoded
+     */
+    public static Bitmap decode(Source source, int requiredSize, boolean thumbnail) throws IOException {
+        InputStream in = new BufferedInputStream(source.open(), BUFFER_SIZE);
+        try {
+            //decode image size
+            in.mark(MARK_LIMIT);
+            BitmapFactory.Options o = new BitmapFactory.Options();
+            o.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(in, null, o);
+            if (o.outWidth <= 0 || o.outHeight <= 0) {
+                return null;
+            }
+            try {
+                in.reset();
+            } catch (IOException e) {
+                in.close();
+                in = new BufferedInputStream(source.open(), BUFFER_SIZE);
+            }
+
+            //Find the correct scale value. It should be the power of 2.
+            int width_tmp = o.outWidth, height_tmp = o.outHeight;
+            int scale = 1;
+            while (requiredSize > 0 && width_tmp / 2 >= requiredSize && height_tmp / 2 >= requiredSize) {
+                width_tmp /= 2;
+                height_tmp /= 2;
+                scale *= 2;
+            }
+            Bitmap.Config config = thumbnail && "image/jpeg".equals(o.outMimeType)
+                    ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            int bytesPerPixel = config == Bitmap.Config.RGB_565 ? 2 : 4;
+            // Decoders may round up, so allow for it
+            int bytes = ((o.outWidth + scale - 1) / scale) * ((o.outHeight + scale - 1) / scale) * bytesPerPixel;
+
+            //decode with inSampleSize
+            BitmapFactory.Options o2 = new BitmapFactory.Options();
+            o2.inSampleSize = scale;
+            o2.inPreferredConfig = config;
+            o2.inMutable = true;
+            o2.inBitmap = sPool.take(bytes, config);
+            try {
+                Bitmap bitmap = BitmapFactory.decodeStream(in, null, o2);
+                if (bitmap == null && o2.inBitmap != null) {
+                    sPool.put(o2.inBitmap);
+                }
+                return bitmap;
+            } catch (IllegalArgumentException e) {
+                // The pooled bitmap didn't fit after all, so decode into a new one
+                Log.d(TAG, "decode: Unable to reuse bitmap, " + e.getMessage());
+                sPool.put(o2.inBitmap);
+                in.close();
+                in = new BufferedInputStream(source.open(), BUFFER_SIZE);
+                o2.inBitmap = null;
+                return BitmapFactory.decodeStream(in, null, o2);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package uk.trigpointing.android.common;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -10,6 +9,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 import uk.trigpointing.android.common.BaseActivity;
 
+import java.io.File;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -56,7 +56,12 @@ public class DisplayBitmapActivity extends BaseActivity {
     protected void onDestroy() {
         super.onDestroy();
 
-        if (mBitmap != null) {mBitmap.recycle();}
+        if (mBitmap != null) {
+            // Let the next photo decode into this one's memory
+            mZoomableImageView.setImageDrawable(null);
+            BitmapPool.get().put(mBitmap);
+            mBitmap = null;
+        }
         // PhotoView handles its own cleanup
     }
 
@@ -107,7 +112,7 @@ public class DisplayBitmapActivity extends BaseActivity {
                 Log.d(TAG, "Loading local file: " + filePath);
                 
                 try {
-                    Bitmap bitmap = BitmapFactory.decodeFile(filePath);
+                    Bitmap bitmap = BitmapPool.decodeFile(new File(filePath), 0, false);
                     if (bitmap != null) {
                         Log.d(TAG, "Successfully loaded local file");
                         return bitmap;
@@ -1,24 +1,137 @@
 package uk.trigpointing.android.common;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import android.content.Context;
+import android.os.Looper;
 
+/**
+ * Disk cache of downloaded files, named by the SHA-256 of their URL.
+ *
+ * Each directory keeps a journal of writes, reads and removals so that it can be
+ * trimmed least recently used first once it grows past its byte cap.  Entries should
+ * be written to {@link #createTempFile()} and then published with {@link #commit},
+ * so a reader never sees a half written file.  Files in the directory which were not
+ * written through the cache, such as pending log photos, are never evicted.  The
+ * journal is replayed on first use rather than on construction, so a FileCache can
+ * be created on the UI thread.
+ */
 public class FileCache {
+    private static final String TAG = "FileCache";
+
+    private static final long MB = 1024 * 1024;
+    private static final Map<String, Long> MAX_SIZES = new HashMap<>();
+    static {
+        MAX_SIZES.put("strings",    4 * MB);
+        MAX_SIZES.put("images",     32 * MB);
+        MAX_SIZES.put("bitmaps",    16 * MB);
+        MAX_SIZES.put("map_images", 32 * MB);
+        // Photos waiting to be uploaded are the user's data, not a cache
+        MAX_SIZES.put("logphotos",  0L);
+    }
+    private static final long DEFAULT_MAX_SIZE = 16 * MB;
+
+    static final String JOURNAL     = "journal";
+    static final String TEMP_SUFFIX = ".tmp";
+
+    // One journal per directory, shared by every FileCache using it
+    private static final Map<String, Journal> sJournals = new HashMap<>();
 
     private final File cacheDir;
+    private final Journal journal;
 
     public FileCache(Context context, String cachedir){
+        this(context, cachedir, MAX_SIZES.containsKey(cachedir) ? MAX_SIZES.get(cachedir) : DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxBytes size to trim the cache to, or 0 for no limit
+     */
+    public FileCache(Context context, String cachedir, long maxBytes){
         //Use internal cache directory for better reliability
         cacheDir = new File(context.getCacheDir(), cachedir);
         if(!cacheDir.exists()) {
             boolean created = cacheDir.mkdirs();
-            android.util.Log.d("FileCache", "Created cache directory " + cacheDir.getAbsolutePath() + ": " + created);
+            android.util.Log.d(TAG, "Created cache directory " + cacheDir.getAbsolutePath() + ": " + created);
+        }
+        synchronized (sJournals) {
+            Journal j = sJournals.get(cacheDir.getAbsolutePath());
+            if (j == null) {
+                j = new Journal(cacheDir);
+                sJournals.put(cacheDir.getAbsolutePath(), j);
+            }
+            j.setMaxSize(maxBytes);
+            journal = j;
         }
     }
 
+    /**
+     * @return where the entry for a URL is kept, whether or not it exists yet.
+     *         If it does exist it becomes the most recently used entry.
+     */
     public File getFile(String url){
-        String filename=String.valueOf(url.hashCode());
-        return new File(cacheDir, filename);
+        String key = key(url);
+        journal.touch(key);
+        return new File(cacheDir, key);
+    }
+
+    /**
+     * @return a new empty file in the cache directory to write an entry to
+     */
+    public File createTempFile() throws IOException {
+        return File.createTempFile("entry", TEMP_SUFFIX, cacheDir);
+    }
+
+    /**
+     * Atomically publish a file written to {@link #createTempFile()} as the entry for
+     * a URL, replacing any existing entry, then trim the cache to size.
+     *
+     * @return the entry, as {@link #getFile} would return
+     */
+    public File commit(String url, File temp) throws IOException {
+        String key = key(url);
+        File file = new File(cacheDir, key);
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+        journal.written(key, file.length());
+        return file;
+    }
+
+    /**
+     * Remove the entry for a URL, for example if it turns out to be corrupt
+     */
+    public void remove(String url){
+        String key = key(url);
+        journal.removed(key);
+        //noinspection ResultOfMethodCallIgnored
+        new File(cacheDir, key).delete();
+    }
+
+    /**
+     * @return bytes used by entries written through the cache
+     */
+    public long size() {
+        return journal.size();
     }
 
     public File getCacheDir() {
@@ -26,16 +139,50 @@ public class FileCache {
     }
 
     public int clear(){
-        File[] files=cacheDir.listFiles();
-        if (files == null) {return 0;}
+        int deletedCount;
+        synchronized (journal) {
+            journal.reset();
+            File[] files=cacheDir.listFiles();
+            if (files == null) {return 0;}
 
-        int deletedCount = 0;
-        for (File f : files) {
-            deletedCount += deleteRecursively(f);
+            deletedCount = 0;
+            for (File f : files) {
+                deletedCount += deleteRecursively(f);
+            }
         }
         return deletedCount;
     }
 
+    /**
+     * @return the file name used for a URL
+     */
+    static String key(String url) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isKey(String name) {
+        if (name.length() != 64) {return false;}
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.digit(name.charAt(i), 16) < 0 || Character.isUpperCase(name.charAt(i))) {return false;}
+        }
+        return true;
+    }
+
+    private static boolean isLegacyName(String name) {
+        // Entries were once named by String.hashCode()
+        return name.matches("-?\\d+");
+    }
+
     private int deleteRecursively(File target) {
         if (target == null || !target.exists()) {return 0;}
         if (target.isDirectory()) {
@@ -48,17 +195,238 @@ public class FileCache {
             }
             boolean dirDeleted = target.delete();
             if (!dirDeleted) {
-                android.util.Log.w("FileCache", "Failed to delete directory: " + target.getAbsolutePath());
+                android.util.Log.w(TAG, "Failed to delete directory: " + target.getAbsolutePath());
             }
             return total; // Only count files; directories not included in count
         } else {
             boolean ok = target.delete();
             if (!ok) {
-                android.util.Log.w("FileCache", "Failed to delete file: " + target.getAbsolutePath());
+                android.util.Log.w(TAG, "Failed to delete file: " + target.getAbsolutePath());
                 return 0;
             }
-            return 1;
+            return JOURNAL.equals(target.getName()) ? 0 : 1;
         }
     }
 
+    /**
+     * Append only record of one directory's entries, replayed into access order when
+     * first used and rewritten once it is mostly stale lines.
+     *
+     * <pre>
+     * W key size    entry written
+     * R key         entry read
+     * D key         entry removed
+     * </pre>
+     */
+    private static final class Journal {
+        private static final int COMPACT_MIN_LINES = 1000;
+
+        private final File dir;
+        private final File file;
+        // Access ordered key to size, least recently used first
+        private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private long maxSize;
+        private long size;
+        private int lines;
+        private Writer writer;
+        private boolean loaded = false;
+
+        Journal(File dir) {
+            this.dir = dir;
+            this.file = new File(dir, JOURNAL);
+        }
+
+        private void ensureLoaded() {
+            if (loaded) {return;}
+            loaded = true;
+            load();
+            trim(null);
+        }
+
+        synchronized void setMaxSize(long maxSize) {
+            this.maxSize = maxSize;
+            if (loaded) {
+                trim(null);
+            }
+        }
+
+        synchronized long size() {
+            ensureLoaded();
+            return size;
+        }
+
+        synchronized void touch(String key) {
+            if (!loaded && Looper.myLooper() == Looper.getMainLooper()) {
+                // Not worth replaying the journal on the UI thread just to record a read
+                return;
+            }
+            ensureLoaded();
+            if (entries.get(key) != null) {
+                append("R " + key);
+            }
+        }
+
+        synchronized void written(String key, long length) {
+            ensureLoaded();
+            Long old = entries.put(key, length);
+            size += length - (old == null ? 0 : old);
+            append("W " + key + " " + length);
+            trim(key);
+        }
+
+        synchronized void removed(String key) {
+            ensureLoaded();
+            Long old = entries.remove(key);
+            if (old != null) {
+                size -= old;
+                append("D " + key);
+            }
+        }
+
+        synchronized void reset() {
+            closeWriter();
+            entries.clear();
+            size = 0;
+            lines = 0;
+            // The directory is about to be emptied, so there is nothing left to replay
+            loaded = true;
+        }
+
+        /** Evict least recently used entries, other than the one just written, until within the cap */
+        private void trim(String keep) {
+            if (maxSize <= 0) {return;}
+            Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+            while (size > maxSize && it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                if (entry.getKey().equals(keep)) {continue;}
+                File f = new File(dir, entry.getKey());
+                if (f.exists() && !f.delete()) {
+                    android.util.Log.w(TAG, "trim: Failed to delete " + f);
+                    continue;
+                }
+                size -= entry.getValue();
+                it.remove();
+                append("D " + entry.getKey());
+            }
+        }
+
+        private void load() {
+            if (file.exists()) {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        lines++;
+                        String[] parts = line.split(" ");
+                        if (parts.length < 2) {continue;}
+                        switch (parts[0]) {
+                            case "W":
+                                if (parts.length == 3) {entries.put(parts[1], Long.parseLong(parts[2]));}
+                                break;
+                            case "R":
+                                entries.get(parts[1]);
+                                break;
+                            case "D":
+                                entries.remove(parts[1]);
+                                break;
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // A torn last line is harmless, the scan below repairs anything worse
+                    android.util.Log.w(TAG, "load: Journal for " + dir + " damaged, " + e);
+                }
+            }
+
+            // Drop entries whose files have gone, and sizes which have changed
+            Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> entry = it.next();
+                File f = new File(dir, entry.getKey());
+                if (!f.isFile()) {
+                    it.remove();
+                } else {
+                    entry.setValue(f.length());
+                }
+            }
+
+            // Adopt entries written without a journal as least recently used, and tidy up
+            File[] files = dir.listFiles();
+            List<File> orphans = new ArrayList<>();
+            if (files != null) {
+                for (File f : files) {
+                    String name = f.getName();
+                    if (name.endsWith(TEMP_SUFFIX) || isLegacyName(name)) {
+                        //noinspection ResultOfMethodCallIgnored
+                        f.delete();
+                    } else if (isKey(name) && !entries.containsKey(name)) {
+                        orphans.add(f);
+                    }
+                }
+            }
+            File[] sorted = orphans.toArray(new File[0]);
+            Arrays.sort(sorted, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+            LinkedHashMap<String, Long> merged = new LinkedHashMap<>(64, 0.75f, true);
+            for (File f : sorted) {
+                merged.put(f.getName(), f.length());
+            }
+            merged.putAll(entries);
+            entries.clear();
+            entries.putAll(merged);
+
+            size = 0;
+            for (Long length : entries.values()) {
+                size += length;
+            }
+            if (!orphans.isEmpty() || lines > 0) {
+                rewrite();
+            }
+        }
+
+        private void append(String line) {
+            try {
+                if (writer == null) {
+                    writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+                }
+                writer.write(line);
+                writer.write('\n');
+                writer.flush();
+                lines++;
+            } catch (IOException e) {
+                // Only the eviction order is at risk, so carry on
+                android.util.Log.w(TAG, "append: Unable to write journal for " + dir, e);
+                closeWriter();
+            }
+            if (lines > COMPACT_MIN_LINES && lines > 2 * entries.size()) {
+                rewrite();
+            }
+        }
+
+        /** Replace the journal with one line per entry, in access order */
+        private void rewrite() {
+            closeWriter();
+            File temp = new File(dir, JOURNAL + TEMP_SUFFIX);
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                    out.write("W " + entry.getKey() + " " + entry.getValue() + "\n");
+                }
+            } catch (IOException e) {
+                android.util.Log.w(TAG, "rewrite: Unable to compact journal for " + dir, e);
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+                return;
+            }
+            if (temp.renameTo(file)) {
+                lines = entries.size();
+            }
+        }
+
+        private void closeWriter() {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+                writer = null;
+            }
+        }
+    }
 }
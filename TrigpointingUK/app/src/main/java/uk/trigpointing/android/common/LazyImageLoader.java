@@ -1,47 +1,80 @@
 package uk.trigpointing.android.common;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.ImageView;
 
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import uk.trigpointing.android.MainApplication;
 import uk.trigpointing.android.R;
 
 // Code from https://github.com/thest1/LazyList
 
+/**
+ * Loads images from the web into ImageViews in lists and grids.
+ *
+ * Downloads and decodes run on a small shared pool of low priority threads.  The
+ * most recently requested images load first, so the rows on screen fill before
+ * those the user has already scrolled past.  Several views waiting for the same
+ * URL share one download, and a download nobody is waiting for any more, because
+ * its views were recycled or rebound, is dropped from the queue or abandoned
+ * part way through.
+ */
 public class LazyImageLoader {
-    private static final String TAG = "BitmapLoader";
+    private static final String TAG = "LazyImageLoader";
+
+    private static final int THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final AtomicLong sSequence = new AtomicLong();
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(
+            THREADS, THREADS, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<>(),
+            r -> {
+                Thread t = new Thread(r, TAG);
+                //Make the background threads low priority. This way they will not affect the UI performance
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            });
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
 
     final int stub_id=R.drawable.imageloading;
 
-    MemoryCache memoryCache=new MemoryCache();
+    // Shared by all loaders, so that several lists don't each take a slice of the heap
+    private static final MemoryCache memoryCache=new MemoryCache();
     FileCache fileCache;
+    // Images have their own file cache, so skip the HTTP cache
+    private final OkHttpClient httpClient;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
     private final Map<ImageView, String> imageViews=Collections.synchronizedMap(new WeakHashMap<>());
+    // Queued or running downloads by URL, guarded by itself
+    private final Map<String, Request> requests = new HashMap<>();
 
-    PhotosLoader photoLoaderThread=new PhotosLoader();
-    PhotosQueue photosQueue= new PhotosQueue();
 
-    
     public LazyImageLoader(Context context){
-        //Make the background thread low priority. This way it will not affect the UI performance
-        photoLoaderThread.setPriority(Thread.NORM_PRIORITY-1);
-        
         fileCache=new FileCache(context, "images");
+        httpClient=MainApplication.getUncachedHttpClient(context);
     }
 
     public void clearCaches() {
@@ -52,70 +85,122 @@ public class LazyImageLoader {
             fileCache.clear();
         } catch (Exception ignored) {}
     }
-    
+
     public void DisplayImage(String url, ImageView imageView)
     {
-        imageViews.put(imageView, url);
+        String previous = imageViews.put(imageView, url);
+        if (previous != null && !previous.equals(url)) {
+            detach(previous, imageView);
+        }
         Bitmap bitmap=memoryCache.getBitmap(url);
         if(bitmap!=null) {
+            detach(url, imageView);
             imageView.setImageBitmap(bitmap);
             Log.i(TAG, "Got "+url+" from memory");
         } else {
             queuePhoto(url, imageView);
             imageView.setImageResource(stub_id);
-        }    
+        }
     }
-        
+
+    /**
+     * Stop loading an image into this view, for example because it has been recycled
+     * or is about to show something else
+     */
+    public void cancel(ImageView imageView) {
+        String url = imageViews.remove(imageView);
+        if (url != null) {
+            detach(url, imageView);
+        }
+    }
+
     private void queuePhoto(String url, ImageView imageView)
     {
-        //This ImageView may be used for other images before. So there may be some old tasks in the queue. We need to discard them. 
-        photosQueue.Clean(imageView);
-        PhotoToLoad p= new PhotoToLoad(url, imageView);
-        synchronized(photosQueue.photosToLoad){
-            photosQueue.photosToLoad.push(p);
-            photosQueue.photosToLoad.notifyAll();
+        synchronized (requests) {
+            Request request = requests.get(url);
+            if (request != null) {
+                // Already wanted, so just wait for the same download
+                request.targets.add(imageView);
+                if (sExecutor.remove(request)) {
+                    // Still queued - move it to the front
+                    request.sequence = sSequence.incrementAndGet();
+                    sExecutor.execute(request);
+                }
+                return;
+            }
+            request = new Request(url);
+            request.targets.add(imageView);
+            requests.put(url, request);
+            sExecutor.execute(request);
+        }
+    }
+
+    private void detach(String url, ImageView imageView) {
+        synchronized (requests) {
+            Request request = requests.get(url);
+            if (request == null) {
+                return;
+            }
+            request.targets.remove(imageView);
+            if (request.targets.isEmpty()) {
+                request.cancelled = true;
+                requests.remove(url);
+                sExecutor.remove(request);
+            }
         }
-        
-        //start thread if it's not started yet
-        if(photoLoaderThread.getState()==Thread.State.NEW)
-            photoLoaderThread.start();
     }
-    
-    private Bitmap getBitmap(String url) 
+
+    private Bitmap getBitmap(Request request)
     {
+        String url = request.url;
         File f=fileCache.getFile(url);
-        
+
         //from SD cache
         Bitmap b = decodeFile(f);
         if(b!=null) {
             Log.i(TAG, "Got "+url+" from SD cache");
             return b;
         }
-        
+
         //from web
+        File temp = null;
         try {
             Bitmap bitmap;
-            URL imageUrl = new URL(url);
-            HttpURLConnection conn = (HttpURLConnection)imageUrl.openConnection();
-            conn.setConnectTimeout(30000);
-            conn.setReadTimeout(30000);
-            InputStream is=conn.getInputStream();
-            OutputStream os = new FileOutputStream(f);
-            Utils.CopyStream(is, os);
-            os.close();
+            okhttp3.Request httpRequest = new okhttp3.Request.Builder().url(url).build();
+            try (Response response = httpClient.newCall(httpRequest).execute()) {
+                if (!response.isSuccessful()) {
+                    throw new IOException("HTTP " + response.code());
+                }
+                temp = fileCache.createTempFile();
+                try (InputStream is = response.body().byteStream();
+                     OutputStream os = new FileOutputStream(temp)) {
+                    byte[] buffer = new byte[8192];
+                    int n;
+                    while ((n = is.read(buffer)) > 0) {
+                        if (request.cancelled) {
+                            Log.d(TAG, "Abandoned " + url);
+                            return null;
+                        }
+                        os.write(buffer, 0, n);
+                    }
+                }
+            }
+            fileCache.commit(url, temp);
             bitmap = decodeFile(f);
             Log.i(TAG, "Got "+url+" from network");
             return bitmap;
         } catch (Exception ex){
            Log.e(TAG, "Error loading image from URL: " + url, ex);
-           // Clean up the failed download file
+           // Any cached copy has already failed to decode, so drop it
            if (f.exists()) {
-               boolean ok = f.delete();
-               if (!ok) {
-                   Log.w(TAG, "Failed to delete partial image file: " + f.getAbsolutePath());
-               }
+               fileCache.remove(url);
            }
            return null;
+        } finally {
+            if (temp != null && temp.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
         }
     }
 
@@ -124,27 +209,9 @@ public class LazyImageLoader {
         if (!f.exists()) {
             return null; // File doesn't exist, no need to log error
         }
-        
+
         try {
-            //decode image size
-            BitmapFactory.Options o = new BitmapFactory.Options();
-            o.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(new FileInputStream(f),null,o);
-            
-            //Find the correct scale value. It should be the power of 2.
-            final int REQUIRED_SIZE=600;
-            int width_tmp=o.outWidth, height_tmp=o.outHeight;
-            int scale=1;
-            while (width_tmp / 2 >= REQUIRED_SIZE && height_tmp / 2 >= REQUIRED_SIZE) {
-                width_tmp /= 2;
-                height_tmp /= 2;
-                scale *= 2;
-            }
-            
-            //decode with inSampleSize
-            BitmapFactory.Options o2 = new BitmapFactory.Options();
-            o2.inSampleSize=scale;
-            return BitmapFactory.decodeStream(new FileInputStream(f), null, o2);
+            return BitmapPool.decodeFile(f, BitmapPool.THUMBNAIL_SIZE, true);
         } catch (FileNotFoundException e) {
             Log.d(TAG, "File not found: " + f.getAbsolutePath()); // Changed to debug level
         } catch (Exception e) {
@@ -152,85 +219,59 @@ public class LazyImageLoader {
         }
         return null;
     }
-    
-    //Task for the queue
-    private static class PhotoToLoad
+
+    //One download, and the views waiting for it.  Newest requests run first.
+    private final class Request implements Runnable, Comparable<Request>
     {
-        public String url;
-        public ImageView imageView;
-        public PhotoToLoad(String u, ImageView i){
-            url=u; 
-            imageView=i;
-        }
-    }
+        final String url;
+        final Set<ImageView> targets = Collections.newSetFromMap(new WeakHashMap<>());
+        volatile long sequence = sSequence.incrementAndGet();
+        volatile boolean cancelled = false;
 
+        Request(String url) {
+            this.url = url;
+        }
 
-    //stores list of photos to download
-    static class PhotosQueue
-    {
-        private final Stack<PhotoToLoad> photosToLoad= new Stack<>();
-        
-        //removes all instances of this ImageView
-        public void Clean(ImageView image)
-        {
-            for(int j=0 ;j<photosToLoad.size();){
-                if(photosToLoad.get(j).imageView==image)
-                    photosToLoad.remove(j);
-                else
-                    ++j;
-            }
+        @Override
+        public int compareTo(Request other) {
+            return Long.compare(other.sequence, sequence);
         }
-    }
-    
-    class PhotosLoader extends Thread {
+
+        @Override
         public void run() {
-            try {
-                do {
-                    //thread waits until there are any images to load in the queue
-                    if (photosQueue.photosToLoad.isEmpty())
-                        synchronized (photosQueue.photosToLoad) {
-                            photosQueue.photosToLoad.wait();
-                        }
-                    if (!photosQueue.photosToLoad.isEmpty()) {
-                        PhotoToLoad photoToLoad;
-                        synchronized (photosQueue.photosToLoad) {
-                            photoToLoad = photosQueue.photosToLoad.pop();
-                        }
-                        Bitmap bmp = getBitmap(photoToLoad.url);
-                        memoryCache.put(photoToLoad.url, bmp);
-                        String tag = imageViews.get(photoToLoad.imageView);
-                        if (tag != null && tag.equals(photoToLoad.url)) {
-                            BitmapDisplayer bd = new BitmapDisplayer(bmp, photoToLoad.imageView);
-                            Activity a = (Activity) photoToLoad.imageView.getContext();
-                            a.runOnUiThread(bd);
-                        }
-                    }
-                } while (!Thread.interrupted());
-            } catch (InterruptedException e) {
-                //allow thread to exit
+            if (cancelled) {
+                return;
             }
-        }
-    }
-    
-    
-    //Used to display bitmap in the UI thread
-    class BitmapDisplayer implements Runnable
-    {
-        Bitmap bitmap;
-        ImageView imageView;
-        public BitmapDisplayer(Bitmap b, ImageView i){
-            bitmap=b;
-            imageView=i;
-        }
-        public void run()
-        {
-            if(bitmap!=null) {
-                imageView.setImageBitmap(bitmap);
-                Log.d(TAG, "Displayed bitmap successfully");
-            } else {
-                imageView.setImageResource(stub_id);
-                Log.w(TAG, "Bitmap was null, showing placeholder image");
+            Bitmap bmp = getBitmap(this);
+            List<ImageView> views;
+            synchronized (requests) {
+                if (requests.get(url) == this) {
+                    requests.remove(url);
+                }
+                if (cancelled) {
+                    // Never displayed, so its memory can go to the next decode
+                    BitmapPool.get().put(bmp);
+                    return;
+                }
+                views = new ArrayList<>(targets);
+            }
+            if (bmp != null) {
+                memoryCache.put(url, bmp);
             }
+            mainHandler.post(() -> {
+                for (ImageView view : views) {
+                    // Only if the view hasn't since been given something else to show
+                    if (url.equals(imageViews.get(view))) {
+                        if(bmp!=null) {
+                            view.setImageBitmap(bmp);
+                            Log.d(TAG, "Displayed bitmap successfully");
+                        } else {
+                            view.setImageResource(stub_id);
+                            Log.w(TAG, "Bitmap was null, showing placeholder image");
+                        }
+                    }
+                }
+            });
         }
     }
 
@@ -1,42 +1,151 @@
 package uk.trigpointing.android.common;
 
-import java.lang.ref.SoftReference;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import android.graphics.Bitmap;
 
+/**
+ * Thread safe, least recently used cache of bitmaps and strings.
+ *
+ * Bitmaps and strings share one key space but are held to separate byte budgets,
+ * so a burst of large images can't push out small, cheap to keep strings, or the
+ * other way round.  Bitmaps are sized by {@link Bitmap#getAllocationByteCount()},
+ * strings at two bytes per char.  An entry bigger than its whole budget is not kept.
+ */
 public class MemoryCache {
-    private final HashMap<String, SoftReference<Object>> cache= new HashMap<>();
-    
-    public Bitmap getBitmap(String id){
-        if(!cache.containsKey(id))
-            return null;
-        SoftReference<Object> ref=cache.get(id);
-        if (ref != null) {
-            return (Bitmap)ref.get();
+    // Defaults, as fractions of the heap available to the app
+    private static final int BITMAP_HEAP_FRACTION = 8;
+    private static final int STRING_HEAP_FRACTION = 64;
+
+    private static final class Entry {
+        final Object value;
+        final boolean bitmap;
+        final long size;
+
+        Entry(Object value, boolean bitmap, long size) {
+            this.value = value;
+            this.bitmap = bitmap;
+            this.size = size;
         }
-        return null;
     }
-    
-    public String getString(String id){
-        if(!cache.containsKey(id))
-            return null;
-        SoftReference<Object> ref=cache.get(id);
-        if (ref != null) {
-            return (String)ref.get();
-        }
-        return null;
+
+    // Access ordered, so iteration starts with the least recently used
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(32, 0.75f, true);
+    private final long bitmapBudget;
+    private final long stringBudget;
+    private long bitmapSize = 0;
+    private long stringSize = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public MemoryCache() {
+        this(Runtime.getRuntime().maxMemory() / BITMAP_HEAP_FRACTION,
+             Runtime.getRuntime().maxMemory() / STRING_HEAP_FRACTION);
+    }
+
+    /**
+     * @param bitmapBudget maximum bytes of bitmaps to keep
+     * @param stringBudget maximum bytes of strings to keep
+     */
+    public MemoryCache(long bitmapBudget, long stringBudget) {
+        this.bitmapBudget = bitmapBudget;
+        this.stringBudget = stringBudget;
     }
-    
-    public void put(String id, Bitmap bitmap){
-        cache.put(id, new SoftReference<>(bitmap));
+
+    public synchronized Bitmap getBitmap(String id){
+        return (Bitmap) get(id);
+    }
+
+    public synchronized String getString(String id){
+        return (String) get(id);
+    }
+
+    public synchronized void put(String id, Bitmap bitmap){
+        put(id, bitmap, true, bitmap == null ? 0 : bitmap.getAllocationByteCount());
     }
 
-    public void put(String id, String string){
-        cache.put(id, new SoftReference<>(string));
+    public synchronized void put(String id, String string){
+        put(id, string, false, string == null ? 0 : 2L * string.length());
     }
 
-    public void clear() {
+    public synchronized void clear() {
         cache.clear();
+        bitmapSize = 0;
+        stringSize = 0;
+    }
+
+    public synchronized long getBitmapSize() {
+        return bitmapSize;
+    }
+
+    public synchronized long getStringSize() {
+        return stringSize;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MemoryCache[bitmaps=" + bitmapSize + "/" + bitmapBudget
+                + ", strings=" + stringSize + "/" + stringBudget
+                + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+
+    private Object get(String id) {
+        Entry entry = cache.get(id);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    private void put(String id, Object value, boolean bitmap, long size) {
+        Entry old = cache.remove(id);
+        if (old != null) {
+            account(old, -1);
+        }
+        if (value == null || size > (bitmap ? bitmapBudget : stringBudget)) {
+            return;
+        }
+        Entry entry = new Entry(value, bitmap, size);
+        cache.put(id, entry);
+        account(entry, 1);
+        trim(bitmap);
     }
 
-}
\ No newline at end of file
+    /** Evict least recently used entries of one kind until it is back within budget */
+    private void trim(boolean bitmap) {
+        Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator();
+        while (it.hasNext() && (bitmap ? bitmapSize > bitmapBudget : stringSize > stringBudget)) {
+            Entry entry = it.next().getValue();
+            if (entry.bitmap == bitmap) {
+                it.remove();
+                account(entry, -1);
+                evictions++;
+            }
+        }
+    }
+
+    private void account(Entry entry, int sign) {
+        if (entry.bitmap) {
+            bitmapSize += sign * entry.size;
+        } else {
+            stringSize += sign * entry.size;
+        }
+    }
+}
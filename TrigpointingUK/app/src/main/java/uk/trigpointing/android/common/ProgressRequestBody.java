@@ -34,6 +34,12 @@ public class ProgressRequestBody extends RequestBody {
         return file.length();
     }
 
+    @Override
+    public boolean isOneShot() {
+        // OkHttp mustn't quietly send an upload again, the server may have stored the first
+        return true;
+    }
+
     @Override
     public void writeTo(@NonNull BufferedSink sink) throws IOException {
         try (FileInputStream inputStream = new FileInputStream(file)) {
@@ -0,0 +1,382 @@
+package uk.trigpointing.android.common;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Downloads a URL to a file, surviving dropped connections.
+ *
+ * Bytes are appended to a .part file as they arrive.  After a failure, the next
+ * attempt - in this call or a later one, even after the app restarts - asks for just
+ * the missing bytes with an HTTP Range request, guarded by If-Range so that a changed
+ * resource is downloaded afresh rather than spliced.  The file is only handed back
+ * once its length matches and, if the server sent a SHA-256 Digest header, its hash.
+ * Without a validator, or without a length or digest to check the joined file
+ * against, a partial file is thrown away and the download restarted.
+ * {@link #cancel()} stops a download from another thread, keeping what has arrived.
+ */
+public class ResumableDownload {
+    private static final String TAG = "ResumableDownload";
+
+    private static final int MAX_ATTEMPTS       = 3;
+    private static final int CONNECT_TIMEOUT_MS = 30000;
+    private static final int READ_TIMEOUT_MS    = 60000;
+    private static final int BUFFER_SIZE        = 64 * 1024;
+
+    private static final String META_URL       = "url";
+    private static final String META_VALIDATOR = "validator";
+    private static final String META_LENGTH    = "length";
+    private static final String META_SHA256    = "sha256";
+    private static final String META_HEADER    = "header.";
+
+    private final OkHttpClient mClient;
+    private final URL      mUrl;
+    private final File     mTarget;
+    private final File     mPart;
+    private final File     mMeta;
+    private final String[] mKeepHeaders;
+    private final Properties mProps = new Properties();
+    private long mTransferred = 0;
+    private ProgressListener mListener;
+    private volatile Call mCall;
+    private volatile boolean mCancelled = false;
+
+    /** Told how much of the file is on disk, on the downloading thread */
+    public interface ProgressListener {
+        /**
+         * @param bytes bytes downloaded so far, including any from earlier attempts
+         * @param total length of the file, or -1 if not known
+         */
+        void onProgress(long bytes, long total);
+    }
+
+    /**
+     * @param client      client whose connection pool to share, ideally without an HTTP cache
+     * @param url         resource to download
+     * @param target      where the complete file is to be written
+     * @param keepHeaders response headers to remember, see {@link #getHeader}
+     */
+    public ResumableDownload(OkHttpClient client, URL url, File target, String... keepHeaders) {
+        mClient = client.newBuilder()
+                .connectTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .readTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .build();
+        mUrl = url;
+        mTarget = target;
+        mPart = new File(target.getPath() + ".part");
+        mMeta = new File(target.getPath() + ".meta");
+        mKeepHeaders = keepHeaders;
+    }
+
+    /**
+     * Download the file, resuming any earlier partial download of the same URL
+     *
+     * @return the complete, verified file
+     * @throws IOException if the download could not be completed.  Any verified
+     *                     progress is kept for the next call.
+     */
+    public File fetch() throws IOException {
+        loadMeta();
+        if (!mUrl.toString().equals(mProps.getProperty(META_URL))) {
+            discard();
+            mProps.setProperty(META_URL, mUrl.toString());
+        }
+
+        IOException failure = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            checkCancelled();
+            long before = mPart.length();
+            try {
+                if (!isComplete()) {
+                    download();
+                }
+                if (isComplete()) {
+                    verify();
+                    if (mTarget.exists() && !mTarget.delete()) {
+                        throw new IOException("Unable to replace " + mTarget);
+                    }
+                    if (!mPart.renameTo(mTarget)) {
+                        throw new IOException("Unable to rename " + mPart);
+                    }
+                    //noinspection ResultOfMethodCallIgnored
+                    mMeta.delete();
+                    return mTarget;
+                }
+                failure = new IOException("Download ended early at " + mPart.length() + " bytes");
+            } catch (IOException e) {
+                failure = e;
+            }
+            checkCancelled();
+            Log.w(TAG, "fetch: Attempt " + attempt + " stopped at " + mPart.length() + " bytes: " + failure.getMessage());
+            if (mPart.length() <= before) {
+                // No progress, so leave further retries to the caller's backoff
+                break;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Stop the download, from any thread.  {@link #fetch} then throws, keeping the
+     * partial file for a later call to resume.
+     */
+    public void cancel() {
+        mCancelled = true;
+        Call call = mCall;
+        if (call != null) {
+            call.cancel();
+        }
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return a response header listed in the constructor, from whichever response supplied it
+     */
+    public String getHeader(String name) {
+        return mProps.getProperty(META_HEADER + name.toLowerCase());
+    }
+
+    /**
+     * @return bytes received from the network by this object, for tests and logging
+     */
+    public long getTransferred() {
+        return mTransferred;
+    }
+
+    /**
+     * Delete the download and any partial progress
+     */
+    public void discard() {
+        //noinspection ResultOfMethodCallIgnored
+        mPart.delete();
+        //noinspection ResultOfMethodCallIgnored
+        mMeta.delete();
+        mProps.clear();
+    }
+
+    private boolean isComplete() {
+        long length = knownLength();
+        return length >= 0 && mPart.length() == length;
+    }
+
+    /**
+     * @return the length of the whole file, or -1 if not known
+     */
+    private long knownLength() {
+        String length = mProps.getProperty(META_LENGTH);
+        if (length == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(length);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "knownLength: Ignoring bad length " + length);
+            return -1;
+        }
+    }
+
+    private void download() throws IOException {
+        long offset = mPart.length();
+        String validator = mProps.getProperty(META_VALIDATOR);
+        if (offset > 0 && validator == null) {
+            // Can't safely resume without something to guard the range with
+            Log.i(TAG, "download: No validator, restarting");
+            offset = 0;
+        } else if (offset > 0 && knownLength() < 0 && mProps.getProperty(META_SHA256) == null) {
+            // Nothing to check the joined file against, so a short or stale part would go unnoticed
+            Log.i(TAG, "download: No length or digest, restarting");
+            offset = 0;
+        }
+
+        Request.Builder request = new Request.Builder()
+                .url(mUrl)
+                // Ranges must refer to the bytes as stored, not a transparently inflated stream
+                .header("Accept-Encoding", "identity");
+        if (offset > 0) {
+            request.header("Range", "bytes=" + offset + "-");
+            request.header("If-Range", validator);
+        }
+
+        Call call = mClient.newCall(request.build());
+        mCall = call;
+        // Cancelled before the call was made visible to cancel()
+        checkCancelled();
+        try (Response response = call.execute()) {
+            int code = response.code();
+            boolean append;
+            long rangeTotal = contentRangeTotal(response);
+            if (code == 206 && offset > 0 && contentRangeStart(response) == offset
+                    && (knownLength() < 0 || rangeTotal < 0 || rangeTotal == knownLength())) {
+                Log.i(TAG, "download: Resuming at " + offset);
+                append = true;
+                if (knownLength() < 0 && rangeTotal >= 0) {
+                    mProps.setProperty(META_LENGTH, Long.toString(rangeTotal));
+                }
+            } else if (code == 200) {
+                append = false;
+                mProps.clear();
+                mProps.setProperty(META_URL, mUrl.toString());
+                long length = response.body().contentLength();
+                if (length >= 0) {
+                    mProps.setProperty(META_LENGTH, Long.toString(length));
+                }
+            } else if (code == 206 || code == 416) {
+                // Range not what we asked for, or not satisfiable - start again next time
+                discard();
+                throw new IOException("HTTP " + code + " for range at " + offset + ", restarting download");
+            } else {
+                throw new IOException("HTTP " + code + " from " + mUrl);
+            }
+
+            rememberHeaders(response);
+            saveMeta();
+
+            long total = knownLength();
+            long written = append ? offset : 0;
+            try (InputStream in = response.body().byteStream();
+                 OutputStream out = new FileOutputStream(mPart, append)) {
+                byte[] buf = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    checkCancelled();
+                    out.write(buf, 0, n);
+                    mTransferred += n;
+                    written += n;
+                    if (mListener != null) {
+                        mListener.onProgress(written, total);
+                    }
+                }
+            }
+            // A cancelled call may look like the end of the stream
+            checkCancelled();
+            if (mProps.getProperty(META_LENGTH) == null) {
+                // No length given, so the end of the stream is the end of the file
+                mProps.setProperty(META_LENGTH, Long.toString(mPart.length()));
+                saveMeta();
+            }
+        }
+    }
+
+    private void checkCancelled() throws IOException {
+        if (mCancelled) {
+            throw new IOException("Download cancelled");
+        }
+    }
+
+    private static long contentRangeStart(Response response) {
+        // Content-Range: bytes 1000-4999/5000
+        String range = response.header("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(range.substring(6, range.indexOf('-')).trim());
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static long contentRangeTotal(Response response) {
+        String range = response.header("Content-Range");
+        if (range == null || range.endsWith("/*")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(range.substring(range.lastIndexOf('/') + 1).trim());
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private void rememberHeaders(Response response) {
+        String validator = response.header("ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            // Weak ETags can't be used with If-Range
+            validator = response.header("Last-Modified");
+        }
+        if (validator != null) {
+            mProps.setProperty(META_VALIDATOR, validator);
+        }
+        // RFC 3230 instance digest, eg "SHA-256=base64..."
+        String digest = response.header("Digest");
+        if (digest != null) {
+            for (String part : digest.split(",")) {
+                part = part.trim();
+                if (part.regionMatches(true, 0, "SHA-256=", 0, 8)) {
+                    mProps.setProperty(META_SHA256, part.substring(8));
+                }
+            }
+        }
+        for (String name : mKeepHeaders) {
+            String value = response.header(name);
+            if (value != null) {
+                mProps.setProperty(META_HEADER + name.toLowerCase(), value);
+            }
+        }
+    }
+
+    private void verify() throws IOException {
+        String expected = mProps.getProperty(META_SHA256);
+        if (expected == null) {
+            return;
+        }
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (InputStream in = new FileInputStream(mPart)) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                sha.update(buf, 0, n);
+            }
+        }
+        String actual = Base64.getEncoder().encodeToString(sha.digest());
+        if (!actual.equals(expected)) {
+            // Corrupt, so resuming would only append to garbage
+            discard();
+            throw new IOException("Checksum mismatch, discarded download");
+        }
+    }
+
+    private void loadMeta() {
+        mProps.clear();
+        if (!mMeta.exists()) {
+            return;
+        }
+        try (InputStream in = new FileInputStream(mMeta)) {
+            mProps.load(in);
+        } catch (IOException e) {
+            Log.w(TAG, "loadMeta: Ignoring unreadable " + mMeta, e);
+            mProps.clear();
+        }
+    }
+
+    private void saveMeta() throws IOException {
+        try (OutputStream out = new FileOutputStream(mMeta)) {
+            mProps.store(out, null);
+        }
+    }
+}
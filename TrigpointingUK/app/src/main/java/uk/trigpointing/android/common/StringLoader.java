@@ -5,33 +5,53 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.net.URL;
-import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
+import java.util.Properties;
 
 import android.content.Context;
 import android.util.Log;
 
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import uk.trigpointing.android.MainApplication;
+
 public class StringLoader {
     private static final String TAG="StringLoader";
     private static final MemoryCache mMemoryCache=new MemoryCache();
+
+    // Validators for a cached body are kept as a separate cache entry
+    private static final String VALIDATORS_SUFFIX = "#validators";
+    private static final String ETAG              = "etag";
+    private static final String LAST_MODIFIED     = "lastModified";
+
     FileCache   mFileCache;
+    // Revalidation is done here against the file cache, so skip the HTTP cache
+    private final OkHttpClient mHttpClient;
 
     public StringLoader(Context context) {
          mFileCache=new FileCache(context, "strings");
+         mHttpClient=MainApplication.getUncachedHttpClient(context);
     }
-    
+
+    /**
+     * @param reload if false, return any cached copy without asking the server.  If
+     *               true, ask the server whether the cached copy is still current, only
+     *               downloading it again if it has changed.
+     * @return the text, or null if it could not be loaded
+     */
     public String getString(String url, boolean reload) {
         String strResult;
-        StringBuilder text;
-        
+
         File file=mFileCache.getFile(url);
 
         if (!reload) {
-            // try soft reference memory cache
+            // try memory cache
             strResult =  mMemoryCache.getString(url);
             if(strResult != null) {
                 Log.i(TAG, "Got "+url+" from memory");
@@ -40,50 +60,47 @@ public class StringLoader {
 
             // try file cache
             if (file.exists()) {
-                // get from filesystem cache    
-                text = new StringBuilder();
+                // get from filesystem cache
                 try {
-                    try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
-                        String line;
-                        while ((line = in.readLine()) != null) {
-                            text.append(line).append("\n");
-                        }
-                        mMemoryCache.put(url, text.toString());
-                        Log.i(TAG, "Got " + url + " from SD cache");
-                        return text.toString();
-                    }
+                    strResult = readFile(file);
+                    mMemoryCache.put(url, strResult);
+                    Log.i(TAG, "Got " + url + " from SD cache");
+                    return strResult;
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
             }
         }
-        
+
         //from web
         try {
             Log.i(TAG, "Downloading " + url);
-            URLConnection conn = new URL(url).openConnection();
-            conn.setConnectTimeout(30000);
-            conn.setReadTimeout(30000);
-            BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-            
-            // Create file output stream
-            OutputStream os = new FileOutputStream(file);
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
-            
-            text = new StringBuilder();
-            String line;
-            try {
-                while ((line = in.readLine()) != null) {
-                    text.append(line);
-                    text.append(System.lineSeparator());
-                    out.write(line + "\n");
+            Request.Builder request = new Request.Builder().url(url);
+            if (file.exists()) {
+                Properties validators = readValidators(url);
+                if (validators.getProperty(ETAG) != null) {
+                    request.header("If-None-Match", validators.getProperty(ETAG));
+                }
+                if (validators.getProperty(LAST_MODIFIED) != null) {
+                    request.header("If-Modified-Since", validators.getProperty(LAST_MODIFIED));
                 }
-                mMemoryCache.put(url, text.toString());
+            }
+
+            try (Response response = mHttpClient.newCall(request.build()).execute()) {
+                if (response.code() == 304) {
+                    strResult = readFile(file);
+                    mMemoryCache.put(url, strResult);
+                    Log.i(TAG, "Got "+url+" from SD cache, not modified");
+                    return strResult;
+                }
+                if (!response.isSuccessful()) {
+                    throw new IOException("HTTP " + response.code() + " from " + url);
+                }
+
+                strResult = download(url, response);
+                mMemoryCache.put(url, strResult);
                 Log.i(TAG, "Got "+url+" from network");
-                return text.toString();
-            } finally { 
-                in.close();
-                out.close();
+                return strResult;
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -92,6 +109,85 @@ public class StringLoader {
     return null;
     }
 
+    private String download(String url, Response response) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(response.body().byteStream()));
+
+        // Write to a temporary file, only replacing the cached copy once complete
+        File temp = mFileCache.createTempFile();
+        OutputStream os = new FileOutputStream(temp);
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+
+        StringBuilder text = new StringBuilder();
+        String line;
+        try {
+            while ((line = in.readLine()) != null) {
+                text.append(line);
+                text.append(System.lineSeparator());
+                out.write(line + "\n");
+            }
+            out.close();
+            // Never leave old validators describing a new body
+            mFileCache.remove(url + VALIDATORS_SUFFIX);
+            mFileCache.commit(url, temp);
+        } finally {
+            in.close();
+            out.close();
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+
+        Properties validators = new Properties();
+        String etag = response.header("ETag");
+        String lastModified = response.header("Last-Modified");
+        if (etag != null) {
+            validators.setProperty(ETAG, etag);
+        }
+        if (lastModified != null) {
+            validators.setProperty(LAST_MODIFIED, lastModified);
+        }
+        writeValidators(url, validators);
+        return text.toString();
+    }
+
+    private static String readFile(File file) throws IOException {
+        StringBuilder text = new StringBuilder();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                text.append(line).append("\n");
+            }
+        }
+        return text.toString();
+    }
+
+    private Properties readValidators(String url) {
+        Properties validators = new Properties();
+        File file = mFileCache.getFile(url + VALIDATORS_SUFFIX);
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                validators.load(in);
+            } catch (IOException e) {
+                Log.w(TAG, "readValidators: Ignoring unreadable " + file, e);
+                validators.clear();
+            }
+        }
+        return validators;
+    }
 
+    private void writeValidators(String url, Properties validators) throws IOException {
+        if (validators.isEmpty()) {
+            mFileCache.remove(url + VALIDATORS_SUFFIX);
+            return;
+        }
+        File temp = mFileCache.createTempFile();
+        try (OutputStream out = new FileOutputStream(temp)) {
+            validators.store(out, null);
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw e;
+        }
+        mFileCache.commit(url + VALIDATORS_SUFFIX, temp);
+    }
 
 }
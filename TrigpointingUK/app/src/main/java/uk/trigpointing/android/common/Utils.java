@@ -9,7 +9,6 @@ import java.io.OutputStream;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 
 public class Utils {
@@ -33,26 +32,17 @@ public class Utils {
     
     public static Bitmap decodeUri(Context ctx, Uri selectedImage, int requiredSize) throws FileNotFoundException {
 
-        // Decode image size
-        BitmapFactory.Options o = new BitmapFactory.Options();
-        o.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(ctx.getContentResolver().openInputStream(selectedImage), null, o);
-
-        // Find the correct scale value. It should be the power of 2.
-        int width_tmp = o.outWidth, height_tmp = o.outHeight;
-        int scale = 1;
-        while (width_tmp / 2 >= requiredSize
-                && height_tmp / 2 >= requiredSize) {
-            width_tmp /= 2;
-            height_tmp /= 2;
-            scale *= 2;
+        // Decode size and pixels from one stream, reusing a pooled bitmap if possible
+        try {
+            return BitmapPool.decode(() -> ctx.getContentResolver().openInputStream(selectedImage),
+                    requiredSize, requiredSize <= BitmapPool.THUMBNAIL_SIZE);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            android.util.Log.w("Utils", "decodeUri: Unable to read " + selectedImage, e);
+            return null;
         }
 
-        // Decode with inSampleSize
-        BitmapFactory.Options o2 = new BitmapFactory.Options();
-        o2.inSampleSize = scale;
-        return BitmapFactory.decodeStream(ctx.getContentResolver().openInputStream(selectedImage), null, o2);
-
     }
 
     
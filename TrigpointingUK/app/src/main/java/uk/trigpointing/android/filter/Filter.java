@@ -8,6 +8,7 @@ import android.util.Log;
 import uk.trigpointing.android.DbHelper;
 import uk.trigpointing.android.types.Condition;
 import uk.trigpointing.android.types.Trig;
+import uk.trigpointing.android.types.TrigSnapshot;
 
 
 
@@ -163,4 +164,54 @@ public class Filter {
         Log.i("Filter", "filterWhere: Final SQL where clause: '" + result + "'");
         return result;
     }
+
+    
+    /**
+     * Returns the current filter settings as a predicate over a trig snapshot,
+     * selecting the same trigs as filterWhere()
+     */
+    public TrigSnapshot.Predicate snapshotPredicate() {
+        final int filterRadio = mPrefs.getInt(FILTERRADIO, 0);
+        final int filterType = mPrefs.getInt(FILTERTYPE, TYPESDEFAULT);
+        final boolean[] types = new boolean[Trig.Physical.values().length];
+        for (Trig.Physical type : Trig.Physical.values()) {
+            types[type.ordinal()] = matchesType(filterType, type);
+        }
+        return (snapshot, row) -> {
+            if (!types[snapshot.type(row).ordinal()]) {
+                return false;
+            }
+            switch (filterRadio) {
+            case 1: // filterLogged
+                return snapshot.logged(row) != Condition.TRIGNOTLOGGED || snapshot.isUnsynced(row);
+            case 2: // filterNotLogged
+                return snapshot.logged(row) == Condition.TRIGNOTLOGGED && !snapshot.isUnsynced(row);
+            case 3: // filterMarked
+                return snapshot.isMarked(row);
+            case 4: // filterUnsynced
+                return snapshot.isUnsynced(row);
+            default:
+                return true;
+            }
+        };
+    }
+    
+    private static boolean matchesType(int filterType, Trig.Physical type) {
+        switch (filterType) {
+        case TYPESPILLAR:
+            return type == Trig.Physical.PILLAR;
+        case TYPESPILLARFBM:
+            return type == Trig.Physical.PILLAR || type == Trig.Physical.FBM;
+        case TYPESFBM:
+            return type == Trig.Physical.FBM;
+        case TYPESPASSIVE:
+            return type != Trig.Physical.PILLAR && type != Trig.Physical.FBM && type != Trig.Physical.INTERSECTED;
+        case TYPESINTERSECTED:
+            return type == Trig.Physical.INTERSECTED;
+        case TYPESNOINTERSECTED:
+            return type != Trig.Physical.INTERSECTED;
+        default:
+            return true;
+        }
+    }
 }
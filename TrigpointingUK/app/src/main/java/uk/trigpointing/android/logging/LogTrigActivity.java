@@ -66,6 +66,7 @@ import android.view.GestureDetector.SimpleOnGestureListener;
 
 import uk.trigpointing.android.DbHelper;
 import uk.trigpointing.android.R;
+import uk.trigpointing.android.common.BitmapPool;
 import uk.trigpointing.android.common.FileCache;
 import uk.trigpointing.android.common.Utils;
 import uk.trigpointing.android.types.Condition;
@@ -797,6 +798,9 @@ public class LogTrigActivity extends BaseTabActivity implements OnDateChangedLis
                 Bitmap bPhoto = Utils.decodeUri(this, selectedImageUri,  640);
                 Utils.saveBitmapToFile(thumbPath, bThumb, 50);
                 Utils.saveBitmapToFile(photoPath, bPhoto, 50);
+                // Only the saved files are used from here on
+                BitmapPool.get().put(bThumb);
+                BitmapPool.get().put(bPhoto);
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
                 // ErrorReporter.getInstance().handleSilentException(e);
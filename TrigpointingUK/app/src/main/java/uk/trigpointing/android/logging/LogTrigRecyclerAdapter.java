@@ -48,6 +48,8 @@ public class LogTrigRecyclerAdapter extends RecyclerView.Adapter<LogTrigRecycler
         TrigPhoto photo = mPhotos[position];
         if (photo == null) {return;}
         String iconUrl = photo.getIconURL();
+        // Stop any earlier download into this view overwriting what is shown below
+        imageLoader.cancel(holder.imageView);
         if (iconUrl == null || iconUrl.trim().isEmpty()) {
             holder.imageView.setImageResource(R.drawable.imageloading);
             return;
@@ -68,6 +70,12 @@ public class LogTrigRecyclerAdapter extends RecyclerView.Adapter<LogTrigRecycler
         imageLoader.DisplayImage(iconUrl, holder.imageView);
     }
     
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        imageLoader.cancel(holder.imageView);
+        super.onViewRecycled(holder);
+    }
+
     @Override
     public int getItemCount() {
         return mPhotos != null ? mPhotos.length : 0;
@@ -0,0 +1,259 @@
+package uk.trigpointing.android.logging;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.FormBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Uploads logs to T:UK, several to a request where the server supports it.
+ *
+ * android-sync-logs.php takes the credentials once, with a JSON array of logs, and
+ * replies with a result for each log in order:
+ *
+ * <pre>
+ * {"status":0, "msg":"", "results":[{"id":1234, "status":0, "msg":"", "log_id":56789}, ...]}
+ * </pre>
+ *
+ * A server without it answers 404, after which logs go one to a request to
+ * android-sync-log.php, as they always did, for the rest of the process.
+ */
+public class LogUploader {
+    private static final String TAG = "LogUploader";
+
+    public  static final String DEFAULT_BASE_URL   = "https://trigpointing.uk/trigs/";
+    public  static final int    DEFAULT_BATCH_SIZE = 10;
+    private static final String SINGLE_PATH        = "android-sync-log.php";
+    private static final String BATCH_PATH         = "android-sync-logs.php";
+
+    // Whether each server has the batch endpoint, once known
+    private static final Map<String, Boolean> sBatchSupported = new HashMap<>();
+
+    /** One log, as the form fields of a single upload */
+    public static final class Item {
+        public final long trigId;
+        final Map<String, String> mFields = new LinkedHashMap<>();
+
+        public Item(long trigId) {
+            this.trigId = trigId;
+            mFields.put("id", Long.toString(trigId));
+        }
+
+        public Item put(String name, String value) {
+            mFields.put(name, value == null ? "" : value);
+            return this;
+        }
+
+        public String get(String name) {
+            return mFields.get(name);
+        }
+    }
+
+    /** What became of one log */
+    public static final class Result {
+        public final Item item;
+        public final boolean ok;
+        // T:UK's id for the new log, if ok
+        public final int logId;
+        public final String msg;
+
+        Result(Item item, boolean ok, int logId, String msg) {
+            this.item = item;
+            this.ok = ok;
+            this.logId = logId;
+            this.msg = msg;
+        }
+    }
+
+    /** Told of each log's result as soon as it is known, on the uploading thread */
+    public interface ResultListener {
+        void onResult(Result result);
+    }
+
+    private final OkHttpClient mClient;
+    private final String mBaseUrl;
+    private final Map<String, String> mCommon = new LinkedHashMap<>();
+    private int mRoundTrips = 0;
+
+    /**
+     * @param baseUrl   where the sync scripts are, ending in /
+     * @param appVersion sent with every request
+     */
+    public LogUploader(OkHttpClient client, String baseUrl, String username, String password,
+                       int appVersion, boolean sendEmail) {
+        mClient = client;
+        mBaseUrl = baseUrl;
+        mCommon.put("username", username);
+        mCommon.put("password", password);
+        mCommon.put("sendemail", String.valueOf(sendEmail));
+        mCommon.put("appversion", String.valueOf(appVersion));
+    }
+
+    /**
+     * @return requests made so far
+     */
+    public int getRoundTrips() {
+        return mRoundTrips;
+    }
+
+    /**
+     * Upload the logs, batchSize to a request if the server can take them.  Logs the
+     * server rejects are reported and the rest carry on.  Sent one at a time, the
+     * upload stops at the first rejection, as it always has.
+     *
+     * @return the number of logs uploaded
+     * @throws IOException if the server can't be reached or fails.  Results already
+     *                     reported stand.
+     */
+    public int upload(List<Item> items, int batchSize, ResultListener listener) throws IOException {
+        int uploaded = 0;
+        int next = 0;
+        while (next < items.size()) {
+            if (batchSize > 1 && !Boolean.FALSE.equals(batchSupported())) {
+                List<Item> batch = items.subList(next, Math.min(next + batchSize, items.size()));
+                int sent = sendBatch(batch, listener);
+                if (sent >= 0) {
+                    uploaded += sent;
+                    next += batch.size();
+                    continue;
+                }
+                // Not supported, so carry on one at a time
+            }
+            Result result = sendSingle(items.get(next++));
+            listener.onResult(result);
+            if (!result.ok) {
+                break;
+            }
+            uploaded++;
+        }
+        return uploaded;
+    }
+
+    private Boolean batchSupported() {
+        synchronized (sBatchSupported) {
+            return sBatchSupported.get(mBaseUrl);
+        }
+    }
+
+    private void setBatchSupported(boolean supported) {
+        synchronized (sBatchSupported) {
+            sBatchSupported.put(mBaseUrl, supported);
+        }
+    }
+
+    /**
+     * @return logs uploaded, or -1 if the server has no batch endpoint
+     */
+    private int sendBatch(List<Item> batch, ResultListener listener) throws IOException {
+        JSONArray logs = new JSONArray();
+        for (Item item : batch) {
+            logs.put(new JSONObject(item.mFields));
+        }
+        FormBody.Builder form = new FormBody.Builder(StandardCharsets.UTF_8);
+        for (Map.Entry<String, String> field : mCommon.entrySet()) {
+            form.add(field.getKey(), field.getValue());
+        }
+        form.add("logs", logs.toString());
+
+        JSONObject reply;
+        try {
+            reply = post(BATCH_PATH, form.build());
+        } catch (UnsupportedException e) {
+            Log.i(TAG, "sendBatch: No batch endpoint, sending logs one at a time");
+            setBatchSupported(false);
+            return -1;
+        }
+        setBatchSupported(true);
+
+        JSONArray results = reply.optJSONArray("results");
+        String msg = reply.optString("msg");
+        int uploaded = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Item item = batch.get(i);
+            JSONObject r = results == null ? null : results.optJSONObject(i);
+            Result result;
+            if (r == null) {
+                // Rejected as a whole, eg bad credentials
+                result = new Result(item, false, 0, msg);
+            } else if (r.optLong("id", item.trigId) != item.trigId) {
+                throw new IOException("Batch results out of order");
+            } else {
+                boolean ok = r.optInt("status", -1) == 0 && r.has("log_id");
+                result = new Result(item, ok, r.optInt("log_id"), r.optString("msg", msg));
+            }
+            if (result.ok) {
+                uploaded++;
+            }
+            listener.onResult(result);
+        }
+        Log.i(TAG, "sendBatch: " + uploaded + " of " + batch.size() + " logs uploaded");
+        return uploaded;
+    }
+
+    private Result sendSingle(Item item) throws IOException {
+        FormBody.Builder form = new FormBody.Builder(StandardCharsets.UTF_8);
+        form.add("username", mCommon.get("username"));
+        form.add("password", mCommon.get("password"));
+        for (Map.Entry<String, String> field : item.mFields.entrySet()) {
+            form.add(field.getKey(), field.getValue());
+        }
+        form.add("sendemail", mCommon.get("sendemail"));
+        form.add("appversion", mCommon.get("appversion"));
+
+        JSONObject reply;
+        try {
+            reply = post(SINGLE_PATH, form.build());
+        } catch (UnsupportedException e) {
+            throw new IOException("Log upload not found");
+        }
+        int status = reply.optInt("status", -1);
+        String msg = reply.optString("msg");
+        Log.i(TAG, "sendSingle: Status=" + status + ", msg=" + msg);
+        boolean ok = status == 0 && reply.has("log_id");
+        return new Result(item, ok, reply.optInt("log_id"), msg);
+    }
+
+    private JSONObject post(String path, FormBody body) throws IOException {
+        Request request = new Request.Builder()
+                .url(mBaseUrl + path)
+                .post(body)
+                .build();
+        mRoundTrips++;
+        try (Response response = mClient.newCall(request).execute()) {
+            int code = response.code();
+            if (code == 404 || code == 405 || code == 501) {
+                throw new UnsupportedException();
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException("RC error - " + code);
+            }
+            String reply = response.body().string();
+            Log.d(TAG, "Reply from T:UK - " + reply);
+            if (reply.isEmpty()) {
+                throw new IOException("No response received from T:UK");
+            }
+            try {
+                return new JSONObject(reply);
+            } catch (JSONException e) {
+                throw new IOException("Unreadable reply from T:UK", e);
+            }
+        }
+    }
+
+    // The server doesn't have the script
+    private static final class UnsupportedException extends IOException {
+    }
+}
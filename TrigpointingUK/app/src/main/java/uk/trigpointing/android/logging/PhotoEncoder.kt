@@ -0,0 +1,181 @@
+package uk.trigpointing.android.logging
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.Matrix
+import android.net.Uri
+import android.util.Log
+import androidx.exifinterface.media.ExifInterface
+import uk.trigpointing.android.common.BitmapPool
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+
+/**
+ * Turns a picked image into the photo and thumbnail uploaded to T:UK.
+ *
+ * The image is decoded once, downsampled to about [maxSize], and turned upright from
+ * its EXIF orientation.  The thumbnail is scaled from that bitmap rather than decoded
+ * again.  The photo is saved at the best JPEG quality that fits [targetBytes], found
+ * by a binary search, so a busy scene doesn't cost several times the upload of a
+ * plain one.  Of the original EXIF, only the date taken, position and camera are kept.
+ */
+class PhotoEncoder(
+    private val context: Context,
+    private val maxSize: Int = PhotoManager.MAX_PHOTO_SIZE,
+    private val thumbSize: Int = PhotoManager.THUMB_SIZE,
+    private val targetBytes: Int = TARGET_PHOTO_BYTES
+) {
+    private val TAG = "PhotoEncoder"
+
+    companion object {
+        // About 10s of upload on a poor mobile signal
+        const val TARGET_PHOTO_BYTES = 400 * 1024
+        const val MAX_QUALITY = PhotoManager.JPEG_QUALITY
+        const val MIN_QUALITY = 50
+        const val THUMB_QUALITY = 50
+
+        // What T:UK uses from a photo's EXIF: when and where it was taken, and with what
+        @JvmField
+        val KEPT_EXIF_TAGS = arrayOf(
+            ExifInterface.TAG_DATETIME_ORIGINAL,
+            ExifInterface.TAG_OFFSET_TIME_ORIGINAL,
+            ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_GPS_LATITUDE_REF,
+            ExifInterface.TAG_GPS_LONGITUDE,
+            ExifInterface.TAG_GPS_LONGITUDE_REF,
+            ExifInterface.TAG_GPS_ALTITUDE,
+            ExifInterface.TAG_GPS_ALTITUDE_REF,
+            ExifInterface.TAG_GPS_DATESTAMP,
+            ExifInterface.TAG_GPS_TIMESTAMP,
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_MODEL
+        )
+
+        /**
+         * The highest quality from [minQuality] to [maxQuality] whose size fits [budget],
+         * or [minQuality] if none does
+         */
+        @JvmStatic
+        fun searchQuality(minQuality: Int, maxQuality: Int, budget: Int, sizer: Sizer): Int {
+            if (sizer.bytesAt(maxQuality) <= budget) {
+                return maxQuality
+            }
+            var lo = minQuality
+            var hi = maxQuality - 1
+            var best = minQuality
+            while (lo <= hi) {
+                val mid = (lo + hi) ushr 1
+                if (sizer.bytesAt(mid) <= budget) {
+                    best = mid
+                    lo = mid + 1
+                } else {
+                    hi = mid - 1
+                }
+            }
+            return best
+        }
+    }
+
+    /** Size of the photo encoded at a quality */
+    fun interface Sizer {
+        fun bytesAt(quality: Int): Int
+    }
+
+    /**
+     * Write the photo and thumbnail for an image
+     *
+     * @throws IOException if the image can't be read or decoded, or the files written
+     */
+    @Throws(IOException::class)
+    fun encode(uri: Uri, photoFile: File, thumbFile: File) {
+        val exif = try {
+            context.contentResolver.openInputStream(uri)?.use { ExifInterface(it) }
+        } catch (e: IOException) {
+            Log.w(TAG, "encode: No EXIF from $uri, ${e.message}")
+            null
+        }
+
+        val decoded = BitmapPool.decode({
+            context.contentResolver.openInputStream(uri) ?: throw FileNotFoundException(uri.toString())
+        }, maxSize, false) ?: throw IOException("Unable to decode $uri")
+        val photo = upright(decoded, exif)
+        val thumb = scaleDown(photo, thumbSize)
+        try {
+            val out = ByteArrayOutputStream(targetBytes)
+            val quality = searchQuality(MIN_QUALITY, MAX_QUALITY, targetBytes) { q ->
+                out.reset()
+                photo.compress(Bitmap.CompressFormat.JPEG, q, out)
+                out.size()
+            }
+            // The last size tried isn't always the one chosen
+            out.reset()
+            photo.compress(Bitmap.CompressFormat.JPEG, quality, out)
+            photoFile.outputStream().use { out.writeTo(it) }
+            Log.i(TAG, "encode: ${photo.width}x${photo.height} at quality $quality, ${out.size()} bytes")
+
+            thumbFile.outputStream().use { thumb.compress(Bitmap.CompressFormat.JPEG, THUMB_QUALITY, it) }
+        } finally {
+            // Only the saved files are used from here on
+            if (thumb !== photo) {
+                BitmapPool.get().put(thumb)
+            }
+            BitmapPool.get().put(photo)
+        }
+
+        if (exif != null) {
+            keepExif(exif, photoFile)
+        }
+    }
+
+    // Apply the EXIF orientation to the pixels, as it isn't carried over by itself
+    private fun upright(bitmap: Bitmap, exif: ExifInterface?): Bitmap {
+        if (exif == null) {
+            return bitmap
+        }
+        val degrees = exif.rotationDegrees
+        val flipped = exif.isFlipped
+        if (degrees == 0 && !flipped) {
+            return bitmap
+        }
+        val matrix = Matrix()
+        if (flipped) {
+            matrix.postScale(-1f, 1f)
+        }
+        matrix.postRotate(degrees.toFloat())
+        val rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.width, bitmap.height, matrix, true)
+        BitmapPool.get().put(bitmap)
+        return rotated
+    }
+
+    // Smallest side of size, or the bitmap itself if it is no bigger
+    private fun scaleDown(bitmap: Bitmap, size: Int): Bitmap {
+        val smallest = minOf(bitmap.width, bitmap.height)
+        if (smallest <= size) {
+            return bitmap
+        }
+        val width = (bitmap.width.toLong() * size / smallest).toInt().coerceAtLeast(1)
+        val height = (bitmap.height.toLong() * size / smallest).toInt().coerceAtLeast(1)
+        return Bitmap.createScaledBitmap(bitmap, width, height, true)
+    }
+
+    private fun keepExif(from: ExifInterface, photoFile: File) {
+        try {
+            val to = ExifInterface(photoFile)
+            var kept = 0
+            for (tag in KEPT_EXIF_TAGS) {
+                from.getAttribute(tag)?.let {
+                    to.setAttribute(tag, it)
+                    kept++
+                }
+            }
+            if (kept > 0) {
+                to.saveAttributes()
+            }
+        } catch (e: IOException) {
+            // The photo is still fine without
+            Log.w(TAG, "keepExif: Unable to copy EXIF to $photoFile", e)
+        }
+    }
+}
@@ -16,12 +16,16 @@ import androidx.fragment.app.Fragment
 import androidx.fragment.app.FragmentActivity
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import kotlinx.coroutines.withContext
 import uk.trigpointing.android.DbHelper
 import uk.trigpointing.android.R
 import uk.trigpointing.android.common.FileCache
-import uk.trigpointing.android.common.Utils
 import uk.trigpointing.android.types.PhotoSubject
 import uk.trigpointing.android.types.TrigPhoto
 import java.io.File
@@ -43,6 +47,7 @@ class PhotoManager(
         const val MAX_PHOTO_SIZE = 1024 // Max dimension for full photo
         const val THUMB_SIZE = 200 // Thumbnail size
         const val JPEG_QUALITY = 85 // JPEG compression quality
+        const val PARALLEL_PHOTOS = 2 // Photos decoded at once
         
         // Photo metadata dialog result codes
         const val RESULT_PHOTO_SAVED = 1001
@@ -73,26 +78,34 @@ class PhotoManager(
             try {
                 Log.d(TAG, "Opening database for photo processing")
                 db.open()
-                var successCount = 0
                 
+                // A few at once, as each full size bitmap is several MB
                 Log.d(TAG, "Starting to process ${uris.size} photos")
-                for ((index, uri) in uris.withIndex()) {
-                    Log.d(TAG, "Processing photo ${index + 1}/${uris.size}: $uri")
-                    try {
-                        val photoId = processPhoto(trigId, uri)
-                        if (photoId != null) {
-                            successCount++
-                            Log.i(TAG, "Photo processed successfully with ID: $photoId")
-                            withContext(Dispatchers.Main) {
-                                Log.d(TAG, "Calling onPhotoAdded callback for photo ID: $photoId")
-                                onPhotoAdded(photoId)
+                val permits = Semaphore(PARALLEL_PHOTOS)
+                val successCount = coroutineScope {
+                    uris.mapIndexed { index, uri ->
+                        async {
+                            permits.withPermit {
+                                Log.d(TAG, "Processing photo ${index + 1}/${uris.size}: $uri")
+                                try {
+                                    val photoId = processPhoto(trigId, uri)
+                                    if (photoId != null) {
+                                        Log.i(TAG, "Photo processed successfully with ID: $photoId")
+                                        withContext(Dispatchers.Main) {
+                                            Log.d(TAG, "Calling onPhotoAdded callback for photo ID: $photoId")
+                                            onPhotoAdded(photoId)
+                                        }
+                                    } else {
+                                        Log.w(TAG, "processPhoto returned null for URI: $uri")
+                                    }
+                                    photoId != null
+                                } catch (e: Exception) {
+                                    Log.e(TAG, "Failed to process photo at index $index: ${uri}", e)
+                                    false
+                                }
                             }
-                        } else {
-                            Log.w(TAG, "processPhoto returned null for URI: $uri")
                         }
-                    } catch (e: Exception) {
-                        Log.e(TAG, "Failed to process photo at index $index: ${uri}", e)
-                    }
+                    }.awaitAll().count { it }
                 }
                 
                 Log.d(TAG, "Photo processing complete. Success count: $successCount out of ${uris.size}")
@@ -123,10 +136,12 @@ class PhotoManager(
      */
     private suspend fun processPhoto(trigId: Long, uri: Uri): Long? = withContext(Dispatchers.IO) {
         Log.d(TAG, "processPhoto() called for URI: $uri, trigId: $trigId")
+        // This call's own record, the only one its cleanup may touch while others are processed alongside
+        var photoId = -1L
         try {
             // Create database record
             Log.d(TAG, "Creating database record for photo...")
-            val photoId = db.createPhoto(
+            photoId = db.createPhoto(
                 trigId, 
                 "", // name - will be set in metadata dialog
                 "", // description - will be set in metadata dialog
@@ -135,6 +150,9 @@ class PhotoManager(
                 PhotoSubject.NOSUBJECT, 
                 1 // default to public
             )
+            if (photoId == -1L) {
+                throw IOException("Couldn't create photo record")
+            }
             
             Log.i(TAG, "Created photo record with ID: $photoId for trigId: $trigId")
             
@@ -147,21 +165,9 @@ class PhotoManager(
             Log.d(TAG, "Photo will be saved to: $photoPath")
             Log.d(TAG, "Thumbnail will be saved to: $thumbPath")
             
-            // Decode and save images
-            Log.d(TAG, "Decoding photo bitmap from URI...")
-            val photoBitmap = Utils.decodeUri(context, uri, MAX_PHOTO_SIZE)
-                ?: throw IllegalStateException("Failed to decode photo bitmap from $uri")
-            Log.d(TAG, "Photo bitmap decoded: ${photoBitmap.width}x${photoBitmap.height}")
-
-            Log.d(TAG, "Decoding thumbnail bitmap from URI...")
-            val thumbBitmap = Utils.decodeUri(context, uri, THUMB_SIZE)
-                ?: throw IllegalStateException("Failed to decode thumbnail bitmap from $uri")
-            Log.d(TAG, "Thumbnail bitmap decoded: ${thumbBitmap.width}x${thumbBitmap.height}")
-            
-            Log.d(TAG, "Saving photo bitmap to file...")
-            Utils.saveBitmapToFile(photoPath, photoBitmap, JPEG_QUALITY)
-            Log.d(TAG, "Saving thumbnail bitmap to file...")
-            Utils.saveBitmapToFile(thumbPath, thumbBitmap, 50)
+            // Photo and thumbnail from a single decode
+            Log.d(TAG, "Encoding photo and thumbnail from URI...")
+            PhotoEncoder(context).encode(uri, File(photoPath), File(thumbPath))
             
             Log.i(TAG, "Successfully saved photo files - Photo: $photoPath, Thumb: $thumbPath")
             
@@ -178,6 +184,9 @@ class PhotoManager(
                 1 // public
             )
             Log.i(TAG, "Database update result: $updateResult for photo ID: $photoId")
+            if (updateResult <= 0) {
+                throw IOException("Photo record $photoId not updated")
+            }
             
             Log.i(TAG, "Photo processing completed successfully, returning photoId: $photoId")
             photoId
@@ -185,19 +194,13 @@ class PhotoManager(
             Log.e(TAG, "Failed to process photo from URI: $uri", e)
             Log.e(TAG, "Exception details: ${e.javaClass.simpleName}: ${e.message}")
             e.printStackTrace()
-            // Best-effort cleanup: remove any half-created database record with empty paths
+            // Best-effort cleanup of this photo's half-created record and files
             try {
-                val cursor = db.fetchPhotos(trigId)
-                if (cursor != null && cursor.moveToFirst()) {
-                    do {
-                        val pid = cursor.getLong(cursor.getColumnIndexOrThrow(DbHelper.PHOTO_ID))
-                        val iconPath = cursor.getString(cursor.getColumnIndexOrThrow(DbHelper.PHOTO_ICON))
-                        val photoPath = cursor.getString(cursor.getColumnIndexOrThrow(DbHelper.PHOTO_PHOTO))
-                        if ((iconPath == null || iconPath.isBlank()) && (photoPath == null || photoPath.isBlank())) {
-                            db.deletePhoto(pid)
-                        }
-                    } while (cursor.moveToNext())
-                    cursor.close()
+                if (photoId != -1L) {
+                    db.deletePhoto(photoId)
+                    val cacheDir = FileCache(context, "logphotos").cacheDir
+                    File(cacheDir, "${photoId}_I.jpg").delete()
+                    File(cacheDir, "${photoId}_T.jpg").delete()
                 }
             } catch (cleanup: Exception) {
                 Log.w(TAG, "Cleanup after photo processing failure encountered an error", cleanup)
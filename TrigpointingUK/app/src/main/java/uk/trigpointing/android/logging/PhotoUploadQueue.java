@@ -0,0 +1,289 @@
+package uk.trigpointing.android.logging;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import uk.trigpointing.android.common.ProgressRequestBody;
+
+/**
+ * Uploads queued photos to T:UK, a few at a time.
+ *
+ * The queue itself is the photo table, so it survives the process being killed: a
+ * photo stays there until uploaded.  A photo which fails is retried a couple of times
+ * at once if the server or network was at fault, then left for later, each failure
+ * doubling the wait before the next sync tries it again.  One bad photo never stops
+ * the others.  A photo whose connection failed after it was sent in full may already
+ * be on T:UK, so it is never sent again by itself: it waits for the user to sync its
+ * trig, see {@link #UNCONFIRMED}.
+ */
+public class PhotoUploadQueue {
+    private static final String TAG = "PhotoUploadQueue";
+
+    public  static final String DEFAULT_URL        = "https://trigpointing.uk/trigs/android-sync-photo.php";
+    static final int            CONCURRENT_UPLOADS = 3;
+    // Attempts at a photo within one run
+    static final int            MAX_ATTEMPTS       = 3;
+    static final long           RETRY_DELAY_MS     = 2000;
+    // Wait before the next run tries a failed photo, doubling with each failure
+    static final long           DEFER_BASE_MS      = TimeUnit.MINUTES.toMillis(5);
+    static final long           DEFER_MAX_MS       = TimeUnit.DAYS.toMillis(1);
+    // Retry time of a photo which may have been stored, picked up only by a sync of its trig
+    public  static final long   UNCONFIRMED        = Long.MAX_VALUE;
+
+    private static final MediaType JPEG = MediaType.parse("image/jpeg");
+
+    /** One queued photo, as its form fields */
+    public static final class Photo {
+        public final long id;
+        public final File file;
+        public final File thumb;
+        // Failed uploads so far, in earlier runs
+        public final int attempts;
+        final String trig;
+        final String tukLogId;
+        final String name;
+        final String descr;
+        final String subject;
+        final String isPublic;
+
+        public Photo(long id, File file, File thumb, int attempts, String trig, String tukLogId,
+                     String name, String descr, String subject, String isPublic) {
+            this.id = id;
+            this.file = file;
+            this.thumb = thumb;
+            this.attempts = attempts;
+            this.trig = trig;
+            this.tukLogId = tukLogId;
+            this.name = name;
+            this.descr = descr;
+            this.subject = subject;
+            this.isPublic = isPublic;
+        }
+    }
+
+    /** What became of one photo */
+    public static final class Result {
+        public final Photo photo;
+        public final boolean ok;
+        // T:UK's id for the photo, if ok
+        public final int tukPhotoId;
+        public final String msg;
+        // If not ok, when it is worth trying again
+        public final long retryAt;
+
+        Result(Photo photo, boolean ok, int tukPhotoId, String msg, long retryAt) {
+            this.photo = photo;
+            this.ok = ok;
+            this.tukPhotoId = tukPhotoId;
+            this.msg = msg;
+            this.retryAt = retryAt;
+        }
+    }
+
+    /** Told how the uploads are going, from the upload threads but one call at a time */
+    public interface Listener {
+        void onResult(Result result);
+
+        /**
+         * @param bytes bytes sent or given up on, across all photos
+         * @param total bytes in all photos
+         */
+        void onProgress(long bytes, long total);
+    }
+
+    private final OkHttpClient mClient;
+    private final String mUrl;
+    private final String mUsername;
+    private final String mPassword;
+    private final int mAppVersion;
+    // Replaced by tests
+    long mRetryDelayMs = RETRY_DELAY_MS;
+
+    private final AtomicLong mBytes = new AtomicLong();
+    private int mUploaded = 0;
+    private int mFailed = 0;
+
+    public PhotoUploadQueue(OkHttpClient client, String url, String username, String password, int appVersion) {
+        mClient = client;
+        mUrl = url;
+        mUsername = username;
+        mPassword = password;
+        mAppVersion = appVersion;
+    }
+
+    /**
+     * Wait before trying a photo again, after it has failed this many times
+     */
+    static long deferral(int attempts) {
+        return Math.min(DEFER_BASE_MS << Math.min(attempts - 1, 20), DEFER_MAX_MS);
+    }
+
+    public synchronized int getUploaded() {
+        return mUploaded;
+    }
+
+    public synchronized int getFailed() {
+        return mFailed;
+    }
+
+    /**
+     * Upload the photos, {@link #CONCURRENT_UPLOADS} at a time, blocking until each
+     * has been uploaded or given up on
+     *
+     * @return the number uploaded
+     */
+    public int run(List<Photo> photos, Listener listener) throws InterruptedException {
+        long total = 0;
+        for (Photo photo : photos) {
+            total += photo.file.length();
+        }
+        final long totalBytes = total;
+        listener.onProgress(0, totalBytes);
+
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_UPLOADS);
+        for (Photo photo : photos) {
+            executor.execute(() -> {
+                Result result = upload(photo, bytes -> progress(listener, bytes, totalBytes));
+                synchronized (this) {
+                    if (result.ok) {
+                        mUploaded++;
+                    } else {
+                        mFailed++;
+                    }
+                    listener.onResult(result);
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            throw e;
+        }
+        Log.i(TAG, "run: Uploaded " + mUploaded + " of " + photos.size() + " photos, " + mFailed + " failed");
+        return mUploaded;
+    }
+
+    private void progress(Listener listener, long delta, long total) {
+        long bytes = mBytes.addAndGet(delta);
+        synchronized (this) {
+            listener.onProgress(bytes, total);
+        }
+    }
+
+    // Told of bytes sent, negative when an attempt's bytes are taken back
+    private interface ByteCounter {
+        void add(long bytes);
+    }
+
+    private Result upload(Photo photo, ByteCounter counter) {
+        long length = photo.file.length();
+        AtomicLong sent = new AtomicLong();
+        try {
+            if (!photo.file.isFile()) {
+                return failed(photo, "Photo file missing");
+            }
+            for (int attempt = 1; ; attempt++) {
+                // Counted afresh each attempt
+                ProgressRequestBody body = new ProgressRequestBody(photo.file, JPEG,
+                        num -> counter.add(num - sent.getAndSet(num)));
+                int code = 0;
+                String msg;
+                boolean maybeStored = false;
+                try (Response response = mClient.newCall(request(photo, body)).execute()) {
+                    code = response.code();
+                    if (response.isSuccessful()) {
+                        String reply = response.body().string();
+                        Log.i(TAG, "upload: Reply from T:UK - " + reply);
+                        return parse(photo, reply);
+                    }
+                    msg = "RC error - " + code;
+                } catch (IOException e) {
+                    msg = e.getMessage();
+                    // Short of the whole photo the server can't have stored it, but after that it may have
+                    maybeStored = code != 0 || sent.get() >= length;
+                }
+                counter.add(-sent.getAndSet(0));
+                if (maybeStored) {
+                    Log.w(TAG, "upload: Photo " + photo.id + " may have been stored - " + msg);
+                    return new Result(photo, false, 0,
+                            "Connection lost after sending a photo, check T:UK before syncing its trig again", UNCONFIRMED);
+                }
+                // Only a busy or failing server, or a connection dropped before the photo was sent, is worth asking again
+                boolean busy = code == 0 || code == 429 || code >= 500;
+                if (!busy || attempt >= MAX_ATTEMPTS) {
+                    Log.w(TAG, "upload: Giving up on photo " + photo.id + " - " + msg);
+                    return failed(photo, msg);
+                }
+                Log.w(TAG, "upload: Photo " + photo.id + " failed, " + msg + ", retrying");
+                Thread.sleep(mRetryDelayMs << (attempt - 1));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failed(photo, "Cancelled");
+        } finally {
+            // Sent or given up on, so the bar still reaches the end
+            counter.add(length - sent.getAndSet(length));
+        }
+    }
+
+    private Request request(Photo photo, ProgressRequestBody body) {
+        MultipartBody.Builder mb = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("username", mUsername)
+                .addFormDataPart("password", mPassword)
+                .addFormDataPart("photoid", Long.toString(photo.id))
+                .addFormDataPart("tlog_id", photo.tukLogId)
+                .addFormDataPart("trig", photo.trig)
+                .addFormDataPart("name", photo.name)
+                .addFormDataPart("descr", photo.descr)
+                .addFormDataPart("subject", photo.subject)
+                .addFormDataPart("ispublic", photo.isPublic)
+                .addFormDataPart("appversion", String.valueOf(mAppVersion))
+                .addFormDataPart("photo", photo.file.getName(), body);
+        return new Request.Builder()
+                .url(mUrl)
+                .post(mb.build())
+                .build();
+    }
+
+    private Result parse(Photo photo, String reply) {
+        if (reply == null || reply.isEmpty()) {
+            return failed(photo, "No response received from T:UK");
+        }
+        try {
+            JSONObject jo = new JSONObject(reply);
+            int status = jo.getInt("status");
+            String msg = jo.optString("msg");
+            Log.i(TAG, "parse: Photo " + photo.id + " status=" + status + ", msg=" + msg);
+            if (status != 0) {
+                return failed(photo, msg);
+            }
+            return new Result(photo, true, jo.getInt("photo_id"), msg, 0);
+        } catch (JSONException e) {
+            Log.e(TAG, "parse: Unreadable reply for photo " + photo.id, e);
+            return failed(photo, "Unreadable reply from T:UK");
+        }
+    }
+
+    private static Result failed(Photo photo, String msg) {
+        return new Result(photo, false, 0, msg,
+                System.currentTimeMillis() + deferral(photo.attempts + 1));
+    }
+}
@@ -0,0 +1,627 @@
+package uk.trigpointing.android.logging;
+
+import static uk.trigpointing.android.logging.SyncTask.ERROR;
+import static uk.trigpointing.android.logging.SyncTask.NOROWS;
+import static uk.trigpointing.android.logging.SyncTask.SUCCESS;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.zip.GZIPInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import androidx.preference.PreferenceManager;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+import android.util.Log;
+import android.widget.Toast;
+
+import uk.trigpointing.android.DbHelper;
+import uk.trigpointing.android.MainApplication;
+import uk.trigpointing.android.R;
+import uk.trigpointing.android.api.AuthApiClient;
+import uk.trigpointing.android.api.AuthPreferences;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import uk.trigpointing.android.types.Condition;
+import uk.trigpointing.android.types.LogDelta;
+
+
+
+/**
+ * Syncs with T:UK in the background: uploads the user's logs and photos, then
+ * downloads which trigs they have logged.
+ *
+ * Runs as unique work named {@link #WORK_NAME}, so there is only ever one sync at a
+ * time, however many screens ask for one.  A sync asked for while another is queued or
+ * running waits its turn rather than being dropped, as the one before may not cover it.
+ * Progress is published for {@link SyncTask}
+ * to show, and the result is {@link #OUTPUT_STATUS}, one of the SyncTask statuses,
+ * with {@link #OUTPUT_MESSAGE} from the server.
+ *
+ * With auto sync on, a periodic job also starts a sync every few hours while the
+ * device is connected and the battery isn't low.
+ */
+public class SyncWorker extends Worker {
+    public static final String TAG ="SyncWorker";
+
+    public  static final String WORK_NAME         = "sync";
+    private static final String PERIODIC_WORK     = "sync_periodic";
+    private static final long   PERIODIC_HOURS    = 6;
+
+    // Progress: a string resource, a bar, and which photo is being uploaded
+    public  static final String PROGRESS_MESSAGE  = "message";
+    public  static final String PROGRESS_VALUE    = "value";
+    public  static final String PROGRESS_MAX      = "max";
+    public  static final String PROGRESS_PHOTO    = "photo";
+    public  static final String PROGRESS_PHOTOS   = "photos";
+    public  static final String OUTPUT_STATUS     = "status";
+    public  static final String OUTPUT_MESSAGE    = "msg";
+    // Progress is written to WorkManager's database, so not for every 8K of a photo
+    private static final long   PROGRESS_INTERVAL_MS = 250;
+
+    private static final String KEY_TRIG          = "trig";
+    private static final String KEY_PERIODIC      = "periodic";
+
+    private static final String PREFS_LOGCOUNT  ="logCount";
+
+    private final OkHttpClient  mHttpClient;
+    private final SharedPreferences mPrefs;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private DbHelper            mDb = null;
+    private int                 mAppVersion;
+    private String              mUsername;
+    private String              mPassword;
+    private String              mErrorMessage = "";
+
+    private int                 mMessage;
+    private int                 mValue;
+    private int                 mMax;
+    private int                 mPhoto;
+    private int                 mPhotos;
+    private long                mLastProgress = 0;
+
+
+
+    public SyncWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+        // A sync must always see the server's current logs, never a heuristically cached copy.
+        mHttpClient = MainApplication.getUncachedHttpClient(context);
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        try {
+            mAppVersion = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+        } catch (NameNotFoundException e) {
+            Log.e(TAG,"Couldn't get versionCode!");
+            mAppVersion = 99999;
+        }
+    }
+
+
+
+    /**
+     * Sync as soon as there is a network, after any sync already queued or running
+     *
+     * @param trigId only upload the logs and photos for this trig, and skip the download,
+     *               or null for a full sync
+     * @return the id of the request
+     */
+    public static UUID enqueue(Context context, Long trigId) {
+        return enqueue(context, trigId, ExistingWorkPolicy.APPEND_OR_REPLACE);
+    }
+
+    private static UUID enqueue(Context context, Long trigId, ExistingWorkPolicy policy) {
+        Data.Builder input = new Data.Builder();
+        if (trigId != null) {
+            input.putLong(KEY_TRIG, trigId);
+        }
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(SyncWorker.class)
+                .setConstraints(new Constraints.Builder()
+                        .setRequiredNetworkType(NetworkType.CONNECTED)
+                        .build())
+                .setInputData(input.build())
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, policy, request);
+        return request.getId();
+    }
+
+    /**
+     * Turn the periodic background sync on or off
+     */
+    public static void schedule(Context context, boolean enabled) {
+        WorkManager workManager = WorkManager.getInstance(context);
+        if (!enabled) {
+            workManager.cancelUniqueWork(PERIODIC_WORK);
+            return;
+        }
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .setRequiresBatteryNotLow(true)
+                .build();
+        PeriodicWorkRequest request = new PeriodicWorkRequest.Builder(SyncWorker.class, PERIODIC_HOURS, TimeUnit.HOURS)
+                .setConstraints(constraints)
+                .setInputData(new Data.Builder().putBoolean(KEY_PERIODIC, true).build())
+                .build();
+        workManager.enqueueUniquePeriodicWork(PERIODIC_WORK, ExistingPeriodicWorkPolicy.KEEP, request);
+    }
+
+
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        if (getInputData().getBoolean(KEY_PERIODIC, false)) {
+            // Through the unique work, so it never overlaps a sync the user started,
+            // and not at all if there is one queued or running
+            enqueue(context, null, ExistingWorkPolicy.KEEP);
+            return Result.success();
+        }
+        Long[] trigId = getInputData().hasKeyWithValueOfType(KEY_TRIG, Long.class)
+                ? new Long[]{getInputData().getLong(KEY_TRIG, 0)}
+                : new Long[0];
+
+        mUsername = mPrefs.getString("username", "");
+        mPassword = mPrefs.getString("plaintextpassword", "");
+        if (mUsername.trim().isEmpty() || mPassword.trim().isEmpty()) {
+            Log.i(TAG, "doWork: Missing credentials");
+            return finish(ERROR);
+        }
+
+        // Refresh bearer token if needed before sync
+        refreshBearerTokenIfNeeded();
+
+        mDb = new DbHelper(context);
+        mDb.open();
+        try {
+            if (ERROR == sendLogsToTUK(trigId)) {
+                return finish(ERROR);
+            }
+            // Photos which failed are kept for the next sync, and don't stop this one
+            boolean photosFailed = ERROR == sendPhotosToTUK(trigId);
+            mDb.close();
+            mDb.open();
+            if (trigId.length == 0) {
+                if (ERROR == readLogsFromTUK()) {
+                    return finish(ERROR);
+                }
+            }
+            if (photosFailed) {
+                return finish(ERROR);
+            }
+        } finally {
+            mDb.close();
+            // Logged conditions may have changed
+            DbHelper.refreshTrigSnapshot(context);
+        }
+        return finish(SUCCESS);
+    }
+
+    private Result finish(int status) {
+        Data output = new Data.Builder()
+                .putInt(OUTPUT_STATUS, status)
+                .putString(OUTPUT_MESSAGE, mErrorMessage)
+                .build();
+        // Never failed or retried: whoever asked reads the status, and a failed sync
+        // would fail the ones queued behind it unrun
+        return Result.success(output);
+    }
+
+
+
+    private void message(int resId) {
+        mMessage = resId;
+        mPhoto = 0;
+        mPhotos = 0;
+        publishProgress(true);
+    }
+
+    private void max(int max) {
+        mMax = max;
+        mValue = 0;
+        publishProgress(true);
+    }
+
+    private void progress(int value) {
+        mValue = value;
+        publishProgress(false);
+    }
+
+    private void photoCount(int photo, int photos) {
+        mPhoto = photo;
+        mPhotos = photos;
+        publishProgress(true);
+    }
+
+    private synchronized void publishProgress(boolean force) {
+        long now = SystemClock.elapsedRealtime();
+        if (!force && now - mLastProgress < PROGRESS_INTERVAL_MS) {
+            return;
+        }
+        mLastProgress = now;
+        setProgressAsync(new Data.Builder()
+                .putInt(PROGRESS_MESSAGE, mMessage)
+                .putInt(PROGRESS_VALUE, mValue)
+                .putInt(PROGRESS_MAX, mMax)
+                .putInt(PROGRESS_PHOTO, mPhoto)
+                .putInt(PROGRESS_PHOTOS, mPhotos)
+                .build());
+    }
+
+
+
+    Integer sendLogsToTUK(Long... trigId) {
+        Log.d(TAG, "sendLogsToTUK");
+        Long trig_id = null;
+        
+        if (trigId != null && trigId.length >= 1) {
+            trig_id = trigId[0];
+        }
+        
+        message(R.string.syncToTUK);
+        Cursor c = mDb.fetchLogs(trig_id);
+        if (c==null) {
+            return NOROWS;
+        }
+        
+        max(c.getCount());
+        progress(0);
+        
+        List<LogUploader.Item> items = new ArrayList<>();
+        try {
+            do {
+                LogUploader.Item item = logItem(c);
+                if (item == null) {
+                    return ERROR;
+                }
+                items.add(item);
+            } while (c.moveToNext());
+        } finally {
+            c.close();
+        }
+
+        // Several logs to a request, so a weekend's logs don't take a round trip each
+        LogUploader uploader = new LogUploader(mHttpClient, LogUploader.DEFAULT_BASE_URL, mUsername, mPassword,
+                mAppVersion, mPrefs.getBoolean("sendLogEmails", false));
+        int[] done = {0};
+        boolean[] rejected = {false};
+        try {
+            uploader.upload(items, LogUploader.DEFAULT_BATCH_SIZE, result -> {
+                if (result.ok) {
+                    Log.i(TAG, "Successfully inserted log into T:UK - " + result.logId);
+                    long id = result.item.trigId;
+                    // remove log from database
+                    mDb.deleteLog(id);
+                    // update photos for this trig with log id from T:UK
+                    mDb.updatePhotos(id, result.logId);
+                    // update local logged condition
+                    mDb.updateTrigLog(id, Condition.fromCode(result.item.get("condition")));
+                } else {
+                    // Kept, to try again next sync
+                    Log.e(TAG, "T:UK rejected log for trig " + result.item.trigId + " - " + result.msg);
+                    // Not overwritten by later successes, so the user hears of it
+                    mErrorMessage = result.msg;
+                    rejected[0] = true;
+                }
+                progress(++done[0]);
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "sendLogsToTUK: Upload failed", e);
+            return ERROR;
+        } finally {
+            Log.i(TAG, "sendLogsToTUK: " + items.size() + " logs in " + uploader.getRoundTrips() + " requests");
+        }
+        return rejected[0] ? ERROR : SUCCESS;
+    }
+    
+    
+    Integer sendPhotosToTUK(Long... trigId) {
+        Log.d(TAG, "sendPhotosToTUK");
+        Long trig_id = null;
+        
+        if (trigId != null && trigId.length >= 1) {
+            trig_id = trigId[0];
+        }
+
+        message(R.string.syncPhotosToTUK);
+        // Photos which failed recently wait their turn, unless syncing just their trig
+        long now = trig_id == null ? System.currentTimeMillis() : Long.MAX_VALUE;
+        Cursor c = mDb.fetchPhotoQueue(trig_id, now);
+        if (c==null) {
+            return NOROWS;
+        }
+        
+        List<PhotoUploadQueue.Photo> photos = new ArrayList<>();
+        try {
+            do {
+                PhotoUploadQueue.Photo photo = photoItem(c);
+                if (photo == null) {
+                    return ERROR;
+                }
+                photos.add(photo);
+            } while (c.moveToNext());
+        } finally {
+            c.close();
+        }
+        
+        // A few at a time, so one slow or failing photo doesn't hold up the rest
+        PhotoUploadQueue queue = new PhotoUploadQueue(mHttpClient, PhotoUploadQueue.DEFAULT_URL,
+                mUsername, mPassword, mAppVersion);
+        int[] done = {0};
+        try {
+            queue.run(photos, new PhotoUploadQueue.Listener() {
+                @Override
+                public void onResult(PhotoUploadQueue.Result result) {
+                    PhotoUploadQueue.Photo photo = result.photo;
+                    if (result.ok) {
+                        Log.i(TAG, "Successfully uploaded photo to T:UK - " + result.tukPhotoId);
+                        // remove photo from database
+                        mDb.deletePhoto(photo.id);
+                        // remove files from cachedir
+                        //noinspection ResultOfMethodCallIgnored
+                        photo.file.delete();
+                        //noinspection ResultOfMethodCallIgnored
+                        photo.thumb.delete();
+                    } else {
+                        // Kept, to try again once retryAt has passed, or when its trig is synced if unconfirmed
+                        Log.e(TAG, "Photo " + photo.id + " not uploaded - " + result.msg);
+                        mErrorMessage = result.msg;
+                        mDb.deferPhoto(photo.id, photo.attempts + 1, result.retryAt);
+                    }
+                    photoCount(Math.min(++done[0] + 1, photos.size()), photos.size());
+                }
+
+                @Override
+                public void onProgress(long bytes, long total) {
+                    // In KB, as the bar takes an int
+                    if (bytes == 0) {
+                        max((int) (total / 1024));
+                        photoCount(1, photos.size());
+                    }
+                    progress((int) (bytes / 1024));
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ERROR;
+        }
+        return queue.getFailed() > 0 ? ERROR : SUCCESS;
+    }
+    
+    
+    
+    /**
+     * @return the photo at the cursor, as a PhotoUploadQueue item, or null if columns are missing
+     */
+    private PhotoUploadQueue.Photo photoItem(Cursor c) {
+        int photoIdIndex = c.getColumnIndex(DbHelper.PHOTO_ID);
+        int photoPathIndex = c.getColumnIndex(DbHelper.PHOTO_PHOTO);
+        int thumbPathIndex = c.getColumnIndex(DbHelper.PHOTO_ICON);
+        int attemptsIndex = c.getColumnIndex(DbHelper.PHOTO_ATTEMPTS);
+        int tuklogIdIndex = c.getColumnIndex(DbHelper.PHOTO_TUKLOGID);
+        int trigIndex = c.getColumnIndex(DbHelper.PHOTO_TRIG);
+        int nameIndex = c.getColumnIndex(DbHelper.PHOTO_NAME);
+        int descrIndex = c.getColumnIndex(DbHelper.PHOTO_DESCR);
+        int subjectIndex = c.getColumnIndex(DbHelper.PHOTO_SUBJECT);
+        int ispublicIndex = c.getColumnIndex(DbHelper.PHOTO_ISPUBLIC);
+        
+        if (photoIdIndex < 0 || photoPathIndex < 0 || thumbPathIndex < 0 || attemptsIndex < 0 ||
+            tuklogIdIndex < 0 || trigIndex < 0 || nameIndex < 0 || descrIndex < 0 || 
+            subjectIndex < 0 || ispublicIndex < 0) {
+            return null;
+        }
+        
+        return new PhotoUploadQueue.Photo(c.getLong(photoIdIndex),
+                new File(c.getString(photoPathIndex)),
+                new File(c.getString(thumbPathIndex)),
+                c.getInt(attemptsIndex),
+                c.getString(trigIndex),
+                c.getString(tuklogIdIndex),
+                c.getString(nameIndex),
+                c.getString(descrIndex),
+                c.getString(subjectIndex),
+                c.getString(ispublicIndex));
+    }
+    
+    
+    
+    /**
+     * @return the log at the cursor, as a LogUploader item, or null if columns are missing
+     */
+    private LogUploader.Item logItem(Cursor c) {
+        int logIdIndex = c.getColumnIndex(DbHelper.LOG_ID);
+        if (logIdIndex < 0) return null;
+        
+        // Build form fields - get all column indices first
+        int yearIndex = c.getColumnIndex(DbHelper.LOG_YEAR);
+        int monthIndex = c.getColumnIndex(DbHelper.LOG_MONTH);
+        int dayIndex = c.getColumnIndex(DbHelper.LOG_DAY);
+        int sendtimeIndex = c.getColumnIndex(DbHelper.LOG_SENDTIME);
+        int hourIndex = c.getColumnIndex(DbHelper.LOG_HOUR);
+        int minutesIndex = c.getColumnIndex(DbHelper.LOG_MINUTES);
+        int commentIndex = c.getColumnIndex(DbHelper.LOG_COMMENT);
+        int gridrefIndex = c.getColumnIndex(DbHelper.LOG_GRIDREF);
+        int fbIndex = c.getColumnIndex(DbHelper.LOG_FB);
+        int adminflagIndex = c.getColumnIndex(DbHelper.LOG_FLAGADMINS);
+        int userflagIndex = c.getColumnIndex(DbHelper.LOG_FLAGUSERS);
+        int scoreIndex = c.getColumnIndex(DbHelper.LOG_SCORE);
+        int conditionIndex = c.getColumnIndex(DbHelper.LOG_CONDITION);
+        
+        // Check if any required columns are missing
+        if (yearIndex < 0 || monthIndex < 0 || dayIndex < 0 || sendtimeIndex < 0 || 
+            hourIndex < 0 || minutesIndex < 0 || commentIndex < 0 || gridrefIndex < 0 || 
+            fbIndex < 0 || adminflagIndex < 0 || userflagIndex < 0 || scoreIndex < 0 || 
+            conditionIndex < 0) {
+            return null;
+        }
+        
+        return new LogUploader.Item(c.getLong(logIdIndex))
+                .put("year", c.getString(yearIndex))
+                .put("month", c.getString(monthIndex))
+                .put("day", c.getString(dayIndex))
+                .put("sendtime", c.getString(sendtimeIndex))
+                .put("hour", c.getString(hourIndex))
+                .put("minutes", c.getString(minutesIndex))
+                .put("comment", c.getString(commentIndex))
+                .put("gridref", c.getString(gridrefIndex))
+                .put("fb", c.getString(fbIndex))
+                .put("adminflag", c.getString(adminflagIndex))
+                .put("userflag", c.getString(userflagIndex))
+                .put("score", c.getString(scoreIndex))
+                .put("condition", c.getString(conditionIndex));
+    }
+    
+    
+    
+    Integer readLogsFromTUK() {
+        Log.d(TAG, "readLogsFromTUK");
+
+        String cursor = mDb.getLogCursor(mUsername);
+        LogDelta logs;
+        try {
+            message(R.string.syncLogsFromTUK);
+            max(cursor == null ? mPrefs.getInt(PREFS_LOGCOUNT, 1) : 1);
+            // With a cursor, only the trigs whose logged condition has changed since then
+            URL url = new URL("https://trigpointing.uk/trigs/down-android-mylogs.php?username="+URLEncoder.encode(mUsername, "UTF-8")
+                    +"&appversion="+mAppVersion+"&since="+(cursor == null ? "" : URLEncoder.encode(cursor, "UTF-8")));
+            Log.d(TAG, "Getting " + url);
+            try (Response response = mHttpClient.newCall(new Request.Builder().url(url).build()).execute()) {
+                if (!response.isSuccessful()) {
+                    throw new IOException("HTTP " + response.code() + " from " + url);
+                }
+                InputStream is = response.body().byteStream();
+                GZIPInputStream zis = new GZIPInputStream(new BufferedInputStream(is));
+                logs = LogDelta.read(new BufferedReader(new InputStreamReader(zis)));
+            }
+            if (!logs.isFull() && !logs.getFromCursor().equals(cursor)) {
+                // Forget our cursor so that the next sync fetches the full list
+                mDb.setLogCursor(null, null);
+                throw new IOException("Log changes from " + logs.getFromCursor() + " don't apply to " + cursor);
+            }
+            if (isStopped()) {
+                throw new IOException("Sync stopped");
+            }
+            Log.i(TAG, "readLogsFromTUK: " + logs.size() + (logs.isFull() ? " logs" : " changes since " + cursor));
+            max(logs.size());
+            int changed = mDb.applyTrigLogs(logs);
+            progress(logs.size());
+            Log.i(TAG, "readLogsFromTUK: " + changed + " trigs changed");
+        } catch (Exception e) {
+            Log.d(TAG, "Error: " + e);
+            mErrorMessage = e.getMessage();
+            return ERROR;
+        }
+
+        mDb.setLogCursor(mUsername, logs.getToCursor());
+        if (logs.isFull()) {
+            // store the log count to pre-populate the progress bar next time
+            mPrefs.edit().putInt(PREFS_LOGCOUNT, logs.size()).apply();
+        }
+        
+        return SUCCESS;        
+    }
+
+
+
+    /**
+     * Refresh bearer token if needed before sync operations
+     */
+    private void refreshBearerTokenIfNeeded() {
+        try {
+            AuthPreferences authPreferences = new AuthPreferences(getApplicationContext());
+            
+            if (!authPreferences.isLoggedIn() || !authPreferences.shouldRefreshToken()) {
+                Log.d(TAG, "refreshBearerTokenIfNeeded: No refresh needed");
+                return;
+            }
+
+            Log.i(TAG, "refreshBearerTokenIfNeeded: Token needs refresh");
+            
+            String username = mPrefs.getString("username", "");
+            String password = mPrefs.getString("plaintextpassword", "");
+            
+            if (username.trim().isEmpty() || password.trim().isEmpty()) {
+                Log.w(TAG, "refreshBearerTokenIfNeeded: No credentials available");
+                return;
+            }
+
+            AuthApiClient authApiClient = new AuthApiClient(mHttpClient);
+            java.util.concurrent.CountDownLatch latch = new java.util.concurrent.CountDownLatch(1);
+            final boolean[] refreshSuccess = {false};
+            final String[] errorMessage = {null};
+            
+            authApiClient.refreshToken(username, password, new AuthApiClient.AuthCallback() {
+                @Override
+                public void onSuccess(uk.trigpointing.android.api.AuthResponse authResponse) {
+                    Log.i(TAG, "refreshBearerTokenIfNeeded: Token refresh successful");
+                    authPreferences.storeAuthData(authResponse);
+                    refreshSuccess[0] = true;
+                    latch.countDown();
+                }
+
+                @Override
+                public void onError(String error) {
+                    Log.w(TAG, "refreshBearerTokenIfNeeded: Token refresh failed: " + error);
+                    errorMessage[0] = error;
+                    refreshSuccess[0] = false;
+                    latch.countDown();
+                }
+            });
+
+            try {
+                boolean completed = latch.await(10, java.util.concurrent.TimeUnit.SECONDS);
+                if (!completed) {
+                    Log.w(TAG, "refreshBearerTokenIfNeeded: Token refresh timed out");
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "refreshBearerTokenIfNeeded: Token refresh interrupted", e);
+            }
+
+            if (!refreshSuccess[0]) {
+                boolean devMode = mPrefs.getBoolean("dev_mode", false);
+                
+                if (devMode) {
+                    String error = errorMessage[0] != null ? errorMessage[0] : "Token refresh failed";
+                    mainHandler.post(() -> {
+                        Toast.makeText(getApplicationContext(), "Token refresh failed: " + error, Toast.LENGTH_LONG).show();
+                    });
+                }
+            }
+            
+        } catch (Exception e) {
+            Log.e(TAG, "refreshBearerTokenIfNeeded: Unexpected error", e);
+            
+            boolean devMode = mPrefs.getBoolean("dev_mode", false);
+            
+            if (devMode) {
+                mainHandler.post(() -> {
+                    Toast.makeText(getApplicationContext(), "Token refresh error: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                });
+            }
+        }
+    }
+}
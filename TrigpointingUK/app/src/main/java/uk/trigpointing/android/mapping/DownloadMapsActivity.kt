@@ -3,6 +3,7 @@ package uk.trigpointing.android.mapping
 import android.content.Intent
 import android.net.Uri
 import android.os.Bundle
+import android.os.SystemClock
 import android.provider.Settings
 import android.util.Log
 import android.view.LayoutInflater
@@ -21,17 +22,14 @@ import com.fasterxml.jackson.dataformat.yaml.YAMLFactory
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
-import okhttp3.OkHttpClient
 import okhttp3.Request
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream
+import uk.trigpointing.android.MainApplication
 import uk.trigpointing.android.R
 import uk.trigpointing.android.common.BaseActivity
-import java.io.BufferedInputStream
+import uk.trigpointing.android.common.ResumableDownload
 import java.io.File
-import java.io.FileOutputStream
-import java.io.InputStream
+import java.net.URL
 import java.text.DecimalFormat
-import java.util.zip.GZIPInputStream
 
 class DownloadMapsActivity : BaseActivity() {
 
@@ -41,18 +39,16 @@ class DownloadMapsActivity : BaseActivity() {
     private lateinit var cacheUsageText: TextView
     private lateinit var cacheTileCountText: TextView
     private lateinit var clearCacheLink: TextView
-    private lateinit var tileCacheDir: File
+    private lateinit var tileStore: TileStore
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_download_maps)
         supportActionBar?.setDisplayHomeAsUpEnabled(true)
 
-        // Initialize tile cache directory
-        tileCacheDir = File(cacheDir, "map_tiles")
-        if (!tileCacheDir.exists()) {
-            tileCacheDir.mkdirs()
-        }
+        // Packs are imported into the same store the map reads from
+        tileStore = TileStore.get(this)
+        TileStore.migrateLegacyTiles(this)
 
         // Initialize UI components
         recyclerView = findViewById(R.id.recyclerView)
@@ -80,7 +76,7 @@ class DownloadMapsActivity : BaseActivity() {
         progressBar.visibility = View.VISIBLE
         lifecycleScope.launch(Dispatchers.IO) {
             try {
-                val client = OkHttpClient()
+                val client = MainApplication.getHttpClient(this@DownloadMapsActivity)
                 val request = Request.Builder().url(YAML_URL).build()
                 val response = client.newCall(request).execute()
 
@@ -107,118 +103,89 @@ class DownloadMapsActivity : BaseActivity() {
 
     private fun downloadAndExtract(mapDownload: MapDownload) {
         lifecycleScope.launch(Dispatchers.IO) {
+            val gzip = mapDownload.type == "tgz"
+            if (mapDownload.type != "tgz" && mapDownload.type != "tar") {
+                Log.w(TAG, "Unknown file type: ${mapDownload.type}, treating as tar")
+            }
+            // Kept between attempts so an interrupted download resumes rather than restarts
+            val packDir = File(cacheDir, PACK_DIR).apply { mkdirs() }
+            val archive = File(packDir, Uri.parse(mapDownload.fileUrl).lastPathSegment ?: "pack")
+            val progress = ThrottledProgress(mapDownload)
             try {
-                val client = OkHttpClient()
-                val request = Request.Builder().url(mapDownload.fileUrl).build()
-                val response = client.newCall(request).execute()
-                val body = response.body
+                // Archives are far too big for the HTTP cache
+                val download = ResumableDownload(
+                    MainApplication.getUncachedHttpClient(this@DownloadMapsActivity),
+                    URL(mapDownload.fileUrl), archive)
+                download.setProgressListener { bytes, total ->
+                    val size = if (total > 0) total else mapDownload.fileSize
+                    progress.update(if (size > 0) (bytes * DOWNLOAD_SHARE / size).toInt() else 0)
+                }
+                if (archive.exists()) {
+                    // Downloaded by an earlier attempt whose import failed
+                    Log.d(TAG, "Reusing downloaded ${mapDownload.name}")
+                } else {
+                    Log.d(TAG, "Starting download of ${mapDownload.name}, expected size: ${mapDownload.fileSize} bytes")
+                    download.fetch()
+                }
 
-                if (response.isSuccessful) {
-                    val totalSize = body.contentLength()
-                    var downloadedBytes = 0L
-                    var extractedFileCount = 0
-                    
-                    Log.d(TAG, "Starting download of ${mapDownload.name}, total size: $totalSize bytes")
-
-                    body.byteStream().use { inputStream ->
-                        // Create a counting input stream to track actual bytes read
-                        val countingInputStream = object : InputStream() {
-                            override fun read(): Int {
-                                val byte = inputStream.read()
-                                if (byte != -1) {
-                                    downloadedBytes++
-                                    // Update progress every 64KB to avoid too many UI updates
-                                    if (downloadedBytes % 65536 == 0L || downloadedBytes == totalSize) {
-                                        val progress = if (totalSize > 0) {
-                                            ((downloadedBytes * 100) / totalSize).toInt().coerceIn(0, 100)
-                                        } else 0
-                                        
-                                        lifecycleScope.launch(Dispatchers.Main) {
-                                            adapter.updateProgress(mapDownload, progress)
-                                        }
-                                    }
-                                }
-                                return byte
-                            }
-                            
-                            override fun read(b: ByteArray, off: Int, len: Int): Int {
-                                val bytesRead = inputStream.read(b, off, len)
-                                if (bytesRead > 0) {
-                                    downloadedBytes += bytesRead
-                                    // Update progress every 64KB to avoid too many UI updates
-                                    if (downloadedBytes % 65536 < bytesRead || downloadedBytes == totalSize) {
-                                        val progress = if (totalSize > 0) {
-                                            ((downloadedBytes * 100) / totalSize).toInt().coerceIn(0, 100)
-                                        } else 0
-                                        
-                                        lifecycleScope.launch(Dispatchers.Main) {
-                                            adapter.updateProgress(mapDownload, progress)
-                                        }
-                                    }
-                                }
-                                return bytesRead
-                            }
+                val importer = TilePackImporter(tileStore)
+                val importedCount = try {
+                    TilePackImporter.verify(archive, mapDownload.fileSize, mapDownload.fileSha256)
+                    importer.run(archive, gzip) { bytes, total ->
+                        if (total > 0) {
+                            progress.update(DOWNLOAD_SHARE + (bytes * (99 - DOWNLOAD_SHARE) / total).toInt())
                         }
-                        
-                        BufferedInputStream(countingInputStream).use { bufferedInputStream ->
-                            // Determine if we need to decompress the stream based on the type field
-                            val archiveInputStream = when (mapDownload.type) {
-                                "tgz" -> {
-                                    Log.d(TAG, "Processing tgz file, applying gzip decompression")
-                                    GZIPInputStream(bufferedInputStream)
-                                }
-                                "tar" -> {
-                                    Log.d(TAG, "Processing tar file, no decompression needed")
-                                    bufferedInputStream
-                                }
-                                else -> {
-                                    Log.w(TAG, "Unknown file type: ${mapDownload.type}, treating as tar")
-                                    bufferedInputStream
-                                }
-                            }
-                            
-                            TarArchiveInputStream(archiveInputStream).use { tarInput ->
-                                var entry = tarInput.nextTarEntry
-                                while (entry != null) {
-                                    if (!entry.isDirectory) {
-                                        val outputFile = File(cacheDir, entry.name)
-                                        outputFile.parentFile?.mkdirs()
-                                        FileOutputStream(outputFile).use { fos ->
-                                            val buffer = ByteArray(4096)
-                                            var len: Int
-                                            while (tarInput.read(buffer).also { len = it } != -1) {
-                                                fos.write(buffer, 0, len)
-                                            }
-                                        }
-                                        extractedFileCount++
-                                        Log.v(TAG, "Extracted file ${extractedFileCount}: ${entry.name}")
-                                    }
-                                    entry = tarInput.nextTarEntry
-                                }
-                            }
-                        }
-                    }
-                    
-                    Log.d(TAG, "Download complete: ${mapDownload.name}, extracted $extractedFileCount files")
-                    
-                    withContext(Dispatchers.Main) {
-                        // Update cache usage display
-                        setupCacheUsage()
-                        
-                        Toast.makeText(this@DownloadMapsActivity, "${mapDownload.name} download complete! Extracted $extractedFileCount files.", Toast.LENGTH_LONG).show()
-                        adapter.updateProgress(mapDownload, 100) // Mark as complete
-                        // Don't automatically close activity - let user see completion and navigate back manually
                     }
-                } else {
-                    showError("Download failed - HTTP ${response.code}")
+                } catch (e: TilePackImporter.CorruptPackException) {
+                    // Resuming or importing again would only build on a bad file
+                    archive.delete()
+                    throw e
+                }
+                // Imported, so not needed again.  After any other failure it is kept for the retry.
+                archive.delete()
+                Log.d(TAG, "Download complete: ${mapDownload.name}, imported $importedCount tiles, skipped ${importer.skipped}")
+
+                withContext(Dispatchers.Main) {
+                    // Update cache usage display
+                    setupCacheUsage()
+
+                    Toast.makeText(this@DownloadMapsActivity, "${mapDownload.name} download complete! Imported $importedCount tiles.", Toast.LENGTH_LONG).show()
+                    adapter.updateProgress(mapDownload, 100) // Mark as complete
+                    // Don't automatically close activity - let user see completion and navigate back manually
                 }
             } catch (e: Exception) {
-                Log.e(TAG, "Download/Extraction failed for ${mapDownload.name}", e)
+                Log.e(TAG, "Download/Import failed for ${mapDownload.name}", e)
+                withContext(Dispatchers.Main) {
+                    // Let the user try again, which resumes any partial download
+                    adapter.updateProgress(mapDownload, -1)
+                    setupCacheUsage()
+                }
                 showError("Download failed: ${e.message}")
             }
         }
     }
 
+    /**
+     * Passes progress to the list at most every PROGRESS_INTERVAL_MS, and only when
+     * the percentage changes, rather than on every buffer
+     */
+    private inner class ThrottledProgress(private val mapDownload: MapDownload) {
+        private var lastPercent = -1
+        private var lastTime = 0L
+
+        fun update(percent: Int) {
+            val now = SystemClock.elapsedRealtime()
+            if (percent == lastPercent || now - lastTime < PROGRESS_INTERVAL_MS) {
+                return
+            }
+            lastPercent = percent
+            lastTime = now
+            lifecycleScope.launch(Dispatchers.Main) {
+                adapter.updateProgress(mapDownload, percent.coerceIn(0, 99))
+            }
+        }
+    }
+
     private suspend fun showError(message: String) {
         withContext(Dispatchers.Main) {
             progressBar.visibility = View.GONE
@@ -298,7 +265,7 @@ class DownloadMapsActivity : BaseActivity() {
     private fun setupCacheUsage() {
         // Calculate and display cache usage in background
         lifecycleScope.launch(Dispatchers.IO) {
-            val stats = getDirectoryStats(tileCacheDir)
+            val stats = tileStore.stats
             val totalSize = stats[0]
             val fileCount = stats[1]
 
@@ -335,26 +302,6 @@ class DownloadMapsActivity : BaseActivity() {
         }
     }
 
-    private fun getDirectoryStats(directory: File): LongArray {
-        var size = 0L
-        var count = 0L
-        
-        if (directory.isDirectory && directory.listFiles() != null) {
-            directory.listFiles()?.forEach { file ->
-                if (file.isFile) {
-                    size += file.length()
-                    count++
-                } else if (file.isDirectory) {
-                    val subDirStats = getDirectoryStats(file)
-                    size += subDirStats[0]
-                    count += subDirStats[1]
-                }
-            }
-        }
-        
-        return longArrayOf(size, count)
-    }
-
     private fun openAppSettings() {
         try {
             val intent = Intent(Settings.ACTION_APPLICATION_DETAILS_SETTINGS)
@@ -372,6 +319,10 @@ class DownloadMapsActivity : BaseActivity() {
 
     companion object {
         private const val TAG = "DownloadMapsActivity"
+        private const val PACK_DIR = "map_packs"
+        // Share of the progress bar for the download, the rest is the import
+        private const val DOWNLOAD_SHARE = 80
+        private const val PROGRESS_INTERVAL_MS = 250L
         private const val YAML_URL = "https://trigpointinguk-maps.s3.eu-west-1.amazonaws.com/map_downloads.yaml"
     }
 }
@@ -28,15 +28,11 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
+import java.util.List;
 import java.util.Objects;
 
 import uk.trigpointing.android.common.BaseActivity;
@@ -45,6 +41,9 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.viewpager2.widget.ViewPager2;
 import androidx.webkit.WebViewClientCompat;
+import androidx.work.Data;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
 
 import uk.trigpointing.android.DbHelper;
 import uk.trigpointing.android.R;
@@ -52,13 +51,15 @@ import uk.trigpointing.android.common.FileCache;
 import uk.trigpointing.android.DownloadTrigsActivity;
 import uk.trigpointing.android.filter.Filter;
 import uk.trigpointing.android.mapping.DownloadMapsActivity;
+import uk.trigpointing.android.types.TrigSnapshot;
 
 public class LeafletMapActivity extends BaseActivity {
     private static final String TAG = "LeafletMapActivity";
     private WebView webView;
     private static final int REQ_LOCATION = 2001;
     private DbHelper dbHelper;
-    private File mTileCacheDir;
+    private TileStore mTileStore;
+    private TileService mTileService;
     private boolean isWebViewLoaded = false;
 
     @SuppressLint("SetJavaScriptEnabled")
@@ -70,10 +71,12 @@ public class LeafletMapActivity extends BaseActivity {
             getSupportActionBar().setDisplayHomeAsUpEnabled(true);
         }
 
-        mTileCacheDir = new File(getCacheDir(), "map_tiles");
-        if (!mTileCacheDir.exists()) {
-            mTileCacheDir.mkdirs();
-        }
+        mTileStore = TileStore.get(this);
+        mTileService = TileService.get(this);
+        TileStore.migrateLegacyTiles(this);
+        TileCacheWorker.schedule(this);
+        WorkManager.getInstance(this).getWorkInfosForUniqueWorkLiveData(TilePrefetchWorker.WORK_NAME)
+                .observe(this, this::showPrefetchProgress);
 
         try {
             dbHelper = new DbHelper(this);
@@ -110,16 +113,13 @@ public class LeafletMapActivity extends BaseActivity {
                     try {
                         String domain = request.getUrl().getHost();
                         String path = request.getUrl().getPath();
-                        File tileFile = new File(mTileCacheDir, domain + path);
-
-                        if (tileFile.exists()) {
-                            Log.d(TAG, "Serving tile from local cache: " + tileFile.getPath());
-                            InputStream inputStream = new FileInputStream(tileFile);
-                            String mimeType = getMimeType(url);
-                            return new WebResourceResponse(mimeType, "UTF-8", inputStream);
-                        } else {
-                             Log.d(TAG, "Tile not in cache, fetching from network: " + url);
-                             return fetchAndCacheTile(url, tileFile);
+                        TileStore.Key key = TileStore.Key.fromPath(domain + path);
+
+                        if (key != null) {
+                            // Returns at once - a tile not yet stored streams in as it downloads,
+                            // leaving this WebView thread free for the next request
+                            InputStream inputStream = mTileService.open(url, key);
+                            return new WebResourceResponse(getMimeType(url), null, inputStream);
                         }
                     } catch (Exception e) {
                         Log.e(TAG, "Error serving tile from cache", e);
@@ -214,13 +214,17 @@ public class LeafletMapActivity extends BaseActivity {
 
     private void showCacheStatus() {
         new Thread(() -> {
-            long[] stats = getDirectoryStats(mTileCacheDir);
+            long[] stats = mTileStore.getStats();
+            long[] pinned = mTileStore.getPinnedStats();
             long totalSize = stats[0];
             long fileCount = stats[1];
 
             DecimalFormat df = new DecimalFormat("#.##");
             String sizeInMB = df.format((double) totalSize / (1024 * 1024));
-            String message = "Tiles: " + fileCount + "\nSize: " + sizeInMB + " MB";
+            String message = "Tiles: " + fileCount + "\nSize: " + sizeInMB + " MB"
+                    + "\nOffline maps: " + pinned[1] + " tiles, " + df.format((double) pinned[0] / (1024 * 1024)) + " MB"
+                    + "\nQuota: " + df.format((double) TileCacheWorker.getQuota(this) / (1024 * 1024)) + " MB, "
+                    + TileCacheWorker.getEviction(this) + " eviction";
 
             runOnUiThread(() -> {
                 android.app.AlertDialog.Builder builder = new android.app.AlertDialog.Builder(LeafletMapActivity.this);
@@ -232,63 +236,6 @@ public class LeafletMapActivity extends BaseActivity {
         }).start();
     }
 
-    private long[] getDirectoryStats(File directory) {
-        long size = 0;
-        long count = 0;
-        if (directory != null && directory.isDirectory() && directory.listFiles() != null) {
-            for (File file : Objects.requireNonNull(directory.listFiles())) {
-                if (file.isFile()) {
-                    size += file.length();
-                    count++;
-                } else if (file.isDirectory()) {
-                    long[] subDirStats = getDirectoryStats(file);
-                    size += subDirStats[0];
-                    count += subDirStats[1];
-                }
-            }
-        }
-        return new long[]{size, count};
-    }
-
-    private WebResourceResponse fetchAndCacheTile(String urlString, File tileFile) {
-        try {
-            URL url = new URL(urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            // Set a custom User-Agent to comply with tile server policies
-            connection.setRequestProperty("User-Agent", "TrigpointingUK-Android-App/1.0");
-
-            connection.connect();
-
-            if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                InputStream inputStream = connection.getInputStream();
-                
-                // Ensure parent directories exist
-                File parentDir = tileFile.getParentFile();
-                if (parentDir != null && !parentDir.exists()) {
-                    parentDir.mkdirs();
-                }
-
-                // Write the tile to the cache file
-                FileOutputStream fileOutputStream = new FileOutputStream(tileFile);
-                byte[] buffer = new byte[1024];
-                int bufferLength;
-                while ((bufferLength = inputStream.read(buffer)) > 0) {
-                    fileOutputStream.write(buffer, 0, bufferLength);
-                }
-                fileOutputStream.close();
-                
-                // Now that it's cached, serve it from the file
-                InputStream cachedInputStream = new FileInputStream(tileFile);
-                String mimeType = getMimeType(urlString);
-                return new WebResourceResponse(mimeType, connection.getContentEncoding(), cachedInputStream);
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "Error fetching and caching tile", e);
-        }
-        return null; // Let WebView handle the failed request
-    }
-    
     private String getMimeType(String url) {
         if (url.endsWith(".png")) {
             return "image/png";
@@ -382,6 +329,9 @@ public class LeafletMapActivity extends BaseActivity {
             Intent intent = new Intent(this, DownloadMapsActivity.class);
             startActivity(intent);
             return true;
+        } else if (item.getItemId() == R.id.menu_prefetch_tiles) {
+            confirmPrefetch();
+            return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -424,6 +374,21 @@ public class LeafletMapActivity extends BaseActivity {
             // Convert leaflet filter names to Filter constants
             setupFilterPreferences(trigpointType, filterFound);
             
+            // Serve from the in-memory snapshot when it has been built
+            TrigSnapshot snapshot = TrigSnapshot.current();
+            if (snapshot != null) {
+                int limit = Integer.parseInt(DbHelper.DEFAULT_MAP_COUNT);
+                try {
+                    limit = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(this)
+                            .getString("mapcount", DbHelper.DEFAULT_MAP_COUNT));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Invalid mapcount, using " + limit);
+                }
+                int[] rows = snapshot.queryBox(south, west, north, east, new Filter(this).snapshotPredicate(), limit);
+                Log.d(TAG, "Returning " + rows.length + " trigpoints from snapshot");
+                return trigpointsJson(snapshot, rows);
+            }
+            
             // Create bounding box for query
             BoundingBox bounds = new BoundingBox(north, east, south, west);
             
@@ -474,6 +439,58 @@ public class LeafletMapActivity extends BaseActivity {
         }
     }
 
+    /**
+     * Write snapshot rows straight into the JSON expected by the map page,
+     * without building a JSONObject per trig
+     */
+    static String trigpointsJson(TrigSnapshot snapshot, int[] rows) {
+        StringBuilder sb = new StringBuilder(rows.length * 128 + 2);
+        sb.append('[');
+        for (int i = 0; i < rows.length; i++) {
+            int row = rows[i];
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"id\":").append(snapshot.id(row));
+            sb.append(",\"name\":");
+            appendJsonString(sb, snapshot.name(row));
+            sb.append(",\"lat\":").append(snapshot.lat(row));
+            sb.append(",\"lon\":").append(snapshot.lon(row));
+            sb.append(",\"type\":");
+            appendJsonString(sb, snapshot.type(row).code());
+            sb.append(",\"condition\":");
+            appendJsonString(sb, snapshot.condition(row).code());
+            sb.append(",\"logged\":");
+            appendJsonString(sb, snapshot.logged(row).code());
+            sb.append(",\"flagged\":").append(snapshot.isMarked(row));
+            sb.append('}');
+        }
+        sb.append(']');
+        return sb.toString();
+    }
+
+    private static void appendJsonString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                case '<':  sb.append("\\u003c"); break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
     private void setupFilterPreferences(String trigpointType, String filterFound) {
         // Convert JavaScript filter names to Filter preference values
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
@@ -535,6 +552,10 @@ public class LeafletMapActivity extends BaseActivity {
         if (dbHelper != null) {
             dbHelper.close();
         }
+        if (isFinishing()) {
+            // Bring the cache back within its quota after browsing
+            TileCacheWorker.trimSoon(this);
+        }
         super.onDestroy();
     }
 
@@ -707,11 +728,87 @@ public class LeafletMapActivity extends BaseActivity {
 
     }
     
+    private void confirmPrefetch() {
+        new Thread(() -> {
+            List<TileStore.Key> planned = TilePrefetchWorker.planTiles(this, TilePrefetchWorker.DEFAULT_MIN_ZOOM,
+                    TilePrefetchWorker.DEFAULT_MAX_ZOOM, TilePrefetchWorker.DEFAULT_RADIUS);
+            long quota = TileCacheWorker.getQuota(this);
+            // As the worker will, so the tiles aren't trimmed as soon as they arrive
+            List<TileStore.Key> tiles = TilePrefetcher.fitQuota(planned, mTileStore, quota);
+            int missing = 0;
+            for (TileStore.Key tile : tiles) {
+                if (!mTileStore.contains(tile)) {
+                    missing++;
+                }
+            }
+            DecimalFormat df = new DecimalFormat("#.#");
+            String sizeInMB = df.format((double) missing * TilePrefetcher.tileBytes(mTileStore) / (1024 * 1024));
+            String quotaNote = tiles.size() < planned.size()
+                    ? " Only " + tiles.size() + " of the " + planned.size() + " tiles fit in the "
+                        + df.format((double) quota / (1024 * 1024)) + " MB map cache, raise its size in Settings for the rest."
+                    : "";
+            final int count = missing;
+
+            runOnUiThread(() -> {
+                android.app.AlertDialog.Builder builder = new android.app.AlertDialog.Builder(LeafletMapActivity.this);
+                builder.setTitle(R.string.prefetch_tiles);
+                if (count == 0) {
+                    builder.setMessage(planned.isEmpty()
+                            ? "Mark some trigs you have yet to log, and their map tiles can be downloaded for offline use."
+                            : tiles.size() < planned.size()
+                            ? "The map cache is full, raise its size in Settings to download more tiles around your marked trigs."
+                            : "Map tiles around your marked trigs are already downloaded.");
+                    builder.setPositiveButton("OK", null);
+                } else {
+                    builder.setMessage("Download " + count + " map tiles, about " + sizeInMB + " MB, around the trigs "
+                            + "you have marked but not logged? This continues in the background." + quotaNote);
+                    builder.setPositiveButton("Any network", (dialog, which) -> startPrefetch(false));
+                    builder.setNeutralButton("Wi-Fi only", (dialog, which) -> startPrefetch(true));
+                    builder.setNegativeButton("Cancel", null);
+                }
+                builder.show();
+            });
+        }).start();
+    }
+
+    private void startPrefetch(boolean wifiOnly) {
+        TilePrefetchWorker.enqueue(this, TilePrefetchWorker.DEFAULT_MIN_ZOOM, TilePrefetchWorker.DEFAULT_MAX_ZOOM,
+                TilePrefetchWorker.DEFAULT_RADIUS, wifiOnly);
+        Toast.makeText(this, "Downloading map tiles in the background", Toast.LENGTH_SHORT).show();
+    }
+
+    private void showPrefetchProgress(List<WorkInfo> infos) {
+        if (getSupportActionBar() == null) {
+            return;
+        }
+        String subtitle = null;
+        for (WorkInfo info : infos) {
+            if (info.getState() != WorkInfo.State.RUNNING) {
+                continue;
+            }
+            Data progress = info.getProgress();
+            int total = progress.getInt(TilePrefetchWorker.PROGRESS_TOTAL, 0);
+            if (total == 0) {
+                subtitle = "Preparing map tiles";
+                continue;
+            }
+            int done = progress.getInt(TilePrefetchWorker.PROGRESS_DONE, 0);
+            long bytes = progress.getLong(TilePrefetchWorker.PROGRESS_BYTES, 0);
+            long etaMs = progress.getLong(TilePrefetchWorker.PROGRESS_ETA_MS, -1);
+            DecimalFormat df = new DecimalFormat("#.#");
+            subtitle = "Map tiles " + (done * 100 / total) + "%, " + df.format((double) bytes / (1024 * 1024)) + " MB"
+                    + (etaMs > 0 ? ", " + Math.max(1, Math.round(etaMs / 60000.0)) + " min left" : "");
+        }
+        getSupportActionBar().setSubtitle(subtitle);
+    }
+
     private void clearAllCaches() {
         // Clear our custom tile cache
         new Thread(() -> {
-            int deletedCount = deleteRecursive(mTileCacheDir);
-            Log.d(TAG, "Cleared " + deletedCount + " tile files");
+            // And any loose files from older versions not yet moved into the store
+            File legacyDir = new File(getCacheDir(), "map_tiles");
+            int deletedCount = mTileStore.clear() + (legacyDir.exists() ? deleteRecursive(legacyDir) : 0);
+            Log.d(TAG, "Cleared " + deletedCount + " tiles");
 
             runOnUiThread(() -> {
                 android.app.AlertDialog.Builder builder = new android.app.AlertDialog.Builder(LeafletMapActivity.this);
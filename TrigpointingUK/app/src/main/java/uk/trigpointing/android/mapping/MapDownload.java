@@ -19,6 +19,9 @@ public class MapDownload {
     public String fileUrl;
     @JsonProperty("file_size")
     public long fileSize;
+    // Optional SHA-256 of the file in hex, checked before import
+    @JsonProperty("file_sha256")
+    public String fileSha256;
     @JsonProperty("file_timestamp")
     public String fileTimestamp;
 
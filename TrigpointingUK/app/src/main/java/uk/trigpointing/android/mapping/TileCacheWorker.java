@@ -0,0 +1,98 @@
+package uk.trigpointing.android.mapping;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.preference.PreferenceManager;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the {@link TileStore} within the quota set in the preferences, evicting browsed
+ * tiles by the chosen policy.  Runs daily while the device is idle, and soon after the
+ * map is closed.
+ */
+public class TileCacheWorker extends Worker {
+    private static final String TAG = "TileCacheWorker";
+
+    public  static final String PREF_QUOTA      = "tile_cache_quota";
+    public  static final String PREF_EVICTION   = "tile_cache_eviction";
+    // Megabytes, as a string for the ListPreference
+    public  static final String DEFAULT_QUOTA   = "250";
+    private static final String PERIODIC_WORK   = "tile_cache_trim";
+    private static final String ONE_TIME_WORK   = "tile_cache_trim_now";
+    private static final long   TRIM_DELAY_SECS = 30;
+
+    public TileCacheWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        try {
+            TileStore.get(context).trim(getQuota(context), getEviction(context));
+            return Result.success();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "doWork: Trim failed", e);
+            return Result.retry();
+        }
+    }
+
+    /**
+     * @return bytes of tiles to keep
+     */
+    public static long getQuota(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        try {
+            return Long.parseLong(prefs.getString(PREF_QUOTA, DEFAULT_QUOTA)) * 1024 * 1024;
+        } catch (NumberFormatException e) {
+            return Long.parseLong(DEFAULT_QUOTA) * 1024 * 1024;
+        }
+    }
+
+    public static TileStore.Eviction getEviction(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        try {
+            return TileStore.Eviction.valueOf(prefs.getString(PREF_EVICTION, "lru").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return TileStore.Eviction.LRU;
+        }
+    }
+
+    /**
+     * Trim once a day, if not already scheduled
+     */
+    public static void schedule(Context context) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiresBatteryNotLow(true)
+                .setRequiresDeviceIdle(true)
+                .build();
+        PeriodicWorkRequest request = new PeriodicWorkRequest.Builder(TileCacheWorker.class, 1, TimeUnit.DAYS)
+                .setConstraints(constraints)
+                .build();
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(PERIODIC_WORK, ExistingPeriodicWorkPolicy.KEEP, request);
+    }
+
+    /**
+     * Trim shortly, off the UI, eg after a browsing session or when the quota is lowered
+     */
+    public static void trimSoon(Context context) {
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(TileCacheWorker.class)
+                .setInitialDelay(TRIM_DELAY_SECS, TimeUnit.SECONDS)
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(ONE_TIME_WORK, ExistingWorkPolicy.KEEP, request);
+    }
+}
@@ -0,0 +1,57 @@
+package uk.trigpointing.android.mapping;
+
+/**
+ * Web Mercator (EPSG:3857) tile arithmetic, as used by the OSM, OS Outdoor and
+ * satellite layers, for 256 pixel tiles numbered from the north west corner
+ */
+public final class TileMath {
+    public static final int TILE_SIZE = 256;
+
+    // Mercator is undefined at the poles, and tile servers stop here
+    private static final double MAX_LAT = 85.0511287798;
+    private static final double METRES_PER_DEGREE = 111320.0;
+
+    private TileMath() {
+    }
+
+    public static int lonToTileX(double lon, int zoom) {
+        return (int) Math.floor((lon + 180.0) / 360.0 * Math.pow(2.0, zoom));
+    }
+
+    public static int latToTileY(double lat, int zoom) {
+        double latRad = Math.toRadians(lat);
+        return (int) Math.floor((1.0 - asinh(Math.tan(latRad)) / Math.PI) / 2.0 * Math.pow(2.0, zoom));
+    }
+
+    public static double lonToPixelX(double lon, int zoom) {
+        return (lon + 180.0) / 360.0 * Math.pow(2.0, zoom) * TILE_SIZE;
+    }
+
+    public static double latToPixelY(double lat, int zoom) {
+        double latRad = Math.toRadians(lat);
+        return (1.0 - asinh(Math.tan(latRad)) / Math.PI) / 2.0 * Math.pow(2.0, zoom) * TILE_SIZE;
+    }
+
+    /**
+     * Tiles at one zoom covering a circle, as {minX, minY, maxX, maxY} inclusive.
+     * The circle is widened to its bounding box, which is close enough for tiles.
+     */
+    public static int[] tileRange(double lat, double lon, double radiusMetres, int zoom) {
+        double dLat = radiusMetres / METRES_PER_DEGREE;
+        double dLon = radiusMetres / (METRES_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(lat))));
+        int max = (1 << zoom) - 1;
+        return new int[]{
+                clamp(lonToTileX(lon - dLon, zoom), max),
+                clamp(latToTileY(Math.min(lat + dLat, MAX_LAT), zoom), max),
+                clamp(lonToTileX(lon + dLon, zoom), max),
+                clamp(latToTileY(Math.max(lat - dLat, -MAX_LAT), zoom), max)};
+    }
+
+    private static int clamp(int tile, int max) {
+        return Math.max(0, Math.min(tile, max));
+    }
+
+    private static double asinh(double x) {
+        return Math.log(x + Math.sqrt(x * x + 1.0));
+    }
+}
@@ -0,0 +1,365 @@
+package uk.trigpointing.android.mapping;
+
+import android.util.Log;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Imports a downloaded offline pack, a tar or gzipped tar of
+ * map_tiles/{layer}/{z}/{x}/{y}.png files, into the {@link TileStore} as two
+ * overlapping stages, so that inflating and untarring proceed while the previous
+ * tiles are inserted:
+ *
+ * <pre>
+ *  reader thread                        calling thread
+ *  read, inflate, untar ---tiles------> TileStore.Importer.add()
+ * </pre>
+ *
+ * Tiles are handed over in batches through a small bounded queue, so a slow database
+ * holds back the reader rather than buffering the pack in memory.  The archive is
+ * read with large buffers and its integrity is checked three ways: its length and
+ * optional SHA-256 before import, then the tar header checksums during it and the
+ * gzip CRC once the last entry has been read.  Failures of these checks are thrown
+ * as {@link CorruptPackException}, so the caller knows the archive itself is bad.
+ * The tiles are pinned, so trimming the cache never evicts an offline region.
+ */
+public class TilePackImporter {
+    private static final String TAG = "TilePackImporter";
+
+    static final int BATCH_SIZE = 128;
+    private static final int QUEUE_BATCHES = 4;
+    private static final int INSERT_BATCH_SIZE = 1000;
+    private static final int READ_BUFFER = 256 * 1024;
+    private static final int INFLATE_BUFFER = 64 * 1024;
+    private static final long POLL_MS = 100;
+    // Entries are map_tiles/{layer}/{z}/{x}/{y}.png
+    private static final String PACK_ROOT = "map_tiles/";
+
+    /** Told how far through the archive the import is, on the calling thread */
+    public interface ProgressListener {
+        /**
+         * @param bytes archive bytes read so far
+         * @param total archive length
+         */
+        void onProgress(long bytes, long total);
+    }
+
+    private static final class TileBatch {
+        final TileStore.Key[] keys = new TileStore.Key[BATCH_SIZE];
+        final byte[][] data = new byte[BATCH_SIZE][];
+        int count;
+        long bytesRead;
+    }
+
+    // Marks the end of the archive
+    private static final TileBatch END_OF_TILES = new TileBatch();
+
+    private final TileStore mStore;
+    private final BlockingQueue<TileBatch> mTiles = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+    private final AtomicReference<Throwable> mFailure = new AtomicReference<>();
+    private volatile boolean mCancelled = false;
+    private volatile boolean mStopped = false;
+    // Written by the reader thread
+    private volatile int mSkipped = 0;
+
+    /** The archive is damaged, so there is no point importing it again */
+    public static class CorruptPackException extends IOException {
+        public CorruptPackException(String message) {
+            super(message);
+        }
+
+        public CorruptPackException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    public TilePackImporter(TileStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Check a downloaded pack is the one described, before spending time importing it
+     *
+     * @param length expected length, or 0 if not known
+     * @param sha256 expected SHA-256 in hex, or null if not known
+     * @throws IOException if it doesn't match
+     */
+    public static void verify(File archive, long length, String sha256) throws IOException {
+        if (length > 0 && archive.length() != length) {
+            throw new CorruptPackException("Pack is " + archive.length() + " bytes, expected " + length);
+        }
+        if (sha256 == null || sha256.isEmpty()) {
+            return;
+        }
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (InputStream in = new FileInputStream(archive)) {
+            byte[] buf = new byte[READ_BUFFER];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                sha.update(buf, 0, n);
+            }
+        }
+        StringBuilder actual = new StringBuilder();
+        for (byte b : sha.digest()) {
+            actual.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        if (!actual.toString().equalsIgnoreCase(sha256.trim())) {
+            throw new CorruptPackException("Pack checksum mismatch");
+        }
+    }
+
+    /**
+     * Stop the import.  {@link #run} then throws CancellationException.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * @return entries which were not tiles, so were ignored
+     */
+    public int getSkipped() {
+        return mSkipped;
+    }
+
+    /**
+     * Import every tile in the archive.  Tiles are committed in batches, so those
+     * before a failure are kept - each is complete in itself.
+     *
+     * @param gzip     whether the archive is gzipped
+     * @param listener told of progress, or null
+     * @return number of tiles imported
+     * @throws CorruptPackException  if the archive is corrupt
+     * @throws IOException           if the archive can't be read or the tiles stored
+     * @throws CancellationException if cancelled
+     */
+    public int run(File archive, boolean gzip, ProgressListener listener) throws IOException {
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            reader.execute(() -> readTiles(archive, gzip));
+            return writeTiles(archive.length(), listener);
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            throw e;
+        } finally {
+            // Unblock and stop the reader, whatever happened here
+            mStopped = true;
+            reader.shutdownNow();
+            try {
+                if (!reader.awaitTermination(5, TimeUnit.SECONDS)) {
+                    Log.w(TAG, "run: Reader still running");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void fail(Throwable t) {
+        if (mFailure.compareAndSet(null, t)) {
+            Log.w(TAG, "Import failed", t);
+        }
+    }
+
+    private boolean stopping() {
+        return mCancelled || mStopped || mFailure.get() != null;
+    }
+
+    // Stage 1: read, inflate and untar
+    private void readTiles(File archive, boolean gzip) {
+        try (CountingInputStream counted = new CountingInputStream(new FileInputStream(archive))) {
+            InputStream in = new BufferedInputStream(counted, READ_BUFFER);
+            if (gzip) {
+                in = new GZIPInputStream(in, INFLATE_BUFFER);
+            }
+            TarArchiveInputStream tar = new TarArchiveInputStream(in);
+            TileBatch batch = new TileBatch();
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextEntry()) != null) {
+                if (stopping()) {
+                    return;
+                }
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                String name = entry.getName();
+                TileStore.Key key = TileStore.Key.fromPath(name.startsWith(PACK_ROOT) ? name.substring(PACK_ROOT.length()) : name);
+                if (key == null || entry.getSize() <= 0 || entry.getSize() > Integer.MAX_VALUE) {
+                    Log.w(TAG, "readTiles: Skipping " + name + ", not a tile");
+                    //noinspection NonAtomicOperationOnVolatileField
+                    mSkipped++;
+                    continue;
+                }
+                byte[] data = new byte[(int) entry.getSize()];
+                int off = 0;
+                int n;
+                while (off < data.length && (n = tar.read(data, off, data.length - off)) > 0) {
+                    off += n;
+                }
+                if (off < data.length) {
+                    throw new CorruptPackException("Truncated entry " + name);
+                }
+                batch.keys[batch.count] = key;
+                batch.data[batch.count] = data;
+                batch.count++;
+                if (batch.count == BATCH_SIZE) {
+                    batch.bytesRead = counted.mCount;
+                    if (!offer(batch)) {
+                        return;
+                    }
+                    batch = new TileBatch();
+                }
+            }
+            // Read the tar padding and gzip trailer too, as the CRC is only checked at the very end
+            byte[] rest = new byte[INFLATE_BUFFER];
+            //noinspection StatementWithEmptyBody
+            while (in.read(rest) >= 0) {
+            }
+            batch.bytesRead = counted.mCount;
+            if (batch.count > 0 && !offer(batch)) {
+                return;
+            }
+            offer(END_OF_TILES);
+        } catch (CorruptPackException e) {
+            fail(e);
+        } catch (IOException e) {
+            // Bad gzip data, a bad CRC or a bad tar header
+            fail(new CorruptPackException("Corrupt pack: " + e.getMessage(), e));
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    // Stage 2: insert on the calling thread
+    private int writeTiles(long total, ProgressListener listener) throws IOException {
+        try (TileStore.Importer importer = mStore.importer(INSERT_BATCH_SIZE, true)) {
+            while (true) {
+                TileBatch batch = poll();
+                if (batch == null) {
+                    break;
+                }
+                if (batch == END_OF_TILES) {
+                    importer.finish();
+                    if (listener != null) {
+                        listener.onProgress(total, total);
+                    }
+                    return importer.getCount();
+                }
+                for (int i = 0; i < batch.count; i++) {
+                    importer.add(batch.keys[i], batch.data[i]);
+                }
+                if (listener != null) {
+                    listener.onProgress(batch.bytesRead, total);
+                }
+            }
+            if (!mCancelled && mFailure.get() == null) {
+                throw new IOException("Tile import stopped");
+            }
+            // Keep the tiles already read
+            importer.finish();
+        }
+        Throwable failure = mFailure.get();
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure != null) {
+            throw new IOException("Tile import failed", failure);
+        }
+        throw new CancellationException("Tile import cancelled");
+    }
+
+    /**
+     * Blocking put which gives up if the import is stopping
+     *
+     * @return false if the import stopped first
+     */
+    private boolean offer(TileBatch batch) {
+        try {
+            while (!stopping()) {
+                if (mTiles.offer(batch, POLL_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Blocking take which gives up if the import is stopping
+     *
+     * @return null if the import stopped first
+     */
+    private TileBatch poll() {
+        try {
+            while (!stopping()) {
+                TileBatch batch = mTiles.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                if (batch != null) {
+                    return batch;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    // Counts archive bytes read, for progress
+    private static final class CountingInputStream extends FilterInputStream {
+        volatile long mCount = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                mCount += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package uk.trigpointing.android.mapping;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.preference.PreferenceManager;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import uk.trigpointing.android.DbHelper;
+import uk.trigpointing.android.MainApplication;
+
+/**
+ * Prefetches OS Outdoor tiles, and a few low zoom OSM tiles, around the marked trigs the
+ * user has yet to log, with a {@link TilePrefetcher}.  Progress is published as {@link #PROGRESS_DONE},
+ * {@link #PROGRESS_TOTAL}, {@link #PROGRESS_BYTES} and {@link #PROGRESS_ETA_MS}.
+ *
+ * The tile list is worked out afresh each run and stored tiles are skipped, so when
+ * the job is stopped, by losing the network or the system, it resumes where it was.
+ * Prefetched tiles are part of the tile cache, so the list stops where the cache's
+ * quota would be exceeded, see {@link TilePrefetcher#fitQuota}.
+ */
+public class TilePrefetchWorker extends Worker {
+    private static final String TAG = "TilePrefetchWorker";
+
+    public  static final String WORK_NAME       = "tile_prefetch";
+    public  static final String PROGRESS_DONE   = "done";
+    public  static final String PROGRESS_TOTAL  = "total";
+    public  static final String PROGRESS_BYTES  = "bytes";
+    public  static final String PROGRESS_ETA_MS = "eta_ms";
+
+    public  static final int    DEFAULT_MIN_ZOOM = 8;
+    public  static final int    DEFAULT_MAX_ZOOM = 15;
+    public  static final double DEFAULT_RADIUS   = 2000;
+    // Keeps a long list of marks from becoming a bulk download, per layer
+    static final int            MAX_TILES        = 20000;
+    // The OSM tile servers don't allow bulk downloads, so only as many as a little browsing would fetch
+    static final int            OSM_MAX_ZOOM     = 12;
+    static final int            OSM_MAX_TILES    = 200;
+    private static final int    MAX_RUNS         = 5;
+
+    private static final String KEY_MIN_ZOOM = "min_zoom";
+    private static final String KEY_MAX_ZOOM = "max_zoom";
+    private static final String KEY_RADIUS   = "radius";
+
+    private volatile TilePrefetcher mPrefetcher;
+
+    public TilePrefetchWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /**
+     * Start prefetching, replacing any earlier prefetch
+     *
+     * @param wifiOnly only download on an unmetered network
+     */
+    public static void enqueue(Context context, int minZoom, int maxZoom, double radiusMetres, boolean wifiOnly) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(wifiOnly ? NetworkType.UNMETERED : NetworkType.CONNECTED)
+                .setRequiresStorageNotLow(true)
+                .build();
+        Data input = new Data.Builder()
+                .putInt(KEY_MIN_ZOOM, minZoom)
+                .putInt(KEY_MAX_ZOOM, maxZoom)
+                .putDouble(KEY_RADIUS, radiusMetres)
+                .build();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(TilePrefetchWorker.class)
+                .setConstraints(constraints)
+                .setInputData(input)
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 1, TimeUnit.MINUTES)
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(WORK_NAME, ExistingWorkPolicy.REPLACE, request);
+    }
+
+    /**
+     * The tiles needed around the planned trigs, at most {@link #OSM_MAX_TILES} OSM tiles
+     * and {@link #MAX_TILES} OS tiles, lowest zoom first.  Slow, so call it in the background.
+     */
+    public static List<TileStore.Key> planTiles(Context context, int minZoom, int maxZoom, double radiusMetres) {
+        List<double[]> places = new ArrayList<>();
+        DbHelper db = new DbHelper(context);
+        try {
+            db.openReadable();
+            try (Cursor c = db.fetchPlannedTrigs()) {
+                while (c.moveToNext()) {
+                    places.add(new double[]{c.getDouble(0), c.getDouble(1)});
+                }
+            }
+        } finally {
+            db.close();
+        }
+        // Capped a layer at a time, so a long OSM list can't crowd out the OS tiles
+        List<TileStore.Key> tiles = new ArrayList<>(cap(TilePrefetcher.plan(places, radiusMetres, minZoom,
+                Math.min(maxZoom, OSM_MAX_ZOOM), Collections.singletonList(TilePrefetcher.LAYER_OSM)), OSM_MAX_TILES));
+        if (!getOsApiKey(context).isEmpty()) {
+            tiles.addAll(cap(TilePrefetcher.plan(places, radiusMetres, minZoom, maxZoom,
+                    Collections.singletonList(TilePrefetcher.LAYER_OS_OUTDOOR)), MAX_TILES));
+        }
+        Log.i(TAG, "planTiles: " + tiles.size() + " tiles for " + places.size() + " trigs");
+        return tiles;
+    }
+
+    // Plans are lowest zoom first, so the detail is what goes
+    static List<TileStore.Key> cap(List<TileStore.Key> tiles, int max) {
+        return tiles.size() > max ? tiles.subList(0, max) : tiles;
+    }
+
+    private static String getOsApiKey(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getString("os_api_key", "");
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        Data input = getInputData();
+        TileStore store = TileStore.get(context);
+        List<TileStore.Key> tiles = TilePrefetcher.fitQuota(planTiles(context,
+                input.getInt(KEY_MIN_ZOOM, DEFAULT_MIN_ZOOM),
+                input.getInt(KEY_MAX_ZOOM, DEFAULT_MAX_ZOOM),
+                input.getDouble(KEY_RADIUS, DEFAULT_RADIUS)), store, TileCacheWorker.getQuota(context));
+
+        mPrefetcher = new TilePrefetcher(MainApplication.getUncachedHttpClient(context), store,
+                getOsApiKey(context));
+        if (isStopped()) {
+            return Result.retry();
+        }
+        try {
+            mPrefetcher.run(tiles, (done, total, bytes, etaMs) -> setProgressAsync(new Data.Builder()
+                    .putInt(PROGRESS_DONE, done)
+                    .putInt(PROGRESS_TOTAL, total)
+                    .putLong(PROGRESS_BYTES, bytes)
+                    .putLong(PROGRESS_ETA_MS, etaMs)
+                    .build()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.retry();
+        }
+        if (mPrefetcher.isCancelled()) {
+            return Result.retry();
+        }
+        if (mPrefetcher.getFailed() > 0 && getRunAttemptCount() + 1 < MAX_RUNS) {
+            // Try the missing tiles again later
+            return Result.retry();
+        }
+        return Result.success(new Data.Builder()
+                .putInt(PROGRESS_DONE, tiles.size())
+                .putInt(PROGRESS_TOTAL, tiles.size())
+                .putLong(PROGRESS_BYTES, mPrefetcher.getBytes())
+                .build());
+    }
+
+    @Override
+    public void onStopped() {
+        TilePrefetcher prefetcher = mPrefetcher;
+        if (prefetcher != null) {
+            prefetcher.cancel();
+        }
+        super.onStopped();
+    }
+}
@@ -0,0 +1,304 @@
+package uk.trigpointing.android.mapping;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Downloads the tiles around a set of places, eg the trigs planned for a walk, into
+ * the {@link TileStore} so the map works without a signal.
+ *
+ * {@link #plan} turns the places into tiles, the overlap of nearby places counted once.
+ * {@link #run} then fetches those not already stored, a couple at a time and no faster
+ * than one every {@link #MIN_INTERVAL_MS} overall, backing off when a server asks.
+ * Fetched tiles are stored unpinned with a fresh access time, so they outlast older
+ * browsed tiles but are trimmed like them once unused; {@link #fitQuota} keeps a plan
+ * small enough not to be trimmed as it arrives.  Tiles already stored are skipped, so
+ * running the same plan again carries on where an interrupted run stopped.
+ */
+public class TilePrefetcher {
+    private static final String TAG = "TilePrefetcher";
+
+    private static final String USER_AGENT       = "TrigpointingUK-Android-App/1.0";
+    private static final String OS_LAYER_HOST    = "api.os.uk";
+    // Tile servers ask for no more than two connections from bulk users
+    static final int            MAX_CONCURRENT   = 2;
+    static final long           MIN_INTERVAL_MS  = 250;
+    private static final int    MAX_ATTEMPTS     = 3;
+    private static final long   DEFAULT_BACKOFF_MS = 5000;
+    private static final long   MAX_BACKOFF_MS   = 60000;
+    private static final long   PROGRESS_INTERVAL_MS = 1000;
+    // Size assumed for a tile before any are stored
+    private static final long   DEFAULT_TILE_BYTES = 20 * 1024;
+
+    public static final String LAYER_OSM        = "tile.openstreetmap.org";
+    public static final String LAYER_OS_OUTDOOR = "api.os.uk/maps/raster/v1/zxy/Outdoor_3857";
+
+    /** Told how the prefetch is going, from the download threads */
+    public interface ProgressListener {
+        /**
+         * @param done  tiles fetched, already stored or given up on
+         * @param total tiles planned
+         * @param bytes bytes downloaded
+         * @param etaMs estimated time left, or -1 if not yet known
+         */
+        void onProgress(int done, int total, long bytes, long etaMs);
+    }
+
+    private final OkHttpClient mClient;
+    private final TileStore mStore;
+    private final String mOsApiKey;
+    // Replaced by tests
+    String mScheme = "https://";
+    long mIntervalMs = MIN_INTERVAL_MS;
+
+    private final AtomicInteger mDone = new AtomicInteger();
+    private final AtomicInteger mFetched = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+    private final AtomicLong mBytes = new AtomicLong();
+    private volatile boolean mCancelled = false;
+    private long mNextSlot = 0;
+    private long mLastProgress = 0;
+
+    /**
+     * @param osApiKey key for the OS layers, or null if there isn't one
+     */
+    public TilePrefetcher(OkHttpClient client, TileStore store, String osApiKey) {
+        mClient = client;
+        mStore = store;
+        mOsApiKey = osApiKey;
+    }
+
+    /**
+     * The tiles covering a circle around each place, for each layer and zoom, once each
+     *
+     * @param places {lat, lon} of each place
+     * @return the tiles, by layer then zoom
+     */
+    public static List<TileStore.Key> plan(List<double[]> places, double radiusMetres, int minZoom, int maxZoom,
+                                           List<String> layers) {
+        Set<TileStore.Key> tiles = new LinkedHashSet<>();
+        for (String layer : layers) {
+            for (int z = minZoom; z <= maxZoom; z++) {
+                for (double[] place : places) {
+                    int[] range = TileMath.tileRange(place[0], place[1], radiusMetres, z);
+                    for (int x = range[0]; x <= range[2]; x++) {
+                        for (int y = range[1]; y <= range[3]; y++) {
+                            tiles.add(new TileStore.Key(layer, z, x, y));
+                        }
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(tiles);
+    }
+
+    /**
+     * @return the average size of a stored tile, to estimate downloads by
+     */
+    public static long tileBytes(TileStore store) {
+        long[] stats = store.getStats();
+        return stats[1] > 0 ? Math.max(stats[0] / stats[1], 1) : DEFAULT_TILE_BYTES;
+    }
+
+    /**
+     * The start of a plan whose missing tiles fit in the free space under the cache's
+     * quota, so that trimming the cache doesn't evict them as soon as they arrive
+     *
+     * @param quota bytes of unpinned tiles the cache keeps, see {@link TileStore#trim}
+     */
+    public static List<TileStore.Key> fitQuota(List<TileStore.Key> tiles, TileStore store, long quota) {
+        long free = quota - store.getUnpinnedStats()[0];
+        long tileBytes = tileBytes(store);
+        int fit = 0;
+        for (TileStore.Key tile : tiles) {
+            if (!store.contains(tile)) {
+                if (free < tileBytes) {
+                    break;
+                }
+                free -= tileBytes;
+            }
+            fit++;
+        }
+        return fit < tiles.size() ? tiles.subList(0, fit) : tiles;
+    }
+
+    /**
+     * Stop the prefetch.  Tiles already fetched are kept.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return tiles downloaded, not counting those already stored
+     */
+    public int getFetched() {
+        return mFetched.get();
+    }
+
+    /**
+     * @return tiles which couldn't be downloaded
+     */
+    public int getFailed() {
+        return mFailed.get();
+    }
+
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    /**
+     * Fetch any of the tiles not already stored, blocking until done or cancelled
+     *
+     * @param listener told of progress, or null
+     * @return tiles downloaded
+     */
+    public int run(List<TileStore.Key> tiles, ProgressListener listener) throws InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT);
+        for (int i = 0; i < MAX_CONCURRENT; i++) {
+            executor.execute(() -> {
+                int index;
+                while (!mCancelled && (index = next.getAndIncrement()) < tiles.size()) {
+                    TileStore.Key key = tiles.get(index);
+                    try {
+                        if (!mStore.contains(key)) {
+                            fetch(key);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    } catch (IOException | RuntimeException e) {
+                        Log.w(TAG, "run: Giving up on " + key + ", " + e);
+                        mFailed.incrementAndGet();
+                    }
+                    mDone.incrementAndGet();
+                    progress(listener, tiles.size(), start, false);
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                if (mCancelled) {
+                    // Cut short any backoff
+                    executor.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            mCancelled = true;
+            executor.shutdownNow();
+            throw e;
+        }
+        progress(listener, tiles.size(), start, true);
+        Log.i(TAG, "run: Fetched " + mFetched.get() + " of " + tiles.size() + " tiles, " + mBytes.get()
+                + " bytes, " + mFailed.get() + " failed");
+        return mFetched.get();
+    }
+
+    private void fetch(TileStore.Key key) throws IOException, InterruptedException {
+        String url = mScheme + key + ".png";
+        if (key.layer.startsWith(OS_LAYER_HOST)) {
+            if (mOsApiKey == null || mOsApiKey.isEmpty()) {
+                throw new IOException("No OS API key");
+            }
+            url += "?key=" + mOsApiKey;
+        }
+        Request request = new Request.Builder()
+                .url(url)
+                .header("User-Agent", USER_AGENT)
+                .build();
+        for (int attempt = 1; ; attempt++) {
+            pace();
+            int code = 0;
+            long backoff = DEFAULT_BACKOFF_MS;
+            try (Response response = mClient.newCall(request).execute()) {
+                code = response.code();
+                if (response.isSuccessful()) {
+                    byte[] data = response.body().bytes();
+                    mStore.put(key, data);
+                    mBytes.addAndGet(data.length);
+                    mFetched.incrementAndGet();
+                    return;
+                }
+                backoff = retryAfter(response.header("Retry-After"));
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS || mCancelled) {
+                    throw e;
+                }
+            }
+            // Only a busy or failing server is worth asking again
+            boolean busy = code == 0 || code == 429 || code >= 500;
+            if (!busy || attempt >= MAX_ATTEMPTS) {
+                throw new IOException("HTTP " + code);
+            }
+            Log.w(TAG, "fetch: " + (code == 0 ? "Failed" : "HTTP " + code) + " for " + key + ", backing off " + backoff + "ms");
+            // Hold back every thread, not just this one
+            synchronized (this) {
+                mNextSlot = Math.max(mNextSlot, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff));
+            }
+        }
+    }
+
+    private static long retryAfter(String header) {
+        if (header != null) {
+            try {
+                return Math.min(TimeUnit.SECONDS.toMillis(Long.parseLong(header.trim())), MAX_BACKOFF_MS);
+            } catch (NumberFormatException e) {
+                // An HTTP date, use the default
+            }
+        }
+        return DEFAULT_BACKOFF_MS;
+    }
+
+    // Wait for the next request slot, shared by all threads
+    private void pace() throws InterruptedException {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            mNextSlot = Math.max(mNextSlot, now);
+            wait = mNextSlot - now;
+            mNextSlot += TimeUnit.MILLISECONDS.toNanos(mIntervalMs);
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private void progress(ProgressListener listener, int total, long start, boolean last) {
+        if (listener == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (!last && now - mLastProgress < TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL_MS)) {
+                return;
+            }
+            mLastProgress = now;
+        }
+        int done = mDone.get();
+        int fetched = mFetched.get();
+        // Based on downloads alone, stored tiles being skipped at once
+        long eta = fetched == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(now - start) * (total - done) / fetched;
+        listener.onProgress(done, total, mBytes.get(), last ? 0 : eta);
+    }
+}
@@ -0,0 +1,288 @@
+package uk.trigpointing.android.mapping;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import uk.trigpointing.android.MainApplication;
+
+/**
+ * Fetches map tiles for the map views without blocking the caller.
+ *
+ * {@link #open} returns at once with a stream of the tile.  A stored tile is read
+ * from the {@link TileStore}.  Otherwise the download is queued on a dispatcher
+ * bounded overall and per host, and the stream hands over bytes as they arrive while
+ * the same bytes are collected for the store.  Several requests for one tile while
+ * it is in flight share a single download.
+ */
+public class TileService {
+    private static final String TAG = "TileService";
+
+    private static final String USER_AGENT       = "TrigpointingUK-Android-App/1.0";
+    private static final int    MAX_REQUESTS     = 8;
+    private static final int    MAX_PER_HOST     = 4;
+    private static final int    CALL_TIMEOUT_S   = 30;
+    private static final int    BUFFER_SIZE      = 8192;
+
+    private static TileService sTileService;
+
+    private final OkHttpClient mClient;
+    private final TileStore mStore;
+    // Downloads in flight, guarded by itself
+    private final Map<TileStore.Key, Fetch> mFetches = new HashMap<>();
+
+    /**
+     * @param client client whose connection pool to share, ideally without an HTTP cache
+     * @param store  where tiles are kept
+     */
+    public TileService(OkHttpClient client, TileStore store) {
+        mStore = store;
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_PER_HOST);
+        mClient = client.newBuilder()
+                .dispatcher(dispatcher)
+                .callTimeout(CALL_TIMEOUT_S, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * @return the tile service shared by the map views
+     */
+    public static synchronized TileService get(Context context) {
+        if (sTileService == null) {
+            // Tiles have their own store, so skip the HTTP cache
+            sTileService = new TileService(MainApplication.getUncachedHttpClient(context), TileStore.get(context));
+        }
+        return sTileService;
+    }
+
+    /**
+     * Open a tile, from the store if present, otherwise from the network.
+     * Never blocks on the network - reads from the returned stream wait for bytes instead.
+     * A failed download surfaces as an IOException from the stream, and stores nothing.
+     *
+     * @param url where to download the tile from
+     * @param key the tile, see {@link TileStore.Key#fromPath}
+     */
+    public InputStream open(String url, TileStore.Key key) {
+        Fetch fetch;
+        synchronized (mFetches) {
+            fetch = mFetches.get(key);
+            if (fetch != null) {
+                Log.d(TAG, "open: Joining download of " + url);
+                fetch.mReaders++;
+                return fetch.new Reader();
+            }
+        }
+
+        byte[] data = mStore.get(key);
+        if (data != null) {
+            return new ByteArrayInputStream(data);
+        }
+
+        synchronized (mFetches) {
+            // Someone else may have started it meanwhile
+            fetch = mFetches.get(key);
+            if (fetch == null) {
+                fetch = new Fetch(url, key);
+                mFetches.put(key, fetch);
+                fetch.start();
+            }
+            fetch.mReaders++;
+        }
+        return fetch.new Reader();
+    }
+
+    /**
+     * @return the number of tile downloads queued or running, for tests and logging
+     */
+    public int getPendingCount() {
+        synchronized (mFetches) {
+            return mFetches.size();
+        }
+    }
+
+    // One download, buffered in memory for every reader and stored once complete
+    private final class Fetch implements Callback {
+        final String mUrl;
+        final TileStore.Key mKey;
+        Call mCall;
+        // Guarded by mFetches
+        int mReaders = 0;
+
+        // Guarded by this
+        private byte[] mData = new byte[BUFFER_SIZE];
+        private int mLength = 0;
+        private boolean mDone = false;
+        private IOException mError = null;
+
+        Fetch(String url, TileStore.Key key) {
+            mUrl = url;
+            mKey = key;
+        }
+
+        void start() {
+            Request request = new Request.Builder()
+                    .url(mUrl)
+                    // Set a custom User-Agent to comply with tile server policies
+                    .header("User-Agent", USER_AGENT)
+                    .build();
+            mCall = mClient.newCall(request);
+            mCall.enqueue(this);
+        }
+
+        @Override
+        public void onFailure(@NonNull Call call, @NonNull IOException e) {
+            finish(e);
+        }
+
+        @Override
+        public void onResponse(@NonNull Call call, @NonNull Response response) {
+            IOException error = null;
+            try (Response r = response) {
+                if (!r.isSuccessful()) {
+                    throw new IOException("HTTP " + r.code() + " from " + mUrl);
+                }
+                try (InputStream in = r.body().byteStream()) {
+                    byte[] buf = new byte[BUFFER_SIZE];
+                    int n;
+                    while ((n = in.read(buf)) > 0) {
+                        append(buf, n);
+                    }
+                }
+                byte[] data;
+                synchronized (this) {
+                    data = Arrays.copyOf(mData, mLength);
+                }
+                if (data.length > 0) {
+                    mStore.put(mKey, data);
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                // The tile was still served, just not stored
+                Log.e(TAG, "onResponse: Unable to store " + mKey, e);
+            }
+            finish(error);
+        }
+
+        private synchronized void append(byte[] buf, int n) {
+            if (mLength + n > mData.length) {
+                mData = Arrays.copyOf(mData, Math.max(mLength + n, mData.length * 2));
+            }
+            System.arraycopy(buf, 0, mData, mLength, n);
+            mLength += n;
+            notifyAll();
+        }
+
+        private void finish(IOException error) {
+            if (error != null) {
+                Log.w(TAG, "Failed to fetch tile " + mUrl + ": " + error.getMessage());
+            }
+            synchronized (mFetches) {
+                if (mFetches.get(mKey) == this) {
+                    mFetches.remove(mKey);
+                }
+            }
+            synchronized (this) {
+                mError = error;
+                mDone = true;
+                notifyAll();
+            }
+        }
+
+        private void release() {
+            synchronized (mFetches) {
+                if (--mReaders > 0 || isDone() || mFetches.get(mKey) != this) {
+                    return;
+                }
+                // Nobody wants it any more, probably scrolled off the map
+                mFetches.remove(mKey);
+            }
+            Log.d(TAG, "release: Cancelled " + mUrl);
+            mCall.cancel();
+        }
+
+        private synchronized boolean isDone() {
+            return mDone;
+        }
+
+        // Reads one caller's way through the shared buffer, waiting for more as needed
+        private final class Reader extends InputStream {
+            private int mPos = 0;
+            private boolean mClosed = false;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
+            }
+
+            @Override
+            public int read(@NonNull byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                synchronized (Fetch.this) {
+                    while (mPos >= mLength && !mDone && !mClosed) {
+                        try {
+                            Fetch.this.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    if (mClosed) {
+                        throw new IOException("Stream closed");
+                    }
+                    if (mError != null) {
+                        throw mError;
+                    }
+                    if (mPos >= mLength) {
+                        return -1;
+                    }
+                    int n = Math.min(len, mLength - mPos);
+                    System.arraycopy(mData, mPos, b, off, n);
+                    mPos += n;
+                    return n;
+                }
+            }
+
+            @Override
+            public int available() {
+                synchronized (Fetch.this) {
+                    return mLength - mPos;
+                }
+            }
+
+            @Override
+            public void close() {
+                synchronized (Fetch.this) {
+                    if (mClosed) {
+                        return;
+                    }
+                    mClosed = true;
+                    Fetch.this.notifyAll();
+                }
+                release();
+            }
+        }
+    }
+}
@@ -0,0 +1,612 @@
+package uk.trigpointing.android.mapping;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Map tiles for every layer in one MBTiles-style SQLite file, rather than one loose
+ * file per tile.  Downloaded packs hold millions of tiles, which as files cost an
+ * inode each, a stat() per lookup and a full tree walk to size.  Here a lookup is a
+ * primary key probe and the cache status is one SELECT.
+ *
+ * Rows are keyed by layer - the tile URL's host and path up to the tile numbers - then
+ * zoom, column and row in the XYZ scheme used by the tile URLs, not the TMS rows of
+ * the MBTiles spec.
+ *
+ * Browsed tiles are a cache, kept to a quota by {@link #trim} which evicts the least
+ * recently or least frequently used.  Tiles from offline packs are pinned and only go
+ * when the user clears the store.  Each row carries its size, last access and hit
+ * count, indexed so that the stats and the eviction order never read the images.
+ */
+public class TileStore {
+    private static final String TAG = "TileStore";
+
+    public  static final String DATABASE_NAME    = "map_tiles.mbtiles";
+    private static final int    DATABASE_VERSION = 2;
+    // Where tiles were kept as loose files, and packs were extracted to
+    private static final String LEGACY_DIR       = "map_tiles";
+
+    private static final String TILES_TABLE    = "tiles";
+    private static final String TILE_LAYER     = "layer";
+    private static final String TILE_ZOOM      = "zoom_level";
+    private static final String TILE_COLUMN    = "tile_column";
+    private static final String TILE_ROW       = "tile_row";
+    private static final String TILE_DATA      = "tile_data";
+    private static final String TILE_SIZE      = "tile_size";
+    private static final String TILE_ACCESSED  = "last_access";
+    private static final String TILE_HITS      = "hits";
+    private static final String TILE_PINNED    = "pinned";
+    private static final String ACCESS_INDEX   = "tiles_access";
+    private static final String METADATA_TABLE = "metadata";
+
+    // Accesses are written in batches, not as an UPDATE per tile drawn
+    private static final int ACCESS_FLUSH = 256;
+    private static final int EVICT_BATCH  = 500;
+
+    private static final String TILES_CREATE = "create table " + TILES_TABLE + " ("
+            + TILE_LAYER + " text not null, "
+            + TILE_ZOOM + " integer not null, "
+            + TILE_COLUMN + " integer not null, "
+            + TILE_ROW + " integer not null, "
+            + TILE_DATA + " blob not null, "
+            + TILE_SIZE + " integer not null default 0, "
+            + TILE_ACCESSED + " integer not null default 0, "
+            + TILE_HITS + " integer not null default 0, "
+            + TILE_PINNED + " integer not null default 0, "
+            + "primary key (" + TILE_LAYER + ", " + TILE_ZOOM + ", " + TILE_COLUMN + ", " + TILE_ROW + ")"
+            + ") without rowid";
+    // Covers the stats and the LRU order
+    private static final String ACCESS_INDEX_CREATE = "create index " + ACCESS_INDEX + " on " + TILES_TABLE
+            + " (" + TILE_PINNED + ", " + TILE_ACCESSED + ", " + TILE_SIZE + ")";
+    private static final String METADATA_CREATE = "create table " + METADATA_TABLE + " ("
+            + "name text primary key, value text)";
+    private static final String TILE_WHERE = TILE_LAYER + "=? and " + TILE_ZOOM + "=? and "
+            + TILE_COLUMN + "=? and " + TILE_ROW + "=?";
+
+    private static TileStore sTileStore;
+    private static final AtomicBoolean sMigrating = new AtomicBoolean(false);
+
+    private final SQLiteOpenHelper mHelper;
+    private final ConcurrentHashMap<Key, Access> mAccessed = new ConcurrentHashMap<>();
+    // Milliseconds, replaced by tests
+    LongSupplier mClock = System::currentTimeMillis;
+
+    /** What {@link #trim} evicts first */
+    public enum Eviction {
+        /** Least recently used */
+        LRU,
+        /** Least often used, then least recently */
+        LFU
+    }
+
+    // Accesses to one tile since the last flush
+    private static final class Access {
+        long time;
+        int hits;
+    }
+
+    /**
+     * One tile: its layer, eg "tile.openstreetmap.org" or
+     * "api.os.uk/maps/raster/v1/zxy/Outdoor_3857", and its XYZ coordinates
+     */
+    public static final class Key {
+        public final String layer;
+        public final int z;
+        public final int x;
+        public final int y;
+
+        public Key(String layer, int z, int x, int y) {
+            this.layer = layer;
+            this.z = z;
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         * Parse a tile path, the host and path of a tile URL or a file in an offline pack,
+         * ending in .../{z}/{x}/{y} with an optional extension.  ArcGIS REST services
+         * instead end in .../tile/{z}/{y}/{x}, which is keyed the same way as the packs
+         * built from them, .../{z}/{x}/{y}.png without the "tile".
+         *
+         * @return the key, or null if the path isn't a tile
+         */
+        public static Key fromPath(String path) {
+            String[] parts = path.split("/");
+            int n = parts.length;
+            if (n < 4) {
+                return null;
+            }
+            String last = parts[n - 1];
+            int dot = last.indexOf('.');
+            if (dot >= 0) {
+                last = last.substring(0, dot);
+            }
+            int z, a, b;
+            try {
+                z = Integer.parseInt(parts[n - 3]);
+                a = Integer.parseInt(parts[n - 2]);
+                b = Integer.parseInt(last);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            int layerEnd = n - 3;
+            boolean arcGis = layerEnd >= 2 && "tile".equals(parts[layerEnd - 1]);
+            if (arcGis) {
+                layerEnd--;
+            }
+            StringBuilder layer = new StringBuilder();
+            for (int i = 0; i < layerEnd; i++) {
+                if (parts[i].isEmpty()) {
+                    continue;
+                }
+                if (layer.length() > 0) {
+                    layer.append('/');
+                }
+                layer.append(parts[i]);
+            }
+            if (layer.length() == 0) {
+                return null;
+            }
+            return arcGis ? new Key(layer.toString(), z, b, a) : new Key(layer.toString(), z, a, b);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return z == k.z && x == k.x && y == k.y && layer.equals(k.layer);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(layer, z, x, y);
+        }
+
+        @Override
+        public String toString() {
+            return layer + "/" + z + "/" + x + "/" + y;
+        }
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+            // Imports write while the map reads
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // Only takes effect on a new file, letting trim() give space back cheaply
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            Log.i(TAG, "Creating tile store");
+            db.execSQL(TILES_CREATE);
+            db.execSQL(ACCESS_INDEX_CREATE);
+            db.execSQL(METADATA_CREATE);
+            db.execSQL("insert into " + METADATA_TABLE + " values ('name', 'TrigpointingUK map tiles')");
+            db.execSQL("insert into " + METADATA_TABLE + " values ('scheme', 'xyz')");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion == 1) {
+                // Version 1 didn't record where tiles came from, so keep them all as
+                // if from packs rather than risk evicting an offline region
+                Log.i(TAG, "Upgrading tile store from version 1, pinning existing tiles");
+                db.execSQL("alter table " + TILES_TABLE + " add column " + TILE_SIZE + " integer not null default 0");
+                db.execSQL("alter table " + TILES_TABLE + " add column " + TILE_ACCESSED + " integer not null default 0");
+                db.execSQL("alter table " + TILES_TABLE + " add column " + TILE_HITS + " integer not null default 0");
+                db.execSQL("alter table " + TILES_TABLE + " add column " + TILE_PINNED + " integer not null default 0");
+                db.execSQL("update " + TILES_TABLE + " set " + TILE_SIZE + " = length(" + TILE_DATA + "), "
+                        + TILE_PINNED + " = 1");
+                db.execSQL(ACCESS_INDEX_CREATE);
+                return;
+            }
+            Log.w(TAG, "Upgrading tile store from version " + oldVersion + " to "
+                    + newVersion + ", which will destroy all old tiles");
+            db.execSQL("DROP TABLE IF EXISTS " + TILES_TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + METADATA_TABLE);
+            onCreate(db);
+        }
+    }
+
+    /**
+     * @param name database file name, or null for a store in memory
+     */
+    public TileStore(Context context, String name) {
+        mHelper = new DatabaseHelper(context, name);
+    }
+
+    /**
+     * @return the tile store shared by the map views and pack imports
+     */
+    public static synchronized TileStore get(Context context) {
+        if (sTileStore == null) {
+            // Tiles can always be downloaded again, so they live with the other caches
+            File file = new File(context.getCacheDir(), DATABASE_NAME);
+            sTileStore = new TileStore(context.getApplicationContext(), file.getPath());
+        }
+        return sTileStore;
+    }
+
+    /**
+     * @return the tile's image, or null if it isn't stored
+     */
+    public byte[] get(Key key) {
+        try (Cursor c = mHelper.getReadableDatabase().query(TILES_TABLE, new String[]{TILE_DATA},
+                TILE_WHERE, args(key), null, null, null)) {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            byte[] data = c.getBlob(0);
+            touch(key);
+            return data;
+        }
+    }
+
+    // Note the access, for eviction, without writing to the database every time
+    private void touch(Key key) {
+        long now = mClock.getAsLong();
+        mAccessed.compute(key, (k, access) -> {
+            if (access == null) {
+                access = new Access();
+            }
+            access.time = now;
+            access.hits++;
+            return access;
+        });
+        if (mAccessed.size() >= ACCESS_FLUSH) {
+            flushAccesses();
+        }
+    }
+
+    /**
+     * Write the accesses noted since the last flush, in one transaction
+     */
+    public synchronized void flushAccesses() {
+        if (mAccessed.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try (SQLiteStatement update = db.compileStatement("update " + TILES_TABLE + " set "
+                + TILE_ACCESSED + " = max(" + TILE_ACCESSED + ", ?), " + TILE_HITS + " = " + TILE_HITS + " + ? where "
+                + TILE_WHERE)) {
+            for (Key key : mAccessed.keySet()) {
+                Access access = mAccessed.remove(key);
+                if (access == null) {
+                    continue;
+                }
+                update.bindLong(1, access.time);
+                update.bindLong(2, access.hits);
+                update.bindString(3, key.layer);
+                update.bindLong(4, key.z);
+                update.bindLong(5, key.x);
+                update.bindLong(6, key.y);
+                update.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public boolean contains(Key key) {
+        try (Cursor c = mHelper.getReadableDatabase().query(TILES_TABLE, new String[]{TILE_ZOOM},
+                TILE_WHERE, args(key), null, null, null)) {
+            return c.moveToFirst();
+        }
+    }
+
+    public void put(Key key, byte[] data) {
+        put(key, data, false);
+    }
+
+    /**
+     * @param pinned whether the tile is for offline use, so never evicted
+     */
+    public void put(Key key, byte[] data, boolean pinned) {
+        try (Importer importer = importer(0, pinned)) {
+            importer.add(key, data);
+            importer.finish();
+        }
+    }
+
+    /**
+     * @return {total bytes of tile images, number of tiles}
+     */
+    public long[] getStats() {
+        return stats(null);
+    }
+
+    /**
+     * @return {total bytes of tile images, number of tiles} pinned by offline packs
+     */
+    public long[] getPinnedStats() {
+        return stats(TILE_PINNED + " = 1");
+    }
+
+    /**
+     * @return {total bytes of tile images, number of tiles} counted against the quota
+     */
+    public long[] getUnpinnedStats() {
+        return stats(TILE_PINNED + " = 0");
+    }
+
+    // Sums the sizes in the access index, without touching the images
+    private long[] stats(String where) {
+        try (Cursor c = mHelper.getReadableDatabase().rawQuery("select total(" + TILE_SIZE + "), count(*) from "
+                + TILES_TABLE + " indexed by " + ACCESS_INDEX + (where == null ? "" : " where " + where), null)) {
+            c.moveToFirst();
+            return new long[]{c.getLong(0), c.getLong(1)};
+        }
+    }
+
+    /**
+     * Evict unpinned tiles until they are within the quota.  Pinned tiles are the
+     * user's offline maps, so they neither count against the quota nor are evicted.
+     *
+     * @param quota bytes of unpinned tile images to keep
+     * @return the number of tiles evicted
+     */
+    public int trim(long quota, Eviction eviction) {
+        flushAccesses();
+        long excess = getUnpinnedStats()[0] - quota;
+        if (excess <= 0) {
+            return 0;
+        }
+        String order = eviction == Eviction.LFU ? TILE_HITS + ", " + TILE_ACCESSED : TILE_ACCESSED;
+        String[] columns = {TILE_LAYER, TILE_ZOOM, TILE_COLUMN, TILE_ROW, TILE_SIZE};
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        long freed = 0;
+        int count = 0;
+        try (SQLiteStatement delete = db.compileStatement("delete from " + TILES_TABLE + " where " + TILE_WHERE)) {
+            boolean more = true;
+            while (more && freed < excess) {
+                db.beginTransactionNonExclusive();
+                // A batch at a time, so the map isn't held up for long
+                try (Cursor c = db.query(TILES_TABLE, columns, TILE_PINNED + " = 0", null, null, null, order,
+                        Integer.toString(EVICT_BATCH))) {
+                    more = c.getCount() == EVICT_BATCH;
+                    while (freed < excess && c.moveToNext()) {
+                        delete.bindString(1, c.getString(0));
+                        delete.bindLong(2, c.getLong(1));
+                        delete.bindLong(3, c.getLong(2));
+                        delete.bindLong(4, c.getLong(3));
+                        delete.executeUpdateDelete();
+                        freed += c.getLong(4);
+                        count++;
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }
+        // Hand freed pages back, where the file was created able to
+        try (Cursor c = db.rawQuery("PRAGMA incremental_vacuum", null)) {
+            c.moveToFirst();
+        }
+        Log.i(TAG, "trim: Evicted " + count + " tiles, " + freed + " bytes, by " + eviction);
+        return count;
+    }
+
+    /**
+     * Delete every tile, pinned or not, and give the space back
+     *
+     * @return the number of tiles deleted
+     */
+    public int clear() {
+        mAccessed.clear();
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        int count = db.delete(TILES_TABLE, "1", null);
+        db.execSQL("VACUUM");
+        return count;
+    }
+
+    private static String[] args(Key key) {
+        return new String[]{key.layer, Integer.toString(key.z), Integer.toString(key.x), Integer.toString(key.y)};
+    }
+
+    /**
+     * Start adding cached tiles in batches of the given size, each committed in one
+     * transaction.  A batch size of 0 commits everything at once in {@link Importer#finish()}.
+     *
+     * <pre>
+     * try (TileStore.Importer importer = store.importer(500)) {
+     *     importer.add(key, data);
+     *     importer.finish();
+     * }
+     * </pre>
+     */
+    public Importer importer(int batchSize) {
+        return importer(batchSize, false);
+    }
+
+    /**
+     * @param pinned whether the tiles are from an offline pack, so never evicted.
+     *               Replacing a pinned tile keeps it pinned either way.
+     */
+    public Importer importer(int batchSize, boolean pinned) {
+        return new Importer(mHelper.getWritableDatabase(), batchSize, pinned, mClock);
+    }
+
+    public static final class Importer implements AutoCloseable {
+        private final SQLiteDatabase mDb;
+        private final SQLiteStatement mInsert;
+        private final int mBatchSize;
+        private final boolean mPinned;
+        private final LongSupplier mClock;
+        private int mInBatch = 0;
+        private int mCount = 0;
+        private boolean mFinished = false;
+
+        private Importer(SQLiteDatabase db, int batchSize, boolean pinned, LongSupplier clock) {
+            mDb = db;
+            mBatchSize = batchSize;
+            mPinned = pinned;
+            mClock = clock;
+            mDb.beginTransactionNonExclusive();
+            try {
+                mInsert = mDb.compileStatement("insert or replace into " + TILES_TABLE + " ("
+                        + TILE_LAYER + ", " + TILE_ZOOM + ", " + TILE_COLUMN + ", " + TILE_ROW + ", " + TILE_DATA + ", "
+                        + TILE_SIZE + ", " + TILE_ACCESSED + ", " + TILE_PINNED
+                        + ") values (?1, ?2, ?3, ?4, ?5, ?6, ?7, max(?8, coalesce((select " + TILE_PINNED
+                        + " from " + TILES_TABLE + " where " + TILE_LAYER + " = ?1 and " + TILE_ZOOM + " = ?2 and "
+                        + TILE_COLUMN + " = ?3 and " + TILE_ROW + " = ?4), 0)))");
+            } catch (RuntimeException e) {
+                mDb.endTransaction();
+                throw e;
+            }
+        }
+
+        public void add(Key key, byte[] data) {
+            mInsert.bindString(1, key.layer);
+            mInsert.bindLong(2, key.z);
+            mInsert.bindLong(3, key.x);
+            mInsert.bindLong(4, key.y);
+            mInsert.bindBlob(5, data);
+            mInsert.bindLong(6, data.length);
+            mInsert.bindLong(7, mClock.getAsLong());
+            mInsert.bindLong(8, mPinned ? 1 : 0);
+            mInsert.executeInsert();
+            mCount++;
+            if (mBatchSize > 0 && ++mInBatch >= mBatchSize) {
+                mDb.setTransactionSuccessful();
+                mDb.endTransaction();
+                mDb.beginTransactionNonExclusive();
+                mInBatch = 0;
+            }
+        }
+
+        /**
+         * @return number of tiles added so far
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Commit the last batch
+         */
+        public void finish() {
+            mDb.setTransactionSuccessful();
+            mFinished = true;
+        }
+
+        /**
+         * Release the statement.  Rolls back the current batch unless {@link #finish()} was called.
+         */
+        @Override
+        public void close() {
+            mInsert.close();
+            mDb.endTransaction();
+            if (!mFinished) {
+                Log.w(TAG, "Importer: Import abandoned after " + mCount + " tiles");
+            }
+        }
+    }
+
+    /**
+     * In the background, move any tiles left as loose files by older versions into
+     * the store.  Until then they are simply downloaded again.
+     */
+    public static void migrateLegacyTiles(Context context) {
+        File dir = new File(context.getCacheDir(), LEGACY_DIR);
+        if (!dir.exists() || !sMigrating.compareAndSet(false, true)) {
+            return;
+        }
+        TileStore store = get(context);
+        new Thread(() -> {
+            try {
+                store.importDirectory(dir);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "migrateLegacyTiles: Failed", e);
+            } finally {
+                sMigrating.set(false);
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Move tiles cached as loose files, as older versions did, into the store, then
+     * delete the directory.  Packs were extracted there too, so the tiles are pinned.
+     * If the import fails the files are left for the next attempt.
+     *
+     * @return the number of tiles moved
+     */
+    public int importDirectory(File dir) {
+        int count;
+        try (Importer importer = importer(500, true)) {
+            importTree(importer, dir, "");
+            importer.finish();
+            count = importer.getCount();
+        }
+        // Only once every batch has committed
+        deleteTree(dir);
+        Log.i(TAG, "importDirectory: Moved " + count + " tiles from " + dir);
+        return count;
+    }
+
+    private static void importTree(Importer importer, File file, String path) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                importTree(importer, child, path.isEmpty() ? child.getName() : path + "/" + child.getName());
+            }
+        } else if (file.isFile()) {
+            Key key = Key.fromPath(path);
+            if (key != null && file.length() > 0) {
+                try {
+                    importer.add(key, readFile(file));
+                } catch (IOException e) {
+                    Log.w(TAG, "importTree: Skipping unreadable " + file, e);
+                }
+            }
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int off = 0;
+            int n;
+            while (off < data.length && (n = in.read(data, off, data.length - off)) > 0) {
+                off += n;
+            }
+            if (off < data.length) {
+                throw new IOException("Short read of " + file);
+            }
+        }
+        return data;
+    }
+}
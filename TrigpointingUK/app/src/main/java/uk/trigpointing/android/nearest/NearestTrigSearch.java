@@ -0,0 +1,217 @@
+package uk.trigpointing.android.nearest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import uk.trigpointing.android.types.TrigSnapshot;
+
+/**
+ * K-nearest-neighbour search over trigpoints.
+ *
+ * Rather than asking SQLite to compute and sort a distance for every row, the search
+ * visits a series of expanding square rings centred on the query point, asking the
+ * {@link Source} only for the trigs which lie in the new ring.  Each candidate's
+ * great-circle distance is computed here and the best K are kept in a bounded heap.
+ * The search stops as soon as the K-th best distance is no further away than the
+ * nearest edge of the area already searched, since nothing outside can then beat it.
+ *
+ * The work done therefore depends on the density of trigs around the query point and
+ * on K, not on the size of the table.
+ *
+ * @param <T> payload carried with each trig (eg a row of column values)
+ */
+public class NearestTrigSearch<T> {
+
+    /** Mean earth radius, matching {@link uk.trigpointing.android.types.LatLon} */
+    public static final double EARTH_RADIUS_METRES = 6371000;
+    /** Half-height of the first ring searched */
+    private static final double INITIAL_HALF_METRES = 2000;
+
+    /**
+     * Supplies the trigs within a box.  Implementations must report every trig with
+     * south <= lat <= north and west <= lon <= east, except those inside the hole.
+     */
+    public interface Source<T> {
+        /**
+         * @param box  area to search
+         * @param hole area already searched, or null for the first ring
+         */
+        void scan(Box box, Box hole, Sink<T> sink);
+    }
+
+    public interface Sink<T> {
+        void offer(double lat, double lon, T payload);
+    }
+
+    /** A lat/lon aligned box in degrees */
+    public static final class Box {
+        public final double south;
+        public final double west;
+        public final double north;
+        public final double east;
+
+        public Box(double south, double west, double north, double east) {
+            this.south = south;
+            this.west = west;
+            this.north = north;
+            this.east = east;
+        }
+    }
+
+    /** A trig found by the search, with its distance from the query point */
+    public static final class Hit<T> implements Comparable<Hit<T>> {
+        public final double lat;
+        public final double lon;
+        public final double distance;
+        public final T payload;
+
+        Hit(double lat, double lon, double distance, T payload) {
+            this.lat = lat;
+            this.lon = lon;
+            this.distance = distance;
+            this.payload = payload;
+        }
+
+        @Override
+        public int compareTo(Hit<T> other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+
+    private final Source<T> mSource;
+    private int mRings;
+
+    public NearestTrigSearch(Source<T> source) {
+        mSource = source;
+    }
+
+    /**
+     * Search over an in-memory trig snapshot.  The payload of each hit is its row in the snapshot.
+     */
+    public static NearestTrigSearch<Integer> over(final TrigSnapshot snapshot, final TrigSnapshot.Predicate predicate) {
+        return new NearestTrigSearch<>((box, hole, sink) -> {
+            for (int row = snapshot.lowerBound(box.south); row < snapshot.size(); row++) {
+                double lat = snapshot.lat(row);
+                if (lat > box.north) {
+                    break;
+                }
+                double lon = snapshot.lon(row);
+                if (lon < box.west || lon > box.east) {
+                    continue;
+                }
+                if (hole != null && lat >= hole.south && lat <= hole.north && lon >= hole.west && lon <= hole.east) {
+                    continue;
+                }
+                if (predicate.accept(snapshot, row)) {
+                    sink.offer(lat, lon, row);
+                }
+            }
+        });
+    }
+
+    /**
+     * Find the k trigs nearest to the given point, no further than maxMetres away.
+     *
+     * @return hits in ascending order of great-circle distance
+     */
+    public List<Hit<T>> nearest(final double lat, final double lon, final int k, final double maxMetres) {
+        mRings = 0;
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+        // Max-heap, so the current K-th best is always at the head
+        final PriorityQueue<Hit<T>> best = new PriorityQueue<>(k + 1, Collections.reverseOrder());
+        Sink<T> sink = (tLat, tLon, payload) -> {
+            double d = distance(lat, lon, tLat, tLon);
+            if (d > maxMetres) {
+                return;
+            }
+            if (best.size() < k) {
+                best.add(new Hit<>(tLat, tLon, d, payload));
+            } else if (d < best.peek().distance) {
+                best.poll();
+                best.add(new Hit<>(tLat, tLon, d, payload));
+            }
+        };
+
+        Box hole = null;
+        for (double half = INITIAL_HALF_METRES; ; half *= 2) {
+            Box box = boxAround(lat, lon, half);
+            mRings++;
+            mSource.scan(box, hole, sink);
+            double searched = inscribedRadius(lat, lon, box);
+            if (searched >= maxMetres) {
+                break;
+            }
+            if (best.size() == k && best.peek().distance <= searched) {
+                break;
+            }
+            if (box.south <= -90 && box.north >= 90 && box.east - box.west >= 360) {
+                // Covered the whole globe
+                break;
+            }
+            hole = box;
+        }
+
+        List<Hit<T>> result = new ArrayList<>(best);
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Number of rings visited by the last search
+     */
+    public int getRingCount() {
+        return mRings;
+    }
+
+    /**
+     * Haversine great-circle distance in metres
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinDPhi = Math.sin((phi2 - phi1) / 2);
+        double sinDLambda = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double a = sinDPhi * sinDPhi + Math.cos(phi1) * Math.cos(phi2) * sinDLambda * sinDLambda;
+        return 2 * EARTH_RADIUS_METRES * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Box which is roughly square on the ground, extending halfMetres north and south of the point
+     */
+    static Box boxAround(double lat, double lon, double halfMetres) {
+        double halfLat = Math.toDegrees(halfMetres / EARTH_RADIUS_METRES);
+        double cosLat = Math.cos(Math.toRadians(lat));
+        double halfLon = cosLat > 1e-6 ? halfLat / cosLat : 360;
+        if (halfLon >= 180) {
+            return new Box(Math.max(-90, lat - halfLat), -180, Math.min(90, lat + halfLat), 180);
+        }
+        return new Box(Math.max(-90, lat - halfLat), lon - halfLon,
+                       Math.min(90, lat + halfLat), lon + halfLon);
+    }
+
+    /**
+     * Great-circle distance from the point to the nearest edge of the box, ie the radius
+     * of the largest circle around the point which is known to have been searched.
+     * Edges which have been clamped to a pole or wrap the globe do not count.
+     */
+    static double inscribedRadius(double lat, double lon, Box box) {
+        double r = Double.POSITIVE_INFINITY;
+        if (box.north < 90) {
+            r = Math.min(r, Math.toRadians(box.north - lat));
+        }
+        if (box.south > -90) {
+            r = Math.min(r, Math.toRadians(lat - box.south));
+        }
+        if (box.east - box.west < 360) {
+            // Distance to a meridian dLon away is asin(sin(dLon) * cos(lat)); beyond 90
+            // degrees of longitude the meridian only gets further away
+            double dLon = Math.toRadians(Math.min(Math.min(box.east - lon, lon - box.west), 90));
+            r = Math.min(r, Math.asin(Math.sin(dLon) * Math.cos(Math.toRadians(lat))));
+        }
+        return r * EARTH_RADIUS_METRES;
+    }
+}
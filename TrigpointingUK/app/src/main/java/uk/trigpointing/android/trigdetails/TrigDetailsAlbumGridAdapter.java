@@ -88,6 +88,13 @@ public class TrigDetailsAlbumGridAdapter extends RecyclerView.Adapter<TrigDetail
         });
     }
 
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        // Don't keep downloading a thumbnail for a row that has scrolled away
+        mImageLoader.cancel(holder.image);
+        super.onViewRecycled(holder);
+    }
+
     @Override
     public int getItemCount() {
         return mPhotos.size();
@@ -8,8 +8,6 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 
 import uk.trigpointing.android.common.BaseTabActivity;
 import android.content.Intent;
@@ -36,6 +34,10 @@ import android.widget.Toast;
 import uk.trigpointing.android.DbHelper;
 import uk.trigpointing.android.R;
 import uk.trigpointing.android.common.DisplayBitmapActivity;
+import uk.trigpointing.android.common.FileCache;
+import uk.trigpointing.android.mapping.TileMath;
+import uk.trigpointing.android.mapping.TileService;
+import uk.trigpointing.android.mapping.TileStore;
 
 public class TrigDetailsOSMapTab extends BaseTabActivity {
     private static final String TAG = "TrigDetailsOSMapTab";
@@ -46,6 +48,8 @@ public class TrigDetailsOSMapTab extends BaseTabActivity {
     private TrigDetailsOSMapAdapter mAdapter;
     private final AtomicInteger mNextPosition = new AtomicInteger(0);
     private ExecutorService mExecutor;
+    private TileService mTileService;
+    private FileCache mImageCache;
     private Handler mMainHandler;
     private double mLat;
     private double mLon;
@@ -121,6 +125,9 @@ public class TrigDetailsOSMapTab extends BaseTabActivity {
         // Initialise threading
         mExecutor = Executors.newSingleThreadExecutor();
         mMainHandler = new Handler(Looper.getMainLooper());
+        // Tiles come from the same store as the map, and offline packs
+        mTileService = TileService.get(this);
+        mImageCache = new FileCache(this, "map_images");
 
         // get trig_id from extras
         Bundle extras = getIntent().getExtras();
@@ -206,12 +213,8 @@ public class TrigDetailsOSMapTab extends BaseTabActivity {
         return CompletableFuture.supplyAsync(() -> {
             try {
                 // Check if cached file already exists
-                String fileName = String.format(Locale.US, "trig_%d_%s_z%d.png", trigId, config.name, zoom);
-                File cacheDir = new File(getCacheDir(), "map_images");
-                if (!cacheDir.exists()) {
-                    cacheDir.mkdirs();
-                }
-                File cachedFile = new File(cacheDir, fileName);
+                String fileName = imageName(trigId, config, zoom);
+                File cachedFile = mImageCache.getFile(fileName);
                 
                 if (cachedFile.exists()) {
                     Log.d(TAG, "Using cached image: " + fileName);
@@ -228,8 +231,8 @@ public class TrigDetailsOSMapTab extends BaseTabActivity {
                         config.name, zoom, lat, lon, centerX, centerY));
                 } else {
                     // For Web Mercator (EPSG:3857)
-                    centerX = lonToTileX(lon, zoom);
-                    centerY = latToTileY(lat, zoom);
+                    centerX = TileMath.lonToTileX(lon, zoom);
+                    centerY = TileMath.latToTileY(lat, zoom);
                     Log.d(TAG, String.format("Web Mercator coords for %s zoom %d: lat=%.6f,lon=%.6f -> tile=%d,%d", 
                         config.name, zoom, lat, lon, centerX, centerY));
                 }
@@ -239,18 +242,26 @@ public class TrigDetailsOSMapTab extends BaseTabActivity {
                     TILE_SIZE * GRID_SIZE, TILE_SIZE * GRID_SIZE, Bitmap.Config.ARGB_8888);
                 Canvas canvas = new Canvas(compositeBitmap);
                 
-                // Download and draw each tile
+                // Open every tile first, so any that need downloading come in together
+                InputStream[][] tiles = new InputStream[GRID_SIZE][GRID_SIZE];
                 for (int dx = -1; dx <= 1; dx++) {
                     for (int dy = -1; dy <= 1; dy++) {
-                        int tileX = centerX + dx;
-                        int tileY = centerY + dy;
-                        
-                        Bitmap tileBitmap = downloadTile(config, zoom, tileX, tileY);
+                        tiles[dx + 1][dy + 1] = openTile(config, zoom, centerX + dx, centerY + dy);
+                    }
+                }
+
+                // Then draw each tile
+                int missing = 0;
+                for (int dx = -1; dx <= 1; dx++) {
+                    for (int dy = -1; dy <= 1; dy++) {
+                        Bitmap tileBitmap = decodeTile(tiles[dx + 1][dy + 1]);
                         if (tileBitmap != null) {
                             int drawX = (dx + 1) * TILE_SIZE;
                             int drawY = (dy + 1) * TILE_SIZE;
                             canvas.drawBitmap(tileBitmap, drawX, drawY, null);
                             tileBitmap.recycle();
+                        } else {
+                            missing++;
                         }
                     }
                 }
@@ -261,8 +272,8 @@ public class TrigDetailsOSMapTab extends BaseTabActivity {
                     pixelX = lonToPixelX27700(lat, lon, zoom) - (centerX * TILE_SIZE);
                     pixelY = latToPixelY27700(lat, lon, zoom) - (centerY * TILE_SIZE);
                 } else {
-                    pixelX = lonToPixelX(lon, zoom) - (centerX * TILE_SIZE);
-                    pixelY = latToPixelY(lat, zoom) - (centerY * TILE_SIZE);
+                    pixelX = TileMath.lonToPixelX(lon, zoom) - (centerX * TILE_SIZE);
+                    pixelY = TileMath.latToPixelY(lat, zoom) - (centerY * TILE_SIZE);
                 }
                 
                 // Adjust for the center tile position in our 3x3 grid
@@ -294,12 +305,18 @@ public class TrigDetailsOSMapTab extends BaseTabActivity {
                 }
                 
                 // Save to cache
-                try (FileOutputStream out = new FileOutputStream(cachedFile)) {
+                File tempFile = mImageCache.createTempFile();
+                try (FileOutputStream out = new FileOutputStream(tempFile)) {
                     finalBitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
                     finalBitmap.recycle();
-                    Log.d(TAG, "Cached new image: " + fileName);
-                    return cachedFile.getAbsolutePath();
                 }
+                if (missing > 0) {
+                    // Shown, but built again next time from any tiles fetched since
+                    Log.d(TAG, "Image " + fileName + " missing " + missing + " tiles, not cached");
+                    return tempFile.getAbsolutePath();
+                }
+                Log.d(TAG, "Cached new image: " + fileName);
+                return mImageCache.commit(fileName, tempFile).getAbsolutePath();
                 
             } catch (Exception e) {
                 Log.e(TAG, "Error generating image for " + config.name + " zoom " + zoom, e);
@@ -308,63 +325,43 @@ public class TrigDetailsOSMapTab extends BaseTabActivity {
         }, mExecutor);
     }
     
-    private Bitmap downloadTile(MapConfig config, int z, int x, int y) {
-        try {
-            String urlString = config.baseUrl
-                .replace("{z}", String.valueOf(z))
-                .replace("{x}", String.valueOf(x))
-                .replace("{y}", String.valueOf(y));
-            
-            if (config.needsApiKey) {
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-                String apiKey = prefs.getString("os_api_key", "");
-                if (apiKey.isEmpty()) {
-                    Log.w(TAG, "No OS API key configured for " + config.name);
-                    return null;
-                }
-                urlString += "?key=" + apiKey;
-            }
-            
-            URL url = new URL(urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setConnectTimeout(10000);
-            connection.setReadTimeout(10000);
-            connection.setRequestProperty("User-Agent", "TrigpointingUK-Android");
-            
-            try (InputStream is = connection.getInputStream()) {
-                return BitmapFactory.decodeStream(is);
+    /**
+     * Open a tile from the tile store, or start downloading it into the store
+     *
+     * @return the tile's bytes, or null if it can't be fetched
+     */
+    private InputStream openTile(MapConfig config, int z, int x, int y) {
+        String urlString = config.baseUrl
+            .replace("{z}", String.valueOf(z))
+            .replace("{x}", String.valueOf(x))
+            .replace("{y}", String.valueOf(y));
+        // Keyed as the map keys it, from the host and path
+        TileStore.Key key = TileStore.Key.fromPath(urlString.substring(urlString.indexOf("://") + 3));
+
+        if (config.needsApiKey) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+            String apiKey = prefs.getString("os_api_key", "");
+            if (apiKey.isEmpty()) {
+                Log.w(TAG, "No OS API key configured for " + config.name);
+                return null;
             }
-            
+            urlString += "?key=" + apiKey;
+        }
+        return mTileService.open(urlString, key);
+    }
+
+    private Bitmap decodeTile(InputStream in) {
+        if (in == null) {
+            return null;
+        }
+        try (InputStream is = in) {
+            return BitmapFactory.decodeStream(is);
         } catch (Exception e) {
-            Log.w(TAG, "Failed to download tile " + z + "/" + x + "/" + y + " from " + config.name, e);
+            Log.w(TAG, "Failed to fetch tile", e);
             return null;
         }
     }
-    
-    // Web Mercator projection helper methods
-    private int lonToTileX(double lon, int zoom) {
-        return (int) Math.floor((lon + 180.0) / 360.0 * Math.pow(2.0, zoom));
-    }
-    
-    private int latToTileY(double lat, int zoom) {
-        double latRad = Math.toRadians(lat);
-        return (int) Math.floor((1.0 - asinh(Math.tan(latRad)) / Math.PI) / 2.0 * Math.pow(2.0, zoom));
-    }
-    
-    private double lonToPixelX(double lon, int zoom) {
-        return (lon + 180.0) / 360.0 * Math.pow(2.0, zoom) * TILE_SIZE;
-    }
-    
-    private double latToPixelY(double lat, int zoom) {
-        double latRad = Math.toRadians(lat);
-        return (1.0 - asinh(Math.tan(latRad)) / Math.PI) / 2.0 * Math.pow(2.0, zoom) * TILE_SIZE;
-    }
-    
-    // Manual implementation of asinh for older Java versions
-    private double asinh(double x) {
-        return Math.log(x + Math.sqrt(x * x + 1.0));
-    }
-    
+
     // EPSG:27700 (British National Grid) coordinate conversion methods
     // Based on Leaflet configuration: resolutions, origin, and bounds
     private static final double[] OSGB_RESOLUTIONS = {896, 448, 224, 112, 56, 28, 14, 7, 3.5, 1.75, 0.875, 0.4375, 0.21875};
@@ -695,19 +692,25 @@ public class TrigDetailsOSMapTab extends BaseTabActivity {
         return null;
     }
 
+    private static String imageName(long trigId, MapConfig config, int zoom) {
+        return String.format(Locale.US, "trig_%d_%s_z%d.png", trigId, config.name, zoom);
+    }
+
+    /**
+     * Forget this trig's composited images, leaving the tiles they were built from
+     */
+    private void clearCachedImages() {
+        for (String[] sel : MAP_SELECTIONS) {
+            MapConfig config = findMapConfigByName(sel[0]);
+            if (config != null) {
+                mImageCache.remove(imageName(mTrigId, config, Integer.parseInt(sel[1])));
+            }
+        }
+    }
+
     public void refreshImagesFromParent() {
         try {
-            File cacheDir = new File(getCacheDir(), "map_images");
-            File[] files = cacheDir.listFiles();
-            if (files != null) {
-                for (File f : files) {
-                    String name = f.getName();
-                    if (name.startsWith("trig_" + mTrigId + "_")) {
-                        // noinspection ResultOfMethodCallIgnored
-                        f.delete();
-                    }
-                }
-            }
+            clearCachedImages();
             generateCachedImages(mLat, mLon);
         } catch (Exception e) {
             Log.w(TAG, "Failed to refresh images from parent", e);
@@ -775,17 +778,7 @@ public class TrigDetailsOSMapTab extends BaseTabActivity {
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item.getItemId() == R.id.action_refresh_osmaps) {
-            File cacheDir = new File(getCacheDir(), "map_images");
-            File[] files = cacheDir.listFiles();
-            if (files != null) {
-                for (File f : files) {
-                    String name = f.getName();
-                    if (name.startsWith("trig_" + mTrigId + "_")) {
-                        // noinspection ResultOfMethodCallIgnored
-                        f.delete();
-                    }
-                }
-            }
+            clearCachedImages();
             Toast.makeText(this, "Cleared cached OS map images for this trigpoint", Toast.LENGTH_SHORT).show();
             generateCachedImages(mLat, mLon);
             return true;
@@ -0,0 +1,131 @@
+package uk.trigpointing.android.types;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The user's logged condition of each trig, as sent by down-android-mylogs.php.
+ *
+ * Asked for the changes since a cursor it got last time, the server replies with a
+ * header line and just the trigs whose logged condition has changed since then.  A
+ * trig whose logs were all deleted comes back as not logged.
+ *
+ * <pre>
+ * LOGDELTA  fromCursor  toCursor
+ * condition  id
+ * </pre>
+ *
+ * An empty fromCursor means the reply is the full list, as it is on the first sync,
+ * and every trig not in it is not logged.  Servers without cursors always send the
+ * full list, headed by a count of the logs rather than LOGDELTA.  Fields are tab
+ * separated.
+ */
+public class LogDelta {
+
+    public static final String HEADER = "LOGDELTA";
+
+    private final String mFromCursor;
+    private final String mToCursor;
+    private final int mExpected;
+    private final List<Long> mIds = new ArrayList<>();
+    private final List<Condition> mLogged = new ArrayList<>();
+
+    private LogDelta(String fromCursor, String toCursor, int expected) {
+        mFromCursor = fromCursor;
+        mToCursor = toCursor;
+        mExpected = expected;
+    }
+
+    /**
+     * Read a reply from down-android-mylogs.php, in either format
+     *
+     * @throws IOException if the header or a row is malformed.  Rows are applied all
+     *                     or nothing, so none are skipped.
+     */
+    public static LogDelta read(BufferedReader br) throws IOException {
+        String header = br.readLine();
+        if (header == null) {
+            throw new IOException("Empty log list");
+        }
+        LogDelta logs;
+        if (header.startsWith(HEADER + "\t")) {
+            String[] head = header.split("\t", -1);
+            if (head.length < 3 || head[2].isEmpty()) {
+                throw new IOException("Invalid log delta header: " + header);
+            }
+            logs = new LogDelta(head[1], head[2], -1);
+        } else {
+            try {
+                logs = new LogDelta("", null, Integer.parseInt(header.trim()));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid log count: " + header, e);
+            }
+        }
+
+        String line;
+        int lineNo = 1;
+        while ((line = br.readLine()) != null) {
+            lineNo++;
+            if (line.trim().isEmpty()) {
+                // The full list ends at the first blank line
+                if (logs.mToCursor == null) {
+                    break;
+                }
+                continue;
+            }
+            String[] csv = line.split("\t");
+            if (csv.length < 2) {
+                throw new IOException("Invalid log row at line " + lineNo + ": " + line);
+            }
+            try {
+                logs.mIds.add(Long.parseLong(csv[1]));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid number at line " + lineNo + ": " + line, e);
+            }
+            logs.mLogged.add(Condition.fromCode(csv[0]));
+        }
+        return logs;
+    }
+
+    /**
+     * @return true if this is every log, rather than the changes since a cursor
+     */
+    public boolean isFull() {
+        return mFromCursor.isEmpty();
+    }
+
+    /**
+     * @return the cursor these changes start from, empty for the full list
+     */
+    public String getFromCursor() {
+        return mFromCursor;
+    }
+
+    /**
+     * @return the cursor to ask for changes since next time, or null if the server has none
+     */
+    public String getToCursor() {
+        return mToCursor;
+    }
+
+    /**
+     * @return the count the full list claims, or -1 if not known
+     */
+    public int getExpected() {
+        return mExpected;
+    }
+
+    public List<Long> getIds() {
+        return mIds;
+    }
+
+    public List<Condition> getLogged() {
+        return mLogged;
+    }
+
+    public int size() {
+        return mIds.size();
+    }
+}
@@ -0,0 +1,379 @@
+package uk.trigpointing.android.types;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Binary, columnar alternative to the tab separated trig download.
+ *
+ * <pre>
+ * header (28 bytes, big-endian)
+ *   0  magic      "TUKB"
+ *   4  version    u16
+ *   6  flags      u16, zero
+ *   8  count      i32, number of trigs
+ *  12  originLat  i32, microdegrees
+ *  16  originLon  i32, microdegrees
+ *  20  bodySize   i32, bytes following the header
+ *  24  crc        i32, CRC32 of the body
+ * body
+ *   4 code dictionaries (type, condition, current, historic): u8 size, then u8 length + ASCII code per entry
+ *   zero padding to a multiple of 4 bytes
+ *   id[count]        i32
+ *   lat[count]       i32, microdegrees north of originLat
+ *   lon[count]       i32, microdegrees east of originLon
+ *   name[count]      i32, offset into the string pool
+ *   waypoint[count]  i32, offset into the string pool
+ *   fb[count]        i32, offset into the string pool
+ *   type[count]      u8, index into the type dictionary
+ *   condition[count] u8
+ *   current[count]   u8
+ *   historic[count]  u8
+ *   string pool      u16 length + UTF-8 bytes per distinct string
+ * </pre>
+ *
+ * Every column is fixed width, so any field of any row can be read in place from a
+ * memory-mapped file.  Rows are ordered by latitude, matching {@link TrigSnapshot}.
+ */
+public final class TrigBundle {
+
+    public static final int  VERSION     = 1;
+    static final int         MAGIC       = 0x54554B42; // "TUKB"
+    static final int         HEADER_SIZE = 28;
+    private static final int DICTIONARIES = 4;
+    private static final double MICRO    = 1e6;
+
+    private TrigBundle() {
+    }
+
+
+    /**
+     * Accumulates trigs using the same codes as the tab separated download, then writes a bundle
+     */
+    public static final class Writer {
+        private final List<Row> mRows = new ArrayList<>();
+
+        private static final class Row {
+            final int id;
+            final String waypoint, name, type, fb, condition, current, historic;
+            final int lat, lon;
+
+            Row(int id, String waypoint, String name, int lat, int lon, String type, String fb,
+                String condition, String current, String historic) {
+                this.id = id;
+                this.waypoint = waypoint;
+                this.name = name;
+                this.lat = lat;
+                this.lon = lon;
+                this.type = type;
+                this.fb = fb;
+                this.condition = condition;
+                this.current = current;
+                this.historic = historic;
+            }
+        }
+
+        public Writer add(long id, String waypoint, String name, double lat, double lon, String type,
+                          String fb, String condition, String current, String historic) {
+            mRows.add(new Row((int) id, nonNull(waypoint), nonNull(name),
+                    (int) Math.round(lat * MICRO), (int) Math.round(lon * MICRO),
+                    nonNull(type), nonNull(fb), nonNull(condition), nonNull(current), nonNull(historic)));
+            return this;
+        }
+
+        public int size() {
+            return mRows.size();
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            List<Row> rows = new ArrayList<>(mRows);
+            rows.sort((a, b) -> a.lat != b.lat ? Integer.compare(a.lat, b.lat) : Integer.compare(a.id, b.id));
+            int n = rows.size();
+
+            int originLat = 0;
+            int originLon = 0;
+            if (n > 0) {
+                originLat = Integer.MAX_VALUE;
+                originLon = Integer.MAX_VALUE;
+                for (Row r : rows) {
+                    originLat = Math.min(originLat, r.lat);
+                    originLon = Math.min(originLon, r.lon);
+                }
+            }
+
+            List<Map<String, Integer>> dicts = new ArrayList<>();
+            for (int d = 0; d < DICTIONARIES; d++) {
+                dicts.add(new LinkedHashMap<>());
+            }
+            Map<String, Integer> pool = new HashMap<>();
+            ByteBuffer poolBytes = ByteBuffer.allocate(1024);
+            int[] nameOffset = new int[n];
+            int[] waypointOffset = new int[n];
+            int[] fbOffset = new int[n];
+            byte[][] codes = new byte[DICTIONARIES][n];
+            for (int i = 0; i < n; i++) {
+                Row r = rows.get(i);
+                codes[0][i] = code(dicts.get(0), r.type);
+                codes[1][i] = code(dicts.get(1), r.condition);
+                codes[2][i] = code(dicts.get(2), r.current);
+                codes[3][i] = code(dicts.get(3), r.historic);
+                poolBytes = intern(pool, poolBytes, r.name);
+                nameOffset[i] = pool.get(r.name);
+                poolBytes = intern(pool, poolBytes, r.waypoint);
+                waypointOffset[i] = pool.get(r.waypoint);
+                poolBytes = intern(pool, poolBytes, r.fb);
+                fbOffset[i] = pool.get(r.fb);
+            }
+
+            int dictSize = 0;
+            for (Map<String, Integer> dict : dicts) {
+                dictSize += 1;
+                for (String c : dict.keySet()) {
+                    dictSize += 1 + c.getBytes(StandardCharsets.US_ASCII).length;
+                }
+            }
+            int columnsStart = align(dictSize);
+            int bodySize = columnsStart + n * (6 * 4 + DICTIONARIES) + poolBytes.position();
+
+            ByteBuffer body = ByteBuffer.allocate(bodySize).order(ByteOrder.BIG_ENDIAN);
+            for (Map<String, Integer> dict : dicts) {
+                body.put((byte) dict.size());
+                for (String c : dict.keySet()) {
+                    byte[] b = c.getBytes(StandardCharsets.US_ASCII);
+                    body.put((byte) b.length).put(b);
+                }
+            }
+            body.position(columnsStart);
+            for (Row r : rows) body.putInt(r.id);
+            for (Row r : rows) body.putInt(r.lat - originLat);
+            for (Row r : rows) body.putInt(r.lon - originLon);
+            for (int v : nameOffset) body.putInt(v);
+            for (int v : waypointOffset) body.putInt(v);
+            for (int v : fbOffset) body.putInt(v);
+            for (byte[] column : codes) body.put(column);
+            body.put(poolBytes.array(), 0, poolBytes.position());
+
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), 0, bodySize);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+            header.putInt(MAGIC)
+                  .putShort((short) VERSION)
+                  .putShort((short) 0)
+                  .putInt(n)
+                  .putInt(originLat)
+                  .putInt(originLon)
+                  .putInt(bodySize)
+                  .putInt((int) crc.getValue());
+            out.write(header.array());
+            out.write(body.array(), 0, bodySize);
+        }
+
+        private static byte code(Map<String, Integer> dict, String code) throws IOException {
+            Integer index = dict.get(code);
+            if (index == null) {
+                if (dict.size() == 255) {
+                    throw new IOException("Too many distinct codes: " + code);
+                }
+                index = dict.size();
+                dict.put(code, index);
+            }
+            return (byte) (int) index;
+        }
+
+        private static ByteBuffer intern(Map<String, Integer> pool, ByteBuffer bytes, String s) throws IOException {
+            if (pool.containsKey(s)) {
+                return bytes;
+            }
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            if (b.length > 0xFFFF) {
+                throw new IOException("String too long for bundle");
+            }
+            if (bytes.remaining() < b.length + 2) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(bytes.capacity() * 2, bytes.position() + b.length + 2));
+                bigger.put(bytes.array(), 0, bytes.position());
+                bytes = bigger;
+            }
+            pool.put(s, bytes.position());
+            bytes.putShort((short) b.length).put(b);
+            return bytes;
+        }
+
+        private static String nonNull(String s) {
+            return s == null ? "" : s;
+        }
+    }
+
+
+    /**
+     * Read-only view of a bundle, typically memory-mapped from a file.  Nothing is
+     * decoded up front beyond the small code dictionaries.
+     */
+    public static final class Reader {
+        private final ByteBuffer mBuf;
+        private final int mCount;
+        private final int mOriginLat;
+        private final int mOriginLon;
+        private final int mId, mLat, mLon, mName, mWaypoint, mFb, mType, mCondition, mCurrent, mHistoric, mPool;
+        private final String[][] mCodes = new String[DICTIONARIES][];
+        private final Trig.Physical[] mTypes;
+        private final Condition[] mConditions;
+        private final Trig.Current[] mCurrents;
+        private final Trig.Historic[] mHistorics;
+
+        /**
+         * Map a bundle file into memory and check it
+         *
+         * @throws IOException if the file cannot be read or is not a valid bundle
+         */
+        public static Reader open(File file) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 FileChannel channel = raf.getChannel()) {
+                return new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        /**
+         * @throws IOException if the buffer does not hold a valid bundle
+         */
+        public static Reader wrap(ByteBuffer buf) throws IOException {
+            return new Reader(buf);
+        }
+
+        private Reader(ByteBuffer buf) throws IOException {
+            mBuf = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+            mBuf.position(0);
+            if (mBuf.limit() < HEADER_SIZE || mBuf.getInt(0) != MAGIC) {
+                throw new IOException("Not a trig bundle");
+            }
+            int version = mBuf.getShort(4) & 0xFFFF;
+            if (version != VERSION) {
+                throw new IOException("Unsupported trig bundle version " + version);
+            }
+            mCount = mBuf.getInt(8);
+            mOriginLat = mBuf.getInt(12);
+            mOriginLon = mBuf.getInt(16);
+            int bodySize = mBuf.getInt(20);
+            if (mCount < 0 || bodySize < 0 || mBuf.limit() - HEADER_SIZE != bodySize) {
+                throw new IOException("Truncated trig bundle");
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer body = mBuf.duplicate();
+            body.position(HEADER_SIZE);
+            crc.update(body);
+            if ((int) crc.getValue() != mBuf.getInt(24)) {
+                throw new IOException("Trig bundle checksum mismatch");
+            }
+
+            try {
+                int pos = HEADER_SIZE;
+                for (int d = 0; d < DICTIONARIES; d++) {
+                    int size = mBuf.get(pos++) & 0xFF;
+                    mCodes[d] = new String[size];
+                    for (int i = 0; i < size; i++) {
+                        int len = mBuf.get(pos++) & 0xFF;
+                        byte[] b = new byte[len];
+                        for (int j = 0; j < len; j++) {
+                            b[j] = mBuf.get(pos++);
+                        }
+                        mCodes[d][i] = new String(b, StandardCharsets.US_ASCII);
+                    }
+                }
+                int columns = HEADER_SIZE + align(pos - HEADER_SIZE);
+                mId        = columns;
+                mLat       = mId       + 4 * mCount;
+                mLon       = mLat      + 4 * mCount;
+                mName      = mLon      + 4 * mCount;
+                mWaypoint  = mName     + 4 * mCount;
+                mFb        = mWaypoint + 4 * mCount;
+                mType      = mFb       + 4 * mCount;
+                mCondition = mType     + mCount;
+                mCurrent   = mCondition + mCount;
+                mHistoric  = mCurrent  + mCount;
+                mPool      = mHistoric + mCount;
+                if (mPool > mBuf.limit()) {
+                    throw new IOException("Truncated trig bundle");
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException("Truncated trig bundle", e);
+            }
+
+            mTypes = new Trig.Physical[mCodes[0].length];
+            for (int i = 0; i < mTypes.length; i++) mTypes[i] = Trig.Physical.fromCode(mCodes[0][i]);
+            mConditions = new Condition[mCodes[1].length];
+            for (int i = 0; i < mConditions.length; i++) mConditions[i] = Condition.fromCode(mCodes[1][i]);
+            mCurrents = new Trig.Current[mCodes[2].length];
+            for (int i = 0; i < mCurrents.length; i++) mCurrents[i] = Trig.Current.fromCode(mCodes[2][i]);
+            mHistorics = new Trig.Historic[mCodes[3].length];
+            for (int i = 0; i < mHistorics.length; i++) mHistorics[i] = Trig.Historic.fromCode(mCodes[3][i]);
+        }
+
+        public int size()                        { return mCount; }
+        public long id(int row)                  { return mBuf.getInt(mId + 4 * row); }
+        public double lat(int row)               { return (mOriginLat + mBuf.getInt(mLat + 4 * row)) / MICRO; }
+        public double lon(int row)               { return (mOriginLon + mBuf.getInt(mLon + 4 * row)) / MICRO; }
+        public String name(int row)              { return string(mBuf.getInt(mName + 4 * row)); }
+        public String waypoint(int row)          { return string(mBuf.getInt(mWaypoint + 4 * row)); }
+        public String fb(int row)                { return string(mBuf.getInt(mFb + 4 * row)); }
+        public Trig.Physical type(int row)       { return mTypes[mBuf.get(mType + row) & 0xFF]; }
+        public Condition condition(int row)      { return mConditions[mBuf.get(mCondition + row) & 0xFF]; }
+        public Trig.Current current(int row)     { return mCurrents[mBuf.get(mCurrent + row) & 0xFF]; }
+        public Trig.Historic historic(int row)   { return mHistorics[mBuf.get(mHistoric + row) & 0xFF]; }
+
+        private String string(int offset) {
+            int pos = mPool + offset;
+            int len = mBuf.getShort(pos) & 0xFFFF;
+            byte[] b = new byte[len];
+            for (int i = 0; i < len; i++) {
+                b[i] = mBuf.get(pos + 2 + i);
+            }
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Build a trig snapshot straight from the bundle.  Logs and marks are not part of
+         * the bundle, so are taken from the supplied maps.
+         *
+         * @param logged   logged condition by trig id, for trigs the user has logged
+         * @param unsynced unsynced log condition by trig id
+         * @param marked   ids of marked trigs
+         */
+        public TrigSnapshot toSnapshot(Map<Long, Condition> logged, Map<Long, Condition> unsynced, Set<Long> marked) {
+            TrigSnapshot.Builder builder = new TrigSnapshot.Builder(mCount);
+            for (int row = 0; row < mCount; row++) {
+                long id = id(row);
+                Condition log = logged.get(id);
+                builder.add(id, name(row), lat(row), lon(row), type(row), condition(row),
+                        log == null ? Condition.TRIGNOTLOGGED : log,
+                        unsynced.get(id),
+                        marked.contains(id));
+            }
+            return builder.build();
+        }
+    }
+
+
+    private static int align(int size) {
+        return (size + 3) & ~3;
+    }
+
+    /**
+     * @return true if the bytes look like the start of a bundle
+     */
+    public static boolean isBundle(byte[] start) {
+        return start.length >= 4 && ByteBuffer.wrap(start).getInt(0) == MAGIC;
+    }
+}
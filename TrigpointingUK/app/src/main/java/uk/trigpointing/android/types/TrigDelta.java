@@ -0,0 +1,123 @@
+package uk.trigpointing.android.types;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes to the trig list between two dataset versions, as sent by
+ * down-android-trigs.php when asked for the trigs changed since a version.
+ *
+ * <pre>
+ * DELTA  fromVersion  toVersion
+ * U  id  waypoint  name  lat  lon  type  fb  condition  current  historic
+ * D  id
+ * </pre>
+ *
+ * Fields are tab separated.  U rows add or replace a trig, using the same columns as
+ * the full trig list; D rows are tombstones for deleted trigs.
+ */
+public class TrigDelta {
+
+    public static final String HEADER = "DELTA";
+
+    private final String mFromVersion;
+    private final String mToVersion;
+    private final List<Row> mUpserts = new ArrayList<>();
+    private final List<Long> mDeletes = new ArrayList<>();
+
+    /** An added or changed trig */
+    public static class Row {
+        public final long id;
+        public final String waypoint;
+        public final String name;
+        public final double lat;
+        public final double lon;
+        public final Trig.Physical type;
+        public final String fb;
+        public final Condition condition;
+        public final Trig.Current current;
+        public final Trig.Historic historic;
+
+        Row(String[] csv) {
+            id        = Long.parseLong(csv[1]);
+            waypoint  = csv[2];
+            name      = csv[3];
+            lat       = Double.parseDouble(csv[4]);
+            lon       = Double.parseDouble(csv[5]);
+            type      = Trig.Physical.fromCode(csv[6]);
+            fb        = csv[7];
+            condition = Condition.fromCode(csv[8]);
+            current   = Trig.Current.fromCode(csv[9]);
+            historic  = Trig.Historic.fromCode(csv[10]);
+        }
+    }
+
+    private TrigDelta(String fromVersion, String toVersion) {
+        mFromVersion = fromVersion;
+        mToVersion = toVersion;
+    }
+
+    /**
+     * @return true if the first line of a trig download introduces a delta
+     */
+    public static boolean isDelta(String firstLine) {
+        return firstLine != null && firstLine.startsWith(HEADER + "\t");
+    }
+
+    /**
+     * Read a delta whose header line has already been read
+     *
+     * @throws IOException if the payload is malformed.  A delta is applied all or
+     *                     nothing, so unlike the full list no rows are skipped.
+     */
+    public static TrigDelta parse(String header, BufferedReader br) throws IOException {
+        String[] head = header.split("\t");
+        if (head.length < 3 || !HEADER.equals(head[0])) {
+            throw new IOException("Invalid delta header: " + header);
+        }
+        TrigDelta delta = new TrigDelta(head[1], head[2]);
+        String line;
+        int lineNo = 1;
+        while ((line = br.readLine()) != null) {
+            lineNo++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String[] csv = line.split("\t", -1);
+            try {
+                if ("U".equals(csv[0]) && csv.length >= 11) {
+                    delta.mUpserts.add(new Row(csv));
+                } else if ("D".equals(csv[0]) && csv.length >= 2) {
+                    delta.mDeletes.add(Long.parseLong(csv[1]));
+                } else {
+                    throw new IOException("Invalid delta row at line " + lineNo + ": " + line);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid number at line " + lineNo + ": " + line, e);
+            }
+        }
+        return delta;
+    }
+
+    public String getFromVersion() {
+        return mFromVersion;
+    }
+
+    public String getToVersion() {
+        return mToVersion;
+    }
+
+    public List<Row> getUpserts() {
+        return mUpserts;
+    }
+
+    public List<Long> getDeletes() {
+        return mDeletes;
+    }
+
+    public int size() {
+        return mUpserts.size() + mDeletes.size();
+    }
+}
@@ -0,0 +1,373 @@
+package uk.trigpointing.android.types;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * Immutable, process-wide copy of the trig table held in parallel primitive arrays,
+ * so that the map, nearest list and AR view can be served without touching SQLite
+ * or allocating an object per trig.
+ *
+ * Rows are sorted by latitude, so a bounding box query is a binary search followed
+ * by a scan of one latitude band.  The current snapshot is swapped atomically
+ * whenever the trig data changes; readers simply take a reference and use it.
+ */
+public final class TrigSnapshot {
+
+    /** Value in the unsynced column when a trig has no unsynced log */
+    public static final byte NONE = -1;
+
+    private static final Trig.Physical[] PHYSICALS  = Trig.Physical.values();
+    private static final Condition[]     CONDITIONS = Condition.values();
+
+    private static final AtomicReference<TrigSnapshot> sCurrent = new AtomicReference<>();
+
+    private final int      mSize;
+    private final int[]    mId;
+    private final double[] mLat;
+    private final double[] mLon;
+    private final byte[]   mType;
+    private final byte[]   mCondition;
+    private final byte[]   mLogged;
+    private final byte[]   mUnsynced;
+    private final boolean[] mMarked;
+    private final int[]    mName;
+    private final String[] mNames;
+    // Row indices ordered by trig id, for lookups by id
+    private final int[]    mById;
+
+    /** Decides whether a row should be returned, eg from the user's filter settings */
+    public interface Predicate {
+        boolean accept(TrigSnapshot snapshot, int row);
+    }
+
+    public static final Predicate ALL = (snapshot, row) -> true;
+
+
+    private TrigSnapshot(int size, int[] id, double[] lat, double[] lon, byte[] type, byte[] condition,
+                         byte[] logged, byte[] unsynced, boolean[] marked, int[] name, String[] names, int[] byId) {
+        mSize      = size;
+        mId        = id;
+        mLat       = lat;
+        mLon       = lon;
+        mType      = type;
+        mCondition = condition;
+        mLogged    = logged;
+        mUnsynced  = unsynced;
+        mMarked    = marked;
+        mName      = name;
+        mNames     = names;
+        mById      = byId;
+    }
+
+    /**
+     * The current snapshot, or null if none has been built yet
+     */
+    public static TrigSnapshot current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Replace the current snapshot (null to discard it)
+     */
+    public static void set(TrigSnapshot snapshot) {
+        sCurrent.set(snapshot);
+    }
+
+    /**
+     * Atomically replace the current snapshot with a modified copy.  Does nothing if
+     * there is no current snapshot.
+     */
+    public static void update(UnaryOperator<TrigSnapshot> change) {
+        TrigSnapshot prev;
+        TrigSnapshot next;
+        do {
+            prev = sCurrent.get();
+            if (prev == null) {
+                return;
+            }
+            next = change.apply(prev);
+        } while (!sCurrent.compareAndSet(prev, next));
+    }
+
+
+    public int size()                  { return mSize; }
+    public long id(int row)            { return mId[row]; }
+    public double lat(int row)         { return mLat[row]; }
+    public double lon(int row)         { return mLon[row]; }
+    public String name(int row)        { return mNames[mName[row]]; }
+    public Trig.Physical type(int row) { return PHYSICALS[mType[row]]; }
+    public Condition condition(int row){ return CONDITIONS[mCondition[row]]; }
+    public Condition logged(int row)   { return CONDITIONS[mLogged[row]]; }
+    public boolean isMarked(int row)   { return mMarked[row]; }
+    public boolean isUnsynced(int row) { return mUnsynced[row] != NONE; }
+
+    /**
+     * @return condition of the user's unsynced log for this trig, or null if there is none
+     */
+    public Condition unsynced(int row) {
+        return mUnsynced[row] == NONE ? null : CONDITIONS[mUnsynced[row]];
+    }
+
+    /**
+     * @return row holding the given trig, or -1 if not present
+     */
+    public int indexOf(long id) {
+        int lo = 0;
+        int hi = mSize - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midId = mId[mById[mid]];
+            if (midId < id) {
+                lo = mid + 1;
+            } else if (midId > id) {
+                hi = mid - 1;
+            } else {
+                return mById[mid];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return first row with latitude >= lat
+     */
+    public int lowerBound(double lat) {
+        int lo = 0;
+        int hi = mSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mLat[mid] < lat) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Find trigs inside a box, keeping the limit nearest to its centre when there are
+     * more.  Matches the rows returned by DbHelper.fetchTrigMapList.
+     *
+     * @return row indices, nearest limit first but otherwise unordered
+     */
+    public int[] queryBox(double south, double west, double north, double east, Predicate predicate, int limit) {
+        int[] rows = new int[16];
+        int count = 0;
+        for (int row = lowerBound(south); row < mSize && mLat[row] <= north; row++) {
+            double lon = mLon[row];
+            if (lon < west || lon > east || !predicate.accept(this, row)) {
+                continue;
+            }
+            if (count == rows.length) {
+                rows = Arrays.copyOf(rows, count * 2);
+            }
+            rows[count++] = row;
+        }
+        if (count > limit) {
+            double centreLat = (north + south) / 2.0;
+            double centreLon = (east + west) / 2.0;
+            double[] keys = new double[count];
+            for (int i = 0; i < count; i++) {
+                double dLat = mLat[rows[i]] - centreLat;
+                double dLon = mLon[rows[i]] - centreLon;
+                keys[i] = dLat * dLat + dLon * dLon;
+            }
+            select(keys, rows, count, limit);
+            count = limit;
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * Partially order keys/rows in place so that the k smallest keys come first
+     */
+    private static void select(double[] keys, int[] rows, int n, int k) {
+        int lo = 0;
+        int hi = n - 1;
+        while (lo < hi) {
+            double pivot = keys[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j) {
+                    double tk = keys[i]; keys[i] = keys[j]; keys[j] = tk;
+                    int tr = rows[i]; rows[i] = rows[j]; rows[j] = tr;
+                    i++;
+                    j--;
+                }
+            }
+            if (k - 1 <= j) {
+                hi = j;
+            } else if (k - 1 >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return a copy of this snapshot with the trig marked or unmarked
+     */
+    public TrigSnapshot withMarked(long id, boolean marked) {
+        int row = indexOf(id);
+        if (row < 0 || mMarked[row] == marked) {
+            return this;
+        }
+        boolean[] copy = mMarked.clone();
+        copy[row] = marked;
+        return new TrigSnapshot(mSize, mId, mLat, mLon, mType, mCondition, mLogged, mUnsynced, copy, mName, mNames, mById);
+    }
+
+    /**
+     * @return a copy of this snapshot with the trig's unsynced log condition changed (null for none)
+     */
+    public TrigSnapshot withUnsynced(long id, Condition unsynced) {
+        int row = indexOf(id);
+        byte value = unsynced == null ? NONE : (byte) unsynced.ordinal();
+        if (row < 0 || mUnsynced[row] == value) {
+            return this;
+        }
+        byte[] copy = mUnsynced.clone();
+        copy[row] = value;
+        return new TrigSnapshot(mSize, mId, mLat, mLon, mType, mCondition, mLogged, copy, mMarked, mName, mNames, mById);
+    }
+
+    /**
+     * @return a copy of this snapshot with the trig's logged condition changed
+     */
+    public TrigSnapshot withLogged(long id, Condition logged) {
+        int row = indexOf(id);
+        if (row < 0 || mLogged[row] == (byte) logged.ordinal()) {
+            return this;
+        }
+        byte[] copy = mLogged.clone();
+        copy[row] = (byte) logged.ordinal();
+        return new TrigSnapshot(mSize, mId, mLat, mLon, mType, mCondition, copy, mUnsynced, mMarked, mName, mNames, mById);
+    }
+
+
+    /**
+     * Accumulates trigs in any order and produces a latitude sorted snapshot
+     */
+    public static final class Builder {
+        private int      mCount = 0;
+        private int[]    mId;
+        private double[] mLat;
+        private double[] mLon;
+        private byte[]   mType;
+        private byte[]   mCondition;
+        private byte[]   mLogged;
+        private byte[]   mUnsynced;
+        private boolean[] mMarked;
+        private int[]    mName;
+        private final Map<String, Integer> mNameIndex = new HashMap<>();
+        private String[] mNames = new String[16];
+
+        public Builder(int capacity) {
+            capacity = Math.max(capacity, 16);
+            mId        = new int[capacity];
+            mLat       = new double[capacity];
+            mLon       = new double[capacity];
+            mType      = new byte[capacity];
+            mCondition = new byte[capacity];
+            mLogged    = new byte[capacity];
+            mUnsynced  = new byte[capacity];
+            mMarked    = new boolean[capacity];
+            mName      = new int[capacity];
+        }
+
+        public Builder add(long id, String name, double lat, double lon, Trig.Physical type,
+                           Condition condition, Condition logged, Condition unsynced, boolean marked) {
+            if (mCount == mId.length) {
+                int capacity = mCount * 2;
+                mId        = Arrays.copyOf(mId, capacity);
+                mLat       = Arrays.copyOf(mLat, capacity);
+                mLon       = Arrays.copyOf(mLon, capacity);
+                mType      = Arrays.copyOf(mType, capacity);
+                mCondition = Arrays.copyOf(mCondition, capacity);
+                mLogged    = Arrays.copyOf(mLogged, capacity);
+                mUnsynced  = Arrays.copyOf(mUnsynced, capacity);
+                mMarked    = Arrays.copyOf(mMarked, capacity);
+                mName      = Arrays.copyOf(mName, capacity);
+            }
+            mId[mCount]        = (int) id;
+            mLat[mCount]       = lat;
+            mLon[mCount]       = lon;
+            mType[mCount]      = (byte) type.ordinal();
+            mCondition[mCount] = (byte) condition.ordinal();
+            mLogged[mCount]    = (byte) logged.ordinal();
+            mUnsynced[mCount]  = unsynced == null ? NONE : (byte) unsynced.ordinal();
+            mMarked[mCount]    = marked;
+            mName[mCount]      = intern(name == null ? "" : name);
+            mCount++;
+            return this;
+        }
+
+        private int intern(String name) {
+            Integer index = mNameIndex.get(name);
+            if (index == null) {
+                index = mNameIndex.size();
+                if (index == mNames.length) {
+                    mNames = Arrays.copyOf(mNames, index * 2);
+                }
+                mNames[index] = name;
+                mNameIndex.put(name, index);
+            }
+            return index;
+        }
+
+        public TrigSnapshot build() {
+            int n = mCount;
+            // Order rows by latitude
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(mLat[a], mLat[b]));
+
+            int[]    id        = new int[n];
+            double[] lat       = new double[n];
+            double[] lon       = new double[n];
+            byte[]   type      = new byte[n];
+            byte[]   condition = new byte[n];
+            byte[]   logged    = new byte[n];
+            byte[]   unsynced  = new byte[n];
+            boolean[] marked   = new boolean[n];
+            int[]    name      = new int[n];
+            for (int i = 0; i < n; i++) {
+                int src = order[i];
+                id[i]        = mId[src];
+                lat[i]       = mLat[src];
+                lon[i]       = mLon[src];
+                type[i]      = mType[src];
+                condition[i] = mCondition[src];
+                logged[i]    = mLogged[src];
+                unsynced[i]  = mUnsynced[src];
+                marked[i]    = mMarked[src];
+                name[i]      = mName[src];
+            }
+
+            // Secondary index ordered by trig id
+            Integer[] byIdBoxed = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                byIdBoxed[i] = i;
+            }
+            Arrays.sort(byIdBoxed, (a, b) -> Integer.compare(id[a], id[b]));
+            int[] byId = new int[n];
+            for (int i = 0; i < n; i++) {
+                byId[i] = byIdBoxed[i];
+            }
+
+            return new TrigSnapshot(n, id, lat, lon, type, condition, logged, unsynced, marked,
+                    name, Arrays.copyOf(mNames, mNameIndex.size()), byId);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package uk.trigpointing.android;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.trigpointing.android.types.Condition;
+import uk.trigpointing.android.types.Trig;
+
+/**
+ * Unit tests for TrigImportPipeline
+ * Testing ordering, skipping of bad rows, backpressure, failure and cancellation
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TrigImportPipelineTest {
+
+    private static String line(int id) {
+        return id + "\tTP" + id + "\tTrig " + id + "\t54." + id + "\t-3.5\tPI\t\tG\tP\t2";
+    }
+
+    private static String list(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= count; i++) {
+            sb.append(line(i)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** Counts the lines handed to the pipeline */
+    private static class CountingReader extends BufferedReader {
+        final AtomicInteger lines = new AtomicInteger();
+
+        CountingReader(String text) {
+            super(new StringReader(text));
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            String line = super.readLine();
+            if (line != null) {
+                lines.incrementAndGet();
+            }
+            return line;
+        }
+    }
+
+    @Test
+    public void testImportsEveryTrigInOrder() throws IOException {
+        int count = TrigImportPipeline.BATCH_SIZE * 5 + 17;
+        List<Long> ids = new ArrayList<>();
+        int written = new TrigImportPipeline().run(new BufferedReader(new StringReader(list(count))),
+                record -> ids.add(record.id));
+
+        assertEquals(count, written);
+        assertEquals(count, ids.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i + 1, (long) ids.get(i));
+        }
+    }
+
+    @Test
+    public void testParsesColumns() throws IOException {
+        List<String> seen = new ArrayList<>();
+        new TrigImportPipeline().run(new BufferedReader(new StringReader(
+                "42\tTP0042\tHelvellyn\t54.527154\t-3.016434\tFB\tS1234\tS\tA\t3\n")),
+                record -> {
+                    assertEquals(42, record.id);
+                    assertEquals("TP0042", record.waypoint);
+                    assertEquals("Helvellyn", record.name);
+                    assertEquals(54.527154, record.lat, 0.0);
+                    assertEquals(-3.016434, record.lon, 0.0);
+                    assertEquals(Trig.Physical.FBM, record.type);
+                    assertEquals("S1234", record.fb);
+                    assertEquals(Condition.SLIGHTLYDAMAGED, record.condition);
+                    assertEquals(Trig.Current.ACTIVE, record.current);
+                    assertEquals(Trig.Historic.THIRDORDER, record.historic);
+                    seen.add(record.name);
+                });
+        assertEquals(1, seen.size());
+    }
+
+    @Test
+    public void testSkipsInvalidLines() throws IOException {
+        String text = line(1) + "\n"
+                + "2\tTP2\tToo short\n"
+                + "3\tTP3\tNo position\t\t\tPI\t\tG\tP\t2\n"
+                + "x\tTP4\tBad id\t54\t-3\tPI\t\tG\tP\t2\n"
+                + line(5) + "\n"
+                + "\n"
+                + line(6) + "\n";
+        List<Long> ids = new ArrayList<>();
+        new TrigImportPipeline().run(new BufferedReader(new StringReader(text)), record -> ids.add(record.id));
+        // Stops at the first blank line, like the original reader
+        assertEquals(2, ids.size());
+        assertEquals(1, (long) ids.get(0));
+        assertEquals(5, (long) ids.get(1));
+    }
+
+    @Test
+    public void testSinkFailureStopsImport() {
+        CountingReader reader = new CountingReader(list(20000));
+        try {
+            new TrigImportPipeline().run(reader, record -> {
+                if (record.id == 100) {
+                    throw new IOException("disk full");
+                }
+            });
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+        assertTrue("Reader should be held back by the bounded queues", reader.lines.get() < 20000);
+    }
+
+    @Test
+    public void testReaderFailureIsReported() {
+        BufferedReader reader = new BufferedReader(new StringReader(list(10))) {
+            int lines = 0;
+
+            @Override
+            public String readLine() throws IOException {
+                if (++lines > 5) {
+                    throw new IOException("connection reset");
+                }
+                return super.readLine();
+            }
+        };
+        try {
+            new TrigImportPipeline().run(reader, record -> { });
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("connection reset", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCancel() throws IOException {
+        TrigImportPipeline pipeline = new TrigImportPipeline();
+        CountingReader reader = new CountingReader(list(20000));
+        AtomicInteger written = new AtomicInteger();
+        try {
+            pipeline.run(reader, record -> {
+                if (written.incrementAndGet() == 300) {
+                    pipeline.cancel();
+                }
+            });
+            fail("Expected CancellationException");
+        } catch (CancellationException e) {
+            assertTrue(pipeline.isCancelled());
+        }
+        assertTrue(written.get() < 20000);
+        assertTrue(reader.lines.get() < 20000);
+    }
+}
@@ -0,0 +1,169 @@
+package uk.trigpointing.android;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import uk.trigpointing.android.types.Condition;
+import uk.trigpointing.android.types.Trig;
+
+/**
+ * Compares the bulk TrigLoader with the original createTrig import path.
+ * Run with -DtrigLoaderBenchmarkRows=25000 for a full sized trig list.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TrigLoaderBenchmarkTest {
+
+    private static final int ROWS = Integer.getInteger("trigLoaderBenchmarkRows", 5000);
+
+    private DbHelper db;
+
+    @Before
+    public void setUp() {
+        Context context = RuntimeEnvironment.getApplication();
+        db = new DbHelper(context);
+        db.open();
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        db.deleteDatabase();
+    }
+
+    private static final Trig.Physical[] TYPES = {Trig.Physical.PILLAR, Trig.Physical.FBM, Trig.Physical.BOLT};
+
+    private static void addRows(int count, RowSink sink) {
+        Random random = new Random(7);
+        for (int i = 1; i <= count; i++) {
+            sink.add(i, "Trig " + i, String.format("TP%04d", i),
+                    49 + random.nextDouble() * 12, -8 + random.nextDouble() * 10,
+                    TYPES[i % TYPES.length], Condition.GOOD, Trig.Current.PASSIVE, Trig.Historic.SECONDARY,
+                    i % 5 == 0 ? "S" + i : null);
+        }
+    }
+
+    private interface RowSink {
+        void add(long id, String name, String waypoint, double lat, double lon, Trig.Physical type,
+                 Condition condition, Trig.Current current, Trig.Historic historic, String fb);
+    }
+
+    private long loadWithCreateTrig(int count) {
+        long start = System.nanoTime();
+        db.mDb.beginTransaction();
+        try {
+            db.beginTrigImport();
+            addRows(count, (id, name, waypoint, lat, lon, type, condition, current, historic, fb) ->
+                    db.createTrig(id, name, waypoint, lat, lon, type, condition, Condition.TRIGNOTLOGGED, current, historic, fb));
+            db.endTrigImport();
+            db.mDb.setTransactionSuccessful();
+        } finally {
+            db.mDb.endTransaction();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long loadWithLoader(int count, int batchSize) {
+        long start = System.nanoTime();
+        try (DbHelper.TrigLoader loader = db.trigLoader(batchSize)) {
+            addRows(count, (id, name, waypoint, lat, lon, type, condition, current, historic, fb) ->
+                    loader.add(id, name, waypoint, lat, lon, type, condition, Condition.TRIGNOTLOGGED, current, historic, fb));
+            assertEquals(count, loader.getCount());
+            loader.finish();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private String dumpTrigTable() {
+        StringBuilder sb = new StringBuilder();
+        try (Cursor c = db.mDb.rawQuery("select * from " + DbHelper.TRIG_TABLE + " order by " + DbHelper.TRIG_ID, null)) {
+            while (c.moveToNext()) {
+                for (int col = 0; col < c.getColumnCount(); col++) {
+                    sb.append(c.getString(col)).append('\t');
+                }
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private int countTrigs() {
+        try (Cursor c = db.mDb.rawQuery("select count(*) from " + DbHelper.TRIG_TABLE, null)) {
+            c.moveToFirst();
+            return c.getInt(0);
+        }
+    }
+
+    @Test
+    public void testLoaderMatchesCreateTrig() {
+        loadWithCreateTrig(500);
+        String expected = dumpTrigTable();
+        loadWithLoader(500, 64);
+        assertEquals(expected, dumpTrigTable());
+    }
+
+    @Test
+    public void testAbandonedSingleTransactionLoadKeepsOldTrigs() {
+        loadWithLoader(100, 0);
+        try (DbHelper.TrigLoader loader = db.trigLoader(0)) {
+            loader.add(1, "Replacement", "TP0001", 52, -1, Trig.Physical.PILLAR, Condition.GOOD,
+                    Condition.TRIGNOTLOGGED, Trig.Current.PASSIVE, Trig.Historic.SECONDARY, null);
+            // no finish()
+        }
+        assertEquals(100, countTrigs());
+    }
+
+    @Test
+    public void testAbandonedSingleTransactionLoadKeepsVersion() {
+        loadWithLoader(100, 0);
+        db.setTrigDataVersion("v1");
+        try (DbHelper.TrigLoader loader = db.trigLoader(0)) {
+            loader.add(1, "Replacement", "TP0001", 52, -1, Trig.Physical.PILLAR, Condition.GOOD,
+                    Condition.TRIGNOTLOGGED, Trig.Current.PASSIVE, Trig.Historic.SECONDARY, null);
+            // no finish()
+        }
+        assertEquals("v1", db.getTrigDeltaBase());
+    }
+
+    @Test
+    public void testAbandonedBatchedLoadForcesFullDownload() {
+        loadWithLoader(100, 0);
+        db.setTrigDataVersion("v1");
+        assertEquals("v1", db.getTrigDeltaBase());
+        try (DbHelper.TrigLoader loader = db.trigLoader(10)) {
+            addRows(25, (id, name, waypoint, lat, lon, type, condition, current, historic, fb) ->
+                    loader.add(id, name, waypoint, lat, lon, type, condition, Condition.TRIGNOTLOGGED, current, historic, fb));
+            // fails part way, no finish()
+        }
+        assertEquals("Two batches committed", 20, countTrigs());
+        assertNull("Partial table isn't a base for a delta", db.getTrigDeltaBase());
+    }
+
+    @Test
+    public void testBenchmark() {
+        // Warm up both paths
+        loadWithCreateTrig(200);
+        loadWithLoader(200, 1000);
+
+        long createTrigNanos = loadWithCreateTrig(ROWS);
+        long loaderNanos = loadWithLoader(ROWS, 1000);
+        assertEquals(ROWS, countTrigs());
+
+        System.out.printf("createTrig: %d rows in %d ms, %.0f rows/sec%n",
+                ROWS, createTrigNanos / 1000000, ROWS * 1e9 / createTrigNanos);
+        System.out.printf("TrigLoader: %d rows in %d ms, %.0f rows/sec%n",
+                ROWS, loaderNanos / 1000000, ROWS * 1e9 / loaderNanos);
+    }
+}
@@ -0,0 +1,127 @@
+package uk.trigpointing.android.common;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.graphics.Bitmap;
+
+/**
+ * Unit tests for BitmapPool
+ * Testing matching by config and size, the byte budget and hit/miss counts
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BitmapPoolTest {
+
+    private static final int BYTES_100 = 100 * 100 * 4;
+
+    private BitmapPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new BitmapPool(BYTES_100 * 3);
+    }
+
+    private static Bitmap bitmap(int size, Bitmap.Config config) {
+        return Bitmap.createBitmap(size, size, config);
+    }
+
+    @Test
+    public void testTakeReturnsPooledBitmap() {
+        Bitmap b = bitmap(100, Bitmap.Config.ARGB_8888);
+        pool.put(b);
+        assertEquals(b.getAllocationByteCount(), pool.getSize());
+
+        assertSame(b, pool.take(BYTES_100, Bitmap.Config.ARGB_8888));
+        assertEquals(0, pool.getSize());
+        assertNull("Each bitmap is handed out once", pool.take(BYTES_100, Bitmap.Config.ARGB_8888));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+    }
+
+    @Test
+    public void testSmallerRequestUsesLargerBitmap() {
+        Bitmap b = bitmap(100, Bitmap.Config.ARGB_8888);
+        pool.put(b);
+        assertSame(b, pool.take(90 * 90 * 4, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void testTooSmallOrTooLargeIsNotUsed() {
+        pool.put(bitmap(100, Bitmap.Config.ARGB_8888));
+        assertNull("Too small", pool.take(BYTES_100 + 1, Bitmap.Config.ARGB_8888));
+        assertNull("Wastes too much", pool.take(BYTES_100 / 4, Bitmap.Config.ARGB_8888));
+        assertEquals(BYTES_100, pool.getSize());
+    }
+
+    @Test
+    public void testConfigMustMatch() {
+        pool.put(bitmap(100, Bitmap.Config.ARGB_8888));
+        assertNull(pool.take(100 * 100 * 2, Bitmap.Config.RGB_565));
+        Bitmap b = bitmap(100, Bitmap.Config.RGB_565);
+        pool.put(b);
+        assertSame(b, pool.take(100 * 100 * 2, Bitmap.Config.RGB_565));
+    }
+
+    @Test
+    public void testBestFitIsChosen() {
+        Bitmap big = bitmap(120, Bitmap.Config.ARGB_8888);
+        Bitmap exact = bitmap(100, Bitmap.Config.ARGB_8888);
+        pool.put(big);
+        pool.put(exact);
+        assertSame(exact, pool.take(BYTES_100, Bitmap.Config.ARGB_8888));
+        assertSame(big, pool.take(BYTES_100, Bitmap.Config.ARGB_8888));
+    }
+
+    @Test
+    public void testOldestAreRecycledOverBudget() {
+        Bitmap first = bitmap(100, Bitmap.Config.ARGB_8888);
+        pool.put(first);
+        pool.put(bitmap(100, Bitmap.Config.ARGB_8888));
+        pool.put(bitmap(100, Bitmap.Config.ARGB_8888));
+        assertFalse(first.isRecycled());
+
+        pool.put(bitmap(100, Bitmap.Config.ARGB_8888));
+        assertTrue("Oldest should be dropped", first.isRecycled());
+        assertEquals(BYTES_100 * 3, pool.getSize());
+        for (int i = 0; i < 3; i++) {
+            assertNotSame(first, pool.take(BYTES_100, Bitmap.Config.ARGB_8888));
+        }
+    }
+
+    @Test
+    public void testUnusableBitmapsAreRecycled() {
+        Bitmap immutable = bitmap(100, Bitmap.Config.ARGB_8888).copy(Bitmap.Config.ARGB_8888, false);
+        pool.put(immutable);
+        assertTrue(immutable.isRecycled());
+
+        Bitmap recycled = bitmap(100, Bitmap.Config.ARGB_8888);
+        recycled.recycle();
+        pool.put(recycled);
+        pool.put(null);
+        assertEquals(0, pool.getSize());
+    }
+
+    @Test
+    public void testPutTwiceIsIgnored() {
+        Bitmap b = bitmap(100, Bitmap.Config.ARGB_8888);
+        pool.put(b);
+        pool.put(b);
+        assertEquals(BYTES_100, pool.getSize());
+    }
+
+    @Test
+    public void testClear() {
+        Bitmap b = bitmap(100, Bitmap.Config.ARGB_8888);
+        pool.put(b);
+        pool.clear();
+        assertTrue(b.isRecycled());
+        assertEquals(0, pool.getSize());
+        assertNull(pool.take(BYTES_100, Bitmap.Config.ARGB_8888));
+    }
+}
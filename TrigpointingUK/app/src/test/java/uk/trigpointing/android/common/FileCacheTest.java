@@ -0,0 +1,208 @@
+package uk.trigpointing.android.common;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Unit tests for FileCache
+ * Testing collision free keys, atomic commits, LRU trimming and the journal
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class FileCacheTest {
+
+    private File root;
+    private Context context;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("filecache").toFile();
+        context = mock(Context.class);
+        when(context.getCacheDir()).thenReturn(root);
+    }
+
+    @After
+    public void tearDown() {
+        deleteAll(root);
+    }
+
+    private static void deleteAll(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        assertTrue(f.delete());
+    }
+
+    private static File put(FileCache cache, String url, int size) throws IOException {
+        File temp = cache.createTempFile();
+        try (OutputStream out = new FileOutputStream(temp)) {
+            out.write(new byte[size]);
+        }
+        return cache.commit(url, temp);
+    }
+
+    private static void write(File file, String text) throws IOException {
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testCollidingHashCodesGetDifferentFiles() {
+        // "Aa" and "BB" share a String.hashCode()
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        FileCache cache = new FileCache(context, "strings");
+        assertNotEquals(cache.getFile("Aa"), cache.getFile("BB"));
+        assertEquals("SHA-256 in hex", 64, cache.getFile("Aa").getName().length());
+    }
+
+    @Test
+    public void testCommitPublishesEntry() throws IOException {
+        FileCache cache = new FileCache(context, "strings");
+        File temp = cache.createTempFile();
+        write(temp, "hello");
+        assertFalse(cache.getFile("http://example.com/a").exists());
+
+        File file = cache.commit("http://example.com/a", temp);
+        assertEquals(cache.getFile("http://example.com/a"), file);
+        assertEquals("hello", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        assertFalse(temp.exists());
+        assertEquals(5, cache.size());
+
+        File again = cache.createTempFile();
+        write(again, "hi");
+        cache.commit("http://example.com/a", again);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        FileCache cache = new FileCache(context, "images", 3000);
+        put(cache, "a", 1000);
+        put(cache, "b", 1000);
+        put(cache, "c", 1000);
+        cache.getFile("a");
+        put(cache, "d", 1000);
+
+        assertTrue(cache.getFile("a").exists());
+        assertFalse("Least recently used should be evicted", cache.getFile("b").exists());
+        assertTrue(cache.getFile("c").exists());
+        assertTrue(cache.getFile("d").exists());
+        assertEquals(3000, cache.size());
+    }
+
+    @Test
+    public void testNewestEntryIsKeptEvenIfOversized() throws IOException {
+        FileCache cache = new FileCache(context, "images", 1000);
+        put(cache, "a", 500);
+        File big = put(cache, "big", 1500);
+        assertTrue(big.exists());
+        assertFalse(cache.getFile("a").exists());
+    }
+
+    @Test
+    public void testRemove() throws IOException {
+        FileCache cache = new FileCache(context, "images", 3000);
+        put(cache, "a", 1000);
+        cache.remove("a");
+        assertFalse(cache.getFile("a").exists());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testJournalIsReplayed() throws IOException {
+        FileCache cache = new FileCache(context, "images", 3000);
+        put(cache, "a", 1000);
+        put(cache, "b", 1000);
+        put(cache, "c", 1000);
+        cache.getFile("a");
+
+        // Copy the directory, as if the process had restarted
+        File copy = new File(root, "images2");
+        assertTrue(copy.mkdir());
+        File[] files = cache.getCacheDir().listFiles();
+        assertNotNull(files);
+        for (File f : files) {
+            Files.copy(f.toPath(), new File(copy, f.getName()).toPath());
+        }
+        FileCache reopened = new FileCache(context, "images2", 3000);
+        assertEquals(3000, reopened.size());
+        put(reopened, "d", 1000);
+        assertTrue(reopened.getFile("a").exists());
+        assertFalse("Access order should survive a restart", reopened.getFile("b").exists());
+    }
+
+    @Test
+    public void testFirstUseTidiesDirectory() throws IOException {
+        File dir = new File(root, "strings");
+        assertTrue(dir.mkdir());
+        File legacy = new File(dir, String.valueOf("http://example.com/a".hashCode()));
+        File temp = new File(dir, "entry123" + FileCache.TEMP_SUFFIX);
+        File unjournaled = new File(dir, FileCache.key("http://example.com/b"));
+        File photo = new File(dir, "12_I.jpg");
+        write(legacy, "old");
+        write(temp, "partial");
+        write(unjournaled, "written directly");
+        write(photo, "user data");
+
+        FileCache cache = new FileCache(context, "strings");
+        assertTrue("Constructing doesn't touch the directory", temp.exists());
+        assertEquals("Unjournaled entries are adopted", unjournaled.length(), cache.size());
+        assertFalse(legacy.exists());
+        assertFalse(temp.exists());
+        assertTrue(unjournaled.exists());
+        assertTrue(photo.exists());
+    }
+
+    @Test
+    public void testOtherFilesAreNeverEvicted() throws IOException {
+        FileCache cache = new FileCache(context, "logphotos", 1000);
+        File photo = new File(cache.getCacheDir(), "12_I.jpg");
+        write(photo, "user data");
+        put(cache, "a", 800);
+        put(cache, "b", 800);
+        assertTrue(photo.exists());
+        assertFalse(cache.getFile("a").exists());
+    }
+
+    @Test
+    public void testUnlimited() throws IOException {
+        FileCache cache = new FileCache(context, "logphotos", 0);
+        for (int i = 0; i < 10; i++) {
+            put(cache, "url" + i, 1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cache.getFile("url" + i).exists());
+        }
+    }
+
+    @Test
+    public void testClear() throws IOException {
+        FileCache cache = new FileCache(context, "images", 3000);
+        put(cache, "a", 100);
+        put(cache, "b", 100);
+        assertEquals(2, cache.clear());
+        assertEquals(0, cache.size());
+        assertFalse(cache.getFile("a").exists());
+
+        put(cache, "c", 100);
+        assertEquals(100, cache.size());
+    }
+}
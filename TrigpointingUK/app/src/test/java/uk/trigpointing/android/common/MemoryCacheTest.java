@@ -5,13 +5,26 @@ import static org.mockito.Mockito.*;
 
 import org.junit.Test;
 import org.junit.Before;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
 
 import android.graphics.Bitmap;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /**
  * Unit tests for MemoryCache class
- * Testing memory caching functionality with strings and bitmaps
+ * Testing memory caching functionality with strings and bitmaps, LRU eviction and thread safety
  */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
 public class MemoryCacheTest {
 
     private MemoryCache memoryCache;
@@ -223,4 +236,135 @@ public class MemoryCacheTest {
         assertNull("String is overwritten by bitmap with same key", memoryCache.getString(sharedKey));
         assertNull("Bitmap with same key should be null", memoryCache.getBitmap(sharedKey));
     }
+
+    private static String chars(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testStringEvictsLeastRecentlyUsed() {
+        // Room for 50 chars of strings
+        MemoryCache cache = new MemoryCache(1000, 100);
+        cache.put("a", chars(20));
+        cache.put("b", chars(20));
+        assertNotNull(cache.getString("a"));
+        cache.put("c", chars(20));
+
+        assertNull("Least recently used should be evicted", cache.getString("b"));
+        assertNotNull(cache.getString("a"));
+        assertNotNull(cache.getString("c"));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(80, cache.getStringSize());
+    }
+
+    @Test
+    public void testBudgetsAreSeparate() {
+        Bitmap bitmap = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        int bytes = bitmap.getAllocationByteCount();
+        MemoryCache cache = new MemoryCache(bytes * 2L, 100);
+
+        cache.put("bitmap1", bitmap);
+        cache.put("bitmap2", Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888));
+        for (int i = 0; i < 20; i++) {
+            cache.put("string" + i, chars(40));
+        }
+        assertSame("Strings must not evict bitmaps", bitmap, cache.getBitmap("bitmap1"));
+        assertNotNull(cache.getBitmap("bitmap2"));
+        assertEquals(bytes * 2L, cache.getBitmapSize());
+
+        cache.put("bitmap3", Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888));
+        assertNull("Least recently used bitmap should be evicted", cache.getBitmap("bitmap1"));
+        assertNotNull(cache.getBitmap("bitmap3"));
+        assertNotNull("Bitmaps must not evict strings", cache.getString("string19"));
+    }
+
+    @Test
+    public void testOversizedEntryIsNotCached() {
+        MemoryCache cache = new MemoryCache(1000, 100);
+        cache.put("small", chars(10));
+        cache.put("huge", chars(51));
+        assertNull(cache.getString("huge"));
+        assertEquals(10, cache.getString("small").length());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testOverwriteReplacesSize() {
+        MemoryCache cache = new MemoryCache(1000, 100);
+        cache.put("key", chars(40));
+        cache.put("key", chars(10));
+        assertEquals(20, cache.getStringSize());
+        cache.put("key", (String) null);
+        assertEquals(0, cache.getStringSize());
+        cache.put("key", chars(10));
+        cache.clear();
+        assertEquals(0, cache.getStringSize());
+    }
+
+    @Test
+    public void testHitAndMissCounters() {
+        memoryCache.put("present", "value");
+        memoryCache.getString("present");
+        memoryCache.getString("present");
+        memoryCache.getString("absent");
+        memoryCache.getBitmap("absent");
+        assertEquals(2, memoryCache.getHitCount());
+        assertEquals(2, memoryCache.getMissCount());
+        assertEquals(0, memoryCache.getEvictionCount());
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final int threads = 8;
+        final int operations = 20000;
+        final long budget = 2000;
+        final MemoryCache cache = new MemoryCache(1000, budget);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            futures.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                start.await();
+                for (int i = 0; i < operations; i++) {
+                    String key = "key" + random.nextInt(200);
+                    if (random.nextBoolean()) {
+                        cache.put(key, key + chars(random.nextInt(30)));
+                    } else {
+                        String value = cache.getString(key);
+                        if (value != null) {
+                            assertTrue("Value must belong to its key", value.startsWith(key));
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertTrue(cache.getStringSize() <= budget);
+        assertTrue(cache.getStringSize() > 0);
+        assertTrue(cache.getEvictionCount() > 0);
+        long gets = cache.getHitCount() + cache.getMissCount();
+        assertTrue(gets > 0 && gets < (long) threads * operations);
+
+        // Sizes must still add up after all that contention
+        long total = 0;
+        for (int i = 0; i < 200; i++) {
+            String value = cache.getString("key" + i);
+            if (value != null) {
+                total += 2L * value.length();
+            }
+        }
+        assertEquals(cache.getStringSize(), total);
+    }
 }
@@ -0,0 +1,285 @@
+package uk.trigpointing.android.common;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Unit tests for ResumableDownload
+ * Uses a stub HTTP server which can drop connections part way through a response
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class ResumableDownloadTest {
+
+    private static final int SIZE = 200 * 1024;
+
+    private TrigList trigs;
+    private StubHttpServer server;
+    private File dir;
+    private File target;
+    private final OkHttpClient client = new OkHttpClient();
+
+    /** The trig list, honouring Range and If-Range, and dropping connections on request */
+    private static class TrigList implements StubHttpServer.Handler {
+        volatile byte[] payload;
+        volatile String etag = "\"v1\"";
+        volatile String digest;
+        volatile int drops = 0;
+        volatile int dropAfter = 50 * 1024;
+        final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+
+        TrigList(byte[] payload) {
+            setPayload(payload);
+        }
+
+        void setPayload(byte[] payload) {
+            this.payload = payload;
+            try {
+                digest = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(payload));
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public synchronized StubHttpServer.Reply serve(StubHttpServer.Request request) {
+            String range = request.header("Range");
+            ranges.add(range);
+
+            byte[] body = payload;
+            int start = 0;
+            StubHttpServer.Reply reply;
+            if (range != null && etag != null && etag.equals(request.header("If-Range"))) {
+                start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                reply = StubHttpServer.Reply.status(206)
+                        .header("Content-Range", "bytes " + start + "-" + (body.length - 1) + "/" + body.length)
+                        .body(Arrays.copyOfRange(body, start, body.length));
+            } else {
+                reply = StubHttpServer.Reply.ok(body);
+            }
+            if (etag != null) {
+                reply.header("ETag", etag);
+            }
+            if (digest != null) {
+                reply.header("Digest", "SHA-256=" + digest);
+            }
+            reply.header("X-Trig-Version", "42");
+            if (drops > 0) {
+                drops--;
+                reply.cutAfter(dropAfter);
+            }
+            return reply;
+        }
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    private URL url() throws IOException {
+        return new URL(server.url("/down-android-trigs.php"));
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        trigs = new TrigList(randomBytes(SIZE, 1));
+        server = new StubHttpServer(trigs);
+        dir = Files.createTempDirectory("download").toFile();
+        target = new File(dir, "trigs.download");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                assertTrue(f.delete());
+            }
+        }
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void testCompleteDownload() throws IOException {
+        ResumableDownload download = new ResumableDownload(client, url(), target, "X-Trig-Version");
+        File file = download.fetch();
+        assertArrayEquals(trigs.payload, Files.readAllBytes(file.toPath()));
+        assertEquals("42", download.getHeader("X-Trig-Version"));
+        assertFalse(new File(target.getPath() + ".part").exists());
+        assertFalse(new File(target.getPath() + ".meta").exists());
+    }
+
+    @Test
+    public void testResumesAfterDroppedConnections() throws IOException {
+        trigs.drops = 2;
+        ResumableDownload download = new ResumableDownload(client, url(), target);
+        File file = download.fetch();
+
+        assertArrayEquals(trigs.payload, Files.readAllBytes(file.toPath()));
+        assertEquals("No byte should be downloaded twice", SIZE, download.getTransferred());
+        assertEquals(3, trigs.ranges.size());
+        assertNull(trigs.ranges.get(0));
+        assertEquals("bytes=51200-", trigs.ranges.get(1));
+        assertEquals("bytes=102400-", trigs.ranges.get(2));
+    }
+
+    @Test
+    public void testResumesInALaterCall() throws IOException {
+        trigs.drops = 100;
+        trigs.dropAfter = 30 * 1024;
+        try {
+            new ResumableDownload(client, url(), target).fetch();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        long partial = new File(target.getPath() + ".part").length();
+        assertTrue(partial > 0 && partial < SIZE);
+
+        trigs.drops = 0;
+        ResumableDownload download = new ResumableDownload(client, url(), target);
+        File file = download.fetch();
+        assertArrayEquals(trigs.payload, Files.readAllBytes(file.toPath()));
+        assertEquals(SIZE - partial, download.getTransferred());
+    }
+
+    @Test
+    public void testChangedResourceRestarts() throws IOException {
+        trigs.drops = 100;
+        try {
+            new ResumableDownload(client, url(), target).fetch();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+
+        trigs.drops = 0;
+        trigs.etag = "\"v2\"";
+        trigs.setPayload(randomBytes(SIZE + 1000, 2));
+        File file = new ResumableDownload(client, url(), target).fetch();
+        assertArrayEquals("Must not splice old and new versions", trigs.payload, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void testDifferentUrlRestarts() throws IOException {
+        trigs.drops = 100;
+        try {
+            new ResumableDownload(client, url(), target).fetch();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+
+        trigs.drops = 0;
+        trigs.ranges.clear();
+        URL other = new URL(url() + "?since=41");
+        File file = new ResumableDownload(client, other, target).fetch();
+        assertArrayEquals(trigs.payload, Files.readAllBytes(file.toPath()));
+        assertNull(trigs.ranges.get(0));
+    }
+
+    @Test
+    public void testChecksumMismatchDiscards() throws IOException {
+        String good = trigs.digest;
+        trigs.digest = Base64.getEncoder().encodeToString(new byte[32]);
+        try {
+            new ResumableDownload(client, url(), target).fetch();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Checksum"));
+        }
+        assertFalse(new File(target.getPath() + ".part").exists());
+
+        trigs.digest = good;
+        File file = new ResumableDownload(client, url(), target).fetch();
+        assertArrayEquals(trigs.payload, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void testCancelKeepsProgress() throws IOException {
+        ResumableDownload cancelled = new ResumableDownload(client, url(), target);
+        cancelled.setProgressListener((bytes, total) -> {
+            if (bytes >= 50 * 1024) {
+                cancelled.cancel();
+            }
+        });
+        try {
+            cancelled.fetch();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("cancelled"));
+        }
+        assertEquals("Not retried once cancelled", 1, trigs.ranges.size());
+        long partial = new File(target.getPath() + ".part").length();
+        assertTrue(partial > 0 && partial < SIZE);
+
+        ResumableDownload download = new ResumableDownload(client, url(), target);
+        File file = download.fetch();
+        assertArrayEquals(trigs.payload, Files.readAllBytes(file.toPath()));
+        assertEquals(SIZE - partial, download.getTransferred());
+    }
+
+    @Test
+    public void testNoValidatorRestarts() throws IOException {
+        trigs.etag = null;
+        trigs.drops = 1;
+        ResumableDownload download = new ResumableDownload(client, url(), target);
+        File file = download.fetch();
+
+        assertArrayEquals(trigs.payload, Files.readAllBytes(file.toPath()));
+        assertEquals(2, trigs.ranges.size());
+        assertNull("Unguarded range must not be asked for", trigs.ranges.get(1));
+        assertEquals(trigs.dropAfter + SIZE, download.getTransferred());
+    }
+
+    @Test
+    public void testPartWithoutLengthOrDigestRestarts() throws IOException {
+        // Left by an earlier run whose server sent neither
+        Files.write(new File(target.getPath() + ".part").toPath(), new byte[1000]);
+        Files.write(new File(target.getPath() + ".meta").toPath(),
+                ("url=" + url() + "\nvalidator=" + trigs.etag + "\n")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+
+        ResumableDownload download = new ResumableDownload(client, url(), target);
+        File file = download.fetch();
+        assertArrayEquals(trigs.payload, Files.readAllBytes(file.toPath()));
+        assertNull(trigs.ranges.get(0));
+        assertEquals(SIZE, download.getTransferred());
+    }
+
+    @Test
+    public void testResumeWithoutDigestChecksLength() throws IOException {
+        trigs.digest = null;
+        trigs.drops = 1;
+        ResumableDownload download = new ResumableDownload(client, url(), target);
+        File file = download.fetch();
+
+        assertArrayEquals(trigs.payload, Files.readAllBytes(file.toPath()));
+        assertEquals("bytes=51200-", trigs.ranges.get(1));
+        assertEquals(SIZE, download.getTransferred());
+    }
+}
@@ -0,0 +1,157 @@
+package uk.trigpointing.android.common;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for StringLoader
+ * Uses a stub HTTP server to check conditional GET revalidation
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class StringLoaderTest {
+
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    private TextFile file;
+    private StubHttpServer server;
+    private File root;
+    private StringLoader loader;
+
+    /** A text file which honours If-None-Match and If-Modified-Since */
+    private static class TextFile implements StubHttpServer.Handler {
+        volatile String body = "line one\nline two\n";
+        volatile String etag = "\"v1\"";
+        volatile String lastModified = null;
+        final List<Map<String, String>> requests = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> responses = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public StubHttpServer.Reply serve(StubHttpServer.Request request) {
+            requests.add(request.headers);
+            boolean notModified = etag != null
+                    ? etag.equals(request.header("If-None-Match"))
+                    : lastModified != null && lastModified.equals(request.header("If-Modified-Since"));
+            StubHttpServer.Reply reply = notModified ? StubHttpServer.Reply.status(304) : StubHttpServer.Reply.ok(body);
+            if (etag != null) {
+                reply.header("ETag", etag);
+            }
+            if (lastModified != null) {
+                reply.header("Last-Modified", lastModified);
+            }
+            responses.add(notModified ? 304 : 200);
+            return reply;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = new TextFile();
+        server = new StubHttpServer(file);
+        root = Files.createTempDirectory("stringloader").toFile();
+        Context context = mock(Context.class);
+        when(context.getCacheDir()).thenReturn(root);
+        loader = new StringLoader(context);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        deleteAll(root);
+    }
+
+    private static void deleteAll(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        assertTrue(f.delete());
+    }
+
+    @Test
+    public void testCachedCopyIsUsedWithoutReload() {
+        String url = server.url("/logs?t=1");
+        assertEquals("line one\nline two\n", loader.getString(url, false));
+        file.body = "changed\n";
+        assertEquals("line one\nline two\n", loader.getString(url, false));
+        assertEquals(1, file.requests.size());
+    }
+
+    @Test
+    public void testReloadRevalidatesWithETag() {
+        String url = server.url("/logs?t=2");
+        String first = loader.getString(url, false);
+        assertNull(file.requests.get(0).get("if-none-match"));
+
+        assertEquals(first, loader.getString(url, true));
+        assertEquals("\"v1\"", file.requests.get(1).get("if-none-match"));
+        assertEquals(Integer.valueOf(304), file.responses.get(1));
+    }
+
+    @Test
+    public void testReloadFetchesChangedBody() {
+        String url = server.url("/logs?t=3");
+        loader.getString(url, false);
+
+        file.body = "new log\n";
+        file.etag = "\"v2\"";
+        assertEquals("new log\n", loader.getString(url, true));
+        assertEquals(Integer.valueOf(200), file.responses.get(1));
+
+        // The new validator is remembered
+        assertEquals("new log\n", loader.getString(url, true));
+        assertEquals("\"v2\"", file.requests.get(2).get("if-none-match"));
+        assertEquals(Integer.valueOf(304), file.responses.get(2));
+    }
+
+    @Test
+    public void testReloadRevalidatesWithLastModified() {
+        file.etag = null;
+        file.lastModified = LAST_MODIFIED;
+        String url = server.url("/photos?t=4");
+        loader.getString(url, false);
+
+        assertEquals("line one\nline two\n", loader.getString(url, true));
+        assertEquals(LAST_MODIFIED, file.requests.get(1).get("if-modified-since"));
+        assertNull(file.requests.get(1).get("if-none-match"));
+        assertEquals(Integer.valueOf(304), file.responses.get(1));
+    }
+
+    @Test
+    public void testNoValidatorsMeansFullDownload() {
+        file.etag = null;
+        String url = server.url("/photos?t=5");
+        loader.getString(url, false);
+
+        file.body = "other\n";
+        assertEquals("other\n", loader.getString(url, true));
+        assertNull(file.requests.get(1).get("if-none-match"));
+        assertNull(file.requests.get(1).get("if-modified-since"));
+    }
+
+    @Test
+    public void testUnreachableServerReturnsNull() throws IOException {
+        String url = server.url("/logs?t=6");
+        server.shutdown();
+        assertNull(loader.getString(url, true));
+    }
+}
@@ -0,0 +1,212 @@
+package uk.trigpointing.android.common;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP/1.1 server for the unit tests, one request per connection, each served
+ * on its own thread.  The test's {@link Handler} turns each request into a {@link Reply},
+ * which can also cut the response short or hang up without one.
+ */
+public class StubHttpServer extends Thread {
+
+    /** One request, read in full */
+    public static final class Request {
+        public final String method;
+        public final String path;
+        // Names in lower case
+        public final Map<String, String> headers;
+        public final byte[] body;
+
+        Request(String method, String path, Map<String, String> headers, byte[] body) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public String header(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        public String bodyString() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** What to send back */
+    public static final class Reply {
+        final int code;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        byte[] body = new byte[0];
+        // Bytes of the body to send before hanging up, or -1 for all of it
+        int sendBytes = -1;
+        boolean hangUp = false;
+
+        private Reply(int code) {
+            this.code = code;
+        }
+
+        public static Reply status(int code) {
+            return new Reply(code);
+        }
+
+        public static Reply ok(byte[] body) {
+            return new Reply(200).body(body);
+        }
+
+        public static Reply ok(String body) {
+            return ok(body.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /** Close the connection without replying, once the request has been read */
+        public static Reply hangUp() {
+            Reply reply = new Reply(0);
+            reply.hangUp = true;
+            return reply;
+        }
+
+        public Reply body(byte[] body) {
+            this.body = body;
+            return this;
+        }
+
+        public Reply header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        /** Announce the whole body, but hang up after this many bytes of it */
+        public Reply cutAfter(int bytes) {
+            sendBytes = bytes;
+            return this;
+        }
+    }
+
+    /** Called on the connection's thread */
+    public interface Handler {
+        Reply serve(Request request) throws Exception;
+    }
+
+    private final ServerSocket mSocket;
+    private final Handler mHandler;
+    // Requests read in full, and how many were being served at once
+    public final AtomicInteger requests = new AtomicInteger();
+    public final AtomicInteger maxConcurrent = new AtomicInteger();
+    private final AtomicInteger mConcurrent = new AtomicInteger();
+
+    /**
+     * Start serving, on a port of its own
+     */
+    public StubHttpServer(Handler handler) throws IOException {
+        mSocket = new ServerSocket(0);
+        mHandler = handler;
+        setDaemon(true);
+        start();
+    }
+
+    public int getPort() {
+        return mSocket.getLocalPort();
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + getPort() + path;
+    }
+
+    @Override
+    public void run() {
+        while (!mSocket.isClosed()) {
+            try {
+                Socket client = mSocket.accept();
+                new Thread(() -> serve(client)).start();
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    public void shutdown() throws IOException {
+        mSocket.close();
+    }
+
+    private void serve(Socket client) {
+        int now = mConcurrent.incrementAndGet();
+        maxConcurrent.accumulateAndGet(now, Math::max);
+        try (Socket c = client) {
+            Request request = read(new BufferedInputStream(c.getInputStream()));
+            if (request == null) {
+                return;
+            }
+            requests.incrementAndGet();
+            Reply reply = mHandler.serve(request);
+            if (reply.hangUp) {
+                return;
+            }
+            write(c.getOutputStream(), reply);
+        } catch (Exception e) {
+            // Client went away, or the handler gave up
+        } finally {
+            mConcurrent.decrementAndGet();
+        }
+    }
+
+    private static Request read(InputStream in) throws IOException {
+        String[] start = readLine(in).split(" ");
+        if (start.length < 2) {
+            return null;
+        }
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+        String length = headers.get("content-length");
+        byte[] body = new byte[length == null ? 0 : Integer.parseInt(length)];
+        int off = 0;
+        while (off < body.length) {
+            int n = in.read(body, off, body.length - off);
+            if (n < 0) {
+                throw new IOException("Request ended early");
+            }
+            off += n;
+        }
+        return new Request(start[0], start[1], headers, body);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    private static void write(OutputStream out, Reply reply) throws IOException {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(reply.code).append(" X\r\n");
+        for (Map.Entry<String, String> header : reply.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(reply.body.length).append("\r\n")
+            .append("Connection: close\r\n\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        int send = reply.sendBytes < 0 ? reply.body.length : Math.min(reply.sendBytes, reply.body.length);
+        out.write(reply.body, 0, send);
+        out.flush();
+    }
+}
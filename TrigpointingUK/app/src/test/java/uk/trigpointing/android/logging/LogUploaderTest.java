@@ -0,0 +1,205 @@
+package uk.trigpointing.android.logging;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import uk.trigpointing.android.common.StubHttpServer;
+
+/**
+ * Unit tests for LogUploader
+ * Uses a mock T:UK server to count round trips per sync, with and without the batch endpoint
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class LogUploaderTest {
+
+    private SyncScripts scripts;
+    private StubHttpServer server;
+
+    /** The two sync scripts */
+    private static class SyncScripts implements StubHttpServer.Handler {
+        final AtomicInteger batchRequests = new AtomicInteger();
+        final List<Map<String, String>> forms = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean batchSupported = true;
+        volatile int failWithStatus = 0;
+        // Trigs whose logs are refused
+        final Set<Long> refused = Collections.synchronizedSet(new HashSet<>());
+        final AtomicInteger nextLogId = new AtomicInteger(1000);
+
+        private static Map<String, String> parseForm(String body) throws IOException {
+            Map<String, String> form = new HashMap<>();
+            for (String pair : body.split("&")) {
+                int eq = pair.indexOf('=');
+                form.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+            return form;
+        }
+
+        private JSONObject result(long id) throws JSONException {
+            JSONObject result = new JSONObject().put("id", id);
+            if (refused.contains(id)) {
+                return result.put("status", 1).put("msg", "Duplicate log");
+            }
+            return result.put("status", 0).put("msg", "").put("log_id", nextLogId.getAndIncrement());
+        }
+
+        @Override
+        public StubHttpServer.Reply serve(StubHttpServer.Request request) throws IOException, JSONException {
+            Map<String, String> form = parseForm(request.bodyString());
+            forms.add(form);
+
+            int code = 200;
+            String reply;
+            if (failWithStatus != 0) {
+                code = failWithStatus;
+                reply = "";
+            } else if (request.path.endsWith("/android-sync-logs.php")) {
+                batchRequests.incrementAndGet();
+                if (!batchSupported) {
+                    code = 404;
+                    reply = "Not found";
+                } else {
+                    JSONArray logs = new JSONArray(form.get("logs"));
+                    JSONArray results = new JSONArray();
+                    for (int i = 0; i < logs.length(); i++) {
+                        results.put(result(logs.getJSONObject(i).getLong("id")));
+                    }
+                    reply = new JSONObject().put("status", 0).put("msg", "").put("results", results).toString();
+                }
+            } else {
+                JSONObject result = result(Long.parseLong(form.get("id")));
+                result.remove("id");
+                reply = result.toString();
+            }
+            return StubHttpServer.Reply.status(code)
+                    .header("Content-Type", "application/json")
+                    .body(reply.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        scripts = new SyncScripts();
+        server = new StubHttpServer(scripts);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    private LogUploader uploader() {
+        return new LogUploader(new OkHttpClient(), server.url("/trigs/"), "walker", "secret", 42, false);
+    }
+
+    /** A weekend's logs */
+    private static List<LogUploader.Item> logs(int count) {
+        List<LogUploader.Item> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(new LogUploader.Item(1000 + i)
+                    .put("year", "2025")
+                    .put("comment", "Trig " + i + " & a view")
+                    .put("condition", "G"));
+        }
+        return items;
+    }
+
+    @Test
+    public void testBatchesLogs() throws IOException {
+        LogUploader uploader = uploader();
+        List<LogUploader.Result> results = new ArrayList<>();
+        assertEquals(30, uploader.upload(logs(30), 10, results::add));
+
+        assertEquals("30 logs in 3 round trips", 3, uploader.getRoundTrips());
+        assertEquals(3, server.requests.get());
+        assertEquals(30, results.size());
+        for (int i = 0; i < 30; i++) {
+            assertTrue(results.get(i).ok);
+            assertEquals(1000 + i, results.get(i).item.trigId);
+        }
+        assertEquals("Credentials once per request", "walker", scripts.forms.get(0).get("username"));
+        assertNull(scripts.forms.get(0).get("comment"));
+    }
+
+    @Test
+    public void testPartialFailureKeepsGoing() throws IOException {
+        scripts.refused.add(1004L);
+        List<LogUploader.Result> failed = new ArrayList<>();
+        assertEquals(11, uploader().upload(logs(12), 10, result -> {
+            if (!result.ok) {
+                failed.add(result);
+            }
+        }));
+        assertEquals(1, failed.size());
+        assertEquals(1004, failed.get(0).item.trigId);
+        assertEquals("Duplicate log", failed.get(0).msg);
+    }
+
+    @Test
+    public void testFallsBackToSingleLogs() throws IOException {
+        scripts.batchSupported = false;
+        LogUploader uploader = uploader();
+        List<LogUploader.Result> results = new ArrayList<>();
+        assertEquals(5, uploader.upload(logs(5), 10, results::add));
+        assertEquals("One failed batch, then one each", 6, uploader.getRoundTrips());
+        assertEquals(5, results.size());
+        assertEquals("Trig 3 & a view", scripts.forms.get(4).get("comment"));
+        assertEquals("walker", scripts.forms.get(4).get("username"));
+
+        // Remembered, so the batch endpoint isn't tried again
+        LogUploader again = uploader();
+        again.upload(logs(3), 10, result -> { });
+        assertEquals(3, again.getRoundTrips());
+        assertEquals(1, scripts.batchRequests.get());
+    }
+
+    @Test
+    public void testSingleLogsStopAtRejection() throws IOException {
+        scripts.batchSupported = false;
+        scripts.refused.add(1001L);
+        List<LogUploader.Result> results = new ArrayList<>();
+        assertEquals(1, uploader().upload(logs(5), 1, results::add));
+        assertEquals(2, results.size());
+        assertFalse(results.get(1).ok);
+    }
+
+    @Test
+    public void testServerErrorThrowsAfterEarlierResults() {
+        List<LogUploader.Result> results = new ArrayList<>();
+        LogUploader uploader = uploader();
+        try {
+            uploader.upload(logs(25), 10, result -> {
+                results.add(result);
+                if (results.size() == 10) {
+                    scripts.failWithStatus = 500;
+                }
+            });
+            fail("Should have thrown");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals("The first batch stands", 10, results.size());
+    }
+}
@@ -0,0 +1,48 @@
+package uk.trigpointing.android.logging;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for PhotoEncoder
+ * Testing the JPEG quality search against a byte budget
+ */
+public class PhotoEncoderTest {
+
+    // Roughly how JPEG size grows with quality
+    private static int sizeAt(int quality) {
+        return 100000 + quality * quality * 50;
+    }
+
+    @Test
+    public void testMaxQualityWhenItFits() {
+        List<Integer> tried = new ArrayList<>();
+        int quality = PhotoEncoder.searchQuality(50, 85, sizeAt(85), q -> {
+            tried.add(q);
+            return sizeAt(q);
+        });
+        assertEquals(85, quality);
+        assertEquals("A photo which fits is encoded once", 1, tried.size());
+    }
+
+    @Test
+    public void testHighestQualityWithinBudget() {
+        int budget = sizeAt(70) + 10;
+        List<Integer> tried = new ArrayList<>();
+        int quality = PhotoEncoder.searchQuality(50, 85, budget, q -> {
+            tried.add(q);
+            return sizeAt(q);
+        });
+        assertEquals(70, quality);
+        assertTrue("Binary search, not a scan", tried.size() <= 7);
+    }
+
+    @Test
+    public void testMinQualityWhenNothingFits() {
+        assertEquals(50, PhotoEncoder.searchQuality(50, 85, 1000, PhotoEncoderTest::sizeAt));
+    }
+}
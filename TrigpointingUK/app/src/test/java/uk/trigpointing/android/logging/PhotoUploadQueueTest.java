@@ -0,0 +1,203 @@
+package uk.trigpointing.android.logging;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.OkHttpClient;
+import uk.trigpointing.android.common.StubHttpServer;
+
+/**
+ * Unit tests for PhotoUploadQueue
+ * Testing concurrent uploads to a stub server, with per-photo failures and retries
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PhotoUploadQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PhotoScript script;
+    private StubHttpServer server;
+    private PhotoUploadQueue queue;
+
+    /** android-sync-photo.php */
+    private static class PhotoScript implements StubHttpServer.Handler {
+        private static final Pattern PHOTO_ID = Pattern.compile("name=\"photoid\"\r\n(?:[^\r\n]+\r\n)*\r\n(\\d+)\r\n");
+
+        // Reply for a photo id, otherwise accepted
+        final Map<Long, String> replies = new ConcurrentHashMap<>();
+        // Photo ids to fail once with 503
+        final Map<Long, Boolean> busyOnce = new ConcurrentHashMap<>();
+        // Photo ids to take in full, then hang up on without a reply
+        final Map<Long, Boolean> dropOnce = new ConcurrentHashMap<>();
+
+        @Override
+        public StubHttpServer.Reply serve(StubHttpServer.Request request) throws InterruptedException {
+            Thread.sleep(50);
+            Matcher m = PHOTO_ID.matcher(new String(request.body, StandardCharsets.ISO_8859_1));
+            long id = m.find() ? Long.parseLong(m.group(1)) : -1;
+            if (dropOnce.remove(id) != null) {
+                return StubHttpServer.Reply.hangUp();
+            }
+            if (busyOnce.remove(id) != null) {
+                return StubHttpServer.Reply.status(503);
+            }
+            return StubHttpServer.Reply.ok(replies.getOrDefault(id, "{\"status\":0, \"msg\":\"\", \"photo_id\":" + (5000 + id) + "}"))
+                    .header("Content-Type", "application/json");
+        }
+    }
+
+    /** Records results and the last progress */
+    private static class Recorder implements PhotoUploadQueue.Listener {
+        final List<PhotoUploadQueue.Result> results = Collections.synchronizedList(new ArrayList<>());
+        long bytes = -1;
+        long total = -1;
+
+        @Override
+        public void onResult(PhotoUploadQueue.Result result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onProgress(long bytes, long total) {
+            this.bytes = bytes;
+            this.total = total;
+        }
+
+        PhotoUploadQueue.Result result(long id) {
+            for (PhotoUploadQueue.Result result : results) {
+                if (result.photo.id == id) {
+                    return result;
+                }
+            }
+            return null;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        script = new PhotoScript();
+        server = new StubHttpServer(script);
+        queue = new PhotoUploadQueue(new OkHttpClient(), server.url("/trigs/android-sync-photo.php"), "walker", "secret", 42);
+        queue.mRetryDelayMs = 1;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    private List<PhotoUploadQueue.Photo> photos(int count) throws IOException {
+        List<PhotoUploadQueue.Photo> photos = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            File file = folder.newFile("photo" + i + ".jpg");
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(new byte[20000 + i]);
+            }
+            photos.add(new PhotoUploadQueue.Photo(i, file, new File(folder.getRoot(), "thumb" + i + ".jpg"), 0,
+                    "1234", "56789", "Pillar " + i, "Looking north", "T", "1"));
+        }
+        return photos;
+    }
+
+    @Test
+    public void testUploadsConcurrently() throws Exception {
+        Recorder recorder = new Recorder();
+        assertEquals(6, queue.run(photos(6), recorder));
+        assertEquals(6, recorder.results.size());
+        assertEquals(5003, recorder.result(3).tukPhotoId);
+        assertTrue("Uploads overlap", server.maxConcurrent.get() > 1);
+        assertTrue("Concurrency is bounded", server.maxConcurrent.get() <= PhotoUploadQueue.CONCURRENT_UPLOADS);
+    }
+
+    @Test
+    public void testRejectedPhotoDoesNotStopTheRest() throws Exception {
+        script.replies.put(2L, "{\"status\":1, \"msg\":\"Unknown log\"}");
+        Recorder recorder = new Recorder();
+        long before = System.currentTimeMillis();
+        assertEquals(4, queue.run(photos(5), recorder));
+        assertEquals(1, queue.getFailed());
+
+        PhotoUploadQueue.Result failed = recorder.result(2);
+        assertFalse(failed.ok);
+        assertEquals("Unknown log", failed.msg);
+        assertTrue("Deferred", failed.retryAt >= before + PhotoUploadQueue.DEFER_BASE_MS);
+        assertEquals("Rejections aren't retried", 5, server.requests.get());
+    }
+
+    @Test
+    public void testBusyServerIsRetried() throws Exception {
+        script.busyOnce.put(1L, true);
+        Recorder recorder = new Recorder();
+        assertEquals(3, queue.run(photos(3), recorder));
+        assertEquals(4, server.requests.get());
+        assertTrue(recorder.result(1).ok);
+    }
+
+    @Test
+    public void testLostReplyIsNotResent() throws Exception {
+        script.dropOnce.put(2L, true);
+        Recorder recorder = new Recorder();
+        assertEquals(2, queue.run(photos(3), recorder));
+
+        PhotoUploadQueue.Result failed = recorder.result(2);
+        assertFalse(failed.ok);
+        assertEquals("Left for the user to confirm", PhotoUploadQueue.UNCONFIRMED, failed.retryAt);
+        assertEquals("May already be stored, so not sent again", 3, server.requests.get());
+    }
+
+    @Test
+    public void testMissingFileFailsWithoutUpload() throws Exception {
+        List<PhotoUploadQueue.Photo> photos = photos(2);
+        //noinspection ResultOfMethodCallIgnored
+        photos.get(0).file.delete();
+        Recorder recorder = new Recorder();
+        assertEquals(1, queue.run(photos, recorder));
+        assertFalse(recorder.result(1).ok);
+        assertEquals(1, server.requests.get());
+    }
+
+    @Test
+    public void testProgressCoversAllBytes() throws Exception {
+        script.busyOnce.put(2L, true);
+        script.replies.put(3L, "{\"status\":1, \"msg\":\"No\"}");
+        List<PhotoUploadQueue.Photo> photos = photos(4);
+        long total = 0;
+        for (PhotoUploadQueue.Photo photo : photos) {
+            total += photo.file.length();
+        }
+        Recorder recorder = new Recorder();
+        queue.run(photos, recorder);
+        assertEquals(total, recorder.total);
+        assertEquals("Retries aren't counted twice", total, recorder.bytes);
+    }
+
+    @Test
+    public void testDeferralDoublesUpToADay() {
+        assertEquals(PhotoUploadQueue.DEFER_BASE_MS, PhotoUploadQueue.deferral(1));
+        assertEquals(PhotoUploadQueue.DEFER_BASE_MS * 2, PhotoUploadQueue.deferral(2));
+        assertEquals(PhotoUploadQueue.DEFER_BASE_MS * 8, PhotoUploadQueue.deferral(4));
+        assertEquals(PhotoUploadQueue.DEFER_MAX_MS, PhotoUploadQueue.deferral(30));
+    }
+}
@@ -0,0 +1,177 @@
+package uk.trigpointing.android.mapping;
+
+import static org.junit.Assert.*;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Unit tests for TilePackImporter
+ * Testing gzipped and plain packs, integrity checks, corrupt archives and progress
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TilePackImporterTest {
+
+    private static final String LAYER = "tile.openstreetmap.org";
+
+    private TileStore store;
+    private File archive;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new TileStore(RuntimeEnvironment.getApplication(), null);
+        archive = Files.createTempFile("pack", ".tar.gz").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        archive.delete();
+    }
+
+    private static byte[] tile(int seed) {
+        byte[] data = new byte[200 + seed % 100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (seed * 31 + i);
+        }
+        return data;
+    }
+
+    private static void addEntry(TarArchiveOutputStream tar, String name, byte[] data) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(data.length);
+        tar.putArchiveEntry(entry);
+        tar.write(data);
+        tar.closeArchiveEntry();
+    }
+
+    /** Pack of count tiles at z10, plus a directory and a file which isn't a tile */
+    private void writePack(int count, boolean gzip) throws IOException {
+        try (OutputStream file = new FileOutputStream(archive);
+             OutputStream out = gzip ? new GZIPOutputStream(file) : file;
+             TarArchiveOutputStream tar = new TarArchiveOutputStream(out)) {
+            tar.putArchiveEntry(new TarArchiveEntry("map_tiles/" + LAYER + "/10/"));
+            tar.closeArchiveEntry();
+            for (int i = 0; i < count; i++) {
+                addEntry(tar, "map_tiles/" + LAYER + "/10/" + i + "/340.png", tile(i));
+            }
+            addEntry(tar, "map_tiles/README.txt", new byte[]{'h', 'i'});
+        }
+    }
+
+    private static String sha256(File file) throws Exception {
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        StringBuilder hex = new StringBuilder();
+        for (byte b : sha.digest(Files.readAllBytes(file.toPath()))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @Test
+    public void testImportsGzippedPack() throws IOException {
+        writePack(300, true);
+        TilePackImporter importer = new TilePackImporter(store);
+        assertEquals(300, importer.run(archive, true, null));
+        assertEquals(1, importer.getSkipped());
+        assertEquals(300, store.getStats()[1]);
+        assertArrayEquals(tile(123), store.get(new TileStore.Key(LAYER, 10, 123, 340)));
+    }
+
+    @Test
+    public void testImportsPlainTar() throws IOException {
+        writePack(5, false);
+        assertEquals(5, new TilePackImporter(store).run(archive, false, null));
+        assertArrayEquals(tile(4), store.get(new TileStore.Key(LAYER, 10, 4, 340)));
+    }
+
+    @Test
+    public void testProgressReachesEnd() throws IOException {
+        writePack(500, true);
+        AtomicLong last = new AtomicLong(-1);
+        new TilePackImporter(store).run(archive, true, (bytes, total) -> {
+            assertTrue("Progress only goes forwards", bytes >= last.get());
+            assertEquals(archive.length(), total);
+            last.set(bytes);
+        });
+        assertEquals(archive.length(), last.get());
+    }
+
+    @Test
+    public void testVerifyChecksLengthAndChecksum() throws Exception {
+        writePack(10, true);
+        String sha = sha256(archive);
+        TilePackImporter.verify(archive, archive.length(), sha);
+        TilePackImporter.verify(archive, 0, null);
+        TilePackImporter.verify(archive, archive.length(), sha.toUpperCase());
+
+        try {
+            TilePackImporter.verify(archive, archive.length() + 1, null);
+            fail("Wrong length should be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+        try {
+            TilePackImporter.verify(archive, 0, sha.replace(sha.charAt(0), sha.charAt(0) == '0' ? '1' : '0'));
+            fail("Wrong checksum should be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testTruncatedPackFails() throws IOException {
+        writePack(1000, true);
+        try (RandomAccessFile f = new RandomAccessFile(archive, "rw")) {
+            f.setLength(f.length() / 2);
+        }
+        try {
+            new TilePackImporter(store).run(archive, true, null);
+            fail("Should have thrown");
+        } catch (IOException e) {
+            // Expected
+        }
+        // Whatever was imported is whole
+        long tiles = store.getStats()[1];
+        assertTrue(tiles < 1000);
+        for (int i = 0; i < tiles; i++) {
+            assertArrayEquals(tile(i), store.get(new TileStore.Key(LAYER, 10, i, 340)));
+        }
+    }
+
+    @Test
+    public void testBadCrcFails() throws IOException {
+        writePack(50, true);
+        // The gzip trailer is the CRC-32 then the length, little endian
+        try (RandomAccessFile f = new RandomAccessFile(archive, "rw")) {
+            f.seek(f.length() - 8);
+            int b = f.read();
+            f.seek(f.length() - 8);
+            f.write(b ^ 0xff);
+        }
+        try {
+            new TilePackImporter(store).run(archive, true, null);
+            fail("Should have thrown");
+        } catch (TilePackImporter.CorruptPackException e) {
+            // Expected
+        }
+    }
+}
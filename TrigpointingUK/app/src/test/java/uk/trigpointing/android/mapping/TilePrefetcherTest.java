@@ -0,0 +1,188 @@
+package uk.trigpointing.android.mapping;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okhttp3.OkHttpClient;
+import uk.trigpointing.android.common.StubHttpServer;
+
+/**
+ * Unit tests for TilePrefetcher
+ * Testing the tile plan, and downloads from a stub server which can fail on request
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TilePrefetcherTest {
+
+    // Two trigs 500m apart in the Peak District
+    private static final double[] KINDER = {53.3848, -1.8740};
+    private static final double[] NEARBY = {53.3848, -1.8665};
+
+    private Tiles tileServer;
+    private StubHttpServer server;
+    private TileStore store;
+    private TilePrefetcher prefetcher;
+
+    /** A tile server replying with the path, which can fail on request */
+    private static class Tiles implements StubHttpServer.Handler {
+        // Status for a path, otherwise 200
+        final Map<String, Integer> status = new ConcurrentHashMap<>();
+        // Paths to fail once with 503
+        final Map<String, Boolean> busyOnce = new ConcurrentHashMap<>();
+
+        @Override
+        public StubHttpServer.Reply serve(StubHttpServer.Request request) throws InterruptedException {
+            Thread.sleep(20);
+            int code = status.getOrDefault(request.path, 200);
+            if (busyOnce.remove(request.path) != null) {
+                return StubHttpServer.Reply.status(503).header("Retry-After", "0");
+            }
+            return StubHttpServer.Reply.status(code)
+                    .body(code == 200 ? request.path.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+        }
+    }
+
+    private String layer() {
+        return "127.0.0.1:" + server.getPort() + "/tiles";
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        tileServer = new Tiles();
+        server = new StubHttpServer(tileServer);
+        store = new TileStore(RuntimeEnvironment.getApplication(), null);
+        prefetcher = new TilePrefetcher(new OkHttpClient(), store, null);
+        prefetcher.mScheme = "http://";
+        prefetcher.mIntervalMs = 1;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    private List<TileStore.Key> tiles(int count) {
+        List<TileStore.Key> tiles = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            tiles.add(new TileStore.Key(layer(), 12, i, 7));
+        }
+        return tiles;
+    }
+
+    @Test
+    public void testPlanCoversEachPlaceAtEachZoom() {
+        List<TileStore.Key> tiles = TilePrefetcher.plan(Collections.singletonList(KINDER), 1000, 8, 15,
+                Collections.singletonList(TilePrefetcher.LAYER_OSM));
+        for (int z = 8; z <= 15; z++) {
+            assertTrue(tiles.contains(new TileStore.Key(TilePrefetcher.LAYER_OSM, z,
+                    TileMath.lonToTileX(KINDER[1], z), TileMath.latToTileY(KINDER[0], z))));
+        }
+        assertEquals("No duplicates", tiles.size(), new HashSet<>(tiles).size());
+        assertEquals("Ordered by zoom", 8, tiles.get(0).z);
+        assertEquals(15, tiles.get(tiles.size() - 1).z);
+    }
+
+    @Test
+    public void testOverlappingPlacesAreFetchedOnce() {
+        List<String> layers = Collections.singletonList(TilePrefetcher.LAYER_OSM);
+        int one = TilePrefetcher.plan(Collections.singletonList(KINDER), 1000, 8, 15, layers).size();
+        int both = TilePrefetcher.plan(Arrays.asList(KINDER, NEARBY), 1000, 8, 15, layers).size();
+        assertTrue("Most tiles are shared", both < one * 3 / 2);
+    }
+
+    @Test
+    public void testPlanIsPerLayer() {
+        List<double[]> places = Collections.singletonList(KINDER);
+        int osm = TilePrefetcher.plan(places, 1000, 10, 12, Collections.singletonList(TilePrefetcher.LAYER_OSM)).size();
+        int both = TilePrefetcher.plan(places, 1000, 10, 12,
+                Arrays.asList(TilePrefetcher.LAYER_OSM, TilePrefetcher.LAYER_OS_OUTDOOR)).size();
+        assertEquals(osm * 2, both);
+    }
+
+    @Test
+    public void testFetchesTilesUnpinned() throws Exception {
+        List<TileStore.Key> tiles = tiles(10);
+        assertEquals(10, prefetcher.run(tiles, null));
+        assertArrayEquals("/tiles/12/3/7.png".getBytes(StandardCharsets.UTF_8), store.get(tiles.get(3)));
+        assertEquals(10, store.getStats()[1]);
+        assertEquals("Trimmed like browsed tiles once unused", 0, store.getPinnedStats()[1]);
+        assertTrue("Concurrency is bounded", server.maxConcurrent.get() <= TilePrefetcher.MAX_CONCURRENT);
+    }
+
+    @Test
+    public void testPlanIsFittedToFreeQuota() {
+        List<TileStore.Key> tiles = tiles(10);
+        store.put(tiles.get(0), new byte[100]);
+        store.put(new TileStore.Key(layer(), 12, 99, 7), new byte[100]);
+
+        // 300 bytes free, three missing tiles of the stored average, after the one already stored
+        assertEquals(4, TilePrefetcher.fitQuota(tiles, store, 500).size());
+        assertEquals(10, TilePrefetcher.fitQuota(tiles, store, 100000).size());
+        assertEquals("Cache already full", 1, TilePrefetcher.fitQuota(tiles, store, 100).size());
+    }
+
+    @Test
+    public void testStoredTilesAreSkipped() throws Exception {
+        List<TileStore.Key> tiles = tiles(6);
+        store.put(tiles.get(0), new byte[]{1});
+        store.put(tiles.get(5), new byte[]{1});
+        assertEquals(4, prefetcher.run(tiles, null));
+        assertEquals(4, server.requests.get());
+    }
+
+    @Test
+    public void testFailuresAreCountedAndBusyServerRetried() throws Exception {
+        List<TileStore.Key> tiles = tiles(4);
+        tileServer.status.put("/tiles/12/1/7.png", 404);
+        tileServer.busyOnce.put("/tiles/12/2/7.png", true);
+        assertEquals(3, prefetcher.run(tiles, null));
+        assertEquals(1, prefetcher.getFailed());
+        assertFalse(store.contains(tiles.get(1)));
+        assertTrue(store.contains(tiles.get(2)));
+    }
+
+    @Test
+    public void testProgressReachesTotal() throws Exception {
+        List<TileStore.Key> tiles = tiles(5);
+        List<int[]> reports = Collections.synchronizedList(new ArrayList<>());
+        prefetcher.run(tiles, (done, total, bytes, etaMs) -> reports.add(new int[]{done, total, (int) bytes}));
+        int[] last = reports.get(reports.size() - 1);
+        assertEquals(5, last[0]);
+        assertEquals(5, last[1]);
+        assertEquals(prefetcher.getBytes(), last[2]);
+    }
+
+    @Test
+    public void testCancelStopsEarly() throws Exception {
+        prefetcher.mIntervalMs = 50;
+        List<TileStore.Key> tiles = tiles(200);
+        new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+            prefetcher.cancel();
+        }).start();
+        prefetcher.run(tiles, null);
+        assertTrue(prefetcher.isCancelled());
+        assertTrue(server.requests.get() < 200);
+    }
+}
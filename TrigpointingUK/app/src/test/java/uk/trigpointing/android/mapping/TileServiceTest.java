@@ -0,0 +1,158 @@
+package uk.trigpointing.android.mapping;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import uk.trigpointing.android.common.StubHttpServer;
+
+/**
+ * Unit tests for TileService
+ * Uses a stub HTTP server which can hold responses back, to check downloads are shared
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TileServiceTest {
+
+    private Tiles tileServer;
+    private StubHttpServer server;
+    private TileStore store;
+    private TileService service;
+
+    /** A tile server which can hold its replies back */
+    private static class Tiles implements StubHttpServer.Handler {
+        final byte[] body = new byte[40000];
+        volatile int status = 200;
+        volatile CountDownLatch gate = new CountDownLatch(0);
+
+        Tiles() {
+            new Random(27700).nextBytes(body);
+        }
+
+        @Override
+        public StubHttpServer.Reply serve(StubHttpServer.Request request) throws InterruptedException {
+            gate.await(10, TimeUnit.SECONDS);
+            return StubHttpServer.Reply.status(status)
+                    .header("Content-Type", "image/png")
+                    .body(status == 200 ? body : new byte[0]);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        tileServer = new Tiles();
+        server = new StubHttpServer(tileServer);
+        store = new TileStore(RuntimeEnvironment.getApplication(), null);
+        service = new TileService(new OkHttpClient(), store);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        tileServer.gate.countDown();
+        server.shutdown();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (InputStream is = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static void awaitIdle(TileService service) throws InterruptedException {
+        for (int i = 0; i < 100 && service.getPendingCount() > 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, service.getPendingCount());
+    }
+
+    @Test
+    public void testTileIsStreamedAndCached() throws Exception {
+        TileStore.Key tile = new TileStore.Key("host", 1, 2, 3);
+        assertArrayEquals(tileServer.body, readAll(service.open(server.url("/1/2/3.png"), tile)));
+        awaitIdle(service);
+        assertArrayEquals(tileServer.body, store.get(tile));
+
+        // Second time from the store
+        assertArrayEquals(tileServer.body, readAll(service.open(server.url("/1/2/3.png"), tile)));
+        assertEquals(1, server.requests.get());
+    }
+
+    @Test
+    public void testOpenDoesNotWaitForNetwork() throws Exception {
+        tileServer.gate = new CountDownLatch(1);
+        TileStore.Key tile = new TileStore.Key("host", 4, 5, 6);
+        long start = System.nanoTime();
+        InputStream in = service.open(server.url("/4/5/6.png"), tile);
+        assertTrue("open should return at once", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        assertEquals(1, service.getPendingCount());
+
+        tileServer.gate.countDown();
+        assertArrayEquals(tileServer.body, readAll(in));
+    }
+
+    @Test
+    public void testConcurrentRequestsShareOneDownload() throws Exception {
+        tileServer.gate = new CountDownLatch(1);
+        TileStore.Key tile = new TileStore.Key("host", 7, 8, 9);
+        InputStream first = service.open(server.url("/7/8/9.png"), tile);
+        InputStream second = service.open(server.url("/7/8/9.png"), tile);
+        assertEquals(1, service.getPendingCount());
+
+        tileServer.gate.countDown();
+        assertArrayEquals(tileServer.body, readAll(first));
+        assertArrayEquals(tileServer.body, readAll(second));
+        awaitIdle(service);
+        assertEquals(1, server.requests.get());
+    }
+
+    @Test
+    public void testFailedDownloadCachesNothing() throws Exception {
+        tileServer.status = 404;
+        TileStore.Key tile = new TileStore.Key("host", 0, 0, 0);
+        InputStream in = service.open(server.url("/0/0/0.png"), tile);
+        try {
+            readAll(in);
+            fail("Should have thrown");
+        } catch (IOException e) {
+            // Expected
+        }
+        awaitIdle(service);
+        assertFalse(store.contains(tile));
+    }
+
+    @Test
+    public void testClosingLastReaderCancelsDownload() throws Exception {
+        tileServer.gate = new CountDownLatch(1);
+        TileStore.Key tile = new TileStore.Key("host", 9, 9, 9);
+        InputStream first = service.open(server.url("/9/9/9.png"), tile);
+        InputStream second = service.open(server.url("/9/9/9.png"), tile);
+
+        first.close();
+        assertEquals("Still wanted by the second reader", 1, service.getPendingCount());
+        second.close();
+        assertEquals(0, service.getPendingCount());
+        tileServer.gate.countDown();
+        Thread.sleep(200);
+        assertFalse(store.contains(tile));
+    }
+}
@@ -0,0 +1,229 @@
+package uk.trigpointing.android.mapping;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Unit tests for TileStore
+ * Testing tile path parsing, storage, batched imports, stats, eviction and migration of loose files
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TileStoreTest {
+
+    private TileStore store;
+    private long now = 1000;
+
+    @Before
+    public void setUp() {
+        store = new TileStore(RuntimeEnvironment.getApplication(), null);
+        store.mClock = () -> now;
+    }
+
+    private static TileStore.Key osm(int x) {
+        return new TileStore.Key("osm", 10, x, 0);
+    }
+
+    /** Browsed tiles 0 to count - 1, of 100 bytes each, a second apart */
+    private void browse(int count) {
+        for (int i = 0; i < count; i++) {
+            store.put(osm(i), tile(i, 100));
+            now += 1000;
+        }
+    }
+
+    private static byte[] tile(int seed, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    @Test
+    public void testKeyFromOsmPath() {
+        TileStore.Key key = TileStore.Key.fromPath("tile.openstreetmap.org/13/4012/2631.png");
+        assertEquals(new TileStore.Key("tile.openstreetmap.org", 13, 4012, 2631), key);
+    }
+
+    @Test
+    public void testKeyFromOsPath() {
+        TileStore.Key key = TileStore.Key.fromPath("api.os.uk/maps/raster/v1/zxy/Outdoor_3857/10/501/330.png");
+        assertEquals(new TileStore.Key("api.os.uk/maps/raster/v1/zxy/Outdoor_3857", 10, 501, 330), key);
+    }
+
+    @Test
+    public void testArcGisUrlMatchesItsPack() {
+        // The URL has {z}/{y}/{x} after "tile", the pack {z}/{x}/{y}.png without it
+        TileStore.Key url = TileStore.Key.fromPath("server.arcgisonline.com/ArcGIS/rest/services/World_Imagery/MapServer/tile/12/1320/2003");
+        TileStore.Key pack = TileStore.Key.fromPath("server.arcgisonline.com/ArcGIS/rest/services/World_Imagery/MapServer/12/2003/1320.png");
+        assertEquals(pack, url);
+        assertEquals(2003, url.x);
+        assertEquals(1320, url.y);
+    }
+
+    @Test
+    public void testNonTilePathsAreRejected() {
+        assertNull(TileStore.Key.fromPath("tile.openstreetmap.org/13/4012"));
+        assertNull(TileStore.Key.fromPath("tile.openstreetmap.org/13/abc/2631.png"));
+        assertNull(TileStore.Key.fromPath("/13/4012/2631.png"));
+        assertNull(TileStore.Key.fromPath("README.txt"));
+    }
+
+    @Test
+    public void testPutAndGet() {
+        TileStore.Key key = new TileStore.Key("tile.openstreetmap.org", 5, 15, 10);
+        assertNull(store.get(key));
+        assertFalse(store.contains(key));
+
+        store.put(key, tile(1, 100));
+        assertArrayEquals(tile(1, 100), store.get(key));
+        assertTrue(store.contains(key));
+
+        // Replaced, not duplicated
+        store.put(key, tile(2, 50));
+        assertArrayEquals(tile(2, 50), store.get(key));
+        assertArrayEquals(new long[]{50, 1}, store.getStats());
+    }
+
+    @Test
+    public void testLayersAreSeparate() {
+        store.put(new TileStore.Key("a", 1, 1, 1), tile(1, 10));
+        assertNull(store.get(new TileStore.Key("b", 1, 1, 1)));
+    }
+
+    @Test
+    public void testImporterCommitsBatches() {
+        try (TileStore.Importer importer = store.importer(10)) {
+            for (int i = 0; i < 25; i++) {
+                importer.add(new TileStore.Key("osm", 8, i, 0), tile(i, 20));
+            }
+            assertEquals(25, importer.getCount());
+            // Abandoned without finish()
+        }
+        assertArrayEquals("Only complete batches kept", new long[]{20 * 20, 20}, store.getStats());
+        assertNotNull(store.get(new TileStore.Key("osm", 8, 19, 0)));
+        assertNull(store.get(new TileStore.Key("osm", 8, 20, 0)));
+    }
+
+    @Test
+    public void testFinishCommitsEverything() {
+        try (TileStore.Importer importer = store.importer(10)) {
+            for (int i = 0; i < 25; i++) {
+                importer.add(new TileStore.Key("osm", 8, i, 0), tile(i, 20));
+            }
+            importer.finish();
+        }
+        assertArrayEquals(new long[]{25 * 20, 25}, store.getStats());
+    }
+
+    @Test
+    public void testClear() {
+        store.put(new TileStore.Key("osm", 1, 0, 0), tile(0, 10));
+        store.put(new TileStore.Key("osm", 1, 1, 0), tile(0, 10));
+        assertEquals(2, store.clear());
+        assertArrayEquals(new long[]{0, 0}, store.getStats());
+    }
+
+    @Test
+    public void testImportDirectory() throws IOException {
+        File dir = Files.createTempDirectory("map_tiles").toFile();
+        File tileFile = new File(dir, "tile.openstreetmap.org/7/63/42.png");
+        assertTrue(tileFile.getParentFile().mkdirs());
+        Files.write(tileFile.toPath(), tile(3, 300));
+        File other = new File(dir, "notes.txt");
+        Files.write(other.toPath(), tile(0, 5));
+
+        assertEquals(1, store.importDirectory(dir));
+        assertArrayEquals(tile(3, 300), store.get(new TileStore.Key("tile.openstreetmap.org", 7, 63, 42)));
+        assertFalse("Loose files are removed", dir.exists());
+    }
+
+    @Test
+    public void testTrimWithinQuotaKeepsEverything() {
+        browse(5);
+        assertEquals(0, store.trim(500, TileStore.Eviction.LRU));
+        assertEquals(5, store.getStats()[1]);
+    }
+
+    @Test
+    public void testTrimEvictsLeastRecentlyUsed() {
+        browse(5);
+        // Tile 0 is seen again, so tile 1 becomes the oldest
+        assertNotNull(store.get(osm(0)));
+        assertEquals(2, store.trim(300, TileStore.Eviction.LRU));
+        assertTrue(store.contains(osm(0)));
+        assertFalse(store.contains(osm(1)));
+        assertFalse(store.contains(osm(2)));
+        assertTrue(store.contains(osm(3)));
+        assertArrayEquals(new long[]{300, 3}, store.getStats());
+    }
+
+    @Test
+    public void testTrimEvictsLeastFrequentlyUsed() {
+        browse(4);
+        for (int i = 0; i < 3; i++) {
+            store.get(osm(0));
+            store.get(osm(1));
+        }
+        store.get(osm(2));
+        now += 1000;
+        // Tile 3 was never seen again, tile 2 once, and tiles 0 and 1 three times
+        assertEquals(2, store.trim(200, TileStore.Eviction.LFU));
+        assertTrue(store.contains(osm(0)));
+        assertTrue(store.contains(osm(1)));
+        assertFalse(store.contains(osm(2)));
+        assertFalse(store.contains(osm(3)));
+    }
+
+    @Test
+    public void testPinnedTilesAreNeverEvicted() {
+        try (TileStore.Importer importer = store.importer(0, true)) {
+            importer.add(osm(100), tile(0, 400));
+            importer.finish();
+        }
+        browse(3);
+        assertArrayEquals(new long[]{400, 1}, store.getPinnedStats());
+
+        assertEquals("Only unpinned tiles go", 2, store.trim(100, TileStore.Eviction.LRU));
+        assertArrayEquals(new long[]{500, 2}, store.getStats());
+        assertTrue(store.contains(osm(100)));
+        assertTrue(store.contains(osm(2)));
+    }
+
+    @Test
+    public void testPinnedBytesDontCountAgainstQuota() {
+        try (TileStore.Importer importer = store.importer(0, true)) {
+            importer.add(osm(100), tile(0, 1000));
+            importer.finish();
+        }
+        browse(3);
+        assertEquals("Browsed tiles are within quota", 0, store.trim(300, TileStore.Eviction.LRU));
+        assertArrayEquals(new long[]{1300, 4}, store.getStats());
+
+        assertEquals(1, store.trim(200, TileStore.Eviction.LRU));
+        assertFalse(store.contains(osm(0)));
+        assertTrue(store.contains(osm(1)));
+    }
+
+    @Test
+    public void testReplacingPinnedTileKeepsItPinned() {
+        try (TileStore.Importer importer = store.importer(0, true)) {
+            importer.add(osm(0), tile(0, 100));
+            importer.finish();
+        }
+        store.put(osm(0), tile(1, 50));
+        assertArrayEquals(new long[]{50, 1}, store.getPinnedStats());
+        assertEquals(0, store.trim(0, TileStore.Eviction.LRU));
+    }
+}
@@ -0,0 +1,147 @@
+package uk.trigpointing.android.nearest;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit tests for NearestTrigSearch
+ * Testing k-nearest ordering against a brute force sort, and that work does not grow with table size
+ */
+public class NearestTrigSearchTest {
+
+    private static final double DELTA = 0.5; // metres
+
+    /** In-memory source which counts the trigs it hands to the search */
+    private static class ArraySource implements NearestTrigSearch.Source<Integer> {
+        final double[] lats;
+        final double[] lons;
+        int scanned = 0;
+
+        ArraySource(double[] lats, double[] lons) {
+            this.lats = lats;
+            this.lons = lons;
+        }
+
+        @Override
+        public void scan(NearestTrigSearch.Box box, NearestTrigSearch.Box hole, NearestTrigSearch.Sink<Integer> sink) {
+            for (int i = 0; i < lats.length; i++) {
+                if (!inside(box, lats[i], lons[i]) || (hole != null && inside(hole, lats[i], lons[i]))) {
+                    continue;
+                }
+                scanned++;
+                sink.offer(lats[i], lons[i], i);
+            }
+        }
+
+        private static boolean inside(NearestTrigSearch.Box b, double lat, double lon) {
+            return lat >= b.south && lat <= b.north && lon >= b.west && lon <= b.east;
+        }
+    }
+
+    /** Uniformly scatter n trigs at constant density, starting from the Peak District */
+    private static ArraySource randomTrigs(int n, long seed) {
+        Random random = new Random(seed);
+        double side = 4 * Math.sqrt(n / 5000.0);
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        for (int i = 0; i < n; i++) {
+            lats[i] = 52 + random.nextDouble() * side;
+            lons[i] = -3 + random.nextDouble() * side;
+        }
+        return new ArraySource(lats, lons);
+    }
+
+    @Test
+    public void testDistanceMatchesKnownValue() {
+        // Helvellyn to Scafell Pike is roughly 15km
+        double d = NearestTrigSearch.distance(54.5270, -3.0165, 54.4542, -3.2117);
+        assertEquals(14982, d, 100);
+        assertEquals(0, NearestTrigSearch.distance(54.5, -3.0, 54.5, -3.0), DELTA);
+    }
+
+    @Test
+    public void testNearestMatchesBruteForce() {
+        ArraySource source = randomTrigs(5000, 42);
+        final double lat = 53.5;
+        final double lon = -1.5;
+
+        List<NearestTrigSearch.Hit<Integer>> hits = new NearestTrigSearch<>(source).nearest(lat, lon, 100, Double.POSITIVE_INFINITY);
+
+        Integer[] expected = new Integer[source.lats.length];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = i;
+        }
+        Arrays.sort(expected, Comparator.comparingDouble(i -> NearestTrigSearch.distance(lat, lon, source.lats[i], source.lons[i])));
+
+        assertEquals("Should return exactly k trigs", 100, hits.size());
+        for (int i = 0; i < hits.size(); i++) {
+            assertEquals("Trig " + i + " should be in great-circle order", expected[i], hits.get(i).payload);
+        }
+    }
+
+    @Test
+    public void testMaxDistanceLimitsResults() {
+        ArraySource source = randomTrigs(5000, 7);
+        List<NearestTrigSearch.Hit<Integer>> hits = new NearestTrigSearch<>(source).nearest(53.5, -1.5, 100, 5000);
+
+        assertTrue("Should find fewer than k trigs within 5km", hits.size() < 100);
+        for (NearestTrigSearch.Hit<Integer> hit : hits) {
+            assertTrue("Every trig should be within 5km", hit.distance <= 5000);
+        }
+    }
+
+    @Test
+    public void testFewerTrigsThanRequested() {
+        ArraySource source = new ArraySource(new double[]{54.5, 51.0}, new double[]{-3.0, 0.0});
+        NearestTrigSearch<Integer> search = new NearestTrigSearch<>(source);
+
+        List<NearestTrigSearch.Hit<Integer>> hits = search.nearest(54.0, -2.0, 10, Double.POSITIVE_INFINITY);
+
+        assertEquals("Should return every trig when there are fewer than k", 2, hits.size());
+        assertEquals(Integer.valueOf(0), hits.get(0).payload);
+        assertEquals(Integer.valueOf(1), hits.get(1).payload);
+        assertEquals("Each trig should be offered once", 2, source.scanned);
+    }
+
+    @Test
+    public void testEmptySource() {
+        ArraySource source = new ArraySource(new double[0], new double[0]);
+        assertTrue(new NearestTrigSearch<>(source).nearest(54.0, -2.0, 10, Double.POSITIVE_INFINITY).isEmpty());
+    }
+
+    @Test
+    public void testWorkIndependentOfTableSize() {
+        ArraySource small = randomTrigs(5000, 1);
+        ArraySource large = randomTrigs(50000, 1);
+        NearestTrigSearch<Integer> smallSearch = new NearestTrigSearch<>(small);
+        NearestTrigSearch<Integer> largeSearch = new NearestTrigSearch<>(large);
+
+        smallSearch.nearest(53.5, -1.5, 100, Double.POSITIVE_INFINITY);
+        largeSearch.nearest(53.5, -1.5, 100, Double.POSITIVE_INFINITY);
+
+        assertEquals("Same density should need the same number of rings",
+                smallSearch.getRingCount(), largeSearch.getRingCount());
+        assertTrue("Candidates examined should not scale with table size",
+                large.scanned < small.scanned * 2);
+    }
+
+    @Test
+    public void testHitsAreSortedAscending() {
+        ArraySource source = randomTrigs(2000, 3);
+        List<NearestTrigSearch.Hit<Integer>> hits = new NearestTrigSearch<>(source).nearest(52.2, -2.8, 50, Double.POSITIVE_INFINITY);
+        List<Double> distances = new ArrayList<>();
+        for (NearestTrigSearch.Hit<Integer> hit : hits) {
+            distances.add(hit.distance);
+        }
+        for (int i = 1; i < distances.size(); i++) {
+            assertTrue(distances.get(i - 1) <= distances.get(i));
+        }
+    }
+}
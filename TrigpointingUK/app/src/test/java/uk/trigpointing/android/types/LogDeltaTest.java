@@ -0,0 +1,71 @@
+package uk.trigpointing.android.types;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+/**
+ * Unit tests for LogDelta class
+ * Testing parsing of full and incremental "my logs" downloads
+ */
+public class LogDeltaTest {
+
+    private static LogDelta read(String payload) throws IOException {
+        return LogDelta.read(new BufferedReader(new StringReader(payload)));
+    }
+
+    @Test
+    public void testLegacyFullList() throws IOException {
+        LogDelta logs = read("3\nG\t101\nD\t102\nN\t103\n\nignored\n");
+        assertTrue(logs.isFull());
+        assertNull("Old servers have no cursor", logs.getToCursor());
+        assertEquals(3, logs.getExpected());
+        assertEquals(Arrays.asList(101L, 102L, 103L), logs.getIds());
+        assertEquals(Condition.GOOD, logs.getLogged().get(0));
+        assertEquals(Condition.COULDNTFIND, logs.getLogged().get(2));
+    }
+
+    @Test
+    public void testFullListWithCursor() throws IOException {
+        LogDelta logs = read("LOGDELTA\t\t2025-06-01T12:00:00Z#88\nG\t101\n");
+        assertTrue(logs.isFull());
+        assertEquals("", logs.getFromCursor());
+        assertEquals("2025-06-01T12:00:00Z#88", logs.getToCursor());
+        assertEquals(1, logs.size());
+    }
+
+    @Test
+    public void testChangesSinceCursor() throws IOException {
+        LogDelta logs = read("LOGDELTA\tc41\tc42\nG\t7\n\n-\t9\n");
+        assertFalse(logs.isFull());
+        assertEquals("c41", logs.getFromCursor());
+        assertEquals("c42", logs.getToCursor());
+        assertEquals(-1, logs.getExpected());
+        assertEquals(Arrays.asList(7L, 9L), logs.getIds());
+        assertEquals("Deleted logs come back as not logged", Condition.TRIGNOTLOGGED, logs.getLogged().get(1));
+    }
+
+    @Test
+    public void testNoChanges() throws IOException {
+        LogDelta logs = read("LOGDELTA\tc42\tc42\n");
+        assertFalse(logs.isFull());
+        assertEquals(0, logs.size());
+    }
+
+    @Test
+    public void testMalformed() {
+        for (String payload : new String[]{"", "LOGDELTA\tc41\n", "LOGDELTA\tc41\t\n", "lots\n", "2\nG\n", "1\nG\tabc\n"}) {
+            try {
+                read(payload);
+                fail("Should have rejected: " + payload);
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package uk.trigpointing.android.types;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for TrigBundle class
+ * Testing the binary trig format against a fixture standing in for the server
+ */
+public class TrigBundleTest {
+
+    /** Fixture rows in the same tab separated layout as down-android-trigs.php */
+    static final String[] FIXTURE_TSV = {
+        "1\tTP0001\tScafell Pike\t54.454222\t-3.211694\tPI\t\tG\tP\t2",
+        "2\tTP0002\tHelvellyn\t54.527154\t-3.016434\tPI\tS1234\tS\tP\t3",
+        "3\tTP0003\tBen Nevis\t56.796891\t-5.003675\tPI\t\tD\tA\t1",
+        "4\tTP0004\tCafé Bench Mark\t52.205338\t0.119167\tFB\tB5678\tU\tN\tF",
+        "5\tTP0005\tLand's End\t50.066109\t-5.714693\tBL\t\tX\tN\tQ",
+    };
+
+    private TrigBundle.Writer writer;
+
+    @Before
+    public void setUp() {
+        writer = fixtureWriter();
+    }
+
+    static TrigBundle.Writer fixtureWriter() {
+        TrigBundle.Writer writer = new TrigBundle.Writer();
+        for (String line : FIXTURE_TSV) {
+            String[] csv = line.split("\t", -1);
+            writer.add(Long.parseLong(csv[0]), csv[1], csv[2], Double.parseDouble(csv[3]), Double.parseDouble(csv[4]),
+                    csv[5], csv[6], csv[7], csv[8], csv[9]);
+        }
+        return writer;
+    }
+
+    private static byte[] encode(TrigBundle.Writer writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] readFixture() throws IOException {
+        try (InputStream is = TrigBundleTest.class.getClassLoader().getResourceAsStream("trig-bundle-fixture.bin")) {
+            assertNotNull("Fixture should be on the test classpath", is);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    public void testWriterReproducesFixture() throws IOException {
+        assertArrayEquals(readFixture(), encode(writer));
+    }
+
+    @Test
+    public void testFixtureMatchesTsv() throws IOException {
+        TrigBundle.Reader reader = TrigBundle.Reader.wrap(ByteBuffer.wrap(readFixture()));
+        assertEquals(FIXTURE_TSV.length, reader.size());
+
+        Map<Long, Integer> rows = new HashMap<>();
+        for (int row = 0; row < reader.size(); row++) {
+            rows.put(reader.id(row), row);
+            if (row > 0) {
+                assertTrue("Rows should be in latitude order", reader.lat(row - 1) <= reader.lat(row));
+            }
+        }
+        for (String line : FIXTURE_TSV) {
+            String[] csv = line.split("\t", -1);
+            int row = rows.get(Long.parseLong(csv[0]));
+            assertEquals(csv[1], reader.waypoint(row));
+            assertEquals(csv[2], reader.name(row));
+            assertEquals(Double.parseDouble(csv[3]), reader.lat(row), 0.0);
+            assertEquals(Double.parseDouble(csv[4]), reader.lon(row), 0.0);
+            assertEquals(Trig.Physical.fromCode(csv[5]), reader.type(row));
+            assertEquals(csv[6], reader.fb(row));
+            assertEquals(Condition.fromCode(csv[7]), reader.condition(row));
+            assertEquals(Trig.Current.fromCode(csv[8]), reader.current(row));
+            assertEquals(Trig.Historic.fromCode(csv[9]), reader.historic(row));
+        }
+    }
+
+    @Test
+    public void testMappedFile() throws IOException {
+        File file = File.createTempFile("trigs", ".bundle");
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                writer.writeTo(out);
+            }
+            TrigBundle.Reader reader = TrigBundle.Reader.open(file);
+            assertEquals(FIXTURE_TSV.length, reader.size());
+            assertEquals("Land's End", reader.name(0));
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testEmptyBundle() throws IOException {
+        TrigBundle.Reader reader = TrigBundle.Reader.wrap(ByteBuffer.wrap(encode(new TrigBundle.Writer())));
+        assertEquals(0, reader.size());
+    }
+
+    @Test
+    public void testIsBundle() throws IOException {
+        assertTrue(TrigBundle.isBundle(encode(writer)));
+        assertFalse(TrigBundle.isBundle(new byte[] {0x1f, (byte) 0x8b, 8, 0}));
+        assertFalse(TrigBundle.isBundle(new byte[] {'T'}));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptBodyRejected() throws IOException {
+        byte[] bytes = encode(writer);
+        bytes[bytes.length - 3] ^= 0x20;
+        TrigBundle.Reader.wrap(ByteBuffer.wrap(bytes));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedRejected() throws IOException {
+        byte[] bytes = encode(writer);
+        TrigBundle.Reader.wrap(ByteBuffer.wrap(bytes, 0, bytes.length - 1).slice());
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownVersionRejected() throws IOException {
+        byte[] bytes = encode(writer);
+        bytes[5] = (byte) (TrigBundle.VERSION + 1);
+        TrigBundle.Reader.wrap(ByteBuffer.wrap(bytes));
+    }
+
+    @Test
+    public void testToSnapshot() throws IOException {
+        TrigBundle.Reader reader = TrigBundle.Reader.wrap(ByteBuffer.wrap(encode(writer)));
+        Map<Long, Condition> logged = Collections.singletonMap(2L, Condition.GOOD);
+        Map<Long, Condition> unsynced = Collections.singletonMap(3L, Condition.DAMAGED);
+        TrigSnapshot snapshot = reader.toSnapshot(logged, unsynced, Collections.singleton(4L));
+
+        assertEquals(FIXTURE_TSV.length, snapshot.size());
+        int row = snapshot.indexOf(2);
+        assertEquals("Helvellyn", snapshot.name(row));
+        assertEquals(Condition.GOOD, snapshot.logged(row));
+        assertEquals(Condition.TRIGNOTLOGGED, snapshot.logged(snapshot.indexOf(1)));
+        assertEquals(Condition.DAMAGED, snapshot.unsynced(snapshot.indexOf(3)));
+        assertTrue(snapshot.isMarked(snapshot.indexOf(4)));
+        assertFalse(snapshot.isMarked(snapshot.indexOf(5)));
+    }
+}
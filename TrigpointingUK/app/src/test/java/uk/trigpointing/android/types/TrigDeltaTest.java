@@ -0,0 +1,89 @@
+package uk.trigpointing.android.types;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Unit tests for TrigDelta class
+ * Testing parsing of delta trig payloads, using a fixture standing in for the server
+ */
+public class TrigDeltaTest {
+
+    private static TrigDelta parse(BufferedReader br) throws IOException {
+        String header = br.readLine();
+        assertTrue(TrigDelta.isDelta(header));
+        return TrigDelta.parse(header, br);
+    }
+
+    private static TrigDelta parse(String payload) throws IOException {
+        return parse(new BufferedReader(new StringReader(payload)));
+    }
+
+    @Test
+    public void testFixture() throws IOException {
+        TrigDelta delta;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                getClass().getClassLoader().getResourceAsStream("trig-delta-fixture.tsv"), StandardCharsets.UTF_8))) {
+            delta = parse(br);
+        }
+        assertEquals("20250101", delta.getFromVersion());
+        assertEquals("20250201", delta.getToVersion());
+        assertEquals(4, delta.size());
+
+        TrigDelta.Row changed = delta.getUpserts().get(0);
+        assertEquals(1, changed.id);
+        assertEquals("TP0001", changed.waypoint);
+        assertEquals("Scafell Pike", changed.name);
+        assertEquals(54.454222, changed.lat, 0.0);
+        assertEquals(-3.211694, changed.lon, 0.0);
+        assertEquals(Trig.Physical.PILLAR, changed.type);
+        assertEquals("", changed.fb);
+        assertEquals(Condition.SLIGHTLYDAMAGED, changed.condition);
+        assertEquals(Trig.Current.PASSIVE, changed.current);
+        assertEquals(Trig.Historic.SECONDARY, changed.historic);
+
+        assertEquals(Trig.Physical.BOLT, delta.getUpserts().get(1).type);
+        assertEquals(Arrays.asList(3L, 5L), delta.getDeletes());
+    }
+
+    @Test
+    public void testIsDelta() {
+        assertTrue(TrigDelta.isDelta("DELTA\t1\t2"));
+        assertFalse("Full lists start with a row count", TrigDelta.isDelta("25000"));
+        assertFalse(TrigDelta.isDelta(null));
+    }
+
+    @Test
+    public void testEmptyDelta() throws IOException {
+        TrigDelta delta = parse("DELTA\t7\t7\n");
+        assertEquals(0, delta.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingVersionRejected() throws IOException {
+        parse("DELTA\t7\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void testShortRowRejected() throws IOException {
+        parse("DELTA\t1\t2\nU\t1\tTP0001\tScafell Pike\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadNumberRejected() throws IOException {
+        parse("DELTA\t1\t2\nD\tnot-a-number\n");
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownOperationRejected() throws IOException {
+        parse("DELTA\t1\t2\nX\t1\n");
+    }
+}
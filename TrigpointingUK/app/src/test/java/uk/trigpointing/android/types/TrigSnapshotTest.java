@@ -0,0 +1,142 @@
+package uk.trigpointing.android.types;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Unit tests for TrigSnapshot class
+ * Testing lookups, bounding box queries and copy-on-write updates
+ */
+public class TrigSnapshotTest {
+
+    private TrigSnapshot snapshot;
+    private static final double DELTA = 0.000001;
+
+    @Before
+    public void setUp() {
+        snapshot = new TrigSnapshot.Builder(4)
+                .add(30, "Scafell Pike", 54.4542, -3.2117, Trig.Physical.PILLAR, Condition.GOOD, Condition.TRIGNOTLOGGED, null, false)
+                .add(10, "Helvellyn", 54.5270, -3.0165, Trig.Physical.PILLAR, Condition.GOOD, Condition.GOOD, null, true)
+                .add(20, "Ben Nevis", 56.7969, -5.0036, Trig.Physical.PILLAR, Condition.DAMAGED, Condition.TRIGNOTLOGGED, Condition.GOOD, false)
+                .add(40, "Somewhere Flat", 52.2000, 0.1200, Trig.Physical.FBM, Condition.UNKNOWN, Condition.TRIGNOTLOGGED, null, false)
+                .build();
+    }
+
+    @Test
+    public void testRowsAreSortedByLatitude() {
+        assertEquals(4, snapshot.size());
+        for (int row = 1; row < snapshot.size(); row++) {
+            assertTrue("Rows should be in latitude order", snapshot.lat(row - 1) <= snapshot.lat(row));
+        }
+    }
+
+    @Test
+    public void testIndexOf() {
+        int row = snapshot.indexOf(10);
+        assertTrue(row >= 0);
+        assertEquals("Helvellyn", snapshot.name(row));
+        assertEquals(54.5270, snapshot.lat(row), DELTA);
+        assertEquals(-3.0165, snapshot.lon(row), DELTA);
+        assertEquals(Trig.Physical.PILLAR, snapshot.type(row));
+        assertEquals(Condition.GOOD, snapshot.logged(row));
+        assertTrue(snapshot.isMarked(row));
+        assertFalse(snapshot.isUnsynced(row));
+
+        assertEquals("Unknown id should not be found", -1, snapshot.indexOf(99));
+    }
+
+    @Test
+    public void testUnsyncedCondition() {
+        int row = snapshot.indexOf(20);
+        assertTrue(snapshot.isUnsynced(row));
+        assertEquals(Condition.GOOD, snapshot.unsynced(row));
+        assertNull(snapshot.unsynced(snapshot.indexOf(30)));
+    }
+
+    @Test
+    public void testQueryBox() {
+        // Lake District
+        int[] rows = snapshot.queryBox(54.2, -3.5, 54.8, -2.5, TrigSnapshot.ALL, 500);
+        assertEquals(2, rows.length);
+
+        int[] pillars = snapshot.queryBox(50, -6, 58, 2, (s, row) -> s.type(row) == Trig.Physical.FBM, 500);
+        assertEquals(1, pillars.length);
+        assertEquals(40, snapshot.id(pillars[0]));
+    }
+
+    @Test
+    public void testQueryBoxKeepsNearestToCentre() {
+        TrigSnapshot.Builder builder = new TrigSnapshot.Builder(0);
+        Random random = new Random(5);
+        for (int i = 0; i < 5000; i++) {
+            builder.add(i, "T" + i, 53 + random.nextDouble() * 2, -3 + random.nextDouble() * 2,
+                    Trig.Physical.PILLAR, Condition.GOOD, Condition.TRIGNOTLOGGED, null, false);
+        }
+        TrigSnapshot big = builder.build();
+
+        int[] all = big.queryBox(53, -3, 55, -1, TrigSnapshot.ALL, Integer.MAX_VALUE);
+        int[] limited = big.queryBox(53, -3, 55, -1, TrigSnapshot.ALL, 100);
+        assertEquals(5000, all.length);
+        assertEquals(100, limited.length);
+
+        // Everything returned must be at least as close to the centre as everything left out
+        double furthestKept = 0;
+        for (int row : limited) {
+            furthestKept = Math.max(furthestKept, centreDistance(big, row));
+        }
+        int closer = 0;
+        for (int row : all) {
+            if (centreDistance(big, row) < furthestKept) {
+                closer++;
+            }
+        }
+        assertTrue("Only the kept trigs should be nearer than the furthest kept", closer < 100);
+    }
+
+    private static double centreDistance(TrigSnapshot s, int row) {
+        double dLat = s.lat(row) - 54;
+        double dLon = s.lon(row) + 2;
+        return dLat * dLat + dLon * dLon;
+    }
+
+    @Test
+    public void testNamesAreInterned() {
+        TrigSnapshot shared = new TrigSnapshot.Builder(2)
+                .add(1, new String("Cairn"), 54, -3, Trig.Physical.PILLAR, Condition.GOOD, Condition.TRIGNOTLOGGED, null, false)
+                .add(2, new String("Cairn"), 55, -3, Trig.Physical.PILLAR, Condition.GOOD, Condition.TRIGNOTLOGGED, null, false)
+                .build();
+        assertSame(shared.name(0), shared.name(1));
+    }
+
+    @Test
+    public void testWithMarkedIsCopyOnWrite() {
+        TrigSnapshot marked = snapshot.withMarked(30, true);
+        assertNotSame(snapshot, marked);
+        assertTrue(marked.isMarked(marked.indexOf(30)));
+        assertFalse("Original snapshot should be unchanged", snapshot.isMarked(snapshot.indexOf(30)));
+        assertSame("No change should return the same snapshot", marked, marked.withMarked(30, true));
+    }
+
+    @Test
+    public void testWithUnsyncedAndLogged() {
+        TrigSnapshot logged = snapshot.withUnsynced(30, Condition.SLIGHTLYDAMAGED).withLogged(40, Condition.GOOD);
+        assertEquals(Condition.SLIGHTLYDAMAGED, logged.unsynced(logged.indexOf(30)));
+        assertEquals(Condition.GOOD, logged.logged(logged.indexOf(40)));
+        assertNull(logged.withUnsynced(30, null).unsynced(logged.indexOf(30)));
+    }
+
+    @Test
+    public void testCurrentSnapshotSwap() {
+        TrigSnapshot.set(snapshot);
+        assertSame(snapshot, TrigSnapshot.current());
+        TrigSnapshot.update(s -> s.withMarked(40, true));
+        assertTrue(TrigSnapshot.current().isMarked(TrigSnapshot.current().indexOf(40)));
+        TrigSnapshot.set(null);
+        TrigSnapshot.update(s -> s.withMarked(40, false));
+        assertNull("Update without a snapshot should do nothing", TrigSnapshot.current());
+    }
+}